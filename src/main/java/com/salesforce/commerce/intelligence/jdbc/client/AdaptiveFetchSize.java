@@ -0,0 +1,309 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.WireFormat;
+import org.apache.calcite.avatica.BuiltInConnectionProperty;
+import org.apache.calcite.avatica.proto.Common;
+import org.apache.calcite.avatica.proto.Responses;
+
+/**
+ * Adaptive fetch size of a connection. When enabled with the {@code adaptiveFetch} connection property, the number of rows requested by
+ * each {@code FetchRequest} of a statement is tuned from the size and round trip time of the frames the statement received so far: it is
+ * the number of rows expected to fill {@code adaptiveFetchTargetBytes} (default 4 MiB) of frame or to take {@code adaptiveFetchTargetMs}
+ * (default 1000) to fetch, whichever is smaller. Wide rows thus get small frames and narrow rows get frames up to the server maximum of
+ * {@value #SERVER_MAX_ROWS} rows.
+ * <p>
+ * Only fetches of the connection's default fetch size are tuned, statements whose fetch size was set with {@code Statement.setFetchSize}
+ * keep it. Avatica continues a result set from the number of rows it received, so the server may return fewer rows than requested.
+ */
+final class AdaptiveFetchSize {
+
+    static final String PROPERTY = "adaptiveFetch";
+    static final String TARGET_BYTES_PROPERTY = "adaptiveFetchTargetBytes";
+    static final String TARGET_MS_PROPERTY = "adaptiveFetchTargetMs";
+
+    // Maximum number of rows the server returns in one frame
+    static final int SERVER_MAX_ROWS = 1000;
+    static final int MIN_ROWS = 10;
+
+    // A frame grows at most by this factor per fetch, so that one fast frame does not cause a huge one
+    private static final int MAX_GROWTH = 2;
+
+    // Weight of the latest frame in the per-row averages
+    private static final double SMOOTHING = 0.5;
+
+    // Statements tracked per connection before the state of abandoned ones is dropped
+    private static final int MAX_TRACKED_STATEMENTS = 1024;
+
+    private static final int WIRE_WRAPPED_MESSAGE_FIELD = Common.WireMessage.WRAPPED_MESSAGE_FIELD_NUMBER;
+    private static final int FETCH_FRAME_FIELD = Responses.FetchResponse.FRAME_FIELD_NUMBER;
+    private static final int EXECUTE_RESULTS_FIELD = Responses.ExecuteResponse.RESULTS_FIELD_NUMBER;
+    private static final int RESULT_FIRST_FRAME_FIELD = Responses.ResultSetResponse.FIRST_FRAME_FIELD_NUMBER;
+    private static final int FRAME_DONE_FIELD = Common.Frame.DONE_FIELD_NUMBER;
+    private static final int FRAME_ROWS_FIELD = Common.Frame.ROWS_FIELD_NUMBER;
+
+    private final int defaultRows;
+    private final long targetBytes;
+    private final long targetNanos;
+    private final Map<StatementKey, StatementState> statements = new ConcurrentHashMap<>();
+
+    AdaptiveFetchSize(int defaultRows, long targetBytes, long targetMs) {
+        this.defaultRows = defaultRows;
+        this.targetBytes = targetBytes;
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMs);
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the adaptive fetch size, or null if it is not enabled.
+     * @throws IllegalArgumentException if a setting is invalid.
+     */
+    static AdaptiveFetchSize fromProperties(Properties properties) {
+        String enabled = properties.getProperty(PROPERTY);
+        if (enabled == null || enabled.isEmpty() || enabled.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (!enabled.equalsIgnoreCase("true")) {
+            throw new IllegalArgumentException("Invalid value for adaptiveFetch property. Expected 'true' or 'false', but got: " + enabled);
+        }
+        int defaultRows;
+        long targetBytes;
+        long targetMs;
+        try {
+            defaultRows = Integer.parseInt(properties.getProperty(BuiltInConnectionProperty.FETCH_SIZE.camelName(),
+                            String.valueOf(SERVER_MAX_ROWS)));
+            targetBytes = Long.parseLong(properties.getProperty(TARGET_BYTES_PROPERTY, String.valueOf(4L << 20)));
+            targetMs = Long.parseLong(properties.getProperty(TARGET_MS_PROPERTY, "1000"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for adaptiveFetchTargetBytes or adaptiveFetchTargetMs property: " + e.getMessage(),
+                            e);
+        }
+        if (targetBytes <= 0 || targetMs <= 0) {
+            throw new IllegalArgumentException(String.format(
+                            "Invalid adaptive fetch settings: adaptiveFetchTargetBytes=%d and adaptiveFetchTargetMs=%d must be positive",
+                            targetBytes, targetMs));
+        }
+        return new AdaptiveFetchSize(defaultRows, targetBytes, targetMs);
+    }
+
+    /**
+     * @param requestedRows the number of rows Avatica requests.
+     * @return the number of rows to request for the next frame of the statement.
+     */
+    int rowsFor(String connectionId, int statementId, int requestedRows) {
+        if (!appliesTo(requestedRows)) {
+            return requestedRows;
+        }
+        StatementState state = statements.get(new StatementKey(connectionId, statementId));
+        return state == null ? Math.min(requestedRows, SERVER_MAX_ROWS) : state.rows;
+    }
+
+    /**
+     * @return true if fetches that request the given number of rows are tuned.
+     */
+    boolean appliesTo(int requestedRows) {
+        return requestedRows == defaultRows;
+    }
+
+    /**
+     * Tunes the fetch size of the statement from a frame received for a tuned fetch.
+     *
+     * @param requestedRows the number of rows that was requested for the frame.
+     * @param response the serialized {@code FetchResponse}.
+     * @param elapsedNanos the round trip time of the fetch.
+     */
+    void record(String connectionId, int statementId, int requestedRows, byte[] response, long elapsedNanos) {
+        if (connectionId == null) {
+            return;
+        }
+        StatementKey key = new StatementKey(connectionId, statementId);
+        long frame = scanFrame(response);
+        int rows = (int) (frame >>> 1);
+        if (frame < 0 || (frame & 1) != 0) {
+            // Unreadable or last frame, the statement fetches no more rows
+            statements.remove(key);
+            return;
+        }
+        if (rows == 0) {
+            return;
+        }
+        if (statements.size() >= MAX_TRACKED_STATEMENTS && !statements.containsKey(key)) {
+            statements.clear();
+        }
+        statements.computeIfAbsent(key, k -> new StatementState()).update(rows, requestedRows, response.length, Math.max(elapsedNanos, 1));
+    }
+
+    /**
+     * Drops the state of a closed statement.
+     */
+    void forgetStatement(String connectionId, int statementId) {
+        if (connectionId != null) {
+            statements.remove(new StatementKey(connectionId, statementId));
+        }
+    }
+
+    /**
+     * Drops the state of the statements of a closed connection.
+     */
+    void forgetConnection(String connectionId) {
+        if (connectionId != null) {
+            statements.keySet().removeIf(key -> key.getConnectionId().equals(connectionId));
+        }
+    }
+
+    /**
+     * Reads the number of rows and the done flag of the frame of a serialized {@code FetchResponse} without materializing the rows.
+     *
+     * @return the number of rows shifted left by one, with the lowest bit set if it is the last frame, or -1 if the response is unreadable.
+     */
+    static long scanFrame(byte[] response) {
+        try {
+            CodedInputStream wrapped = wrappedMessage(response);
+            if (wrapped == null) {
+                return -1;
+            }
+            while (true) {
+                int tag = wrapped.readTag();
+                if (tag == 0) {
+                    // No frame at all, e.g. the statement is missing on the server
+                    return 1;
+                }
+                if (WireFormat.getTagFieldNumber(tag) == FETCH_FRAME_FIELD && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    wrapped.pushLimit(wrapped.readRawVarint32());
+                    return scanRows(wrapped);
+                } else if (!wrapped.skipField(tag)) {
+                    return -1;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Reads the number of rows and the done flag of the first frame of a serialized {@code ExecuteResponse} without materializing the rows.
+     *
+     * @return the number of rows shifted left by one, with the lowest bit set if it is the last frame or there is no result set, or -1 if
+     *         the response is unreadable or carries more than one result.
+     */
+    static long scanFirstFrame(byte[] response) {
+        try {
+            CodedInputStream wrapped = wrappedMessage(response);
+            if (wrapped == null) {
+                return -1;
+            }
+            long scan = 1;
+            boolean result = false;
+            while (true) {
+                int tag = wrapped.readTag();
+                if (tag == 0) {
+                    return scan;
+                }
+                if (WireFormat.getTagFieldNumber(tag) == EXECUTE_RESULTS_FIELD
+                                && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    if (result) {
+                        return -1;
+                    }
+                    result = true;
+                    int limit = wrapped.pushLimit(wrapped.readRawVarint32());
+                    scan = scanResultFrame(wrapped);
+                    wrapped.popLimit(limit);
+                } else if (!wrapped.skipField(tag)) {
+                    return -1;
+                }
+            }
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static long scanResultFrame(CodedInputStream result) throws IOException {
+        // An update count or a missing statement has no frame, there is nothing to fetch after it
+        long scan = 1;
+        while (!result.isAtEnd()) {
+            int tag = result.readTag();
+            if (WireFormat.getTagFieldNumber(tag) == RESULT_FIRST_FRAME_FIELD
+                            && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                int limit = result.pushLimit(result.readRawVarint32());
+                scan = scanRows(result);
+                result.skipRawBytes(result.getBytesUntilLimit());
+                result.popLimit(limit);
+            } else if (!result.skipField(tag)) {
+                return -1;
+            }
+        }
+        return scan;
+    }
+
+    private static CodedInputStream wrappedMessage(byte[] response) throws IOException {
+        CodedInputStream in = CodedInputStream.newInstance(response);
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                return null;
+            }
+            if (WireFormat.getTagFieldNumber(tag) == WIRE_WRAPPED_MESSAGE_FIELD
+                            && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                int length = in.readRawVarint32();
+                return CodedInputStream.newInstance(response, in.getTotalBytesRead(), length);
+            } else if (!in.skipField(tag)) {
+                return null;
+            }
+        }
+    }
+
+    private static long scanRows(CodedInputStream frame) throws IOException {
+        long rows = 0;
+        boolean done = false;
+        while (!frame.isAtEnd()) {
+            int tag = frame.readTag();
+            int field = WireFormat.getTagFieldNumber(tag);
+            if (field == FRAME_DONE_FIELD && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_VARINT) {
+                done = frame.readBool();
+            } else {
+                if (field == FRAME_ROWS_FIELD) {
+                    rows++;
+                }
+                if (!frame.skipField(tag)) {
+                    break;
+                }
+            }
+        }
+        return rows << 1 | (done ? 1 : 0);
+    }
+
+    /**
+     * Per-row size and fetch time of the frames of one statement, and the number of rows to request next.
+     */
+    private final class StatementState {
+        private volatile int rows = Math.min(defaultRows, SERVER_MAX_ROWS);
+        private int maxRows = SERVER_MAX_ROWS;
+        private double bytesPerRow;
+        private double nanosPerRow;
+
+        synchronized void update(int receivedRows, int requestedRows, int bytes, long elapsedNanos) {
+            if (receivedRows < requestedRows) {
+                // The server capped the frame below the requested number of rows
+                maxRows = Math.max(MIN_ROWS, receivedRows);
+            }
+            double frameBytesPerRow = (double) bytes / receivedRows;
+            double frameNanosPerRow = (double) elapsedNanos / receivedRows;
+            if (bytesPerRow == 0) {
+                bytesPerRow = frameBytesPerRow;
+                nanosPerRow = frameNanosPerRow;
+            } else {
+                bytesPerRow += SMOOTHING * (frameBytesPerRow - bytesPerRow);
+                nanosPerRow += SMOOTHING * (frameNanosPerRow - nanosPerRow);
+            }
+            double target = Math.min(targetBytes / bytesPerRow, targetNanos / nanosPerRow);
+            long next = Math.min((long) target, (long) receivedRows * MAX_GROWTH);
+            rows = (int) Math.max(MIN_ROWS, Math.min(next, maxRows));
+        }
+    }
+}
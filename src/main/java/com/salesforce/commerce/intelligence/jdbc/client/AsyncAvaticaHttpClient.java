@@ -0,0 +1,19 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.apache.calcite.avatica.remote.AvaticaHttpClient;
+
+/**
+ * An {@link AvaticaHttpClient} that can also send requests without blocking the calling thread until the server responds.
+ */
+public interface AsyncAvaticaHttpClient extends AvaticaHttpClient {
+
+    /**
+     * Sends a serialized Avatica request asynchronously.
+     *
+     * @param request the serialized request.
+     * @return a future completed with the serialized response.
+     */
+    CompletableFuture<byte[]> sendAsync(byte[] request);
+}
@@ -0,0 +1,93 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.TimeZone;
+
+import org.apache.calcite.avatica.AvaticaConnection;
+import org.apache.calcite.avatica.AvaticaFactory;
+import org.apache.calcite.avatica.AvaticaPreparedStatement;
+import org.apache.calcite.avatica.AvaticaResultSet;
+import org.apache.calcite.avatica.AvaticaSpecificDatabaseMetaData;
+import org.apache.calcite.avatica.AvaticaStatement;
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.QueryState;
+import org.apache.calcite.avatica.UnregisteredDriver;
+
+/**
+ * JDBC object factory of {@link CIPDriver}. It delegates to the factory of Avatica and only replaces the result sets, whose {@code close}
+ * also stops the prefetch of their frames (see {@link FramePrefetcher}). Avatica sends nothing to the server when a result set is closed.
+ */
+public class CIPAvaticaFactory implements AvaticaFactory {
+
+    private final AvaticaFactory delegate = CIPDriver.avaticaFactory();
+
+    public CIPAvaticaFactory() {
+    }
+
+    @Override
+    public int getJdbcMajorVersion() {
+        return delegate.getJdbcMajorVersion();
+    }
+
+    @Override
+    public int getJdbcMinorVersion() {
+        return delegate.getJdbcMinorVersion();
+    }
+
+    @Override
+    public AvaticaConnection newConnection(UnregisteredDriver driver, AvaticaFactory factory, String url, Properties info)
+            throws SQLException {
+        return delegate.newConnection(driver, factory, url, info);
+    }
+
+    @Override
+    public AvaticaStatement newStatement(AvaticaConnection connection, Meta.StatementHandle h, int resultSetType, int resultSetConcurrency,
+            int resultSetHoldability) throws SQLException {
+        return delegate.newStatement(connection, h, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public AvaticaPreparedStatement newPreparedStatement(AvaticaConnection connection, Meta.StatementHandle h, Meta.Signature signature,
+            int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+        return delegate.newPreparedStatement(connection, h, signature, resultSetType, resultSetConcurrency, resultSetHoldability);
+    }
+
+    @Override
+    public AvaticaResultSet newResultSet(AvaticaStatement statement, QueryState state, Meta.Signature signature, TimeZone timeZone,
+            Meta.Frame firstFrame) throws SQLException {
+        ResultSetMetaData metaData = newResultSetMetaData(statement, signature);
+        return new CIPResultSet(statement, state, signature, metaData, timeZone, firstFrame);
+    }
+
+    @Override
+    public AvaticaSpecificDatabaseMetaData newDatabaseMetaData(AvaticaConnection connection) {
+        return delegate.newDatabaseMetaData(connection);
+    }
+
+    @Override
+    public ResultSetMetaData newResultSetMetaData(AvaticaStatement statement, Meta.Signature signature) throws SQLException {
+        return delegate.newResultSetMetaData(statement, signature);
+    }
+
+    /**
+     * Result set that stops the prefetch of its frames when it is closed.
+     */
+    private static final class CIPResultSet extends AvaticaResultSet {
+
+        CIPResultSet(AvaticaStatement statement, QueryState state, Meta.Signature signature, ResultSetMetaData resultSetMetaData,
+                TimeZone timeZone, Meta.Frame firstFrame) throws SQLException {
+            super(statement, state, signature, resultSetMetaData, timeZone, firstFrame);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            Meta.StatementHandle handle = statement.handle;
+            if (handle != null) {
+                FramePrefetcher.cancel(handle.connectionId, handle.id);
+            }
+        }
+    }
+}
@@ -1,42 +1,76 @@
 package com.salesforce.commerce.intelligence.jdbc.client;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.HttpURLConnection;
+import java.net.ProxySelector;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Properties;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.salesforce.commerce.intelligence.jdbc.client.auth.AmAuthService;
 import org.apache.calcite.avatica.ConnectionConfig;
-import org.apache.calcite.avatica.remote.AvaticaHttpClient;
+import org.apache.calcite.avatica.Meta;
 import org.apache.calcite.avatica.remote.HttpClientPoolConfigurable;
 import org.apache.calcite.avatica.remote.ProtobufTranslation;
 import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
 import org.apache.calcite.avatica.remote.Service;
 import org.apache.hc.client5.http.ClientProtocolException;
+import org.apache.hc.client5.http.HttpRoute;
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
 import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.classic.HttpClientBuilder;
 import org.apache.hc.client5.http.impl.classic.HttpClients;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.client5.http.impl.routing.SystemDefaultRoutePlanner;
+import org.apache.hc.client5.http.io.ConnectionEndpoint;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.client5.http.utils.DateUtils;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ConnectionClosedException;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpHost;
+import org.apache.hc.core5.http.HttpResponse;
 import org.apache.hc.core5.http.NoHttpResponseException;
 import org.apache.hc.core5.http.ParseException;
 import org.apache.hc.core5.http.ProtocolException;
 import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
 import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.message.BasicHeader;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -47,7 +81,7 @@ import org.slf4j.LoggerFactory;
  */
 
 public class CIPAvaticaHttpClient
-                implements AvaticaHttpClient, HttpClientPoolConfigurable
+                implements AsyncAvaticaHttpClient, HttpClientPoolConfigurable
 {
     // Refresh the token 5 minutes before expiry
     private static final long TOKEN_EXPIRY_THRESHOLD_MS = 5 * 60 * 1000;
@@ -55,6 +89,8 @@ public class CIPAvaticaHttpClient
     private static final String HEADER_SESSION_ID = "x-session-id";
     private static final String HEADER_REQUEST_TYPE = "x-Request-Type";
     private static final String HEADER_REQUEST_QUERY_EXECUTE = "query-execute";
+    private static final String HEADER_INSTANCE_ID = "InstanceId";
+    private static final String HEADER_CLIENT_VERSION = "X-Client-Version";
 
     /**
      * A fake JWT access token used in test mode to simulate authentication.
@@ -69,15 +105,17 @@ public class CIPAvaticaHttpClient
      * request structure.
      */
     private static final String FAKE_TK = "fake_tk";
-    private String jwtToken; // The current JWT token for authorization
-    long tokenExpiryTimeMs = 0; // Timestamp (in ms) when the token expires
+    // The token used for authorization, taken from the process-wide TokenCache and shared with other connections of the same client
+    volatile TokenCache.Token token;
+    private final String tokenCacheKey;
+    private final FileTokenStore tokenStore; // null unless tokenCacheDir is set
     private final AmAuthService amAuthService; // Service for handling OAuth2 authentication
     private final ProtobufTranslation pbTranslation;
 
     // Test mode fields
     // This is used to simulate authentication for testing purposes.
     // It is set to true if the testMode property is set to true in the connection properties.
-    // If testMode is true, the jwtToken and tokenExpiryTimeMs are set to the fake access token and 1 hour from now.
+    // If testMode is true, the token is set to the fake access token expiring 1 hour from now.
     // This is used to avoid making actual OAuth calls to the authentication service.
     private final boolean testMode;
 
@@ -89,28 +127,56 @@ public class CIPAvaticaHttpClient
 
     private static final Logger LOG = LoggerFactory.getLogger(CIPAvaticaHttpClient.class);
 
-    // Thread-safe store for session IDs associated with each connection
-    // --------------------------------------------------------------------
-    // The `sessionStore` is a ConcurrentHashMap that maps unique connection IDs
-    // to session IDs. Each entry in the map corresponds to a unique connection
-    // initiated by this client.
-    //
-    // Key: `connectionId` (String) - a unique identifier for the client connection.
-    // Value: `sessionId` (String) - the session ID associated with the client
-    // connection. This session ID is used to maintain stickiness for the session
-    // across requests.
-    //
-    // This map is thread-safe to support concurrent access in environments where
-    // multiple connections may be established in parallel. It is used primarily
-    // to set the `x-session-id` HTTP header on outgoing requests, ensuring that
-    // requests from the same connection are routed to the correct server instance
-    // by the load balancer (for instance, using Istio or other session-aware
-    // routing systems).
-    static final ConcurrentHashMap<String, String> sessionStore = new ConcurrentHashMap<>();
+    // Session IDs of the open connections, used to set the `x-session-id` header so that the load balancer routes
+    // all requests of a connection to the same server. Entries are removed when the connection is closed, and
+    // entries of abandoned connections are evicted after an idle TTL or when the store is full.
+    static final SessionStore sessionStore = SessionStore.shared();
     protected final URI uri; // uri of avatica server
 
     protected CloseableHttpClient client;
 
+    // Shared non-blocking client, only set when the h2 or async transport is selected
+    protected CloseableHttpAsyncClient asyncClient;
+
+    private final HttpTransport transport;
+
+    // Content coding negotiated by the driver, and the batch request size from which request bodies are compressed (0 = never)
+    private final FrameCompression compression;
+    private final int compressRequestsAbove;
+    private final TransferStats transferStats = new TransferStats();
+
+    // Retries of 503s and missing responses are spaced out by the policy and bounded by the process-wide budget
+    private final RetryPolicy retryPolicy;
+    private final RetryBudget retryBudget = RetryBudget.shared();
+    private final RetryStats retryStats = new RetryStats();
+
+    // Shared by all connections to the same endpoint, rejects attempts while the server is known to be down
+    private final CircuitBreaker circuitBreaker;
+
+    // Hedging of idempotent requests, null unless enabled with the hedging property
+    private final RequestHedging hedging;
+
+    private final PoolSettings poolSettings;
+
+    // Tunes the row count of fetches from the frames received so far, null unless enabled with the adaptiveFetch property
+    private final AdaptiveFetchSize adaptiveFetch;
+
+    // Requests the next frames of a result set while the application iterates the current one, null unless enabled with the prefetch
+    // property
+    private final FramePrefetcher prefetcher;
+
+    // Answers repeated queries from the results of earlier ones, null unless enabled with the resultCache property
+    private final ResultCache resultCache;
+
+    // Answers DatabaseMetaData lookups for all connections of the process, null unless enabled with the metadataCache property
+    private final MetadataCache metadataCache;
+
+    // Keeps the statements of closed prepared statements for reuse, null unless enabled with the preparedStatementCacheQueries property
+    private final StatementHandleCache statementCache;
+
+    // Scratch buffers for response bodies of unknown length, shared by all connections
+    private final ResponseBufferPool responseBufferPool = ResponseBufferPool.shared();
+
     protected HttpClientContext context;
 
     private static String loadClientVersion() {
@@ -128,53 +194,111 @@ public class CIPAvaticaHttpClient
 
     private static String clientVersion = loadClientVersion();
 
-    public CIPAvaticaHttpClient( URL url) {
-        this.uri = toURI((URL)Objects.requireNonNull(url));
-        this.amAuthService = new AmAuthService();
-        this.pbTranslation = new ProtobufTranslationImpl();
-
-        // Retrieve OAuth2 parameters from connection properties
-        Properties connectionProps = CIPDriver.connectionProperties.get();
-        this.oauthHost = connectionProps.getProperty("amOauthHost");
-        this.clientId = connectionProps.getProperty("user");
-        this.clientSecret = connectionProps.getProperty("password");
-        this.instanceId = connectionProps.getProperty("instanceId");
-        
-        // Initialize test mode fields
-        this.testMode = Boolean.parseBoolean(connectionProps.getProperty("testMode", "false"));
-        if (this.testMode) {
-            this.jwtToken = FAKE_TK;  
-            this.tokenExpiryTimeMs = System.currentTimeMillis() + 3600000L;
-        }
+    /**
+     * @param threads the maximum number of threads, further tasks wait in the queue until a thread is free.
+     * @return the executor of blocking sends, whose idle threads end after a minute.
+     */
+    static ThreadPoolExecutor newBlockingSendExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "cip-avatica-send");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    // Runs sendAsync for the classic transport, whose exchanges block a thread for the whole round trip. More threads than the pool has
+    // connections would only wait for a connection, so sends beyond that queue for a thread instead of starting one per stuck request.
+    private static final ExecutorService BLOCKING_SEND_EXECUTOR = newBlockingSendExecutor(SharedAsyncClients.HTTP1_MAX_CONNECTIONS);
+
+    // Headers that never change for the lifetime of the client are built once and shared by every request
+    private static final Header CLIENT_VERSION_HEADER = new BasicHeader(HEADER_CLIENT_VERSION, clientVersion);
+    private static final Header QUERY_EXECUTE_HEADER = new BasicHeader(HEADER_REQUEST_TYPE, HEADER_REQUEST_QUERY_EXECUTE);
+    private static final Header ACCEPT_ENCODING_HEADER = new BasicHeader(HttpHeaders.ACCEPT_ENCODING, FrameCompression.ACCEPT_ENCODING);
+    private final Header instanceIdHeader;
+
+    /**
+     * @param url The URL of the Avatica server.
+     * @deprecated reads the connection properties from {@link CIPDriver#connectionProperties}, which is only set on the thread that opens
+     *             a connection. Use {@link #CIPAvaticaHttpClient(URL, CIPConnectionConfig)}, this constructor will be removed in the next
+     *             release.
+     */
+    @Deprecated
+    public CIPAvaticaHttpClient(URL url) {
+        this(url, new AmAuthService(), new ProtobufTranslationImpl());
+    }
+
+    /**
+     * @param url The URL of the Avatica server.
+     * @param amAuthService The authentication service used to get and refresh tokens.
+     * @deprecated reads the connection properties from {@link CIPDriver#connectionProperties}. Use
+     *             {@link #CIPAvaticaHttpClient(URL, CIPConnectionConfig, AmAuthService, ProtobufTranslation)}, this constructor will be
+     *             removed in the next release.
+     */
+    @Deprecated
+    public CIPAvaticaHttpClient(URL url, AmAuthService amAuthService, ProtobufTranslation pbTranslation) {
+        this(url, CIPConnectionConfig.fromProperties(CIPDriver.connectionProperties.get()), amAuthService, pbTranslation);
+    }
+
+    /**
+     * @param url The URL of the Avatica server.
+     * @param config The configuration of the connection, see {@link CIPHttpClientFactory}.
+     */
+    public CIPAvaticaHttpClient(URL url, CIPConnectionConfig config) {
+        this(url, config, new AmAuthService(), new ProtobufTranslationImpl());
     }
 
     /**
      * Constructor for CIPAvaticaHttpClient used for testing with a mock authentication service.
      *
      * @param url The URL of the Avatica server.
+     * @param config The configuration of the connection.
      * @param amAuthService The authentication service used to get and refresh tokens.
      */
-    public CIPAvaticaHttpClient( URL url, AmAuthService amAuthService, ProtobufTranslation pbTranslation) {
+    public CIPAvaticaHttpClient(URL url, CIPConnectionConfig config, AmAuthService amAuthService, ProtobufTranslation pbTranslation) {
         this.uri = toURI((URL)Objects.requireNonNull(url));
         this.amAuthService = amAuthService;
         this.pbTranslation = pbTranslation;
 
-        // Retrieve OAuth2 parameters from connection properties
-        Properties connectionProps = CIPDriver.connectionProperties.get();
-        this.oauthHost = connectionProps.getProperty("amOauthHost");
-        this.clientId = connectionProps.getProperty("user");
-        this.clientSecret = connectionProps.getProperty("password");
-        this.instanceId = connectionProps.getProperty("instanceId");
-        
+        this.oauthHost = config.getOauthHost();
+        this.clientId = config.getClientId();
+        this.clientSecret = config.getClientSecret();
+        this.instanceId = config.getInstanceId();
+        this.tokenCacheKey = TokenCache.key(oauthHost, clientId, clientSecret, instanceId);
+        this.tokenStore = config.getTokenStore();
+        this.instanceIdHeader = new BasicHeader(HEADER_INSTANCE_ID, instanceId);
+        this.transport = config.getTransport();
+        this.compression = config.getCompression();
+        this.compressRequestsAbove = config.getCompressRequestsAbove();
+        this.retryPolicy = config.getRetryPolicy();
+        this.circuitBreaker = CircuitBreaker.forEndpoint(uri);
+        this.hedging = config.getHedging();
+        this.poolSettings = config.getPoolSettings();
+        this.adaptiveFetch = config.getAdaptiveFetch();
+        this.prefetcher = config.getPrefetcher();
+        this.resultCache = config.getResultCache();
+        this.metadataCache = config.getMetadataCache();
+        this.statementCache = config.getStatementCache();
+
         // Initialize test mode fields
-        this.testMode = Boolean.parseBoolean(connectionProps.getProperty("testMode", "false"));
+        this.testMode = config.isTestMode();
         if (this.testMode) {
-            this.jwtToken = FAKE_TK;
-            this.tokenExpiryTimeMs = System.currentTimeMillis() + 3600000L;
+            this.token = new TokenCache.Token(FAKE_TK, System.currentTimeMillis() + 3600000L);
         }
     }
 
     protected void initializeClient(PoolingHttpClientConnectionManager pool, ConnectionConfig config) {
+        if (transport != HttpTransport.HTTP1) {
+            // The per-connection pool from Avatica is not used, all connections to this server share one non-blocking client
+            LOG.debug("Using shared {} transport for {}", transport, uri);
+            this.context = HttpClientContext.create();
+            this.asyncClient = SharedAsyncClients.get(uri, config, transport, poolSettings);
+            if (poolSettings.getPrewarmConnections() > 0) {
+                LOG.info("prewarmConnections is ignored with the {} transport, it only applies to http1", transport);
+            }
+            return;
+        }
         RequestConfig.Builder requestConfigBuilder = RequestConfig.custom();
         RequestConfig requestConfig = requestConfigBuilder.setConnectTimeout(config.getHttpConnectionTimeout(), TimeUnit.MILLISECONDS).setResponseTimeout( config.getHttpResponseTimeout(), TimeUnit.MILLISECONDS ).build();
         // Use system properties to support proxy, SSL, and timeout configurations
@@ -183,43 +307,803 @@ public class CIPAvaticaHttpClient
         // - https.proxyHost / https.proxyPort
         // - javax.net.ssl.trustStore / trustStorePassword
         // It helps the driver work correctly in environments with custom network setups (e.g., behind a proxy)
+        poolSettings.applyTo(pool, config.getHttpConnectionTimeout());
         HttpClientBuilder httpClientBuilder = HttpClients.custom().useSystemProperties().setConnectionManager(pool).setDefaultRequestConfig(requestConfig);
+        if (poolSettings.keepAliveStrategy() != null) {
+            httpClientBuilder.setKeepAliveStrategy(poolSettings.keepAliveStrategy());
+        }
+        if (compression != FrameCompression.NONE) {
+            // The driver negotiates and decodes the content coding itself, see readEntity
+            httpClientBuilder.disableContentCompression();
+        }
         this.context = HttpClientContext.create();
         this.client = httpClientBuilder.build();
+        if (poolSettings.getPrewarmConnections() > 0) {
+            prewarm(pool, poolSettings.getPrewarmConnections(), config.getHttpConnectionTimeout());
+        }
+    }
+
+    /**
+     * Opens pooled connections to the Avatica server ahead of the first request, including the TLS handshake, so the first queries do not
+     * pay for cold connections. Connections already idle in the pool count towards the requested number. Failures are only logged; the
+     * first request reports an unreachable server as usual.
+     */
+    void prewarm(PoolingHttpClientConnectionManager pool, int connections, long connectTimeoutMs) {
+        List<ConnectionEndpoint> endpoints = new ArrayList<>();
+        TimeValue keepAlive = poolSettings.initialKeepAlive();
+        try {
+            // Plan the route the way the client does, so the connections land in the pool partition the requests use
+            HttpRoute route = new SystemDefaultRoutePlanner(ProxySelector.getDefault()).determineRoute(HttpHost.create(uri),
+                            HttpClientContext.create());
+            if (route.getProxyHost() != null) {
+                LOG.info("Not pre-warming connections to {}, it is reached through a proxy", uri);
+                return;
+            }
+            int target = Math.min(connections, pool.getDefaultMaxPerRoute());
+            if (pool.getStats(route).getAvailable() >= target) {
+                return;
+            }
+            Timeout timeout = Timeout.ofMilliseconds(connectTimeoutMs);
+            // All endpoints are leased at once, so each of them is a separate connection
+            for (int i = 0; i < target; i++) {
+                endpoints.add(pool.lease("prewarm-" + i, route, timeout, null).get(timeout));
+            }
+            List<CompletableFuture<Void>> connects = new ArrayList<>();
+            for (ConnectionEndpoint endpoint : endpoints) {
+                if (!endpoint.isConnected()) {
+                    connects.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            pool.connect(endpoint, timeout, HttpClientContext.create());
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, BLOCKING_SEND_EXECUTOR));
+                }
+            }
+            CompletableFuture.allOf(connects.toArray(new CompletableFuture<?>[0])).get(connectTimeoutMs, TimeUnit.MILLISECONDS);
+            LOG.debug("Pre-warmed {} connections to {}", connects.size(), uri);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.warn("Interrupted while pre-warming connections to {}", uri);
+        } catch (Exception e) {
+            LOG.warn("Failed to pre-warm connections to {}", uri, e);
+        } finally {
+            for (ConnectionEndpoint endpoint : endpoints) {
+                // Endpoints that failed to connect are discarded by the pool
+                pool.release(endpoint, null, keepAlive);
+            }
+        }
     }
 
     public byte[] send(byte[] request) {
-        LOG.debug("Sending request to Avatica server.");
+        // The caches, the prefetch and the send all work on this envelope, so they scan and parse the request once
+        RequestEnvelope envelope = newEnvelope(request);
+        if (metadataCache != null) {
+            CompletableFuture<byte[]> metadata = metadata(envelope);
+            if (metadata != null) {
+                return await(metadata);
+            }
+        }
+        Service.Request statement = statementCache == null ? null : statementRequest(envelope);
+        if (statement instanceof Service.PrepareRequest) {
+            Service.PrepareRequest prepare = (Service.PrepareRequest) statement;
+            byte[] reused = statementCache.take(prepare);
+            return reused != null ? reused : statementCache.prepared(prepare, sendUncached(envelope));
+        }
+        if (statement != null) {
+            byte[] closed = releaseStatement((Service.CloseStatementRequest) statement, envelope);
+            if (closed != null) {
+                return closed;
+            }
+        }
+        Service.Request cacheable = resultCache == null ? null : cacheableRequest(envelope);
+        if (cacheable != null) {
+            byte[] cached = resultCache.lookup(instanceId, clientId, cacheable);
+            if (cached != null) {
+                discardPrefetch(envelope);
+                return cached;
+            }
+            return resultCache.record(instanceId, clientId, cacheable, sendUncached(envelope));
+        }
+        return sendUncached(envelope);
+    }
 
-        Service.Request genericReq = getGenericReq(request);
-        String connectionId = logAndExtractConnectionId(genericReq);
-        String sessionId = sessionStore.get(connectionId);
+    private byte[] sendUncached(RequestEnvelope envelope) {
+        if (prefetcher != null) {
+            CompletableFuture<byte[]> frame = prefetch(envelope);
+            if (frame != null) {
+                return await(frame);
+            }
+            return prefetchAfter(envelope, sendDirect(envelope));
+        }
+        return sendDirect(envelope);
+    }
+
+    private byte[] sendDirect(RequestEnvelope request) {
+        if (asyncClient != null) {
+            // The non-blocking transports do all the work in sendAsync, the synchronous call only waits for it
+            return await(sendDirectAsync(request));
+        }
+        LOG.debug("Sending request to Avatica server.");
 
+        RequestEnvelope envelope = tuneFetchSize(request);
         refreshJwtIfNeeded();
-        int maxRetries = 5;
+        retryStats.recordRequest();
+        retryBudget.deposit();
+        if (isHedged(envelope)) {
+            return await(sendHedged(envelope));
+        }
+        return sendEnvelope(envelope);
+    }
+
+    private byte[] sendEnvelope(RequestEnvelope envelope) {
+        String sessionId = sessionStore.get(envelope.getConnectionId());
+        // Attempts that failed so far, a replay with a renewed token is not counted as a retry
         int attempt = 0;
-        while ( attempt < maxRetries ) {
+        while ( true ) {
+            retryStats.recordAttempt();
             HttpClientContext httpContext = HttpClientContext.create();
-            HttpPost post = getHttpPost(request, sessionId);
-
-            try (CloseableHttpResponse response = this.execute(post, httpContext)) {
-                byte[] result = handleResponse(response, genericReq, connectionId);
-                if (result.length == 0) {
-                    attempt++;
-                    LOG.warn("Empty response, retry attempt {}", attempt);
-                    continue; // retry on empty array (e.g. 503)
+            TokenCache.Token usedToken = token;
+            HttpPost post = getHttpPost(envelope, sessionId);
+            long retryAfterMillis = -1;
+            Exception failure = null;
+
+            try (ClassicHttpResponse response = executeGuarded(post, httpContext, envelope)) {
+                if (response.getCode() == HttpURLConnection.HTTP_UNAUTHORIZED && renewTokenForReplay(envelope, usedToken)) {
+                    EntityUtils.consume(response.getEntity());
+                    continue;
                 }
-                return result;
+                byte[] result = handleResponse(response, envelope);
+                if (result.length != 0) {
+                    return result;
+                }
+                // retry on empty array (e.g. 503)
+                retryAfterMillis = retryAfterMillis(response);
             } catch (NoHttpResponseException e) {
                 LOG.debug("The Avatica server failed to issue an HTTP response, retrying");
+                failure = e;
             } catch (RuntimeException e) {
                 throw e;
             } catch (Exception e) {
                 LOG.debug("Failed to execute HTTP request", e);
                 throw new RuntimeException(e);
             }
+            attempt++;
+            sleepBeforeRetry(retryDelay(attempt, retryAfterMillis, failure));
+        }
+    }
+
+    /**
+     * Sends the request without holding the calling thread for the server response. With the {@code h2} and {@code async} transports the
+     * exchange, including the retries, runs on the shared non-blocking client, so many long running requests need no waiting threads. With
+     * the classic transport the blocking {@link #send(byte[])} is handed to a worker thread.
+     *
+     * @param request the serialized Avatica request.
+     * @return a future completed with the serialized response, or exceptionally with the same exceptions {@link #send(byte[])} throws.
+     *         Cancelling the future aborts the in-flight exchange.
+     */
+    @Override
+    public CompletableFuture<byte[]> sendAsync(byte[] request) {
+        RequestEnvelope envelope;
+        Service.Request cacheable;
+        try {
+            // Scanned once for all stages, see send
+            envelope = newEnvelope(request);
+            CompletableFuture<byte[]> metadata = metadataCache == null ? null : metadata(envelope);
+            if (metadata != null) {
+                return metadata;
+            }
+            Service.Request statement = statementCache == null ? null : statementRequest(envelope);
+            if (statement instanceof Service.PrepareRequest) {
+                Service.PrepareRequest prepare = (Service.PrepareRequest) statement;
+                byte[] reused = statementCache.take(prepare);
+                return reused != null ? CompletableFuture.completedFuture(reused)
+                        : sendUncachedAsync(envelope).thenApply(body -> statementCache.prepared(prepare, body));
+            }
+            if (statement != null) {
+                byte[] closed = releaseStatement((Service.CloseStatementRequest) statement, envelope);
+                if (closed != null) {
+                    return CompletableFuture.completedFuture(closed);
+                }
+            }
+            cacheable = resultCache == null ? null : cacheableRequest(envelope);
+            if (cacheable != null) {
+                byte[] cached = resultCache.lookup(instanceId, clientId, cacheable);
+                if (cached != null) {
+                    discardPrefetch(envelope);
+                    return CompletableFuture.completedFuture(cached);
+                }
+            }
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        CompletableFuture<byte[]> response = sendUncachedAsync(envelope);
+        return cacheable == null ? response : response.thenApply(body -> resultCache.record(instanceId, clientId, cacheable, body));
+    }
+
+    private CompletableFuture<byte[]> sendUncachedAsync(RequestEnvelope envelope) {
+        if (prefetcher != null) {
+            try {
+                CompletableFuture<byte[]> frame = prefetch(envelope);
+                if (frame != null) {
+                    return frame;
+                }
+            } catch (RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+            return sendDirectAsync(envelope).thenApply(response -> prefetchAfter(envelope, response));
+        }
+        return sendDirectAsync(envelope);
+    }
+
+    private CompletableFuture<byte[]> sendDirectAsync(RequestEnvelope request) {
+        // A hedged send waits for its copies, which run on the same bounded executor, so it is not run there itself
+        if (asyncClient == null && !isHedged(request)) {
+            return CompletableFuture.supplyAsync(() -> sendDirect(request), BLOCKING_SEND_EXECUTOR);
+        }
+        LOG.debug("Sending request to Avatica server asynchronously.");
+
+        try {
+            RequestEnvelope envelope = tuneFetchSize(request);
+            refreshJwtIfNeeded();
+            retryStats.recordRequest();
+            retryBudget.deposit();
+            return isHedged(envelope) ? sendHedged(envelope) : sendEnvelopeAsync(envelope);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Hands fetches to the {@link FramePrefetcher}, and makes requests that execute again, close or resynchronize a statement with
+     * prefetched frames wait until its fetch in flight completed.
+     *
+     * @return the future of the frame if the request is a fetch, or null if the request is to be sent as usual.
+     */
+    private CompletableFuture<byte[]> prefetch(RequestEnvelope envelope) {
+        switch (envelope.getKind()) {
+            case FETCH:
+                // The first frame the prefetcher sends is the one of this fetch, it goes out as Avatica serialized it
+                AtomicBoolean first = new AtomicBoolean(true);
+                return prefetcher.fetch((Service.FetchRequest) envelope.getRequest(),
+                        fetch -> first.getAndSet(false) ? sendDirectAsync(envelope) : sendPrefetch(fetch));
+            case CLOSE_CONNECTION:
+                prefetcher.discardConnection(envelope.getConnectionId());
+                return null;
+            case EXECUTE:
+            case PREPARE_AND_EXECUTE:
+            case CLOSE_STATEMENT:
+            case SYNC_RESULTS:
+                if (FramePrefetcher.isActive(envelope.getConnectionId())) {
+                    prefetcher.discard(statementOf(envelope.getRequest()));
+                }
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Starts the prefetch of a result set from its execute response when the first frame is not the last one, so that the second frame is
+     * requested before Avatica fetches it.
+     *
+     * @return the response.
+     */
+    private byte[] prefetchAfter(RequestEnvelope envelope, byte[] response) {
+        RequestKind kind = envelope.getKind();
+        if (kind == RequestKind.EXECUTE || kind == RequestKind.PREPARE_AND_EXECUTE) {
+            prefetcher.executed(statementOf(envelope.getRequest()), response, this::sendPrefetch);
+        }
+        return response;
+    }
+
+    /**
+     * Lets the {@link FramePrefetcher} see a request that is answered without being sent, so that a statement executed again from the
+     * {@link ResultCache} still drops the frames prefetched for its previous result.
+     */
+    private void discardPrefetch(RequestEnvelope envelope) {
+        if (prefetcher != null) {
+            prefetch(envelope);
+        }
+    }
+
+    /**
+     * Answers metadata lookups through the {@link MetadataCache}, and lets it see the statements that may change the schema and the
+     * statements it answered being closed.
+     *
+     * @return the future of the response, or null if the request is to be sent as usual.
+     */
+    private CompletableFuture<byte[]> metadata(RequestEnvelope envelope) {
+        RequestKind kind = envelope.getKind();
+        if (kind.isMetadata()) {
+            return metadataCache.get(instanceId, clientId, envelope.getRequest(), () -> sendDirectAsync(envelope));
+        }
+        switch (kind) {
+            case PREPARE_AND_EXECUTE:
+                metadataCache.observeStatement(instanceId, ((Service.PrepareAndExecuteRequest) envelope.getRequest()).sql);
+                return null;
+            case PREPARE:
+                metadataCache.observeStatement(instanceId, ((Service.PrepareRequest) envelope.getRequest()).sql);
+                return null;
+            case CLOSE_STATEMENT:
+                if (MetadataCache.hasLocalStatements(envelope.getConnectionId())) {
+                    byte[] closed = MetadataCache.closeLocalStatement((Service.CloseStatementRequest) envelope.getRequest());
+                    return closed == null ? null : CompletableFuture.completedFuture(closed);
+                }
+                return null;
+            case CLOSE_CONNECTION:
+                MetadataCache.forgetConnection(envelope.getConnectionId());
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return the parsed request if it prepares a statement or closes a statement of the {@link StatementHandleCache}, or null if it is
+     *         sent as usual.
+     */
+    private Service.Request statementRequest(RequestEnvelope envelope) {
+        switch (envelope.getKind()) {
+            case PREPARE:
+                return envelope.getRequest();
+            case CLOSE_STATEMENT:
+                return statementCache.hasStatementsInUse() ? envelope.getRequest() : null;
+            case CLOSE_CONNECTION:
+                statementCache.clear();
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Keeps the statement of a closed prepared statement in the {@link StatementHandleCache} instead of closing it, and closes the
+     * statements the cache evicts in the background.
+     *
+     * @return the response to the close request, or null if the statement is not cached and the request is to be sent as usual.
+     */
+    private byte[] releaseStatement(Service.CloseStatementRequest close, RequestEnvelope envelope) {
+        List<Integer> evicted = statementCache.release(close);
+        if (evicted == null) {
+            return null;
+        }
+        // Whatever was prefetched or collected for the last execution is dropped as if the statement was closed
+        discardPrefetch(envelope);
+        if (resultCache != null && ResultCache.isCollecting(close.connectionId)) {
+            resultCache.lookup(instanceId, clientId, close);
+        }
+        for (int statementId : evicted) {
+            sendDirectAsync(newEnvelope(StatementHandleCache.closeRequest(close.connectionId, statementId))).whenComplete((body, e) -> {
+                if (e != null) {
+                    LOG.debug("Failed to close evicted statement {} of connection {}", statementId, close.connectionId, e);
+                }
+            });
+        }
+        return StatementHandleCache.closeResponse();
+    }
+
+    /**
+     * @return the parsed request if the {@link ResultCache} answers or observes it, or null if it is sent as usual.
+     */
+    private Service.Request cacheableRequest(RequestEnvelope envelope) {
+        switch (envelope.getKind()) {
+            case PREPARE_AND_EXECUTE:
+            case EXECUTE:
+                return envelope.getRequest();
+            case FETCH:
+            case CLOSE_STATEMENT:
+            case SYNC_RESULTS:
+                return ResultCache.isCollecting(envelope.getConnectionId()) ? envelope.getRequest() : null;
+            case CLOSE_CONNECTION:
+                ResultCache.forgetConnection(envelope.getConnectionId());
+                return null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Sends a fetch of a frame ahead of the application. Its row count is tuned before it is serialized, so that it is serialized once.
+     */
+    private CompletableFuture<byte[]> sendPrefetch(Service.FetchRequest fetch) {
+        try {
+            Service.FetchRequest tuned = adaptiveFetch == null ? null : tunedFetch(fetch);
+            Service.FetchRequest sent = tuned == null ? fetch : tuned;
+            RequestEnvelope envelope = new RequestEnvelope(serialize(sent), sent, sent.connectionId);
+            if (tuned != null) {
+                envelope.setFetchSizeTuned();
+            }
+            return sendDirectAsync(envelope);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    private static StatementKey statementOf(Service.Request request) {
+        if (request instanceof Service.ExecuteRequest) {
+            Meta.StatementHandle handle = ((Service.ExecuteRequest) request).statementHandle;
+            return new StatementKey(handle.connectionId, handle.id);
+        } else if (request instanceof Service.PrepareAndExecuteRequest) {
+            Service.PrepareAndExecuteRequest execute = (Service.PrepareAndExecuteRequest) request;
+            return new StatementKey(execute.connectionId, execute.statementId);
+        } else if (request instanceof Service.CloseStatementRequest) {
+            Service.CloseStatementRequest close = (Service.CloseStatementRequest) request;
+            return new StatementKey(close.connectionId, close.statementId);
+        }
+        Service.SyncResultsRequest sync = (Service.SyncResultsRequest) request;
+        return new StatementKey(sync.connectionId, sync.statementId);
+    }
+
+    private CompletableFuture<byte[]> sendEnvelopeAsync(RequestEnvelope envelope) {
+        if (asyncClient == null) {
+            return CompletableFuture.supplyAsync(() -> sendEnvelope(envelope), BLOCKING_SEND_EXECUTOR);
+        }
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        try {
+            attemptAsync(envelope, sessionStore.get(envelope.getConnectionId()), 0, result);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    private boolean isHedged(RequestEnvelope envelope) {
+        return hedging != null && hedging.appliesTo(envelope.getKind());
+    }
+
+    /**
+     * Sends an idempotent request and, if it is still unanswered after the hedging delay of its kind, a second copy of it. The first
+     * successful response wins and the other exchange is cancelled; the request only fails once both copies have failed. The copy is
+     * funded by the {@link RetryBudget}, so hedging cannot multiply the load on a struggling server.
+     * <p>
+     * The server opens a statement for most metadata lookups (see {@link RequestKind#opensStatement()}). The losing copy of those is not
+     * cancelled, as the server may have opened its statement already; once it is answered, its statement is closed.
+     */
+    private CompletableFuture<byte[]> sendHedged(RequestEnvelope envelope) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        // Copies that are still running or about to be sent; the last one to fail fails the result
+        AtomicInteger pending = new AtomicInteger(1);
+        sendCopy(envelope, false, pending, result);
+
+        long delay = hedging.delayMillis(envelope.getKind());
+        CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+            int running;
+            do {
+                running = pending.get();
+                if (running == 0 || result.isDone()) {
+                    return;
+                }
+            } while (!pending.compareAndSet(running, running + 1));
+            if (!retryBudget.tryWithdraw()) {
+                pending.decrementAndGet();
+                return;
+            }
+            LOG.debug("No response to {} after {} ms, sending a hedged copy", envelope.getKind(), delay);
+            retryStats.recordHedge();
+            sendCopy(envelope, true, pending, result);
+        });
+        return result;
+    }
+
+    private void sendCopy(RequestEnvelope envelope, boolean hedge, AtomicInteger pending, CompletableFuture<byte[]> result) {
+        long start = System.nanoTime();
+        CompletableFuture<byte[]> copy = sendEnvelopeAsync(envelope);
+        copy.whenComplete((bytes, error) -> {
+            if (error == null) {
+                hedging.record(envelope.getKind(), System.nanoTime() - start);
+                // Count the win before completing, so the counter is up to date by the time the caller sees the response
+                if (hedge && !result.isDone()) {
+                    retryStats.recordHedgeWin();
+                }
+                if (!result.complete(bytes) && envelope.getKind().opensStatement()) {
+                    // Off the I/O thread of the async transports, the close may have to wait for a token
+                    BLOCKING_SEND_EXECUTOR.execute(() -> closeStatementOf(bytes));
+                }
+            } else if (pending.decrementAndGet() == 0) {
+                result.completeExceptionally(error instanceof CompletionException && error.getCause() != null ? error.getCause() : error);
+            }
+        });
+        // Abort the losing exchange, unless it may have opened a statement, or both if the caller cancelled the request
+        result.whenComplete((bytes, error) -> {
+            if (error != null || !envelope.getKind().opensStatement()) {
+                copy.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Closes the statement of a result set response that is not handed to Avatica, such as the one of the losing copy of a hedged metadata
+     * lookup.
+     */
+    private void closeStatementOf(byte[] response) {
+        Service.ResultSetResponse result;
+        try {
+            Service.Response parsed = pbTranslation.parseResponse(response);
+            if (!(parsed instanceof Service.ResultSetResponse)) {
+                return;
+            }
+            result = (Service.ResultSetResponse) parsed;
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Not closing the statement of an unreadable response", e);
+            return;
+        }
+        LOG.debug("Closing statement {} of the losing copy of a hedged request", result.statementId);
+        sendDirectAsync(newEnvelope(serialize(new Service.CloseStatementRequest(result.connectionId, result.statementId)))).whenComplete(
+                (body, e) -> {
+                    if (e != null) {
+                        LOG.debug("Failed to close statement {} of connection {}", result.statementId, result.connectionId, e);
+                    }
+                });
+    }
+
+    private void attemptAsync(RequestEnvelope envelope, String sessionId, int attempt, CompletableFuture<byte[]> result) {
+        if (result.isDone()) {
+            return; // cancelled by the caller
+        }
+        if (!circuitBreaker.tryAcquirePermission()) {
+            result.completeExceptionally(circuitOpenException());
+            return;
+        }
+        retryStats.recordAttempt();
+        TokenCache.Token usedToken = token;
+        HttpPost post = getHttpPost(envelope, sessionId);
+        long start = System.nanoTime();
+        Future<SimpleHttpResponse> exchange = asyncClient.execute(toSimpleRequest(post, envelope), new FutureCallback<SimpleHttpResponse>() {
+            @Override
+            public void completed(SimpleHttpResponse response) {
+                recordAttempt(envelope, isServerUnavailable(response.getCode()), start);
+                if (response.getCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+                    completeAsync(response, envelope, sessionId, attempt, result);
+                    return;
+                }
+                // Renewing the token may wait for Account Manager, which must not happen on an I/O thread of the shared client
+                CompletableFuture.supplyAsync(() -> renewTokenForReplay(envelope, usedToken), BLOCKING_SEND_EXECUTOR)
+                                .whenComplete((replay, error) -> {
+                                    if (error != null) {
+                                        result.completeExceptionally(error instanceof CompletionException ? error.getCause() : error);
+                                    } else if (replay) {
+                                        attemptAsync(envelope, sessionId, attempt, result);
+                                    } else {
+                                        completeAsync(response, envelope, sessionId, attempt, result);
+                                    }
+                                });
+            }
+
+            @Override
+            public void failed(Exception e) {
+                recordAttempt(envelope, true, start);
+                // The async client reports a connection dropped before the response as ConnectionClosedException
+                if (e instanceof NoHttpResponseException || e instanceof ConnectionClosedException) {
+                    LOG.debug("The Avatica server failed to issue an HTTP response, retrying");
+                    retryAsync(envelope, sessionId, attempt + 1, -1, e, result);
+                } else if (e instanceof RuntimeException) {
+                    result.completeExceptionally(e);
+                } else {
+                    LOG.debug("Failed to execute HTTP request", e);
+                    result.completeExceptionally(new RuntimeException(e));
+                }
+            }
+
+            @Override
+            public void cancelled() {
+                circuitBreaker.onIgnored();
+                result.cancel(false);
+            }
+        });
+        result.whenComplete((bytes, error) -> {
+            if (result.isCancelled()) {
+                exchange.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Completes an asynchronous attempt with its response, or schedules the retry of a 503.
+     */
+    private void completeAsync(SimpleHttpResponse response, RequestEnvelope envelope, String sessionId, int attempt,
+                    CompletableFuture<byte[]> result) {
+        try {
+            ClassicHttpResponse classicResponse = toClassicResponse(response);
+            byte[] bytes = handleResponse(classicResponse, envelope);
+            if (bytes.length == 0) {
+                // retry on empty array (e.g. 503)
+                retryAsync(envelope, sessionId, attempt + 1, retryAfterMillis(classicResponse), null, result);
+            } else {
+                result.complete(bytes);
+            }
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+        } catch (Exception e) {
+            LOG.debug("Failed to execute HTTP request", e);
+            result.completeExceptionally(new RuntimeException(e));
+        }
+    }
+
+    /**
+     * Handles HTTP 401 from the Avatica server, e.g. for a token revoked or rotated before its expiry: the token is discarded and
+     * renewed, and the caller replays the request with the new one. Each request is replayed at most once, a second 401 is reported
+     * like any other unexpected status, so a token the server keeps rejecting cannot cause a refresh loop.
+     *
+     * @param envelope the rejected request.
+     * @param rejected the token the request was sent with.
+     * @return true if the request should be replayed.
+     * @throws RuntimeException if the new token could not be obtained.
+     */
+    private boolean renewTokenForReplay(RequestEnvelope envelope, TokenCache.Token rejected) {
+        if (testMode || !envelope.tryClaimTokenRenewal() || !TokenCache.shared().invalidate(tokenCacheKey, rejected)) {
+            return false;
+        }
+        if (tokenStore != null) {
+            tokenStore.delete(tokenCacheKey);
+        }
+        LOG.warn("The Avatica server rejected the OAuth token (HTTP 401), replaying the request with a new token");
+        try {
+            refreshToken();
+        } catch (SQLException e) {
+            LOG.error("Failed to generate or refresh JWT token.", e);
+            throw new RuntimeException("Failed to generate or refresh JWT token.", e);
+        }
+        retryStats.recordTokenReplay();
+        return true;
+    }
+
+    /**
+     * Schedules the next asynchronous attempt after the retry delay, without holding a thread while waiting.
+     */
+    private void retryAsync(RequestEnvelope envelope, String sessionId, int failedAttempt, long retryAfterMillis, Exception failure,
+                    CompletableFuture<byte[]> result) {
+        long delay;
+        try {
+            delay = retryDelay(failedAttempt, retryAfterMillis, failure);
+        } catch (RuntimeException e) {
+            result.completeExceptionally(e);
+            return;
+        }
+        if (delay <= 0) {
+            attemptAsync(envelope, sessionId, failedAttempt, result);
+        } else {
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> attemptAsync(envelope, sessionId, failedAttempt,
+                            result));
+        }
+    }
+
+    /**
+     * Decides on a retry after a failed attempt, consulting the {@link RetryPolicy} and withdrawing from the {@link RetryBudget}.
+     *
+     * @param failedAttempt the number of the attempt that failed, starting at 1.
+     * @param retryAfterMillis the delay requested through {@code Retry-After}, or -1.
+     * @param failure the exception of the failed attempt, or null if the server answered with HTTP 503.
+     * @return the delay in milliseconds before the next attempt.
+     * @throws RuntimeException if the request must not be retried.
+     */
+    private long retryDelay(int failedAttempt, long retryAfterMillis, Exception failure) {
+        if (failedAttempt >= retryPolicy.getMaxAttempts()) {
+            retryStats.recordExhausted();
+            throw failure == null ?
+                            new RuntimeException("Max retry attempts reached for 503 responses.") :
+                            new RuntimeException("Max retry attempts reached, the Avatica server failed to respond.", failure);
+        }
+        if (!retryBudget.tryWithdraw()) {
+            retryStats.recordBudgetRejected();
+            LOG.warn("Retry budget exhausted, failing the request after {} attempts", failedAttempt);
+            throw new RuntimeException("Retry budget exhausted, the Avatica server is unavailable (attempt " + failedAttempt + ").", failure);
+        }
+        long delay = Math.max(0, retryPolicy.getDelayMillis(failedAttempt, retryAfterMillis));
+        LOG.warn("Retrying request to the Avatica server in {} ms, retry attempt {}", delay, failedAttempt);
+        return delay;
+    }
+
+    private static void sleepBeforeRetry(long delayMillis) {
+        if (delayMillis <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(delayMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting to retry the request to the Avatica server", e);
+        }
+    }
+
+    /**
+     * Reads the {@code Retry-After} header in either of its forms, delay seconds or an HTTP date.
+     *
+     * @return the requested delay in milliseconds, or -1 if the response has no valid {@code Retry-After}.
+     */
+    static long retryAfterMillis(HttpResponse response) {
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            Instant date = DateUtils.parseStandardDate(value);
+            return date == null ? -1 : Math.max(0, Duration.between(Instant.now(), date).toMillis());
+        }
+    }
+
+    /**
+     * Waits for an asynchronous send and rethrows its failure the way the synchronous send would.
+     */
+    static byte[] await(CompletableFuture<byte[]> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for the Avatica server response", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    /**
+     * Captures everything the rest of the send round trip needs from the serialized request. The routing fields are read straight from
+     * the wire; the request is only fully parsed when the scanner does not recognize the payload. Built once per send, the caches, the
+     * prefetch and all attempts share it.
+     *
+     * @param request the serialized Avatica request.
+     * @return the envelope shared by all stages and attempts of this send.
+     */
+    RequestEnvelope newEnvelope(byte[] request) {
+        WireRequestScanner.Result scan = WireRequestScanner.scan(request);
+        if (scan != null) {
+            if (scan.getConnectionId() != null) {
+                LOG.debug("Extracted Connection ID: {}", scan.getConnectionId());
+            }
+            return new RequestEnvelope(request, scan.getKind(), scan.getConnectionId(), pbTranslation);
+        }
+        Service.Request genericReq = getGenericReq(request);
+        return new RequestEnvelope(request, genericReq, logAndExtractConnectionId(genericReq));
+    }
+
+    /**
+     * @return the envelope of the fetch with the row count of its statement's {@link AdaptiveFetchSize}, or the envelope itself if it is
+     *         not a fetch, was tuned already or keeps the row count Avatica asked for.
+     */
+    private RequestEnvelope tuneFetchSize(RequestEnvelope envelope) {
+        if (adaptiveFetch == null || envelope.getKind() != RequestKind.FETCH || envelope.isFetchSizeTuned()) {
+            return envelope;
+        }
+        Service.FetchRequest fetch = (Service.FetchRequest) envelope.getRequest();
+        Service.FetchRequest resized = tunedFetch(fetch);
+        if (resized == null) {
+            return envelope;
+        }
+        RequestEnvelope tuned = resized == fetch ? envelope : new RequestEnvelope(serialize(resized), resized, envelope.getConnectionId());
+        tuned.setFetchSizeTuned();
+        return tuned;
+    }
+
+    /**
+     * @return the fetch with the row count of its statement's {@link AdaptiveFetchSize}, the fetch itself if the row count is the same, or
+     *         null if the fetch keeps the row count Avatica asked for.
+     */
+    private Service.FetchRequest tunedFetch(Service.FetchRequest fetch) {
+        if (!adaptiveFetch.appliesTo(fetch.fetchMaxRowCount)) {
+            return null;
+        }
+        int rows = adaptiveFetch.rowsFor(fetch.connectionId, fetch.statementId, fetch.fetchMaxRowCount);
+        if (rows == fetch.fetchMaxRowCount) {
+            return fetch;
+        }
+        LOG.debug("Fetching {} rows instead of {} for statement {}", rows, fetch.fetchMaxRowCount, fetch.statementId);
+        return new Service.FetchRequest(fetch.connectionId, fetch.statementId, fetch.offset, rows);
+    }
+
+    private byte[] serialize(Service.Request request) {
+        try {
+            return pbTranslation.serializeRequest(request);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        throw new RuntimeException("Max retry attempts reached for 503 responses.");
     }
 
     private String logAndExtractConnectionId(Service.Request genericReq) {
@@ -245,11 +1129,11 @@ public class CIPAvaticaHttpClient
         }
     }
 
-    private byte[] handleResponse(CloseableHttpResponse response, Service.Request genericReq, String connectionId) throws Exception {
+    private byte[] handleResponse(ClassicHttpResponse response, RequestEnvelope envelope) throws Exception {
         int statusCode = response.getCode();
 
         if (statusCode == HttpURLConnection.HTTP_OK) {
-            return handleSuccessResponse(response, genericReq, connectionId);
+            return handleSuccessResponse(response, envelope);
         } else if (statusCode == HttpURLConnection.HTTP_INTERNAL_ERROR) {
             handleInternalServerError(response);
         } else if (statusCode == 503) {
@@ -261,22 +1145,87 @@ public class CIPAvaticaHttpClient
         return new byte[0];
     }
 
-    private byte[] handleSuccessResponse(CloseableHttpResponse response, Service.Request genericReq, String connectionId)
+    private byte[] handleSuccessResponse(ClassicHttpResponse response, RequestEnvelope envelope)
                     throws IOException, ProtocolException
     {
+        String connectionId = envelope.getConnectionId();
         Header sessionHeader = response.getHeader(HEADER_SESSION_ID);
         String newSessionId = (sessionHeader != null) ? sessionHeader.getValue() : null;
 
-        if (newSessionId != null) {
+        if (envelope.getKind() == RequestKind.CLOSE_CONNECTION) {
+            sessionStore.remove(connectionId);
+            if (adaptiveFetch != null) {
+                adaptiveFetch.forgetConnection(connectionId);
+            }
+        } else if (newSessionId != null) {
             LOG.debug("Captured new session ID: {}", newSessionId);
             sessionStore.put(connectionId, newSessionId);
-        } else if (genericReq instanceof Service.OpenConnectionRequest) {
+        } else if (envelope.getKind() == RequestKind.OPEN_CONNECTION) {
             LOG.warn("Session ID not provided in response for connection ID: {}", connectionId);
+        } else {
+            sessionStore.recordResponse(connectionId);
+        }
+        byte[] body = readEntity(response);
+        if (adaptiveFetch != null) {
+            observeForFetchSize(envelope, body);
+        }
+        return body;
+    }
+
+    private void observeForFetchSize(RequestEnvelope envelope, byte[] body) {
+        if (envelope.isFetchSizeTuned()) {
+            Service.FetchRequest fetch = (Service.FetchRequest) envelope.getRequest();
+            adaptiveFetch.record(fetch.connectionId, fetch.statementId, fetch.fetchMaxRowCount, body,
+                            System.nanoTime() - envelope.getAttemptStartNanos());
+        } else if (envelope.getKind() == RequestKind.CLOSE_STATEMENT) {
+            Service.CloseStatementRequest close = (Service.CloseStatementRequest) envelope.getRequest();
+            adaptiveFetch.forgetStatement(close.connectionId, close.statementId);
+        }
+    }
+
+    /**
+     * Reads the body of a successful response with at most one allocation of the frame size for the array handed to Avatica. Buffered
+     * async bodies are returned as is, bodies with a known length are read straight into an array of that length, and all others,
+     * including bodies decoded on the fly when the driver negotiated the content coding, are read through the {@link ResponseBufferPool}.
+     */
+    private byte[] readEntity(ClassicHttpResponse response) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null) {
+            return null;
+        }
+        Header contentEncoding = response.getFirstHeader(HttpHeaders.CONTENT_ENCODING);
+        if (compression == FrameCompression.NONE || contentEncoding == null) {
+            byte[] body = readIdentityEntity(entity);
+            transferStats.recordResponse(body.length, body.length);
+            return body;
+        }
+        try (FrameCompression.CountingInputStream wire = new FrameCompression.CountingInputStream(entity.getContent());
+                InputStream decoded = FrameCompression.decoding(wire, contentEncoding.getValue())) {
+            byte[] body = responseBufferPool.readFully(decoded, entity.getContentLength());
+            transferStats.recordResponse(wire.getCount(), body.length);
+            return body;
+        }
+    }
+
+    private byte[] readIdentityEntity(HttpEntity entity) throws IOException {
+        if (entity instanceof BufferedFrameEntity) {
+            return ((BufferedFrameEntity) entity).body;
+        }
+        long contentLength = entity.getContentLength();
+        try (InputStream in = entity.getContent()) {
+            if (contentLength < 0 || contentLength > Integer.MAX_VALUE - 8) {
+                return responseBufferPool.readFully(in, contentLength);
+            }
+            byte[] body = new byte[(int) contentLength];
+            int read = in.readNBytes(body, 0, body.length);
+            if (read < body.length) {
+                throw new ConnectionClosedException("Premature end of response body: expected %d bytes, received %d", body.length, read);
+            }
+            return body;
         }
-        return EntityUtils.toByteArray(response.getEntity());
     }
 
-    private void handleInternalServerError(CloseableHttpResponse response)
+    private void handleInternalServerError(ClassicHttpResponse response)
                     throws SQLException, IOException, ParseException
     {
         String errorMessage = (response.getEntity() != null) ?
@@ -286,7 +1235,7 @@ public class CIPAvaticaHttpClient
         throw new SQLException("Server responded with HTTP 500: Internal Server Error. Details: " + errorMessage);
     }
 
-    private void handleUnexpectedStatus(CloseableHttpResponse response, int statusCode)
+    private void handleUnexpectedStatus(ClassicHttpResponse response, int statusCode)
                     throws IOException, ParseException
     {
         String responseBody = (response.getEntity() != null) ?
@@ -299,38 +1248,203 @@ public class CIPAvaticaHttpClient
         ));
     }
 
-    HttpPost getHttpPost( byte[] request, String sessionId )
+    HttpPost getHttpPost( RequestEnvelope envelope, String sessionId )
     {
-        ByteArrayEntity entity = new ByteArrayEntity( request, ContentType.APPLICATION_OCTET_STREAM);
+        byte[] body = wireBody(envelope);
+        envelope.markAttemptStart(System.nanoTime());
+        ByteArrayEntity entity = new ByteArrayEntity( body, ContentType.APPLICATION_OCTET_STREAM);
         HttpPost post = new HttpPost(this.uri);
         post.setEntity(entity);
-        post.setHeader("Authorization", "Bearer " + jwtToken);
-        post.setHeader("InstanceId", instanceId);  // Attach InstanceId header
-        post.setHeader("X-Client-Version", clientVersion);
+        transferStats.recordRequest(envelope.getBody().length, body.length);
+        if ( compression != FrameCompression.NONE )
+        {
+            post.setHeader( ACCEPT_ENCODING_HEADER );
+            if ( body != envelope.getBody() )
+            {
+                post.setHeader( HttpHeaders.CONTENT_ENCODING, compression.getContentEncoding() );
+            }
+        }
+        TokenCache.Token current = token;
+        post.setHeader("Authorization", "Bearer " + (current == null ? null : current.getAccessToken()));
+        post.setHeader(instanceIdHeader);  // Attach InstanceId header
+        post.setHeader(CLIENT_VERSION_HEADER);
 
         // Attach session ID if available
         if ( sessionId != null) {
             post.setHeader(HEADER_SESSION_ID, sessionId );
         }
 
-        // Add executeRequest header
-        Service.Request genericReq = getGenericReq( request );
-        if ( genericReq instanceof Service.ExecuteRequest ||
-             genericReq instanceof Service.PrepareAndExecuteRequest ||
-             genericReq instanceof Service.PrepareAndExecuteBatchRequest ||
-             genericReq instanceof Service.ExecuteBatchRequest )
+        // Add executeRequest header, the request kind was resolved when the envelope was built
+        if ( envelope.getKind().isQueryExecute() )
         {
             LOG.debug( "Setting {} header to {}", HEADER_REQUEST_TYPE, HEADER_REQUEST_QUERY_EXECUTE );
-            post.setHeader( HEADER_REQUEST_TYPE, HEADER_REQUEST_QUERY_EXECUTE );
+            post.setHeader( QUERY_EXECUTE_HEADER );
         }
 
         return post;
     }
 
+    /**
+     * @return the request body as sent on the wire, compressed once per send for batch requests above the {@code compressRequestsAbove}
+     *         threshold.
+     */
+    private byte[] wireBody(RequestEnvelope envelope) {
+        byte[] body = envelope.getBody();
+        if (compression == FrameCompression.NONE || compressRequestsAbove <= 0 || body.length < compressRequestsAbove
+                        || !envelope.getKind().isBatch()) {
+            return body;
+        }
+        byte[] encoded = envelope.getEncodedBody();
+        if (encoded == null) {
+            encoded = compression.encode(body);
+            envelope.setEncodedBody(encoded);
+            LOG.debug("Compressed {} request from {} to {} bytes", envelope.getKind(), body.length, encoded.length);
+        }
+        return encoded;
+    }
+
+    /**
+     * @return the byte counters of the frames sent and received through this client.
+     */
+    public TransferStats getTransferStats() {
+        return transferStats;
+    }
+
+    /**
+     * @return the attempt counters of the requests sent through this client.
+     */
+    public RetryStats getRetryStats() {
+        return retryStats;
+    }
+
+    /**
+     * @return the counters of the result cache, shared by the connections that use it, or null unless enabled with the resultCache
+     *         property.
+     */
+    public ResultCacheStats getResultCacheStats() {
+        return resultCache == null ? null : resultCache.getStats();
+    }
+
+    /**
+     * @return the counters of the metadata cache, shared by all connections of the process, or null unless enabled with the metadataCache
+     *         property.
+     */
+    public MetadataCacheStats getMetadataCacheStats() {
+        return metadataCache == null ? null : metadataCache.getStats();
+    }
+
+    /**
+     * @return the counters of the prepared statement cache of this connection, or null unless enabled with the
+     *         preparedStatementCacheQueries property.
+     */
+    public StatementCacheStats getStatementCacheStats() {
+        return statementCache == null ? null : statementCache.getStats();
+    }
+
+    /**
+     * @return the OAuth token refresh counters, shared by all connections of the process.
+     */
+    public TokenRefreshStats getTokenRefreshStats() {
+        return TokenCache.shared().getStats();
+    }
+
+    /**
+     * Executes one classic attempt through the {@link CircuitBreaker} of the endpoint.
+     *
+     * @throws RuntimeException wrapping a {@link SQLException} if the breaker is open.
+     */
+    private CloseableHttpResponse executeGuarded(HttpPost post, HttpClientContext context, RequestEnvelope envelope) throws IOException {
+        if (!circuitBreaker.tryAcquirePermission()) {
+            throw circuitOpenException();
+        }
+        long start = System.nanoTime();
+        CloseableHttpResponse response;
+        try {
+            response = this.execute(post, context);
+        } catch (IOException e) {
+            recordAttempt(envelope, true, start);
+            throw e;
+        } catch (RuntimeException e) {
+            circuitBreaker.onIgnored();
+            throw e;
+        }
+        recordAttempt(envelope, isServerUnavailable(response.getCode()), start);
+        return response;
+    }
+
+    /**
+     * Records the outcome of an attempt with the {@link CircuitBreaker}. Query executions may run for minutes, so their duration is left
+     * out and many concurrent long queries do not open the breaker as slow calls.
+     */
+    private void recordAttempt(RequestEnvelope envelope, boolean failed, long startNanos) {
+        if (envelope.getKind().isQueryExecute()) {
+            circuitBreaker.onResult(failed);
+        } else {
+            circuitBreaker.onResult(failed, System.nanoTime() - startNanos);
+        }
+    }
+
+    /**
+     * @return true for the statuses a gateway or load balancer answers with when the Avatica server itself is down or overloaded.
+     */
+    private static boolean isServerUnavailable(int statusCode) {
+        return statusCode == HttpURLConnection.HTTP_BAD_GATEWAY || statusCode == HttpURLConnection.HTTP_UNAVAILABLE
+                        || statusCode == HttpURLConnection.HTTP_GATEWAY_TIMEOUT;
+    }
+
+    private RuntimeException circuitOpenException() {
+        SQLException e = new SQLException(String.format(
+                        "The Avatica server at %s is unavailable, failing fast while its circuit breaker is open (next probe in %d ms).",
+                        circuitBreaker.getEndpoint(), circuitBreaker.getRemainingOpenMillis()), "08001");
+        LOG.debug(e.getMessage());
+        return new RuntimeException(e.getMessage(), e);
+    }
+
+    /**
+     * @return the circuit breaker of the Avatica endpoint this client talks to.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
     CloseableHttpResponse execute(HttpPost post, HttpClientContext context) throws IOException, ClientProtocolException {
         return this.client.execute(post, context);
     }
 
+    private SimpleHttpRequest toSimpleRequest(HttpPost post, RequestEnvelope envelope) {
+        return SimpleRequestBuilder.post(this.uri)
+                        .setHeaders(post.getHeaders())
+                        .setBody(wireBody(envelope), ContentType.APPLICATION_OCTET_STREAM)
+                        .build();
+    }
+
+    /**
+     * Exposes a buffered async response as a classic response, so both transports go through the same response handling.
+     */
+    static ClassicHttpResponse toClassicResponse(SimpleHttpResponse response) {
+        BasicClassicHttpResponse classicResponse = new BasicClassicHttpResponse(response.getCode(), response.getReasonPhrase());
+        classicResponse.setVersion(response.getVersion());
+        classicResponse.setHeaders(response.getHeaders());
+        byte[] body = response.getBodyBytes();
+        if (body != null) {
+            classicResponse.setEntity(new BufferedFrameEntity(body, response.getContentType()));
+        }
+        return classicResponse;
+    }
+
+    /**
+     * Body of an async response that was already buffered by the transport, so it can be handed to Avatica without another copy.
+     */
+    private static final class BufferedFrameEntity extends ByteArrayEntity {
+
+        private final byte[] body;
+
+        BufferedFrameEntity(byte[] body, ContentType contentType) {
+            super(body, contentType);
+            this.body = body;
+        }
+    }
+
     private static URI toURI(URL url) throws RuntimeException {
         try {
             return url.toURI();
@@ -349,44 +1463,98 @@ public class CIPAvaticaHttpClient
      * @return True if the token is missing or near expiration, otherwise false.
      */
     private boolean isTokenExpiredOrMissing() {
+        TokenCache.Token current = this.token;
         if (this.testMode) {
-            return this.jwtToken == null;
+            return current == null;
         }
-        boolean isExpiredOrMissing = tokenExpiryTimeMs == 0 || System.currentTimeMillis() >= tokenExpiryTimeMs - TOKEN_EXPIRY_THRESHOLD_MS;
+        boolean isExpiredOrMissing = current == null || current.expiresWithin(TOKEN_EXPIRY_THRESHOLD_MS);
         LOG.debug("Token expired or missing: {}", isExpiredOrMissing);
         return isExpiredOrMissing;
     }
 
     /**
-     * Refreshes the JWT token by contacting the authentication service.
+     * Takes the shared token of the client from the {@link TokenCache}, which renews it in the background before it expires. Only if
+     * no valid token is left, the authentication service is contacted, by a single connection while the others wait for its token.
      *
      * @throws SQLException If the token refresh process fails.
      */
     private void refreshToken() throws SQLException {
-        LOG.debug("Refreshing JWT token.");
-        Map<String, String> tokenResponse = amAuthService.getAMAccessToken(oauthHost, clientId, clientSecret, instanceId);
-        jwtToken = tokenResponse.get("access_token");
-        tokenExpiryTimeMs = System.currentTimeMillis() + (Long.parseLong(tokenResponse.get("expires_in")) * 1000); // Set new expiration //
-        // time
+        token = TokenCache.shared().get(tokenCacheKey, TOKEN_EXPIRY_THRESHOLD_MS, this::requestToken);
     }
 
-    String extractConnectionId(Service.Request request) {
-        try {
-            if (request instanceof Service.ExecuteRequest) {
-                // Extract connectionId directly from statementHandle
-                return ((Service.ExecuteRequest) request).statementHandle.connectionId;
+    /**
+     * Requests a new JWT token from the authentication service, unless the {@link FileTokenStore} holds one that stays valid beyond the
+     * point where the {@link TokenCache} would renew it again. A token that is being renewed never qualifies, so renewals still reach
+     * the authentication service.
+     */
+    private TokenCache.Token requestToken() throws SQLException {
+        if (tokenStore != null) {
+            TokenCache.Token stored = tokenStore.read(tokenCacheKey);
+            if (stored != null && !stored.expiresWithin(2 * TOKEN_EXPIRY_THRESHOLD_MS)) {
+                LOG.debug("Reusing JWT token from the token cache directory.");
+                return stored;
             }
+        }
+        LOG.debug("Requesting JWT token from the authentication service.");
+        TokenCache.Token token = toToken(amAuthService.getAMAccessToken(oauthHost, clientId, clientSecret, instanceId));
+        if (tokenStore != null) {
+            tokenStore.write(tokenCacheKey, token);
+        }
+        return token;
+    }
 
-            // Use reflection to find "connectionId" field for other request types
-            Field connectionIdField = request.getClass().getDeclaredField("connectionId");
-            connectionIdField.setAccessible(true);
-            return (String) connectionIdField.get(request);
+    private static TokenCache.Token toToken(Map<String, String> tokenResponse) {
+        long expiryTimeMs = System.currentTimeMillis() + (Long.parseLong(tokenResponse.get("expires_in")) * 1000);
+        return new TokenCache.Token(tokenResponse.get("access_token"), expiryTimeMs);
+    }
 
-        } catch (NoSuchFieldException | IllegalAccessException e) {
-            LOG.debug("Unable to extract connectionId for request type {}. Error: {}",
-                            request.getClass().getSimpleName(), e.getMessage());
+    /**
+     * Requests the tokens of several instances of one client concurrently and keeps them in the process-wide token cache, and in the
+     * {@code tokenCacheDir} if set, so the first request to each instance does not wait for Account Manager. Call it before connecting
+     * to many instances, with the {@code amOauthHost}, {@code user} and {@code password} properties later passed to
+     * {@link CIPDriver#connect(String, Properties)}.
+     *
+     * @param properties the connection properties with the client credentials.
+     * @param instanceIds the instances to request tokens for.
+     * @return a future completed once all tokens are stored, or exceptionally with an {@link SQLException} if any of them could not be
+     *         obtained. The tokens obtained are kept either way.
+     */
+    public static CompletableFuture<Void> prefetchTokens(Properties properties, Collection<String> instanceIds) {
+        return prefetchTokens(new AmAuthService(), properties, instanceIds);
+    }
+
+    static CompletableFuture<Void> prefetchTokens(AmAuthService amAuthService, Properties properties, Collection<String> instanceIds) {
+        String oauthHost = properties.getProperty("amOauthHost");
+        String clientId = properties.getProperty("user");
+        String clientSecret = properties.getProperty("password");
+        FileTokenStore tokenStore = FileTokenStore.fromProperties(properties);
+        List<CompletableFuture<Void>> stored = new ArrayList<>();
+        amAuthService.getAMAccessTokens(oauthHost, clientId, clientSecret, instanceIds).forEach((instanceId, tokenResponse) -> stored.add(
+                        tokenResponse.thenAccept(response -> {
+                            String key = TokenCache.key(oauthHost, clientId, clientSecret, instanceId);
+                            TokenCache.Token token = toToken(response);
+                            TokenCache.shared().put(key, TOKEN_EXPIRY_THRESHOLD_MS, token);
+                            if (tokenStore != null) {
+                                tokenStore.write(key, token);
+                            }
+                        })));
+        return CompletableFuture.allOf(stored.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * Extracts the connection id through the typed accessor registered for the request class in {@link RequestKind}.
+     *
+     * @param request the parsed Avatica request.
+     * @return the connection id, or null if the request type is not known or carries no connection id.
+     */
+    String extractConnectionId(Service.Request request) {
+        RequestKind kind = RequestKind.of(request);
+        if (kind == RequestKind.UNKNOWN) {
+            LOG.debug("Unable to extract connectionId for unknown request type {}",
+                            request == null ? null : request.getClass().getSimpleName());
+            return null;
         }
-        return null;
+        return kind.connectionId(request);
     }
 
     Service.Request getGenericReq( byte[] request )
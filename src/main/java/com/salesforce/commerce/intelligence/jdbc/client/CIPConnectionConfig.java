@@ -0,0 +1,158 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.Properties;
+
+/**
+ * Settings of one connection, parsed from its connection properties. {@link CIPDriver} builds it once per connect, which validates the
+ * properties, and {@link CIPHttpClientFactory} hands it to the HTTP client of the connection. The factory only builds one of its own for
+ * connections not opened through the driver. Nothing depends on the thread that opens the connection.
+ * <p>
+ * The retry policy, hedging and adaptive fetch size of a configuration are stateful, every configuration gets its own.
+ */
+public final class CIPConnectionConfig {
+
+    private final Properties properties;
+    private final String oauthHost;
+    private final String clientId;
+    private final String clientSecret;
+    private final String instanceId;
+    private final boolean testMode;
+    private final HttpTransport transport;
+    private final FrameCompression compression;
+    private final int compressRequestsAbove;
+    private final RetryPolicy retryPolicy;
+    private final RequestHedging hedging;
+    private final PoolSettings poolSettings;
+    private final FileTokenStore tokenStore;
+    private final AdaptiveFetchSize adaptiveFetch;
+    private final FramePrefetcher prefetcher;
+    private final ResultCache resultCache;
+    private final MetadataCache metadataCache;
+    private final StatementHandleCache statementCache;
+
+    private CIPConnectionConfig(Properties properties) {
+        this.properties = properties;
+        this.oauthHost = properties.getProperty("amOauthHost");
+        this.clientId = properties.getProperty("user");
+        this.clientSecret = properties.getProperty("password");
+        this.instanceId = properties.getProperty("instanceId");
+        this.testMode = Boolean.parseBoolean(properties.getProperty("testMode", "false"));
+        this.transport = HttpTransport.fromProperty(properties.getProperty(HttpTransport.PROPERTY));
+        this.compression = FrameCompression.fromProperty(properties.getProperty(FrameCompression.PROPERTY));
+        this.compressRequestsAbove = FrameCompression.requestThresholdFromProperty(properties
+                .getProperty(FrameCompression.REQUEST_THRESHOLD_PROPERTY));
+        this.retryPolicy = RetryPolicies.fromProperties(properties);
+        this.hedging = RequestHedging.fromProperties(properties);
+        this.poolSettings = PoolSettings.fromProperties(properties);
+        this.tokenStore = FileTokenStore.fromProperties(properties);
+        this.adaptiveFetch = AdaptiveFetchSize.fromProperties(properties);
+        this.prefetcher = FramePrefetcher.fromProperties(properties);
+        this.resultCache = ResultCache.fromProperties(properties);
+        this.metadataCache = MetadataCache.fromProperties(properties);
+        this.statementCache = StatementHandleCache.fromProperties(properties);
+    }
+
+    /**
+     * @param properties the connection properties, copied so later changes do not affect the configuration.
+     * @return the configuration of a connection with the given properties.
+     * @throws IllegalArgumentException if a property has an invalid value.
+     */
+    public static CIPConnectionConfig fromProperties(Properties properties) {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        return new CIPConnectionConfig(copy);
+    }
+
+    Properties getProperties() {
+        return properties;
+    }
+
+    String getOauthHost() {
+        return oauthHost;
+    }
+
+    String getClientId() {
+        return clientId;
+    }
+
+    String getClientSecret() {
+        return clientSecret;
+    }
+
+    String getInstanceId() {
+        return instanceId;
+    }
+
+    boolean isTestMode() {
+        return testMode;
+    }
+
+    HttpTransport getTransport() {
+        return transport;
+    }
+
+    FrameCompression getCompression() {
+        return compression;
+    }
+
+    int getCompressRequestsAbove() {
+        return compressRequestsAbove;
+    }
+
+    RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @return the hedging of the connection, or null unless enabled with the hedging property.
+     */
+    RequestHedging getHedging() {
+        return hedging;
+    }
+
+    PoolSettings getPoolSettings() {
+        return poolSettings;
+    }
+
+    /**
+     * @return the on-disk token store, or null unless tokenCacheDir is set.
+     */
+    FileTokenStore getTokenStore() {
+        return tokenStore;
+    }
+
+    /**
+     * @return the adaptive fetch size, or null unless enabled with the adaptiveFetch property.
+     */
+    AdaptiveFetchSize getAdaptiveFetch() {
+        return adaptiveFetch;
+    }
+
+    /**
+     * @return the prefetch of result frames, or null unless enabled with the prefetch property.
+     */
+    FramePrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    /**
+     * @return the result cache, or null unless enabled with the resultCache property.
+     */
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * @return the metadata cache, or null unless enabled with the metadataCache property.
+     */
+    MetadataCache getMetadataCache() {
+        return metadataCache;
+    }
+
+    /**
+     * @return the prepared statement cache of the connection, or null unless enabled with the preparedStatementCacheQueries property.
+     */
+    StatementHandleCache getStatementCache() {
+        return statementCache;
+    }
+}
@@ -0,0 +1,311 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import javax.sql.DataSource;
+
+/**
+ * Pooling {@link DataSource} for the CIP JDBC driver. Opening a connection takes an {@code OpenConnectionRequest} and a
+ * {@code ConnectionSyncRequest}, which the pool saves for every connection it hands out again.
+ * <p>
+ * The data source is configured with the JDBC URL and connection properties of {@link CIPDriver}, and with the pool settings below. The
+ * pool is created on the first {@link #getConnection()}, after which the settings can no longer be changed.
+ * <ul>
+ * <li>{@code maxPoolSize} (default 10): maximum number of open connections</li>
+ * <li>{@code minIdle} (default 0): number of standby connections kept open while the pool is not full</li>
+ * <li>{@code maxIdle} (default 10): maximum number of idle connections, further returned connections are closed</li>
+ * <li>{@code maxLifetimeMs} (default 30 minutes): time after which a connection is closed instead of being reused</li>
+ * <li>{@code idleTimeoutMs} (default 5 minutes): time after which an idle connection is closed, below the time after which the server drops
+ * inactive connections. Standby connections are replaced by new ones.</li>
+ * <li>{@code validationIntervalMs} (default 30 seconds): connections that got no response for this long are validated before they are
+ * handed out</li>
+ * <li>{@code connectionTimeoutMs} (default 30 seconds): maximum time to wait for a connection while the pool is full</li>
+ * </ul>
+ * All connections of the data source share the HTTP connection pool, OAuth token and session affinity of their server, so the pool only
+ * adds the reuse of the Avatica connections themselves.
+ */
+public class CIPDataSource implements DataSource, AutoCloseable {
+
+    private static final CIPDriver DRIVER = new CIPDriver();
+
+    private final Properties properties = new Properties();
+    private String url;
+    private int maxPoolSize = 10;
+    private int minIdle = 0;
+    private int maxIdle = 10;
+    private long maxLifetimeMs = TimeUnit.MINUTES.toMillis(30);
+    private long idleTimeoutMs = TimeUnit.MINUTES.toMillis(5);
+    private long validationIntervalMs = TimeUnit.SECONDS.toMillis(30);
+    private long connectionTimeoutMs = TimeUnit.SECONDS.toMillis(30);
+    private PrintWriter logWriter;
+
+    private volatile ConnectionPool pool;
+    private boolean closed;
+
+    public CIPDataSource() {
+    }
+
+    /**
+     * @return a connection of the pool.
+     * @throws java.sql.SQLTransientConnectionException if the pool stayed full for the connection timeout.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        return pool().borrow();
+    }
+
+    /**
+     * Not supported, all connections of the pool use the credentials of the data source.
+     */
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("The pooled data source only supports the credentials it was configured with");
+    }
+
+    private ConnectionPool pool() throws SQLException {
+        ConnectionPool current = pool;
+        if (current != null) {
+            return current;
+        }
+        synchronized (this) {
+            if (closed) {
+                throw new SQLException("The data source is closed", "08003");
+            }
+            if (pool == null) {
+                if (url == null) {
+                    throw new SQLException("The url of the data source is not set");
+                }
+                if (minIdle > maxIdle) {
+                    throw new SQLException(String.format("minIdle (%d) must not be greater than maxIdle (%d)", minIdle, maxIdle));
+                }
+                String connectUrl = url;
+                Properties connectProperties = copy(properties);
+                // CIPDriver.connect adds its own properties, so every connection gets a fresh copy
+                ConnectionPool.ConnectionFactory factory = new ConnectionPool.ConnectionFactory() {
+                    @Override
+                    public Connection connect() throws SQLException {
+                        return DRIVER.connect(connectUrl, copy(connectProperties));
+                    }
+
+                    @Override
+                    public CompletableFuture<Connection> connectAsync() {
+                        return DRIVER.connectAsync(connectUrl, connectProperties);
+                    }
+                };
+                ConnectionPool created = new ConnectionPool(this, factory, SessionStore.shared(), System::nanoTime);
+                created.start();
+                pool = created;
+            }
+            return pool;
+        }
+    }
+
+    private static Properties copy(Properties properties) {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        return copy;
+    }
+
+    private synchronized void checkNotStarted() {
+        if (pool != null || closed) {
+            throw new IllegalStateException("The settings of the data source cannot be changed after the first connection");
+        }
+    }
+
+    private static long requirePositive(String name, long value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(String.format("%s must be positive, but got: %d", name, value));
+        }
+        return value;
+    }
+
+    private static int requireNonNegative(String name, int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException(String.format("%s must not be negative, but got: %d", name, value));
+        }
+        return value;
+    }
+
+    /**
+     * Closes the idle connections and the connections that are still borrowed once they are returned.
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (pool != null) {
+            pool.close();
+        }
+    }
+
+    /**
+     * @return the gauges and counters of the pool, or null before the first connection was requested.
+     */
+    public ConnectionPoolStats getPoolStats() {
+        ConnectionPool current = pool;
+        return current != null ? current.getStats() : null;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * @param url the JDBC URL, e.g. {@code jdbc:salesforcecc://host:port/instance}.
+     */
+    public void setUrl(String url) {
+        checkNotStarted();
+        this.url = url;
+    }
+
+    /**
+     * @param user the Client ID set up in Account Manager.
+     */
+    public void setUser(String user) {
+        setProperty("user", user);
+    }
+
+    /**
+     * @param password the Client Secret set up in Account Manager.
+     */
+    public void setPassword(String password) {
+        setProperty("password", password);
+    }
+
+    /**
+     * Sets a connection property of {@link CIPDriver}, e.g. {@code amOauthHost} or {@code transport}.
+     */
+    public void setProperty(String name, String value) {
+        checkNotStarted();
+        properties.setProperty(name, value);
+    }
+
+    /**
+     * Adds the given connection properties of {@link CIPDriver}.
+     */
+    public void setProperties(Properties properties) {
+        checkNotStarted();
+        this.properties.putAll(properties);
+    }
+
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    public void setMaxPoolSize(int maxPoolSize) {
+        checkNotStarted();
+        this.maxPoolSize = (int) requirePositive("maxPoolSize", maxPoolSize);
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+        checkNotStarted();
+        this.minIdle = requireNonNegative("minIdle", minIdle);
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        checkNotStarted();
+        this.maxIdle = requireNonNegative("maxIdle", maxIdle);
+    }
+
+    public long getMaxLifetimeMs() {
+        return maxLifetimeMs;
+    }
+
+    public void setMaxLifetimeMs(long maxLifetimeMs) {
+        checkNotStarted();
+        this.maxLifetimeMs = requirePositive("maxLifetimeMs", maxLifetimeMs);
+    }
+
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        checkNotStarted();
+        this.idleTimeoutMs = requirePositive("idleTimeoutMs", idleTimeoutMs);
+    }
+
+    public long getValidationIntervalMs() {
+        return validationIntervalMs;
+    }
+
+    /**
+     * @param validationIntervalMs the time since the last response of a connection after which it is validated, 0 to always validate.
+     */
+    public void setValidationIntervalMs(long validationIntervalMs) {
+        checkNotStarted();
+        if (validationIntervalMs < 0) {
+            throw new IllegalArgumentException("validationIntervalMs must not be negative, but got: " + validationIntervalMs);
+        }
+        this.validationIntervalMs = validationIntervalMs;
+    }
+
+    public long getConnectionTimeoutMs() {
+        return connectionTimeoutMs;
+    }
+
+    public void setConnectionTimeoutMs(long connectionTimeoutMs) {
+        checkNotStarted();
+        this.connectionTimeoutMs = requirePositive("connectionTimeoutMs", connectionTimeoutMs);
+    }
+
+    @Override
+    public PrintWriter getLogWriter() {
+        return logWriter;
+    }
+
+    /**
+     * The driver logs through SLF4J, the writer is only kept for callers that expect it back.
+     */
+    @Override
+    public void setLogWriter(PrintWriter out) {
+        this.logWriter = out;
+    }
+
+    /**
+     * Sets the connection timeout, 0 keeps the current one.
+     */
+    @Override
+    public void setLoginTimeout(int seconds) {
+        if (seconds > 0) {
+            setConnectionTimeoutMs(TimeUnit.SECONDS.toMillis(seconds));
+        }
+    }
+
+    @Override
+    public int getLoginTimeout() {
+        return (int) TimeUnit.MILLISECONDS.toSeconds(connectionTimeoutMs);
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        throw new SQLFeatureNotSupportedException("The driver logs through SLF4J");
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("CIPDataSource does not wrap " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) {
+        return iface.isInstance(this);
+    }
+}
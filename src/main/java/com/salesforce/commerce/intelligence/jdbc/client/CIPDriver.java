@@ -6,7 +6,15 @@ import java.sql.SQLException;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Properties;
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.avatica.AvaticaFactory;
 import org.apache.calcite.avatica.BuiltInConnectionProperty;
 import org.apache.calcite.avatica.ConnectionProperty;
 import org.apache.calcite.avatica.remote.Driver;
@@ -19,14 +27,41 @@ import org.slf4j.LoggerFactory;
  */
 public class CIPDriver extends Driver {
 
-    // ThreadLocal to store properties per thread
+    /**
+     * The properties of the connection being opened on the current thread.
+     *
+     * @deprecated the driver no longer reads the connection properties from here, {@link CIPHttpClientFactory} hands them to the HTTP
+     *             client of the connection. They are still set while a connection is opened for the deprecated constructors of
+     *             {@link CIPAvaticaHttpClient}, the field will be removed in the next release.
+     */
+    @Deprecated
     public static ThreadLocal<Properties> connectionProperties = new ThreadLocal<>();
 
+    // Opens connections for connectAsync, connecting blocks a thread for the OAuth and Avatica round trips. Each connect holds a pooled
+    // HTTP connection, so a burst of connects beyond the pool size queues for a thread instead of starting one per connect.
+    private static final ExecutorService CONNECT_EXECUTOR = newConnectExecutor(SharedAsyncClients.HTTP1_MAX_CONNECTIONS);
+
     private static final Logger LOG = LoggerFactory.getLogger(CIPDriver.class);
 
+    private static final String AVATICA_FACTORY_CLASS_NAME = "org.apache.calcite.avatica.AvaticaJdbc41Factory";
+
     public CIPDriver() {
     }
 
+    /**
+     * @param threads the maximum number of threads, further connects wait in the queue until a thread is free.
+     * @return the executor of connectAsync, whose idle threads end after a minute.
+     */
+    static ThreadPoolExecutor newConnectExecutor(int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), runnable -> {
+            Thread thread = new Thread(runnable, "cip-connect");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     private static String CIP_JDBC_URL_PREFIX = "jdbc:salesforcecc:";
 
     // Static initializer to register this custom driver with the DriverManager.
@@ -73,6 +108,7 @@ public class CIPDriver extends Driver {
         LOG.debug( "In connect method" );
 
         connectionProperties.set( info );
+        String configKey = null;
         try
         {
             if ( !acceptsURL( url ) )
@@ -130,9 +166,19 @@ public class CIPDriver extends Driver {
                 info.setProperty( BuiltInConnectionProperty.SERIALIZATION.camelName(), Serialization.PROTOBUF.name() );
             }
 
-            // Set the default fetch size to 1000 rows per request to match the server-side maximum frame size.
+            // Default the fetch size to 1000 rows per request to match the server-side maximum frame size.
             // This ensures efficient paging and prevents the client from requesting more rows than the server will return.
-            info.setProperty(BuiltInConnectionProperty.FETCH_SIZE.camelName(), "1000");
+            // A fetch size set by the user is kept as is, and is not tuned by the adaptive fetch size either.
+            String fetchSize = info.getProperty( BuiltInConnectionProperty.FETCH_SIZE.camelName() );
+            if ( fetchSize == null || fetchSize.isEmpty() )
+            {
+                info.setProperty( BuiltInConnectionProperty.FETCH_SIZE.camelName(), String.valueOf( AdaptiveFetchSize.SERVER_MAX_ROWS ) );
+            }
+            else if ( Boolean.parseBoolean( info.getProperty( AdaptiveFetchSize.PROPERTY ) ) )
+            {
+                LOG.debug( "fetchSize is set to {}, adaptive fetch size disabled", fetchSize );
+                info.setProperty( AdaptiveFetchSize.PROPERTY, "false" );
+            }
 
             info.setProperty( "instanceId", result.getDatabaseName() );
 
@@ -140,35 +186,105 @@ public class CIPDriver extends Driver {
             // This custom client will handle injecting the Authorization token into each request,
             // and it also manages token refreshing when the token is about to expire.
             //
-            // The 'BuiltInConnectionProperty.HTTP_CLIENT_IMPL' property allows you to specify a
-            // fully qualified class name of a custom AvaticaHttpClient implementation.
+            // The 'BuiltInConnectionProperty.HTTP_CLIENT_FACTORY' property allows you to specify a
+            // fully qualified class name of a custom AvaticaHttpClientFactory implementation.
             //
-            // In this case, we are using 'com.salesforce.commerce.intelligence.jdbc.client.CIPAvaticaHttpClient', which extends the default
+            // In this case, we are using 'com.salesforce.commerce.intelligence.jdbc.client.CIPHttpClientFactory', which creates a
+            // 'CIPAvaticaHttpClient' from the properties of the connection being opened. The client extends the default
             // AvaticaCommonsHttpClientImpl behavior to:
             //   - Add a JWT token to the Authorization header for every request.
             //   - Refresh the token automatically before it expires.
             //
             // This approach ensures secure communication between the JDBC client and the Avatica server.
-            info.setProperty( BuiltInConnectionProperty.HTTP_CLIENT_IMPL.camelName(),
-                            "com.salesforce.commerce.intelligence.jdbc.client.CIPAvaticaHttpClient" );
+            info.setProperty( BuiltInConnectionProperty.HTTP_CLIENT_FACTORY.camelName(), CIPHttpClientFactory.class.getName() );
+            info.setProperty( BuiltInConnectionProperty.HTTP_CLIENT_IMPL.camelName(), CIPAvaticaHttpClient.class.getName() );
+
+            // Build the configuration of the connection once. This also validates the transport, compression, retry, hedging, pool and
+            // cache properties up front, so that a typo fails the connect rather than the first request.
+            CIPConnectionConfig config;
+            try
+            {
+                config = CIPConnectionConfig.fromProperties( info );
+            }
+            catch ( IllegalArgumentException e )
+            {
+                throw new SQLException( e.getMessage(), e );
+            }
+            configKey = CIPHttpClientFactory.offer( info, config );
 
             // Call the overridable method instead of super.connect directly
             return doConnect( result.getModifiedUrl(), info );
         }
         finally
         {
+            CIPHttpClientFactory.withdraw( info, configKey );
             // Always ensure that the ThreadLocal is cleared
             connectionProperties.remove();
             LOG.debug( "ThreadLocal connectionProperties cleared after connection setup." );
         }
     }
 
+    @Override
+    protected String getFactoryClassName( JdbcVersion jdbcVersion )
+    {
+        // Rejects unsupported JDBC versions, the factory of the driver wraps the one of Avatica
+        super.getFactoryClassName( jdbcVersion );
+        return CIPAvaticaFactory.class.getName();
+    }
+
+    /**
+     * @return the JDBC object factory of Avatica, which {@link CIPAvaticaFactory} delegates to.
+     */
+    static AvaticaFactory avaticaFactory()
+    {
+        return instantiateFactory( AVATICA_FACTORY_CLASS_NAME );
+    }
+
+    /**
+     * Drops the {@code DatabaseMetaData} cached for an instance by the connections that set the {@code metadataCache} property, e.g. after
+     * its schema was changed by another process.
+     *
+     * @param instanceId the instance id, or null to drop the metadata of all instances.
+     */
+    public static void invalidateMetadataCache( String instanceId )
+    {
+        MetadataCache.invalidate( instanceId );
+    }
+
     // This method is protected so that it can be overridden in tests
     // Pass the modified URL to the parent connect method
     protected Connection doConnect(String url, Properties info) throws SQLException {
         return super.connect(url, info);
     }
 
+    /**
+     * Opens a connection without blocking the calling thread, so that many connections can be opened in parallel.
+     *
+     * @param url the database URL to connect to.
+     * @param info the connection properties, copied before the call returns.
+     * @return a future of the connection, completed exceptionally with the SQLException of {@link #connect(String, Properties)}.
+     */
+    public CompletableFuture<Connection> connectAsync(String url, Properties info) {
+        return connectAsync(url, info, CONNECT_EXECUTOR);
+    }
+
+    /**
+     * Opens a connection on the given executor, see {@link #connectAsync(String, Properties)}.
+     */
+    public CompletableFuture<Connection> connectAsync(String url, Properties info, Executor executor) {
+        Properties copy = new Properties();
+        if (info != null) {
+            copy.putAll(info);
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return connect(url, copy);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
     /**
      * Converts a PostgreSQL-style JDBC URL to an Avatica-compatible URL.
      *
@@ -0,0 +1,101 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.calcite.avatica.ConnectionConfig;
+import org.apache.calcite.avatica.ConnectionConfigImpl;
+import org.apache.calcite.avatica.remote.AvaticaHttpClient;
+import org.apache.calcite.avatica.remote.AvaticaHttpClientFactory;
+import org.apache.calcite.avatica.remote.CommonsHttpClientPoolCache;
+import org.apache.calcite.avatica.remote.KerberosConnection;
+
+/**
+ * Creates the {@link CIPAvaticaHttpClient} of a connection from the {@link CIPConnectionConfig} of its own connection properties. Avatica
+ * calls the factory while it opens the connection, on whatever thread that happens.
+ * <p>
+ * Avatica's HTTP authentication and Kerberos settings are not applied: the driver authenticates every request with an OAuth token.
+ */
+public class CIPHttpClientFactory implements AvaticaHttpClientFactory {
+
+    // Connection property with the key of the configuration the driver built for the connection being opened
+    static final String CONFIG_KEY_PROPERTY = "cipConnectionConfigKey";
+
+    // Avatica only passes the connection properties to the factory inside the ConnectionConfigImpl built from them, and offers no accessor
+    // for them. CIPDriverTest pins the field, so that an Avatica upgrade that drops it fails the build.
+    static final String PROPERTIES_FIELD_NAME = "properties";
+
+    private static final Field PROPERTIES_FIELD;
+
+    // Configurations built by CIPDriver.connect, until the factory of the connection takes them
+    private static final Map<String, CIPConnectionConfig> PENDING = new ConcurrentHashMap<>();
+
+    static {
+        try {
+            PROPERTIES_FIELD = ConnectionConfigImpl.class.getDeclaredField(PROPERTIES_FIELD_NAME);
+            PROPERTIES_FIELD.setAccessible(true);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    public CIPHttpClientFactory() {
+    }
+
+    @Override
+    public AvaticaHttpClient getClient(URL url, ConnectionConfig config, KerberosConnection kerberosUtil) {
+        Properties properties = propertiesOf(config);
+        String key = properties.getProperty(CONFIG_KEY_PROPERTY);
+        CIPConnectionConfig connectionConfig = key != null ? PENDING.remove(key) : null;
+        if (connectionConfig == null) {
+            connectionConfig = CIPConnectionConfig.fromProperties(properties);
+        }
+        CIPAvaticaHttpClient client = new CIPAvaticaHttpClient(url, connectionConfig);
+        client.setHttpClientPool(CommonsHttpClientPoolCache.getPool(config), config);
+        return client;
+    }
+
+    /**
+     * Hands the configuration the driver built for a connection to the factory, so that it is not built again from the same properties.
+     *
+     * @param info the properties of the connection being opened, the key of the configuration is added to them.
+     * @return the key to pass to {@link #withdraw(Properties, String)} once the connection is opened.
+     */
+    static String offer(Properties info, CIPConnectionConfig config) {
+        String key = UUID.randomUUID().toString();
+        PENDING.put(key, config);
+        info.setProperty(CONFIG_KEY_PROPERTY, key);
+        return key;
+    }
+
+    /**
+     * Drops a configuration the factory did not take, e.g. because opening the connection failed before the HTTP client was created.
+     *
+     * @param key the key returned by {@link #offer(Properties, CIPConnectionConfig)}, or null if none was offered.
+     */
+    static void withdraw(Properties info, String key) {
+        if (key != null) {
+            PENDING.remove(key);
+            info.remove(CONFIG_KEY_PROPERTY);
+        }
+    }
+
+    static Properties propertiesOf(ConnectionConfig config) {
+        if (!(config instanceof ConnectionConfigImpl)) {
+            throw new IllegalStateException("Unsupported connection config " + config.getClass().getName());
+        }
+        try {
+            return (Properties) PROPERTIES_FIELD.get(config);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("Failed to read the connection properties", e);
+        }
+    }
+
+    static int pendingConfigs() {
+        return PENDING.size();
+    }
+}
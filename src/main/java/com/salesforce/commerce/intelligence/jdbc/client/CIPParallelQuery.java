@@ -0,0 +1,551 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs one query as several partition queries on separate connections and merges their rows. Each partition query selects the rows of the
+ * query that match one predicate, e.g. a range of a numeric column:
+ *
+ * <pre>
+ * CIPParallelQuery query = new CIPParallelQuery(dataSource, "SELECT order_no, total FROM orders")
+ *                 .partitionByRange("order_no", 0, 50_000_000, 16)
+ *                 .setParallelism(8);
+ * try (CIPParallelQuery.Rows rows = query.execute()) {
+ *     while (rows.next()) {
+ *         Object orderNo = rows.getObject(1);
+ *     }
+ * }
+ * </pre>
+ *
+ * Connections are taken from the data source, which should be a pooled {@link CIPDataSource} with at least {@code parallelism}
+ * connections. Rows are returned as soon as any partition produced them, or partition by partition with {@link #setOrdered(boolean)}.
+ * A partition that fails with a connection error before it produced a row is run again, up to {@code maxRetries} times.
+ */
+public final class CIPParallelQuery {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CIPParallelQuery.class);
+
+    // Rows handed from a partition to the reader at once, and batches buffered per partition (ordered) or per parallel query (unordered)
+    static final int BATCH_SIZE = 256;
+    private static final int BATCHES_PER_QUEUE = 4;
+
+    private static final long OFFER_TIMEOUT_MS = 100;
+
+    private final DataSource dataSource;
+    private final String sql;
+    private final List<String> predicates = new ArrayList<>();
+    private String partitionColumn;
+    private boolean ordered;
+    private int parallelism = 4;
+    private int maxRetries = 2;
+    private int fetchSize;
+    private Executor executor;
+
+    /**
+     * @param dataSource the data source the partition queries take their connections from.
+     * @param sql the query, used as a subquery of the partition queries.
+     */
+    public CIPParallelQuery(DataSource dataSource, String sql) {
+        if (dataSource == null || sql == null || sql.isBlank()) {
+            throw new IllegalArgumentException("A data source and a query are required");
+        }
+        this.dataSource = dataSource;
+        this.sql = sql;
+    }
+
+    /**
+     * Splits the query into partitions of equal ranges of a numeric column. The first partition also gets the rows below the lower bound
+     * and those whose column is null, the last one the rows from the upper bound on, so every row of the query is returned once.
+     *
+     * @param column the partitioning column, as written in SQL.
+     * @param lowerBound the start of the first range.
+     * @param upperBound the end of the last range.
+     * @param partitions the number of ranges, reduced if the bounds are closer than that.
+     */
+    public CIPParallelQuery partitionByRange(String column, long lowerBound, long upperBound, int partitions) {
+        if (column == null || column.isBlank() || upperBound <= lowerBound || partitions < 1) {
+            throw new IllegalArgumentException(String.format(
+                            "Invalid range partitioning: column=%s, lowerBound=%d must be below upperBound=%d and partitions=%d positive", column,
+                            lowerBound, upperBound, partitions));
+        }
+        long span = upperBound - lowerBound;
+        int count = (int) Math.min(partitions, span);
+        long stride = span / count;
+        List<String> ranges = new ArrayList<>(count);
+        long start = lowerBound;
+        for (int i = 0; i < count; i++) {
+            long end = i == count - 1 ? upperBound : start + stride;
+            if (count == 1) {
+                ranges.add("1 = 1");
+            } else if (i == 0) {
+                ranges.add(String.format("%s < %d OR %s IS NULL", column, end, column));
+            } else if (i == count - 1) {
+                ranges.add(String.format("%s >= %d", column, start));
+            } else {
+                ranges.add(String.format("%s >= %d AND %s < %d", column, start, column, end));
+            }
+            start = end;
+        }
+        predicates.clear();
+        predicates.addAll(ranges);
+        partitionColumn = column;
+        return this;
+    }
+
+    /**
+     * Splits the query into one partition per predicate. The predicates should not overlap and together match every row of the query.
+     *
+     * @param partitionPredicates SQL conditions on the columns of the query, e.g. {@code site_id = 'RefArch'}.
+     */
+    public CIPParallelQuery partitionBy(List<String> partitionPredicates) {
+        if (partitionPredicates == null || partitionPredicates.isEmpty()) {
+            throw new IllegalArgumentException("At least one partition predicate is required");
+        }
+        predicates.clear();
+        predicates.addAll(partitionPredicates);
+        partitionColumn = null;
+        return this;
+    }
+
+    /**
+     * @param ordered true to return the rows partition by partition, in the order of the partitions. Range partitions are then also sorted
+     *        by their column, so the rows come out sorted by it. Default false, rows are returned as soon as any partition produced them.
+     */
+    public CIPParallelQuery setOrdered(boolean ordered) {
+        this.ordered = ordered;
+        return this;
+    }
+
+    /**
+     * @param parallelism the maximum number of partitions queried at once, each on its own connection. Default 4.
+     */
+    public CIPParallelQuery setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive, but got: " + parallelism);
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * @param maxRetries the number of times a partition that failed with a connection error before producing a row is run again. Default
+     *        2.
+     */
+    public CIPParallelQuery setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries must not be negative, but got: " + maxRetries);
+        }
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @param fetchSize the fetch size of the partition queries, 0 for the default of the connection.
+     */
+    public CIPParallelQuery setFetchSize(int fetchSize) {
+        if (fetchSize < 0) {
+            throw new IllegalArgumentException("fetchSize must not be negative, but got: " + fetchSize);
+        }
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * @param executor the executor that runs the partition queries, e.g. {@code Executors.newVirtualThreadPerTaskExecutor()} on Java 21.
+     *        By default every execution uses its own {@code parallelism} daemon threads.
+     */
+    public CIPParallelQuery setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * @return the partition queries, in partition order.
+     */
+    List<String> partitionQueries() {
+        List<String> queries = new ArrayList<>(predicates.size());
+        for (String predicate : predicates) {
+            String query = "SELECT * FROM (" + sql + ") cip_partition WHERE " + predicate;
+            if (ordered && partitionColumn != null) {
+                query += " ORDER BY " + partitionColumn;
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    /**
+     * Starts the partition queries.
+     *
+     * @return the merged rows, which must be closed.
+     * @throws SQLException if the query was not partitioned.
+     */
+    public Rows execute() throws SQLException {
+        if (predicates.isEmpty()) {
+            throw new SQLException("The query is not partitioned, call partitionByRange or partitionBy first");
+        }
+        return new Rows(partitionQueries());
+    }
+
+    /**
+     * @return true if running the partition again may succeed.
+     */
+    static boolean isRetryable(SQLException e) {
+        if (e instanceof SQLTransientException || e instanceof SQLRecoverableException) {
+            return true;
+        }
+        String state = e.getSQLState();
+        if (state != null && state.startsWith("08")) {
+            return true;
+        }
+        for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+            if (cause instanceof IOException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rows handed from a partition to the reader. A batch without rows ends the partition, normally or with an error.
+     */
+    private static final class Batch {
+        private final int partition;
+        private final List<Object[]> rows;
+        private final SQLException error;
+
+        Batch(int partition, List<Object[]> rows, SQLException error) {
+            this.partition = partition;
+            this.rows = rows;
+            this.error = error;
+        }
+
+        boolean isEnd() {
+            return rows == null;
+        }
+    }
+
+    /**
+     * The merged rows of a parallel query, read with {@link #next()} like a forward-only result set. Closing stops the partition queries
+     * that are still running.
+     */
+    public final class Rows implements AutoCloseable {
+        private final int partitions;
+        private final List<BlockingQueue<Batch>> queues = new ArrayList<>();
+        private final ExecutorService ownExecutor;
+        private final List<String> queries;
+        // Partitions are started in order, so in ordered mode the partition being read is always running
+        private final AtomicInteger nextPartition = new AtomicInteger();
+        private final CountDownLatch columnsKnown = new CountDownLatch(1);
+        private final AtomicInteger retries = new AtomicInteger();
+        // Partition queries that ended, and the end of the first one that failed, for the columns of a query where all partitions failed
+        private final AtomicInteger endedQueries = new AtomicInteger();
+        private final AtomicReference<Batch> firstFailure = new AtomicReference<>();
+        private volatile List<String> columnLabels;
+        private volatile boolean closed;
+        // Reader state
+        private int currentQueue;
+        private int endedPartitions;
+        private List<Object[]> batch = Collections.emptyList();
+        private int batchIndex;
+        private Object[] row;
+        private int rowPartition = -1;
+        private int batchPartition = -1;
+
+        private Rows(List<String> queries) {
+            this.queries = queries;
+            this.partitions = queries.size();
+            int queueCount = ordered ? partitions : 1;
+            for (int i = 0; i < queueCount; i++) {
+                queues.add(new ArrayBlockingQueue<>(ordered ? BATCHES_PER_QUEUE : BATCHES_PER_QUEUE * Math.min(parallelism, partitions)));
+            }
+            int workers = Math.min(parallelism, partitions);
+            ownExecutor = executor == null ? Executors.newFixedThreadPool(workers, threadFactory()) : null;
+            Executor runner = executor == null ? ownExecutor : executor;
+            for (int i = 0; i < workers; i++) {
+                CompletableFuture.runAsync(this::runPartitions, runner);
+            }
+            if (ownExecutor != null) {
+                // Lets the threads end once the partitions completed
+                ownExecutor.shutdown();
+            }
+        }
+
+        private ThreadFactory threadFactory() {
+            AtomicInteger count = new AtomicInteger();
+            return runnable -> {
+                Thread thread = new Thread(runnable, "cip-parallel-query-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            };
+        }
+
+        private BlockingQueue<Batch> queueOf(int partition) {
+            return queues.get(ordered ? partition : 0);
+        }
+
+        private void runPartitions() {
+            for (int partition = nextPartition.getAndIncrement(); partition < partitions && !closed; partition = nextPartition
+                            .getAndIncrement()) {
+                runPartition(partition, queries.get(partition));
+            }
+        }
+
+        private void runPartition(int partition, String query) {
+            SQLException failure = null;
+            try {
+                for (int attempt = 0; !closed; attempt++) {
+                    try {
+                        queryPartition(partition, query);
+                        failure = null;
+                        break;
+                    } catch (PartialResultException e) {
+                        // Rows of the partition were returned already
+                        failure = e.getCause();
+                        break;
+                    } catch (SQLException e) {
+                        failure = e;
+                    }
+                    if (attempt >= maxRetries || !isRetryable(failure)) {
+                        break;
+                    }
+                    retries.incrementAndGet();
+                    LOG.warn("Partition {} of the parallel query failed, retrying: {}", partition, failure.toString());
+                }
+            } catch (RuntimeException e) {
+                failure = new SQLException("Partition " + partition + " of the parallel query failed", e);
+            }
+            Batch end = new Batch(partition, null, failure);
+            if (failure != null) {
+                firstFailure.compareAndSet(null, end);
+            }
+            if (endedQueries.incrementAndGet() == partitions) {
+                // Wakes up a reader waiting for the columns, which no partition may have returned
+                columnsKnown.countDown();
+            }
+            publish(end);
+        }
+
+        private void queryPartition(int partition, String query) throws SQLException {
+            // Rows handed to the reader, a failure after that must not be retried, not even one closing the result set
+            long publishedRows = 0;
+            try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+                if (fetchSize > 0) {
+                    statement.setFetchSize(fetchSize);
+                }
+                try (ResultSet resultSet = statement.executeQuery(query)) {
+                    ResultSetMetaData metaData = resultSet.getMetaData();
+                    int columns = metaData.getColumnCount();
+                    if (columnLabels == null) {
+                        List<String> labels = new ArrayList<>(columns);
+                        for (int i = 1; i <= columns; i++) {
+                            labels.add(metaData.getColumnLabel(i));
+                        }
+                        columnLabels = Collections.unmodifiableList(labels);
+                        columnsKnown.countDown();
+                    }
+                    List<Object[]> rows = new ArrayList<>(BATCH_SIZE);
+                    while (!closed && resultSet.next()) {
+                        Object[] values = new Object[columns];
+                        for (int i = 0; i < columns; i++) {
+                            values[i] = resultSet.getObject(i + 1);
+                        }
+                        rows.add(values);
+                        if (rows.size() == BATCH_SIZE) {
+                            publish(new Batch(partition, rows, null));
+                            publishedRows += rows.size();
+                            rows = new ArrayList<>(BATCH_SIZE);
+                        }
+                    }
+                    if (!rows.isEmpty()) {
+                        publish(new Batch(partition, rows, null));
+                        publishedRows += rows.size();
+                    }
+                }
+            } catch (SQLException e) {
+                if (publishedRows > 0) {
+                    throw new PartialResultException(e);
+                }
+                throw e;
+            }
+        }
+
+        /**
+         * Hands a batch to the reader, waiting while the reader is behind unless the rows were closed.
+         */
+        private void publish(Batch batch) {
+            BlockingQueue<Batch> queue = queueOf(batch.partition);
+            try {
+                while (!closed && !queue.offer(batch, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    // Waiting for the reader
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Moves to the next row.
+         *
+         * @return false after the last row of all partitions.
+         * @throws SQLException the failure of a partition, or if the rows were closed.
+         */
+        public boolean next() throws SQLException {
+            if (closed) {
+                throw new SQLException("The rows of the parallel query are closed");
+            }
+            while (batchIndex >= batch.size()) {
+                if (endedPartitions == partitions) {
+                    row = null;
+                    return false;
+                }
+                Batch next;
+                try {
+                    next = queues.get(currentQueue).take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    close();
+                    throw new SQLException("Interrupted while waiting for the rows of the parallel query", e);
+                }
+                if (next.isEnd()) {
+                    endedPartitions++;
+                    if (ordered) {
+                        currentQueue++;
+                    }
+                    if (next.error != null) {
+                        close();
+                        throw failureOf(next);
+                    }
+                    continue;
+                }
+                batch = next.rows;
+                batchIndex = 0;
+                batchPartition = next.partition;
+            }
+            row = batch.get(batchIndex++);
+            rowPartition = batchPartition;
+            return true;
+        }
+
+        private SQLException failureOf(Batch end) {
+            return new SQLException("Partition " + end.partition + " of the parallel query failed: " + end.error.getMessage(),
+                            end.error.getSQLState(), end.error);
+        }
+
+        /**
+         * @param column the 1-based column index.
+         * @return the value of the column in the current row.
+         */
+        public Object getObject(int column) throws SQLException {
+            Object[] current = getRow();
+            if (column < 1 || column > current.length) {
+                throw new SQLException("Column index out of range: " + column);
+            }
+            return current[column - 1];
+        }
+
+        /**
+         * @return the values of the current row, not copied.
+         */
+        public Object[] getRow() throws SQLException {
+            if (row == null) {
+                throw new SQLException("No current row, call next() first");
+            }
+            return row;
+        }
+
+        /**
+         * @return the partition the current row comes from.
+         */
+        public int getPartition() {
+            return rowPartition;
+        }
+
+        /**
+         * @return the column labels, waiting for the first partition query to return its result set.
+         * @throws SQLException the failure of the first partition that failed, if all partitions ended without returning a result set.
+         */
+        public List<String> getColumnLabels() throws SQLException {
+            try {
+                while (columnLabels == null) {
+                    if (closed) {
+                        throw new SQLException("The rows of the parallel query are closed");
+                    }
+                    if (endedQueries.get() == partitions) {
+                        Batch failed = firstFailure.get();
+                        if (failed == null) {
+                            throw new SQLException("The partitions of the parallel query ended without a result set");
+                        }
+                        throw failureOf(failed);
+                    }
+                    columnsKnown.await(OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for the columns of the parallel query", e);
+            }
+            return columnLabels;
+        }
+
+        /**
+         * @return the number of partition queries that were run again after a failure.
+         */
+        public int getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Stops the partition queries, they close their result sets and return their connections before their next row.
+         */
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queues.forEach(BlockingQueue::clear);
+        }
+    }
+
+    /**
+     * A partition failed after it handed rows to the reader, running it again would return them twice.
+     */
+    private static final class PartialResultException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        PartialResultException(SQLException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized SQLException getCause() {
+            return (SQLException) super.getCause();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker shared by all connections to one Avatica endpoint. While the server is down, calls fail fast instead of each one waiting
+ * for its connect timeout and all of its retries.
+ * <p>
+ * The breaker records the outcome of every HTTP attempt in a count based sliding window. An attempt fails if no response arrived (connect
+ * or I/O error) or the server answered 502, 503 or 504; it is slow if it took longer than the slow call duration. Query executions, which
+ * may legitimately run for minutes, are recorded without their duration and never count as slow. Once the window holds the
+ * minimum number of calls and the failure rate or the slow call rate reaches its threshold, the breaker opens and rejects calls. After the
+ * open duration it lets a few probe calls through (half-open): if they all succeed it closes again, a single failed or slow probe opens it
+ * for another open duration.
+ * <p>
+ * Settings are process-wide system properties:
+ * <ul>
+ * <li>{@code cip.circuitBreaker.enabled} (default true)</li>
+ * <li>{@code cip.circuitBreaker.windowSize}, the number of recent calls considered (default 20)</li>
+ * <li>{@code cip.circuitBreaker.minimumCalls} (default 10)</li>
+ * <li>{@code cip.circuitBreaker.failureRateThreshold} in percent (default 50)</li>
+ * <li>{@code cip.circuitBreaker.slowCallRateThreshold} in percent (default 100)</li>
+ * <li>{@code cip.circuitBreaker.slowCallDurationMs} (default 60000)</li>
+ * <li>{@code cip.circuitBreaker.openDurationMs} (default 30000)</li>
+ * <li>{@code cip.circuitBreaker.halfOpenProbes} (default 3)</li>
+ * </ul>
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private static final Settings SETTINGS = Settings.fromSystemProperties();
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String endpoint;
+    private final Settings settings;
+    private final LongSupplier nanoClock;
+
+    // Ring buffer of the outcomes of the last windowSize calls
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int next;
+    private int calls;
+    private int failures;
+    private int slow;
+
+    private State state = State.CLOSED;
+    private long openedAtNanos;
+    private int probesInFlight;
+    private int probeSuccesses;
+
+    private final LongAdder rejectedCalls = new LongAdder();
+
+    CircuitBreaker(String endpoint, Settings settings, LongSupplier nanoClock) {
+        this.endpoint = endpoint;
+        this.settings = settings;
+        this.nanoClock = nanoClock;
+        this.failedCalls = new boolean[settings.windowSize];
+        this.slowCalls = new boolean[settings.windowSize];
+    }
+
+    /**
+     * Returns the breaker of an Avatica endpoint, creating it on first use.
+     *
+     * @param uri the Avatica server URI.
+     * @return the breaker shared by all connections to the endpoint.
+     */
+    public static CircuitBreaker forEndpoint(URI uri) {
+        String endpoint = uri.getScheme() + "://" + uri.getRawAuthority() + (uri.getRawPath() == null ? "" : uri.getRawPath());
+        return BREAKERS.computeIfAbsent(endpoint, e -> new CircuitBreaker(e, SETTINGS, System::nanoTime));
+    }
+
+    /**
+     * Forgets all breakers, so every endpoint starts closed again.
+     */
+    static void resetAll() {
+        BREAKERS.clear();
+    }
+
+    /**
+     * Asks for permission to send one attempt. Every permitted attempt must be followed by {@link #onResult(boolean, long)},
+     * {@link #onResult(boolean)} or {@link #onIgnored()}.
+     *
+     * @return true if the attempt may be sent, false if the breaker is open.
+     */
+    public synchronized boolean tryAcquirePermission() {
+        if (!settings.enabled) {
+            return true;
+        }
+        if (state == State.OPEN) {
+            if (nanoClock.getAsLong() - openedAtNanos < settings.openDurationNanos) {
+                rejectedCalls.increment();
+                return false;
+            }
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.HALF_OPEN) {
+            if (probesInFlight + probeSuccesses >= settings.halfOpenProbes) {
+                rejectedCalls.increment();
+                return false;
+            }
+            probesInFlight++;
+        }
+        return true;
+    }
+
+    /**
+     * Records the outcome of a permitted attempt.
+     *
+     * @param failed true if no response arrived or the server reported itself unavailable.
+     * @param durationNanos the time the attempt took.
+     */
+    public synchronized void onResult(boolean failed, long durationNanos) {
+        if (!settings.enabled) {
+            return;
+        }
+        boolean slowCall = durationNanos >= settings.slowCallDurationNanos;
+        switch (state) {
+        case HALF_OPEN:
+            probesInFlight = Math.max(0, probesInFlight - 1);
+            if (failed || slowCall) {
+                transitionTo(State.OPEN);
+            } else if (++probeSuccesses >= settings.halfOpenProbes) {
+                transitionTo(State.CLOSED);
+            }
+            break;
+        case CLOSED:
+            record(failed, slowCall);
+            if (calls >= settings.minimumCalls && (failures * 100 >= settings.failureRateThreshold * calls
+                            || slow * 100 >= settings.slowCallRateThreshold * calls)) {
+                transitionTo(State.OPEN);
+            }
+            break;
+        default:
+            // A call permitted before the breaker opened, its outcome does not change the decision
+            break;
+        }
+    }
+
+    /**
+     * Records the outcome of a permitted attempt whose duration says nothing about the server, e.g. the execution of a long running query.
+     * It is never a slow call.
+     *
+     * @param failed true if no response arrived or the server reported itself unavailable.
+     */
+    public void onResult(boolean failed) {
+        onResult(failed, 0);
+    }
+
+    /**
+     * Releases the permission of an attempt whose outcome says nothing about the server, e.g. a cancelled one.
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            probesInFlight = Math.max(0, probesInFlight - 1);
+        }
+    }
+
+    private void record(boolean failed, boolean slowCall) {
+        if (calls == failedCalls.length) {
+            failures -= failedCalls[next] ? 1 : 0;
+            slow -= slowCalls[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failedCalls[next] = failed;
+        slowCalls[next] = slowCall;
+        failures += failed ? 1 : 0;
+        slow += slowCall ? 1 : 0;
+        next = (next + 1) % failedCalls.length;
+    }
+
+    private void transitionTo(State newState) {
+        if (newState == State.OPEN) {
+            openedAtNanos = nanoClock.getAsLong();
+            LOG.warn("Circuit breaker for {} opened after {} failed and {} slow of the last {} calls", endpoint, failures, slow, calls);
+        } else {
+            LOG.info("Circuit breaker for {} is {}", endpoint, newState);
+        }
+        state = newState;
+        probesInFlight = 0;
+        probeSuccesses = 0;
+        if (newState == State.CLOSED) {
+            calls = 0;
+            failures = 0;
+            slow = 0;
+            next = 0;
+        }
+    }
+
+    /**
+     * @return the time until an open breaker lets the first probe through, 0 if it is not open.
+     */
+    public synchronized long getRemainingOpenMillis() {
+        if (state != State.OPEN) {
+            return 0;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(settings.openDurationNanos - (nanoClock.getAsLong() - openedAtNanos)));
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+
+    /**
+     * @return the number of calls rejected without being sent.
+     */
+    public long getRejectedCalls() {
+        return rejectedCalls.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker{endpoint=" + endpoint + ", state=" + getState() + ", rejectedCalls=" + getRejectedCalls() + '}';
+    }
+
+    /**
+     * Thresholds of the breakers, read once from the system properties.
+     */
+    static final class Settings {
+        final boolean enabled;
+        final int windowSize;
+        final int minimumCalls;
+        final int failureRateThreshold;
+        final int slowCallRateThreshold;
+        final long slowCallDurationNanos;
+        final long openDurationNanos;
+        final int halfOpenProbes;
+
+        Settings(boolean enabled, int windowSize, int minimumCalls, int failureRateThreshold, int slowCallRateThreshold,
+                        long slowCallDurationMs, long openDurationMs, int halfOpenProbes) {
+            this.enabled = enabled;
+            this.windowSize = Math.max(1, windowSize);
+            this.minimumCalls = Math.max(1, Math.min(minimumCalls, this.windowSize));
+            this.failureRateThreshold = failureRateThreshold;
+            this.slowCallRateThreshold = slowCallRateThreshold;
+            this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMs);
+            this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMs);
+            this.halfOpenProbes = Math.max(1, halfOpenProbes);
+        }
+
+        static Settings fromSystemProperties() {
+            return new Settings(Boolean.parseBoolean(System.getProperty("cip.circuitBreaker.enabled", "true")),
+                            Integer.parseInt(System.getProperty("cip.circuitBreaker.windowSize", "20")),
+                            Integer.parseInt(System.getProperty("cip.circuitBreaker.minimumCalls", "10")),
+                            Integer.parseInt(System.getProperty("cip.circuitBreaker.failureRateThreshold", "50")),
+                            Integer.parseInt(System.getProperty("cip.circuitBreaker.slowCallRateThreshold", "100")),
+                            Long.parseLong(System.getProperty("cip.circuitBreaker.slowCallDurationMs", "60000")),
+                            Long.parseLong(System.getProperty("cip.circuitBreaker.openDurationMs", "30000")),
+                            Integer.parseInt(System.getProperty("cip.circuitBreaker.halfOpenProbes", "3")));
+        }
+    }
+}
@@ -0,0 +1,512 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import org.apache.calcite.avatica.AvaticaConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pool of JDBC connections behind a {@link CIPDataSource}.
+ * <p>
+ * Borrowers get the most recently returned idle connection, so that the others can reach the idle timeout and be closed. Before a
+ * connection is handed out it is validated with {@value #VALIDATION_QUERY}, unless it was opened or got a response from the server within
+ * the validation interval, which the {@link SessionStore} records for every connection. Connections are closed instead of being returned
+ * when they reached their maximum lifetime, when their state (auto-commit, read-only, catalog, ...) was changed, or when they failed with a
+ * connection error.
+ * <p>
+ * A maintenance task closes idle connections that reached their lifetime or the idle timeout, and opens standby connections until the
+ * minimum number of idle connections is reached. The missing standby connections are opened in parallel, without the task waiting for them.
+ */
+final class ConnectionPool implements AutoCloseable {
+
+    /**
+     * Opens a new physical connection.
+     */
+    @FunctionalInterface
+    interface ConnectionFactory {
+        Connection connect() throws SQLException;
+
+        /**
+         * Opens a new physical connection without blocking the caller. The default implementation connects on the calling thread.
+         */
+        default CompletableFuture<Connection> connectAsync() {
+            try {
+                return CompletableFuture.completedFuture(connect());
+            } catch (SQLException | RuntimeException e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+    }
+
+    static final String VALIDATION_QUERY = "SELECT 1";
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 5;
+
+    // Longest time between two runs of the maintenance task
+    private static final long MAX_MAINTENANCE_INTERVAL_MS = 30_000;
+
+    // Methods that change the state of a connection, connections on which they were called are not reused
+    private static final Set<String> STATE_CHANGING_METHODS = Set.of("setAutoCommit", "setReadOnly", "setCatalog", "setSchema",
+                    "setTransactionIsolation", "setHoldability", "setTypeMap", "setClientInfo", "setNetworkTimeout");
+
+    // Statements tracked per borrowed connection before the closed ones are dropped from the list
+    private static final int STATEMENT_PRUNE_THRESHOLD = 64;
+
+    private static final Logger LOG = LoggerFactory.getLogger(ConnectionPool.class);
+
+    private static final ScheduledExecutorService MAINTAINER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cip-pool-maintainer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConnectionFactory factory;
+    private final SessionStore sessions;
+    private final LongSupplier nanoClock;
+    private final int minIdle;
+    private final int maxIdle;
+    private final int maxPoolSize;
+    private final long maxLifetimeNanos;
+    private final long idleTimeoutNanos;
+    private final long validationIntervalMs;
+    private final long connectionTimeoutNanos;
+    private final ConnectionPoolStats stats = new ConnectionPoolStats(this);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // Guarded by lock, most recently returned first
+    private final ArrayDeque<PoolEntry> idle = new ArrayDeque<>();
+    // Guarded by lock, connections that are idle, borrowed or being opened
+    private int total;
+    // Guarded by lock, standby connections being opened by the maintenance task
+    private int opening;
+    // Guarded by lock
+    private boolean closed;
+    private volatile ScheduledFuture<?> maintenance;
+
+    ConnectionPool(CIPDataSource settings, ConnectionFactory factory, SessionStore sessions, LongSupplier nanoClock) {
+        this.factory = factory;
+        this.sessions = sessions;
+        this.nanoClock = nanoClock;
+        this.minIdle = settings.getMinIdle();
+        this.maxIdle = settings.getMaxIdle();
+        this.maxPoolSize = settings.getMaxPoolSize();
+        this.maxLifetimeNanos = TimeUnit.MILLISECONDS.toNanos(settings.getMaxLifetimeMs());
+        this.idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getIdleTimeoutMs());
+        this.validationIntervalMs = settings.getValidationIntervalMs();
+        this.connectionTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(settings.getConnectionTimeoutMs());
+    }
+
+    private static final class PoolEntry {
+        private final Connection connection;
+        private final String connectionId;
+        private final long createdNanos;
+        private final long expiryNanos;
+        // Guarded by the lock of the pool
+        private long idleSinceNanos;
+
+        PoolEntry(Connection connection, long createdNanos, long expiryNanos) {
+            this.connection = connection;
+            this.connectionId = connectionId(connection);
+            this.createdNanos = createdNanos;
+            this.expiryNanos = expiryNanos;
+        }
+    }
+
+    /**
+     * Schedules the maintenance task, which also opens the standby connections.
+     */
+    void start() {
+        long interval = Math.max(1, Math.min(TimeUnit.NANOSECONDS.toMillis(idleTimeoutNanos) / 2, MAX_MAINTENANCE_INTERVAL_MS));
+        maintenance = MAINTAINER.scheduleWithFixedDelay(this::maintain, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return an idle connection of the pool, or a new one if none is idle and the pool is not full.
+     * @throws SQLTransientConnectionException if the pool stayed full for the connection timeout.
+     */
+    Connection borrow() throws SQLException {
+        long startNanos = nanoClock.getAsLong();
+        long remainingNanos = connectionTimeoutNanos;
+        while (true) {
+            PoolEntry entry = null;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        throw new SQLException("The data source is closed", "08003");
+                    }
+                    entry = idle.pollFirst();
+                    if (entry != null) {
+                        break;
+                    }
+                    if (total < maxPoolSize) {
+                        total++;
+                        break;
+                    }
+                    if (remainingNanos <= 0) {
+                        stats.recordTimeout();
+                        throw new SQLTransientConnectionException(String.format(
+                                        "Timed out after %d ms waiting for one of the %d connections of the pool",
+                                        TimeUnit.NANOSECONDS.toMillis(connectionTimeoutNanos), maxPoolSize), "08001");
+                    }
+                    remainingNanos = available.awaitNanos(remainingNanos);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection of the pool", "08001", e);
+            } finally {
+                lock.unlock();
+            }
+            if (entry == null) {
+                entry = open();
+            } else if (!isUsable(entry)) {
+                discard(entry);
+                continue;
+            }
+            stats.recordBorrow(nanoClock.getAsLong() - startNanos);
+            return new Lease(entry).proxy;
+        }
+    }
+
+    /**
+     * Opens a connection whose slot was already counted in {@link #total}, releasing the slot if it fails.
+     */
+    private PoolEntry open() throws SQLException {
+        try {
+            return newEntry(factory.connect());
+        } catch (SQLException | RuntimeException e) {
+            releaseSlot();
+            throw e;
+        }
+    }
+
+    private PoolEntry newEntry(Connection connection) {
+        long now = nanoClock.getAsLong();
+        // Spread the retirement of connections that were opened together
+        long lifetime = maxLifetimeNanos - ThreadLocalRandom.current().nextLong(maxLifetimeNanos / 10 + 1);
+        stats.recordCreated();
+        return new PoolEntry(connection, now, now + lifetime);
+    }
+
+    private void releaseSlot() {
+        lock.lock();
+        try {
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return whether the idle connection can be handed out, validating it unless recent traffic proved that it is alive.
+     */
+    private boolean isUsable(PoolEntry entry) {
+        long now = nanoClock.getAsLong();
+        if (now - entry.expiryNanos >= 0) {
+            return false;
+        }
+        if (now - entry.createdNanos < TimeUnit.MILLISECONDS.toNanos(validationIntervalMs)
+                        || sessions.respondedWithin(entry.connectionId, validationIntervalMs)) {
+            stats.recordValidationSkipped();
+            return true;
+        }
+        try (Statement statement = entry.connection.createStatement()) {
+            statement.setQueryTimeout(VALIDATION_TIMEOUT_SECONDS);
+            statement.execute(VALIDATION_QUERY);
+            stats.recordValidation(true);
+            return true;
+        } catch (SQLException | RuntimeException e) {
+            LOG.debug("Pooled connection {} failed validation: {}", entry.connectionId, e.toString());
+            stats.recordValidation(false);
+            return false;
+        }
+    }
+
+    /**
+     * Takes back a borrowed or newly opened connection, closing it if it cannot be reused or enough connections are idle.
+     */
+    private void release(PoolEntry entry, boolean reusable) {
+        long now = nanoClock.getAsLong();
+        lock.lock();
+        try {
+            if (reusable && !closed && now - entry.expiryNanos < 0 && idle.size() < maxIdle) {
+                entry.idleSinceNanos = now;
+                idle.addFirst(entry);
+                available.signal();
+                return;
+            }
+            total--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        closeQuietly(entry);
+    }
+
+    private void discard(PoolEntry entry) {
+        release(entry, false);
+    }
+
+    private void closeQuietly(PoolEntry entry) {
+        try {
+            entry.connection.close();
+        } catch (SQLException | RuntimeException e) {
+            LOG.debug("Failed to close pooled connection {}: {}", entry.connectionId, e.toString());
+        }
+        stats.recordClosed();
+    }
+
+    /**
+     * Closes idle connections that reached their lifetime or the idle timeout, and opens standby connections up to the minimum number of
+     * idle connections. Standby connections are thus replaced before the server drops them for inactivity.
+     */
+    void maintain() {
+        long now = nanoClock.getAsLong();
+        List<PoolEntry> retired = new ArrayList<>();
+        lock.lock();
+        try {
+            for (Iterator<PoolEntry> it = idle.iterator(); it.hasNext();) {
+                PoolEntry entry = it.next();
+                if (now - entry.expiryNanos >= 0 || now - entry.idleSinceNanos >= idleTimeoutNanos) {
+                    it.remove();
+                    total--;
+                    retired.add(entry);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        retired.forEach(this::closeQuietly);
+        int missing;
+        lock.lock();
+        try {
+            missing = closed ? 0 : Math.min(minIdle - idle.size() - opening, maxPoolSize - total);
+            total += Math.max(missing, 0);
+            opening += Math.max(missing, 0);
+        } finally {
+            lock.unlock();
+        }
+        if (missing <= 0) {
+            return;
+        }
+        // The task does not wait for the connects, it runs on the one maintenance thread of all pools. Each connect hands its slot back
+        // when it completes, and runs still in progress count towards the standby connections of the next run.
+        for (int i = 0; i < missing; i++) {
+            factory.connectAsync().whenComplete((connection, error) -> {
+                lock.lock();
+                try {
+                    opening--;
+                } finally {
+                    lock.unlock();
+                }
+                if (error == null) {
+                    release(newEntry(connection), true);
+                } else {
+                    releaseSlot();
+                    Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                    LOG.warn("Failed to open a standby connection: {}", cause.toString());
+                }
+            });
+        }
+    }
+
+    /**
+     * Closes the idle connections. Borrowed connections are closed when they are returned.
+     */
+    @Override
+    public void close() {
+        List<PoolEntry> retired;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            retired = new ArrayList<>(idle);
+            total -= idle.size();
+            idle.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        ScheduledFuture<?> task = maintenance;
+        if (task != null) {
+            task.cancel(false);
+        }
+        retired.forEach(this::closeQuietly);
+    }
+
+    ConnectionPoolStats getStats() {
+        return stats;
+    }
+
+    int getIdleConnections() {
+        lock.lock();
+        try {
+            return idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getActiveConnections() {
+        lock.lock();
+        try {
+            return total - idle.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getWaitingThreads() {
+        lock.lock();
+        try {
+            return lock.getWaitQueueLength(available);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the Avatica connection ID of the connection, or null if it is not an Avatica connection.
+     */
+    static String connectionId(Connection connection) {
+        try {
+            if (connection instanceof AvaticaConnection) {
+                return ((AvaticaConnection) connection).id;
+            }
+            return connection.isWrapperFor(AvaticaConnection.class) ? connection.unwrap(AvaticaConnection.class).id : null;
+        } catch (SQLException e) {
+            return null;
+        }
+    }
+
+    private static boolean isConnectionError(Throwable error) {
+        if (!(error instanceof SQLException)) {
+            return true;
+        }
+        String state = ((SQLException) error).getSQLState();
+        return state != null && state.startsWith("08");
+    }
+
+    private static boolean isClosed(Statement statement) {
+        try {
+            return statement.isClosed();
+        } catch (SQLException e) {
+            return true;
+        }
+    }
+
+    /**
+     * A borrowed connection. Closing it returns the connection to the pool and closes the statements created through it.
+     */
+    private final class Lease implements InvocationHandler {
+        private final PoolEntry entry;
+        private final Connection proxy;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private final List<Statement> statements = new ArrayList<>();
+        private volatile boolean reusable = true;
+
+        Lease(PoolEntry entry) {
+            this.entry = entry;
+            this.proxy = (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(), new Class<?>[] {Connection.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return released.get() || entry.connection.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + entry.connection;
+                default:
+                    break;
+            }
+            if (released.get()) {
+                throw new SQLException("The connection is closed", "08003");
+            }
+            if (STATE_CHANGING_METHODS.contains(name) || name.equals("abort")) {
+                reusable = false;
+            }
+            Object result;
+            try {
+                result = method.invoke(entry.connection, args);
+            } catch (InvocationTargetException e) {
+                if (isConnectionError(e.getCause())) {
+                    reusable = false;
+                }
+                throw e.getCause();
+            }
+            if (result instanceof Statement) {
+                track((Statement) result);
+            } else if (name.equals("abort")) {
+                release();
+            }
+            return result;
+        }
+
+        private void track(Statement statement) {
+            synchronized (statements) {
+                if (statements.size() >= STATEMENT_PRUNE_THRESHOLD) {
+                    statements.removeIf(ConnectionPool::isClosed);
+                }
+                statements.add(statement);
+            }
+        }
+
+        private void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
+            List<Statement> open;
+            synchronized (statements) {
+                open = new ArrayList<>(statements);
+                statements.clear();
+            }
+            for (Statement statement : open) {
+                try {
+                    if (!statement.isClosed()) {
+                        statement.close();
+                    }
+                } catch (SQLException e) {
+                    LOG.debug("Failed to close a statement of pooled connection {}: {}", entry.connectionId, e.toString());
+                }
+            }
+            ConnectionPool.this.release(entry, reusable);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Gauges and counters of the connection pool of a {@link CIPDataSource}.
+ */
+public final class ConnectionPoolStats {
+
+    private final ConnectionPool pool;
+    private final LongAdder created = new LongAdder();
+    private final LongAdder closed = new LongAdder();
+    private final LongAdder borrows = new LongAdder();
+    private final LongAdder borrowNanos = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private final LongAdder validations = new LongAdder();
+    private final LongAdder skippedValidations = new LongAdder();
+    private final LongAdder failedValidations = new LongAdder();
+
+    ConnectionPoolStats(ConnectionPool pool) {
+        this.pool = pool;
+    }
+
+    void recordCreated() {
+        created.increment();
+    }
+
+    void recordClosed() {
+        closed.increment();
+    }
+
+    void recordBorrow(long durationNanos) {
+        borrows.increment();
+        borrowNanos.add(durationNanos);
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    void recordValidation(boolean valid) {
+        validations.increment();
+        if (!valid) {
+            failedValidations.increment();
+        }
+    }
+
+    void recordValidationSkipped() {
+        skippedValidations.increment();
+    }
+
+    /**
+     * @return the number of connections waiting in the pool.
+     */
+    public int getIdleConnections() {
+        return pool.getIdleConnections();
+    }
+
+    /**
+     * @return the number of connections borrowed or being opened.
+     */
+    public int getActiveConnections() {
+        return pool.getActiveConnections();
+    }
+
+    /**
+     * @return the number of threads waiting for a connection because the pool is full.
+     */
+    public int getWaitingThreads() {
+        return pool.getWaitingThreads();
+    }
+
+    /**
+     * @return the number of connections opened by the pool.
+     */
+    public long getCreatedConnections() {
+        return created.sum();
+    }
+
+    /**
+     * @return the number of connections closed by the pool.
+     */
+    public long getClosedConnections() {
+        return closed.sum();
+    }
+
+    /**
+     * @return the number of connections handed out.
+     */
+    public long getBorrows() {
+        return borrows.sum();
+    }
+
+    /**
+     * @return the average time to get a connection, including waiting, validating and opening it, or 0 if none was handed out.
+     */
+    public double getAverageBorrowMillis() {
+        long count = borrows.sum();
+        return count == 0 ? 0 : (double) borrowNanos.sum() / count / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @return the number of requests for a connection that timed out because the pool stayed full.
+     */
+    public long getTimeouts() {
+        return timeouts.sum();
+    }
+
+    /**
+     * @return the number of validation queries sent.
+     */
+    public long getValidations() {
+        return validations.sum();
+    }
+
+    /**
+     * @return the number of validations skipped because the connection recently got a response from the server.
+     */
+    public long getSkippedValidations() {
+        return skippedValidations.sum();
+    }
+
+    /**
+     * @return the number of connections that failed validation and were closed.
+     */
+    public long getFailedValidations() {
+        return failedValidations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPoolStats{idle=" + getIdleConnections() + ", active=" + getActiveConnections() + ", waiting="
+                + getWaitingThreads() + ", created=" + getCreatedConnections() + ", closed=" + getClosedConnections() + ", borrows="
+                + getBorrows() + ", timeouts=" + getTimeouts() + ", validations=" + getValidations() + ", skippedValidations="
+                + getSkippedValidations() + ", failedValidations=" + getFailedValidations() + '}';
+    }
+}
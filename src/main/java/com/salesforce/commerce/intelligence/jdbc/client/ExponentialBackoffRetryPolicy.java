@@ -0,0 +1,82 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Default {@link RetryPolicy}: exponential backoff with full jitter. The delay before retry {@code n} is drawn uniformly from
+ * {@code [0, min(maxDelay, baseDelay * 2^(n-1))]}, which spreads the retries of many clients hit by the same server brownout instead of
+ * having them arrive in waves. A {@code Retry-After} sent by the server takes precedence, capped at the maximum delay.
+ * <p>
+ * Configured with the {@code maxRetryAttempts} (default 5), {@code retryBaseDelayMs} (default 100) and {@code retryMaxDelayMs} (default
+ * 10000) connection properties.
+ */
+public class ExponentialBackoffRetryPolicy implements RetryPolicy {
+
+    static final String MAX_ATTEMPTS_PROPERTY = "maxRetryAttempts";
+    static final String BASE_DELAY_PROPERTY = "retryBaseDelayMs";
+    static final String MAX_DELAY_PROPERTY = "retryMaxDelayMs";
+
+    static final int DEFAULT_MAX_ATTEMPTS = 5;
+    static final long DEFAULT_BASE_DELAY_MS = 100;
+    static final long DEFAULT_MAX_DELAY_MS = 10_000;
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+
+    public ExponentialBackoffRetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs) {
+        if (maxAttempts < 1 || baseDelayMs < 0 || maxDelayMs < baseDelayMs) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid retry settings: maxRetryAttempts=%d, retryBaseDelayMs=%d, retryMaxDelayMs=%d", maxAttempts, baseDelayMs,
+                    maxDelayMs));
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+    }
+
+    /**
+     * Creates the policy from the connection properties.
+     *
+     * @param properties the connection properties.
+     * @throws IllegalArgumentException if a setting is not a number or out of range.
+     */
+    public ExponentialBackoffRetryPolicy(Properties properties) {
+        this((int) parse(properties, MAX_ATTEMPTS_PROPERTY, DEFAULT_MAX_ATTEMPTS), parse(properties, BASE_DELAY_PROPERTY,
+                DEFAULT_BASE_DELAY_MS), parse(properties, MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY_MS));
+    }
+
+    @Override
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    @Override
+    public long getDelayMillis(int attempt, long retryAfterMillis) {
+        if (retryAfterMillis >= 0) {
+            return Math.min(retryAfterMillis, maxDelayMs);
+        }
+        // Cap the shift so the ceiling cannot overflow for a large number of attempts
+        long ceiling = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt - 1, 30));
+        return ceiling <= 0 ? 0 : ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    private static long parse(Properties properties, String name, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for " + name + " property. Expected a number, but got: " + value, e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ExponentialBackoffRetryPolicy{maxAttempts=" + maxAttempts + ", baseDelayMs=" + baseDelayMs + ", maxDelayMs=" + maxDelayMs
+                + '}';
+    }
+}
@@ -0,0 +1,227 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps OAuth tokens on disk, so short-lived processes that connect once can reuse a token obtained by an earlier process instead of asking
+ * Account Manager again. Enabled by setting the {@code tokenCacheDir} connection property to a directory of the user running the driver.
+ * <p>
+ * Each token is stored in its own file named after a digest of its {@link TokenCache} key, i.e. of the OAuth host, client ID, client secret
+ * and instance. Files are encrypted with AES-GCM using a random key kept in {@code token.key} in the same directory. On POSIX systems the
+ * directory is created readable by its owner only, and all files are created with owner-only permissions. An existing directory that other
+ * users can access is not used, its files may have been read or replaced by them. The store never fails a request: files that cannot be
+ * read, decrypted or written are treated as missing.
+ */
+final class FileTokenStore {
+
+    static final String PROPERTY = "tokenCacheDir";
+
+    static final String KEY_FILE = "token.key";
+
+    private static final Logger LOG = LoggerFactory.getLogger(FileTokenStore.class);
+
+    private static final int KEY_LENGTH = 32;
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static final Set<PosixFilePermission> GROUP_AND_OTHERS = EnumSet.of(PosixFilePermission.GROUP_READ,
+            PosixFilePermission.GROUP_WRITE, PosixFilePermission.GROUP_EXECUTE, PosixFilePermission.OTHERS_READ,
+            PosixFilePermission.OTHERS_WRITE, PosixFilePermission.OTHERS_EXECUTE);
+
+    private final Path directory;
+
+    FileTokenStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the store of the {@code tokenCacheDir} directory, or null if the property is not set.
+     */
+    static FileTokenStore fromProperties(Properties properties) {
+        String directory = properties.getProperty(PROPERTY);
+        if (directory == null || directory.trim().isEmpty()) {
+            return null;
+        }
+        return new FileTokenStore(Paths.get(directory.trim()));
+    }
+
+    /**
+     * @return the stored token of the key, or null if there is none or it cannot be read.
+     */
+    TokenCache.Token read(String key) {
+        String name = fileName(key);
+        try {
+            checkDirectory();
+            byte[] file = Files.readAllBytes(directory.resolve(name));
+            byte[] secret = readKey();
+            if (secret == null || file.length < 1 + IV_LENGTH || file[0] != FORMAT_VERSION) {
+                return null;
+            }
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(secret, "AES"), new GCMParameterSpec(TAG_BITS, file, 1, IV_LENGTH));
+            cipher.updateAAD(name.getBytes(StandardCharsets.UTF_8));
+            ByteBuffer plain = ByteBuffer.wrap(cipher.doFinal(file, 1 + IV_LENGTH, file.length - 1 - IV_LENGTH));
+            long expiryTimeMs = plain.getLong();
+            String accessToken = StandardCharsets.UTF_8.decode(plain).toString();
+            return new TokenCache.Token(accessToken, expiryTimeMs);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOG.debug("Ignoring unreadable token cache file {}: {}", name, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Stores the token of the key, replacing the previous one.
+     */
+    void write(String key, TokenCache.Token token) {
+        String name = fileName(key);
+        try {
+            byte[] secret = readOrCreateKey();
+            byte[] iv = new byte[IV_LENGTH];
+            RANDOM.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new GCMParameterSpec(TAG_BITS, iv));
+            cipher.updateAAD(name.getBytes(StandardCharsets.UTF_8));
+            byte[] accessToken = token.getAccessToken().getBytes(StandardCharsets.UTF_8);
+            byte[] encrypted = cipher.doFinal(ByteBuffer.allocate(Long.BYTES + accessToken.length).putLong(token.getExpiryTimeMs())
+                            .put(accessToken).array());
+            byte[] file = ByteBuffer.allocate(1 + IV_LENGTH + encrypted.length).put(FORMAT_VERSION).put(iv).put(encrypted).array();
+            writeAtomically(name, file);
+        } catch (IOException | GeneralSecurityException | RuntimeException e) {
+            LOG.warn("Failed to write the token cache file in {}: {}", directory, e.toString());
+        }
+    }
+
+    /**
+     * Removes the stored token of the key, e.g. after the server rejected it.
+     */
+    void delete(String key) {
+        try {
+            Files.deleteIfExists(directory.resolve(fileName(key)));
+        } catch (IOException e) {
+            LOG.warn("Failed to delete the token cache file in {}: {}", directory, e.toString());
+        }
+    }
+
+    private byte[] readKey() throws IOException {
+        try {
+            byte[] secret = Files.readAllBytes(directory.resolve(KEY_FILE));
+            return secret.length == KEY_LENGTH ? secret : null;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    private byte[] readOrCreateKey() throws IOException {
+        byte[] secret = readKey();
+        if (secret != null) {
+            return secret;
+        }
+        secret = new byte[KEY_LENGTH];
+        RANDOM.nextBytes(secret);
+        writeAtomically(KEY_FILE, secret);
+        // Another process may have created its key at the same time, the one that ended up in the file wins
+        secret = readKey();
+        if (secret == null) {
+            throw new IOException("Failed to create the token cache key file in " + directory);
+        }
+        return secret;
+    }
+
+    /**
+     * Writes a file through a temporary file with owner-only permissions, so readers never see a partial file.
+     */
+    private void writeAtomically(String name, byte[] content) throws IOException {
+        createDirectory();
+        Path temp = isPosix() ? Files.createTempFile(directory, name, ".tmp",
+                PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------"))) : Files.createTempFile(directory, name,
+                ".tmp");
+        try {
+            Files.write(temp, content);
+            try {
+                Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, directory.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private void createDirectory() throws IOException {
+        if (Files.isDirectory(directory)) {
+            checkDirectory();
+            return;
+        }
+        if (isPosix()) {
+            Files.createDirectories(directory, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } else {
+            Files.createDirectories(directory);
+        }
+    }
+
+    /**
+     * @throws IOException if other users can access the directory.
+     */
+    private void checkDirectory() throws IOException {
+        if (!isPosix()) {
+            return;
+        }
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+        if (permissions.stream().anyMatch(GROUP_AND_OTHERS::contains)) {
+            throw new IOException("The token cache directory " + directory + " is accessible by other users ("
+                    + PosixFilePermissions.toString(permissions) + "), restrict it to its owner with chmod 700");
+        }
+    }
+
+    private static boolean isPosix() {
+        return FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     * @return the file name of the key, a digest that reveals neither the client ID nor the instance.
+     */
+    private static String fileName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder name = new StringBuilder(hash.length * 2 + 6);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(".token").toString();
+        } catch (GeneralSecurityException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
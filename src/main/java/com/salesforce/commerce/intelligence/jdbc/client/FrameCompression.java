@@ -0,0 +1,175 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Content coding of the protobuf frames exchanged with the Avatica server, selected with the {@code compression} connection property.
+ * <p>
+ * With any value other than {@code none} the client advertises {@code Accept-Encoding: gzip, deflate} and decodes the response body itself
+ * while reading it, whichever of the two the server picked. The selected coding is also used for batch request bodies above the
+ * {@code compressRequestsAbove} threshold.
+ */
+enum FrameCompression {
+    /**
+     * Frames are sent as is and the driver does not negotiate a content coding. This is the default.
+     */
+    NONE("none"),
+
+    GZIP("gzip"),
+
+    DEFLATE("deflate");
+
+    static final String PROPERTY = "compression";
+    static final String REQUEST_THRESHOLD_PROPERTY = "compressRequestsAbove";
+    static final String ACCEPT_ENCODING = "gzip, deflate";
+
+    private final String propertyValue;
+
+    FrameCompression(String propertyValue) {
+        this.propertyValue = propertyValue;
+    }
+
+    /**
+     * @return the {@code Content-Encoding} token of this coding.
+     */
+    String getContentEncoding() {
+        return propertyValue;
+    }
+
+    /**
+     * Compresses a request body with this coding.
+     *
+     * @param body the serialized request.
+     * @return the encoded body.
+     */
+    byte[] encode(byte[] body) {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (OutputStream out = this == GZIP ? new GZIPOutputStream(buffer) : new DeflaterOutputStream(buffer)) {
+            out.write(body);
+        } catch (IOException e) {
+            // Not reachable for an in-memory buffer
+            throw new UncheckedIOException(e);
+        }
+        return buffer.toByteArray();
+    }
+
+    /**
+     * Wraps a response body stream so it is decoded while being read.
+     *
+     * @param in the body as received.
+     * @param contentEncoding the {@code Content-Encoding} of the response, may be null.
+     * @return a stream of the decoded body.
+     * @throws IOException if the coding is not supported or the gzip header is malformed.
+     */
+    static InputStream decoding(InputStream in, String contentEncoding) throws IOException {
+        if (contentEncoding == null) {
+            return in;
+        }
+        switch (contentEncoding.trim().toLowerCase(Locale.ROOT)) {
+        case "":
+        case "identity":
+            return in;
+        case "gzip":
+        case "x-gzip":
+            return new GZIPInputStream(in);
+        case "deflate":
+            return new InflaterInputStream(in);
+        default:
+            throw new IOException("Unsupported Content-Encoding in Avatica server response: " + contentEncoding);
+        }
+    }
+
+    /**
+     * Parses the {@code compression} connection property.
+     *
+     * @param value the property value, may be null.
+     * @return the selected coding, {@link #NONE} if the property is not set.
+     * @throws IllegalArgumentException if the value is not a supported coding.
+     */
+    static FrameCompression fromProperty(String value) {
+        if (value == null || value.isEmpty()) {
+            return NONE;
+        }
+        for (FrameCompression compression : values()) {
+            if (compression.propertyValue.equals(value.toLowerCase(Locale.ROOT))) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Invalid value for compression property. Expected 'none', 'gzip' or 'deflate', but got: "
+                + value);
+    }
+
+    /**
+     * Parses the {@code compressRequestsAbove} connection property.
+     *
+     * @param value the property value in bytes, may be null.
+     * @return the threshold, 0 if request compression is disabled.
+     * @throws IllegalArgumentException if the value is not a non-negative integer.
+     */
+    static int requestThresholdFromProperty(String value) {
+        if (value == null || value.isEmpty()) {
+            return 0;
+        }
+        try {
+            int threshold = Integer.parseInt(value.trim());
+            if (threshold >= 0) {
+                return threshold;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(
+                "Invalid value for compressRequestsAbove property. Expected a non-negative number of bytes, but got: " + value);
+    }
+
+    /**
+     * Counts the bytes read through it, used to record the on-the-wire size of a response that is decoded while being read.
+     */
+    static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+
+        long getCount() {
+            return count;
+        }
+    }
+}
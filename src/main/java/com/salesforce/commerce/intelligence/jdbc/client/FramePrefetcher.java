@@ -0,0 +1,322 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.apache.calcite.avatica.AvaticaStatement;
+import org.apache.calcite.avatica.remote.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Prefetch of result frames. When enabled with the {@code prefetch} connection property, the frame after the one a result set is iterating
+ * is requested as soon as the current one arrived, so that the application processes a frame while the next one is on the wire. The frame
+ * after the first one, which comes with the execute response, is requested as soon as that response arrived. Up to
+ * {@code prefetchDepth} (default 1) frames are fetched ahead of the application, as long as the frames waiting for it take less than
+ * {@code prefetchMaxBytes} (default 32 MiB).
+ * <p>
+ * The frames of a result set are still requested one after the other, the server never sees two fetches of a statement at once. Closing
+ * the result set drops its prefetched frames, and a statement that is executed again or closed first waits for the fetch in flight so that
+ * the server does not receive it after the new request.
+ */
+final class FramePrefetcher {
+
+    static final String PROPERTY = "prefetch";
+    static final String DEPTH_PROPERTY = "prefetchDepth";
+    static final String MAX_BYTES_PROPERTY = "prefetchMaxBytes";
+
+    private static final Logger LOG = LoggerFactory.getLogger(FramePrefetcher.class);
+
+    // Result sets of all connections with frames in flight or waiting, shared so that closing a result set can stop its prefetch
+    private static final Map<StatementKey, ResultPrefetch> RESULTS = new ConcurrentHashMap<>();
+
+    private final int depth;
+    private final long maxBytes;
+
+    FramePrefetcher(int depth, long maxBytes) {
+        this.depth = depth;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the prefetch settings, or null if prefetch is not enabled.
+     * @throws IllegalArgumentException if a setting is invalid.
+     */
+    static FramePrefetcher fromProperties(Properties properties) {
+        String enabled = properties.getProperty(PROPERTY);
+        if (enabled == null || enabled.isEmpty() || enabled.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (!enabled.equalsIgnoreCase("true")) {
+            throw new IllegalArgumentException("Invalid value for prefetch property. Expected 'true' or 'false', but got: " + enabled);
+        }
+        int depth;
+        long maxBytes;
+        try {
+            depth = Integer.parseInt(properties.getProperty(DEPTH_PROPERTY, "1"));
+            maxBytes = Long.parseLong(properties.getProperty(MAX_BYTES_PROPERTY, String.valueOf(32L << 20)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for prefetchDepth or prefetchMaxBytes property: " + e.getMessage(), e);
+        }
+        if (depth <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException(String.format(
+                            "Invalid prefetch settings: prefetchDepth=%d and prefetchMaxBytes=%d must be positive", depth, maxBytes));
+        }
+        return new FramePrefetcher(depth, maxBytes);
+    }
+
+    /**
+     * Answers a fetch of Avatica with the prefetched frame at its offset, or sends it and starts prefetching the frames after it.
+     *
+     * @param fetch the fetch request of Avatica.
+     * @param send sends a fetch request, returning the future of its serialized response.
+     * @return the future of the serialized response to the fetch.
+     */
+    CompletableFuture<byte[]> fetch(Service.FetchRequest fetch, Function<Service.FetchRequest, CompletableFuture<byte[]>> send) {
+        StatementKey key = new StatementKey(fetch.connectionId, fetch.statementId);
+        ResultPrefetch result = RESULTS.get(key);
+        CompletableFuture<byte[]> frame = result == null ? null : result.take(fetch.offset);
+        if (frame != null) {
+            return frame;
+        }
+        if (result != null) {
+            // Not the frame the prefetch expected, the statement moved on without the frames fetched for it
+            LOG.debug("Discarding the prefetched frames of statement {}, fetch of offset {} was not expected", key, fetch.offset);
+            discard(key);
+        }
+        result = new ResultPrefetch(key, fetch.fetchMaxRowCount, fetch.offset, send);
+        RESULTS.put(key, result);
+        return result.take(fetch.offset);
+    }
+
+    /**
+     * Starts prefetching the frames of a result set after the first one, as soon as the execute response carried that frame and before
+     * Avatica fetches the second one.
+     *
+     * @param key the executed statement.
+     * @param response the serialized execute response.
+     * @param send sends a fetch request, returning the future of its serialized response.
+     */
+    void executed(StatementKey key, byte[] response, Function<Service.FetchRequest, CompletableFuture<byte[]>> send) {
+        long scan = AdaptiveFetchSize.scanFirstFrame(response);
+        if (scan < 0 || (scan & 1) != 0) {
+            return;
+        }
+        long rows = scan >>> 1;
+        // Avatica fetches with the fetch size of the statement, which the size of the first frame follows
+        int fetchRows = rows == 0 ? AvaticaStatement.DEFAULT_FETCH_SIZE : (int) Math.min(rows, Integer.MAX_VALUE);
+        ResultPrefetch result = new ResultPrefetch(key, fetchRows, rows, send);
+        if (RESULTS.putIfAbsent(key, result) == null) {
+            result.prefetch();
+        }
+    }
+
+    /**
+     * Stops the prefetch of the statement's result set and drops its frames, without waiting for the fetch in flight.
+     */
+    static void cancel(String connectionId, int statementId) {
+        if (connectionId == null) {
+            return;
+        }
+        ResultPrefetch result = RESULTS.get(new StatementKey(connectionId, statementId));
+        if (result != null) {
+            result.cancel();
+        }
+    }
+
+    /**
+     * Stops the prefetch of the statement's result set and waits for its fetch in flight, before the statement is executed again or
+     * closed.
+     */
+    void discard(StatementKey key) {
+        ResultPrefetch result = RESULTS.remove(key);
+        if (result != null) {
+            result.cancel();
+            result.awaitInFlight();
+        }
+    }
+
+    /**
+     * Discards the prefetch of all result sets of a connection that is being closed.
+     */
+    void discardConnection(String connectionId) {
+        if (connectionId == null) {
+            return;
+        }
+        for (StatementKey key : RESULTS.keySet()) {
+            if (key.getConnectionId().equals(connectionId)) {
+                discard(key);
+            }
+        }
+    }
+
+    /**
+     * @return true if some result set of the connection has frames in flight or waiting.
+     */
+    static boolean isActive(String connectionId) {
+        if (connectionId == null || RESULTS.isEmpty()) {
+            return false;
+        }
+        return RESULTS.keySet().stream().anyMatch(key -> key.getConnectionId().equals(connectionId));
+    }
+
+    /**
+     * One frame of a result set, requested by the application or prefetched for it.
+     */
+    private static final class Frame {
+        private final long offset;
+        private final CompletableFuture<byte[]> response = new CompletableFuture<>();
+        // Guarded by the result prefetch
+        private boolean taken;
+        private int bufferedBytes;
+
+        Frame(long offset) {
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Frames of one result set. Only one of them is in flight at a time.
+     */
+    private final class ResultPrefetch {
+        private final StatementKey key;
+        private final int rows;
+        private final Function<Service.FetchRequest, CompletableFuture<byte[]>> send;
+        // Guarded by this, frames the application has not taken yet, in offset order
+        private final ArrayDeque<Frame> frames = new ArrayDeque<>();
+        private long nextOffset;
+        private long bufferedBytes;
+        private boolean inFlight;
+        private boolean finished;
+        private boolean cancelled;
+        private CompletableFuture<byte[]> inFlightRequest = CompletableFuture.completedFuture(null);
+
+        ResultPrefetch(StatementKey key, int rows, long offset, Function<Service.FetchRequest, CompletableFuture<byte[]>> send) {
+            this.key = key;
+            this.rows = rows;
+            this.nextOffset = offset;
+            this.send = send;
+        }
+
+        /**
+         * @return the frame at the offset, sent now if it is the next one and was not prefetched, or null if the offset is unexpected.
+         */
+        CompletableFuture<byte[]> take(long offset) {
+            Frame frame;
+            boolean requested;
+            synchronized (this) {
+                frame = frames.peekFirst();
+                if (frame != null && frame.offset == offset) {
+                    frames.pollFirst();
+                    bufferedBytes -= frame.bufferedBytes;
+                    requested = true;
+                    if (finished && frames.isEmpty() && !inFlight) {
+                        RESULTS.remove(key, this);
+                    }
+                } else if (frame == null && !inFlight && !finished && nextOffset == offset) {
+                    frame = new Frame(offset);
+                    inFlight = true;
+                    requested = false;
+                } else {
+                    return null;
+                }
+                frame.taken = true;
+            }
+            if (requested) {
+                prefetch();
+            } else {
+                send(frame);
+            }
+            return frame.response;
+        }
+
+        /**
+         * Requests the next frame unless one is in flight, the result set is complete, or enough frames are waiting.
+         */
+        private void prefetch() {
+            Frame frame;
+            synchronized (this) {
+                if (inFlight || finished || frames.size() >= depth || bufferedBytes >= maxBytes) {
+                    return;
+                }
+                frame = new Frame(nextOffset);
+                frames.addLast(frame);
+                inFlight = true;
+            }
+            send(frame);
+        }
+
+        private void send(Frame frame) {
+            CompletableFuture<byte[]> request;
+            try {
+                request = send.apply(new Service.FetchRequest(key.getConnectionId(), key.getStatementId(), frame.offset, rows));
+            } catch (RuntimeException e) {
+                request = CompletableFuture.failedFuture(e);
+            }
+            synchronized (this) {
+                inFlightRequest = request;
+            }
+            request.whenComplete((response, error) -> received(frame, response, error));
+        }
+
+        private void received(Frame frame, byte[] response, Throwable error) {
+            synchronized (this) {
+                inFlight = false;
+                if (error != null) {
+                    // The failure reaches the application with this frame, nothing more is prefetched
+                    finished = true;
+                } else {
+                    long scan = AdaptiveFetchSize.scanFrame(response);
+                    if (scan < 0 || (scan & 1) != 0) {
+                        finished = true;
+                    } else {
+                        nextOffset = frame.offset + (scan >>> 1);
+                    }
+                    if (!frame.taken && !cancelled) {
+                        frame.bufferedBytes = response.length;
+                        bufferedBytes += response.length;
+                    }
+                }
+                if (cancelled || (finished && frames.isEmpty())) {
+                    RESULTS.remove(key, this);
+                }
+            }
+            if (error != null) {
+                frame.response.completeExceptionally(error);
+            } else {
+                frame.response.complete(response);
+                prefetch();
+            }
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            finished = true;
+            frames.clear();
+            bufferedBytes = 0;
+            if (!inFlight) {
+                RESULTS.remove(key, this);
+            }
+        }
+
+        void awaitInFlight() {
+            CompletableFuture<byte[]> request;
+            synchronized (this) {
+                if (!inFlight) {
+                    return;
+                }
+                request = inFlightRequest;
+            }
+            try {
+                request.join();
+            } catch (RuntimeException e) {
+                // A failed fetch cannot reach the server after the next request of the statement either
+            }
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.Locale;
+
+/**
+ * HTTP transport used by {@link CIPAvaticaHttpClient} to reach the Avatica server, selected with the {@code transport} connection property.
+ */
+enum HttpTransport {
+    /**
+     * Classic blocking HTTP/1.1 client on the connection pool handed over by Avatica. This is the default.
+     */
+    HTTP1("http1"),
+
+    /**
+     * HTTP/2 negotiated via ALPN on a client shared by every connection to the same server, so concurrent requests are multiplexed over a
+     * small number of sockets. Servers that do not offer h2, and plain http endpoints, fall back to HTTP/1.1.
+     */
+    H2("h2"),
+
+    /**
+     * HTTP/1.1 on a non-blocking client shared by every connection to the same server. Waiting for a response does not hold a thread, which
+     * suits many concurrent long running queries issued through {@link CIPAvaticaHttpClient#sendAsync(byte[])}.
+     */
+    ASYNC("async");
+
+    static final String PROPERTY = "transport";
+
+    private final String propertyValue;
+
+    HttpTransport(String propertyValue) {
+        this.propertyValue = propertyValue;
+    }
+
+    /**
+     * Parses the {@code transport} connection property.
+     *
+     * @param value the property value, may be null.
+     * @return the selected transport, {@link #HTTP1} if the property is not set.
+     * @throws IllegalArgumentException if the value is not a supported transport.
+     */
+    static HttpTransport fromProperty(String value) {
+        if (value == null || value.isEmpty()) {
+            return HTTP1;
+        }
+        for (HttpTransport transport : values()) {
+            if (transport.propertyValue.equals(value.toLowerCase(Locale.ROOT))) {
+                return transport;
+            }
+        }
+        throw new IllegalArgumentException("Invalid value for transport property. Expected 'http1', 'h2' or 'async', but got: " + value);
+    }
+}
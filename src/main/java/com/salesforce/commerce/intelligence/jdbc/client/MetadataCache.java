@@ -0,0 +1,358 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of {@code DatabaseMetaData} lookups shared by all connections of the process. When enabled with the {@code metadataCache}
+ * connection property, the responses to catalog, schema, table, column, table type, type info and database property requests are kept for
+ * {@code metadataCacheTtlMs} (default 300000), keyed by instance id, client id and the arguments of the request. Connections that ask for
+ * metadata that is being loaded wait for that load instead of sending the same request, so a cold cache costs one request per lookup.
+ * <p>
+ * Result sets answered from the cache get a statement id of their own below zero, which the server never uses, and their statements are
+ * closed without a request. {@code CREATE}, {@code DROP} and {@code ALTER} statements drop the cached metadata of their instance, and
+ * {@link CIPDriver#invalidateMetadataCache(String)} drops it on demand.
+ */
+final class MetadataCache {
+
+    static final String PROPERTY = "metadataCache";
+    static final String TTL_PROPERTY = "metadataCacheTtlMs";
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetadataCache.class);
+
+    private static final int MAX_ENTRIES = 1024;
+    private static final List<String> SCHEMA_KEYWORDS = List.of("CREATE", "DROP", "ALTER");
+
+    private static final Store SHARED = new Store(System::nanoTime);
+
+    // Statements of result sets answered from the cache, their ids count down from -1
+    private static final AtomicInteger LOCAL_STATEMENT_IDS = new AtomicInteger();
+    private static final Set<StatementKey> LOCAL_STATEMENTS = ConcurrentHashMap.newKeySet();
+
+    private static final ProtobufTranslation TRANSLATION = new ProtobufTranslationImpl();
+
+    private final long ttlNanos;
+    private final Store store;
+
+    MetadataCache(long ttlMs, Store store) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.store = store;
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the metadata cache, or null if it is not enabled.
+     * @throws IllegalArgumentException if a setting is invalid.
+     */
+    static MetadataCache fromProperties(Properties properties) {
+        String enabled = properties.getProperty(PROPERTY);
+        if (enabled == null || enabled.isEmpty() || enabled.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (!enabled.equalsIgnoreCase("true")) {
+            throw new IllegalArgumentException("Invalid value for metadataCache property. Expected 'true' or 'false', but got: " + enabled);
+        }
+        long ttlMs;
+        try {
+            ttlMs = Long.parseLong(properties.getProperty(TTL_PROPERTY, "300000"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for metadataCacheTtlMs property: " + e.getMessage(), e);
+        }
+        if (ttlMs <= 0) {
+            throw new IllegalArgumentException("Invalid metadata cache settings: metadataCacheTtlMs=" + ttlMs + " must be positive");
+        }
+        return new MetadataCache(ttlMs, SHARED);
+    }
+
+    /**
+     * Drops the cached metadata of an instance, or of all instances if it is null.
+     */
+    static void invalidate(String instanceId) {
+        SHARED.invalidate(instanceId);
+    }
+
+    /**
+     * @return the counters of the cache, shared by all connections.
+     */
+    MetadataCacheStats getStats() {
+        return store.stats;
+    }
+
+    /**
+     * Answers a metadata request from the cache, from the load of the same request by another connection, or by loading it.
+     *
+     * @param instanceId the instance the request is sent for, invalidation applies per instance.
+     * @param clientId the client the request is sent for, clients with different permissions may see different metadata.
+     * @param request the parsed request.
+     * @param load sends the request to the server.
+     * @return the future of the serialized response, or null if the request is not a metadata request.
+     */
+    CompletableFuture<byte[]> get(String instanceId, String clientId, Service.Request request, Supplier<CompletableFuture<byte[]>> load) {
+        List<Object> arguments = argumentsOf(request);
+        if (arguments == null) {
+            return null;
+        }
+        Key key = new Key(instanceId, clientId, arguments);
+        Service.Response cached = store.get(key);
+        if (cached != null) {
+            store.stats.recordHit();
+            return CompletableFuture.completedFuture(answer(cached, request));
+        }
+        CompletableFuture<Service.Response> flight = new CompletableFuture<>();
+        CompletableFuture<Service.Response> running = store.loading.putIfAbsent(key, flight);
+        if (running != null) {
+            store.stats.recordCoalesced();
+            // A failed load is not shared, the failure may be specific to the other connection
+            return running.handle((response, error) -> error == null ? CompletableFuture.completedFuture(answer(response, request)) : load.get())
+                            .thenCompose(future -> future);
+        }
+        store.stats.recordLoad();
+        long generation = store.generation.get();
+        CompletableFuture<byte[]> response;
+        try {
+            response = load.get();
+        } catch (RuntimeException e) {
+            store.loading.remove(key, flight);
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        return response.whenComplete((body, error) -> {
+            Service.Response parsed = error == null ? parse(body) : null;
+            if (parsed != null) {
+                // Cached before the load is dropped, so that no request in between loads it again
+                store.put(key, parsed, ttlNanos, generation);
+            }
+            store.loading.remove(key, flight);
+            if (parsed != null) {
+                flight.complete(parsed);
+            } else {
+                flight.completeExceptionally(error != null ? error
+                                : new IllegalStateException("Response to " + request.getClass().getSimpleName() + " is not cacheable"));
+            }
+        });
+    }
+
+    /**
+     * Drops the cached metadata of the instance if the statement changes its schema.
+     */
+    void observeStatement(String instanceId, String sql) {
+        if (sql != null && SCHEMA_KEYWORDS.contains(ResultCache.firstKeyword(sql))) {
+            LOG.debug("Dropping the cached metadata of instance {} after a schema change", instanceId);
+            store.invalidate(instanceId);
+        }
+    }
+
+    /**
+     * @return true if the connection has statements of result sets answered from the cache.
+     */
+    static boolean hasLocalStatements(String connectionId) {
+        if (connectionId == null || LOCAL_STATEMENTS.isEmpty()) {
+            return false;
+        }
+        return LOCAL_STATEMENTS.stream().anyMatch(key -> key.getConnectionId().equals(connectionId));
+    }
+
+    /**
+     * @return the serialized response to closing a statement of a result set answered from the cache, or null if it is a statement of the
+     *         server.
+     */
+    static byte[] closeLocalStatement(Service.CloseStatementRequest close) {
+        if (!LOCAL_STATEMENTS.remove(new StatementKey(close.connectionId, close.statementId))) {
+            return null;
+        }
+        return serialize(new Service.CloseStatementResponse(null));
+    }
+
+    /**
+     * Drops the statements answered from the cache of a connection that is being closed.
+     */
+    static void forgetConnection(String connectionId) {
+        if (connectionId != null) {
+            LOCAL_STATEMENTS.removeIf(key -> key.getConnectionId().equals(connectionId));
+        }
+    }
+
+    /**
+     * @return the cached response for the connection of the request, with a statement of its own for a result set.
+     */
+    private static byte[] answer(Service.Response cached, Service.Request request) {
+        if (!(cached instanceof Service.ResultSetResponse)) {
+            return serialize(cached);
+        }
+        Service.ResultSetResponse result = (Service.ResultSetResponse) cached;
+        String connectionId = RequestKind.of(request).connectionId(request);
+        int statementId = LOCAL_STATEMENT_IDS.updateAndGet(id -> id == Integer.MIN_VALUE ? -1 : id - 1);
+        LOCAL_STATEMENTS.add(new StatementKey(connectionId, statementId));
+        return serialize(new Service.ResultSetResponse(connectionId, statementId, result.ownStatement, result.signature, result.firstFrame,
+                        result.updateCount, result.rpcMetadata));
+    }
+
+    private static byte[] serialize(Service.Response response) {
+        try {
+            return TRANSLATION.serializeResponse(response);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serialize a cached metadata response", e);
+        }
+    }
+
+    /**
+     * @return the response if it can be answered to other connections, i.e. a database property map or a complete result set.
+     */
+    private static Service.Response parse(byte[] body) {
+        Service.Response response;
+        try {
+            response = TRANSLATION.parseResponse(body);
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        if (response instanceof Service.DatabasePropertyResponse) {
+            return response;
+        }
+        if (response instanceof Service.ResultSetResponse) {
+            Service.ResultSetResponse result = (Service.ResultSetResponse) response;
+            return result.firstFrame != null && result.firstFrame.done ? result : null;
+        }
+        return null;
+    }
+
+    /**
+     * @return the kind and arguments of a metadata request, or null for other requests.
+     */
+    static List<Object> argumentsOf(Service.Request request) {
+        RequestKind kind = RequestKind.of(request);
+        if (!kind.isMetadata()) {
+            return null;
+        }
+        switch (kind) {
+            case CATALOGS:
+            case TABLE_TYPES:
+            case TYPE_INFO:
+            case DATABASE_PROPERTY:
+                return List.of(kind);
+            case SCHEMAS:
+                Service.SchemasRequest schemas = (Service.SchemasRequest) request;
+                return Arrays.asList(kind, schemas.catalog, schemas.schemaPattern);
+            case TABLES:
+                Service.TablesRequest tables = (Service.TablesRequest) request;
+                return Arrays.asList(kind, tables.catalog, tables.schemaPattern, tables.tableNamePattern, tables.typeList);
+            case COLUMNS:
+                Service.ColumnsRequest columns = (Service.ColumnsRequest) request;
+                return Arrays.asList(kind, columns.catalog, columns.schemaPattern, columns.tableNamePattern, columns.columnNamePattern);
+            default:
+                throw new IllegalStateException("No cache key for " + kind);
+        }
+    }
+
+    /**
+     * Identity of a cached metadata response.
+     */
+    static final class Key {
+        private final String instanceId;
+        private final String clientId;
+        private final List<Object> arguments;
+
+        Key(String instanceId, String clientId, List<Object> arguments) {
+            this.instanceId = instanceId;
+            this.clientId = clientId;
+            this.arguments = arguments;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return Objects.equals(instanceId, that.instanceId) && Objects.equals(clientId, that.clientId) && arguments.equals(that.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(instanceId, clientId, arguments);
+        }
+    }
+
+    /**
+     * Cached responses in least recently used order, and the loads in flight.
+     */
+    static final class Store {
+        private final LongSupplier nanoTime;
+        private final MetadataCacheStats stats = new MetadataCacheStats();
+        private final Map<Key, CompletableFuture<Service.Response>> loading = new ConcurrentHashMap<>();
+        // Incremented by every invalidation, a load that started before one is not cached
+        private final AtomicLong generation = new AtomicLong();
+        // Guarded by this
+        private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+        Store(LongSupplier nanoTime) {
+            this.nanoTime = nanoTime;
+        }
+
+        synchronized Service.Response get(Key key) {
+            Entry entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (nanoTime.getAsLong() - entry.expiresAtNanos >= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.response;
+        }
+
+        synchronized void put(Key key, Service.Response response, long ttlNanos, long loadGeneration) {
+            if (generation.get() != loadGeneration) {
+                return;
+            }
+            entries.put(key, new Entry(response, nanoTime.getAsLong() + ttlNanos));
+            Iterator<Key> eldest = entries.keySet().iterator();
+            while (entries.size() > MAX_ENTRIES && eldest.hasNext()) {
+                eldest.next();
+                eldest.remove();
+            }
+        }
+
+        synchronized void invalidate(String instanceId) {
+            generation.incrementAndGet();
+            entries.keySet().removeIf(key -> instanceId == null || instanceId.equals(key.instanceId));
+            stats.recordInvalidation();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static final class Entry {
+        private final Service.Response response;
+        private final long expiresAtNanos;
+
+        Entry(Service.Response response, long expiresAtNanos) {
+            this.response = response;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the {@code DatabaseMetaData} cache, shared by all connections of the process that enable it with the {@code metadataCache}
+ * property.
+ */
+public final class MetadataCacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordLoad() {
+        loads.increment();
+    }
+
+    void recordCoalesced() {
+        coalesced.increment();
+    }
+
+    void recordInvalidation() {
+        invalidations.increment();
+    }
+
+    /**
+     * @return the number of metadata requests answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of metadata requests sent to the server to fill the cache.
+     */
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    /**
+     * @return the number of metadata requests that waited for the same request of another connection instead of being sent.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * @return the number of times cached metadata was dropped, explicitly or because a statement changed the schema.
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "MetadataCacheStats{hits=" + getHits() + ", loads=" + getLoads() + ", coalesced=" + getCoalesced() + ", invalidations="
+                + getInvalidations() + '}';
+    }
+}
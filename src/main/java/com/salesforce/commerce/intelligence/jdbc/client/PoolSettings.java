@@ -0,0 +1,150 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.ConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.config.ConnectionConfig;
+import org.apache.hc.client5.http.impl.DefaultConnectionKeepAliveStrategy;
+import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
+import org.apache.hc.core5.util.TimeValue;
+
+/**
+ * Connection pool settings of a connection, read from the connection properties:
+ * <ul>
+ * <li>{@code poolMaxTotal}: maximum number of pooled connections</li>
+ * <li>{@code poolMaxPerRoute}: maximum number of pooled connections to the Avatica server</li>
+ * <li>{@code connectionTtlMs}: time after which a pooled connection is closed instead of being reused</li>
+ * <li>{@code validateAfterInactivityMs}: idle time after which a pooled connection is checked before it is reused</li>
+ * <li>{@code keepAliveMs}: maximum time an idle connection is kept for reuse, shorter if the server asks for it</li>
+ * <li>{@code prewarmConnections}: number of connections opened while connecting</li>
+ * </ul>
+ * Settings that are not given keep the defaults of the pool.
+ */
+final class PoolSettings {
+
+    static final String MAX_TOTAL_PROPERTY = "poolMaxTotal";
+    static final String MAX_PER_ROUTE_PROPERTY = "poolMaxPerRoute";
+    static final String TTL_PROPERTY = "connectionTtlMs";
+    static final String VALIDATE_AFTER_INACTIVITY_PROPERTY = "validateAfterInactivityMs";
+    static final String KEEP_ALIVE_PROPERTY = "keepAliveMs";
+    static final String PREWARM_PROPERTY = "prewarmConnections";
+
+    // Keep-alive used for pre-warmed connections when keepAliveMs is not set, the default of the HTTP client
+    static final TimeValue DEFAULT_KEEP_ALIVE = TimeValue.ofMinutes(3);
+
+    private final long maxTotal;
+    private final long maxPerRoute;
+    private final long ttlMs;
+    private final long validateAfterInactivityMs;
+    private final long keepAliveMs;
+    private final int prewarmConnections;
+
+    private PoolSettings(Properties properties) {
+        this.maxTotal = parse(properties, MAX_TOTAL_PROPERTY, 1);
+        this.maxPerRoute = parse(properties, MAX_PER_ROUTE_PROPERTY, 1);
+        this.ttlMs = parse(properties, TTL_PROPERTY, 0);
+        this.validateAfterInactivityMs = parse(properties, VALIDATE_AFTER_INACTIVITY_PROPERTY, 0);
+        this.keepAliveMs = parse(properties, KEEP_ALIVE_PROPERTY, 0);
+        this.prewarmConnections = (int) Math.min(Integer.MAX_VALUE, Math.max(0, parse(properties, PREWARM_PROPERTY, 0)));
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the pool settings of the connection.
+     * @throws IllegalArgumentException if a setting is not a number or below its minimum.
+     */
+    static PoolSettings fromProperties(Properties properties) {
+        return new PoolSettings(properties);
+    }
+
+    /**
+     * @return the value of the property, or -1 if it is not set.
+     */
+    private static long parse(Properties properties, String name, long minimum) {
+        String value = properties.getProperty(name);
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        try {
+            long parsed = Long.parseLong(value.trim());
+            if (parsed >= minimum) {
+                return parsed;
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(String.format("Invalid value for %s property. Expected a number of at least %d, but got: %s",
+                name, minimum, value));
+    }
+
+    /**
+     * Applies the limits and connection settings to the classic pool handed over by Avatica. Avatica shares that pool between all
+     * connections to the same URL, so the settings of the last connection created win.
+     */
+    void applyTo(PoolingHttpClientConnectionManager pool, long connectTimeoutMs) {
+        if (maxTotal > 0) {
+            pool.setMaxTotal((int) Math.min(Integer.MAX_VALUE, maxTotal));
+        }
+        if (maxPerRoute > 0) {
+            pool.setDefaultMaxPerRoute((int) Math.min(Integer.MAX_VALUE, maxPerRoute));
+        }
+        if (ttlMs >= 0 || validateAfterInactivityMs >= 0) {
+            pool.setDefaultConnectionConfig(connectionConfig(connectTimeoutMs));
+        }
+    }
+
+    /**
+     * @return the connection settings of the pool, including the connect timeout.
+     */
+    ConnectionConfig connectionConfig(long connectTimeoutMs) {
+        ConnectionConfig.Builder builder = ConnectionConfig.custom().setConnectTimeout(connectTimeoutMs, TimeUnit.MILLISECONDS);
+        if (ttlMs >= 0) {
+            builder.setTimeToLive(ttlMs, TimeUnit.MILLISECONDS);
+        }
+        if (validateAfterInactivityMs >= 0) {
+            builder.setValidateAfterInactivity(validateAfterInactivityMs, TimeUnit.MILLISECONDS);
+        }
+        return builder.build();
+    }
+
+    /**
+     * @return a strategy keeping idle connections for at most {@code keepAliveMs}, or null to keep the client default.
+     */
+    ConnectionKeepAliveStrategy keepAliveStrategy() {
+        if (keepAliveMs < 0) {
+            return null;
+        }
+        TimeValue limit = TimeValue.ofMilliseconds(keepAliveMs);
+        return (response, context) -> {
+            TimeValue requested = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return requested == null ? limit : requested.min(limit);
+        };
+    }
+
+    /**
+     * @return the keep-alive of connections that have not carried a response yet.
+     */
+    TimeValue initialKeepAlive() {
+        return keepAliveMs < 0 ? DEFAULT_KEEP_ALIVE : TimeValue.ofMilliseconds(keepAliveMs);
+    }
+
+    int maxTotal(int defaultValue) {
+        return maxTotal > 0 ? (int) Math.min(Integer.MAX_VALUE, maxTotal) : defaultValue;
+    }
+
+    int maxPerRoute(int defaultValue) {
+        return maxPerRoute > 0 ? (int) Math.min(Integer.MAX_VALUE, maxPerRoute) : defaultValue;
+    }
+
+    int getPrewarmConnections() {
+        return prewarmConnections;
+    }
+
+    /**
+     * @return a key that differs for settings that need a different shared client.
+     */
+    String key() {
+        return maxTotal + "|" + maxPerRoute + "|" + ttlMs + "|" + validateAfterInactivityMs + "|" + keepAliveMs;
+    }
+}
@@ -0,0 +1,124 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.Service;
+
+/**
+ * Per-send view of a serialized Avatica request. The request kind and connection id are determined once when the envelope is built and are
+ * reused by every retry attempt, by header computation and by response handling.
+ * <p>
+ * Envelopes built from a {@link WireRequestScanner} result do not hold a parsed request; it is only deserialized on first use of
+ * {@link #getRequest()}, so the common send path never materializes the request parameters.
+ * <p>
+ * An envelope is shared by the threads of hedged copies, prefetch tasks and blocking sends, so the state set after it was built is
+ * volatile. Two threads parsing or encoding the request at the same time store equal values.
+ */
+final class RequestEnvelope {
+
+    private final byte[] body;
+    private final RequestKind kind;
+    private final String connectionId;
+    private final ProtobufTranslation translation;
+    private volatile Service.Request request;
+    private volatile byte[] encodedBody;
+    private final AtomicBoolean tokenRenewed = new AtomicBoolean();
+    private volatile boolean fetchSizeTuned;
+    private volatile long attemptStartNanos;
+
+    RequestEnvelope(byte[] body, Service.Request request, String connectionId) {
+        this.body = body;
+        this.request = request;
+        this.kind = RequestKind.of(request);
+        this.connectionId = connectionId;
+        this.translation = null;
+    }
+
+    RequestEnvelope(byte[] body, RequestKind kind, String connectionId, ProtobufTranslation translation) {
+        this.body = body;
+        this.kind = kind;
+        this.connectionId = connectionId;
+        this.translation = translation;
+    }
+
+    /**
+     * @return the serialized request exactly as handed over by Avatica.
+     */
+    byte[] getBody() {
+        return body;
+    }
+
+    /**
+     * @return the content coded body, or null if it has not been encoded yet.
+     */
+    byte[] getEncodedBody() {
+        return encodedBody;
+    }
+
+    /**
+     * Keeps the content coded body so that retry attempts do not compress the request again.
+     */
+    void setEncodedBody(byte[] encodedBody) {
+        this.encodedBody = encodedBody;
+    }
+
+    /**
+     * @return the parsed request, deserialized on first access if the envelope was built from a wire scan.
+     */
+    Service.Request getRequest() {
+        Service.Request parsed = request;
+        if (parsed == null && translation != null) {
+            try {
+                parsed = translation.parseRequest(body);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            request = parsed;
+        }
+        return parsed;
+    }
+
+    /**
+     * Claims the single token renewal a request may trigger when the server rejects its token, shared by all attempts and hedged copies.
+     *
+     * @return true for the first call only.
+     */
+    boolean tryClaimTokenRenewal() {
+        return tokenRenewed.compareAndSet(false, true);
+    }
+
+    /**
+     * Marks a fetch whose row count was set by the {@link AdaptiveFetchSize} of the connection.
+     */
+    void setFetchSizeTuned() {
+        this.fetchSizeTuned = true;
+    }
+
+    boolean isFetchSizeTuned() {
+        return fetchSizeTuned;
+    }
+
+    /**
+     * Records the time the current attempt was sent, the latest copy wins for hedged requests.
+     */
+    void markAttemptStart(long nanos) {
+        this.attemptStartNanos = nanos;
+    }
+
+    long getAttemptStartNanos() {
+        return attemptStartNanos;
+    }
+
+    RequestKind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return the connection id the request belongs to, or null if it could not be determined.
+     */
+    String getConnectionId() {
+        return connectionId;
+    }
+}
@@ -0,0 +1,123 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedging settings of a connection and the latency history they are based on. When hedging is enabled with the {@code hedging}
+ * connection property, an idempotent request (see {@link RequestKind#isIdempotent()}) that has not been answered after the
+ * {@code hedgePercentile} (default 95) of the recent latencies of its request kind is sent a second time, and the first response wins.
+ * The delay is never shorter than {@code hedgeDelayMs} (default 100), which is also used until enough latencies have been observed.
+ */
+final class RequestHedging {
+
+    static final String PROPERTY = "hedging";
+    static final String PERCENTILE_PROPERTY = "hedgePercentile";
+    static final String DELAY_PROPERTY = "hedgeDelayMs";
+
+    // Latencies kept per request kind, and the number needed before the percentile is trusted
+    static final int WINDOW_SIZE = 256;
+    static final int MIN_SAMPLES = 20;
+
+    private final double percentile;
+    private final long minDelayMs;
+    private final Map<RequestKind, LatencyWindow> latencies = new EnumMap<>(RequestKind.class);
+
+    RequestHedging(double percentile, long minDelayMs) {
+        this.percentile = percentile;
+        this.minDelayMs = minDelayMs;
+        for (RequestKind kind : RequestKind.values()) {
+            if (kind.isIdempotent()) {
+                latencies.put(kind, new LatencyWindow());
+            }
+        }
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the hedging settings, or null if hedging is not enabled.
+     * @throws IllegalArgumentException if a setting is invalid.
+     */
+    static RequestHedging fromProperties(Properties properties) {
+        String enabled = properties.getProperty(PROPERTY);
+        if (enabled == null || enabled.isEmpty() || enabled.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (!enabled.equalsIgnoreCase("true")) {
+            throw new IllegalArgumentException("Invalid value for hedging property. Expected 'true' or 'false', but got: " + enabled);
+        }
+        double percentile;
+        long minDelayMs;
+        try {
+            percentile = Double.parseDouble(properties.getProperty(PERCENTILE_PROPERTY, "95"));
+            minDelayMs = Long.parseLong(properties.getProperty(DELAY_PROPERTY, "100"));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for hedgePercentile or hedgeDelayMs property: " + e.getMessage(), e);
+        }
+        if (percentile <= 0 || percentile >= 100 || minDelayMs < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid hedging settings: hedgePercentile=%s must be between 0 and 100 and hedgeDelayMs=%d must not be negative", percentile,
+                    minDelayMs));
+        }
+        return new RequestHedging(percentile, minDelayMs);
+    }
+
+    /**
+     * @return true if requests of the kind are hedged.
+     */
+    boolean appliesTo(RequestKind kind) {
+        return latencies.containsKey(kind);
+    }
+
+    /**
+     * @return the time to wait for the first response before sending the hedged copy of a request of the kind.
+     */
+    long delayMillis(RequestKind kind) {
+        long percentileNanos = latencies.get(kind).percentile(percentile);
+        return Math.max(minDelayMs, TimeUnit.NANOSECONDS.toMillis(percentileNanos));
+    }
+
+    /**
+     * Records the latency of a successful request of the kind.
+     */
+    void record(RequestKind kind, long latencyNanos) {
+        LatencyWindow window = latencies.get(kind);
+        if (window != null) {
+            window.record(latencyNanos);
+        }
+    }
+
+    /**
+     * Ring buffer of the most recent latencies of one request kind.
+     */
+    private static final class LatencyWindow {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int next;
+        private int count;
+
+        synchronized void record(long latencyNanos) {
+            samples[next] = latencyNanos;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        /**
+         * @return the latency at the percentile, or 0 if there are too few samples.
+         */
+        long percentile(double percentile) {
+            long[] sorted;
+            synchronized (this) {
+                if (count < MIN_SAMPLES) {
+                    return 0;
+                }
+                sorted = Arrays.copyOf(samples, count);
+            }
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.apache.calcite.avatica.remote.Service;
+
+/**
+ * Classification of the Avatica {@link Service.Request} subtypes sent through {@link CIPAvaticaHttpClient}. The kind is resolved once per
+ * request and drives per-request decisions such as the {@code x-Request-Type} header, without repeated {@code instanceof} chains.
+ * <p>
+ * Each kind also carries a typed accessor for the connection id of its request class, so the kinds form a precomputed extractor table
+ * covering every request type of Avatica 1.25 without any reflective field lookup.
+ */
+enum RequestKind {
+    CATALOGS(Service.CatalogsRequest.class, false, r -> r.connectionId),
+    SCHEMAS(Service.SchemasRequest.class, false, r -> r.connectionId),
+    TABLES(Service.TablesRequest.class, false, r -> r.connectionId),
+    TABLE_TYPES(Service.TableTypesRequest.class, false, r -> r.connectionId),
+    TYPE_INFO(Service.TypeInfoRequest.class, false, r -> r.connectionId),
+    COLUMNS(Service.ColumnsRequest.class, false, r -> r.connectionId),
+    DATABASE_PROPERTY(Service.DatabasePropertyRequest.class, false, r -> r.connectionId),
+    OPEN_CONNECTION(Service.OpenConnectionRequest.class, false, r -> r.connectionId),
+    CLOSE_CONNECTION(Service.CloseConnectionRequest.class, false, r -> r.connectionId),
+    CONNECTION_SYNC(Service.ConnectionSyncRequest.class, false, r -> r.connectionId),
+    CREATE_STATEMENT(Service.CreateStatementRequest.class, false, r -> r.connectionId),
+    CLOSE_STATEMENT(Service.CloseStatementRequest.class, false, r -> r.connectionId),
+    PREPARE(Service.PrepareRequest.class, false, r -> r.connectionId),
+    PREPARE_AND_EXECUTE(Service.PrepareAndExecuteRequest.class, true, r -> r.connectionId),
+    EXECUTE(Service.ExecuteRequest.class, true, r -> r.statementHandle == null ? null : r.statementHandle.connectionId),
+    PREPARE_AND_EXECUTE_BATCH(Service.PrepareAndExecuteBatchRequest.class, true, r -> r.connectionId),
+    EXECUTE_BATCH(Service.ExecuteBatchRequest.class, true, r -> r.connectionId),
+    FETCH(Service.FetchRequest.class, false, r -> r.connectionId),
+    SYNC_RESULTS(Service.SyncResultsRequest.class, false, r -> r.connectionId),
+    COMMIT(Service.CommitRequest.class, false, r -> r.connectionId),
+    ROLLBACK(Service.RollbackRequest.class, false, r -> r.connectionId),
+    UNKNOWN(null, false, r -> null);
+
+    private static final Map<Class<?>, RequestKind> BY_CLASS = new HashMap<>();
+    private static final Map<String, RequestKind> BY_SIMPLE_NAME = new HashMap<>();
+
+    static {
+        for (RequestKind kind : values()) {
+            if (kind.requestClass != null) {
+                BY_CLASS.put(kind.requestClass, kind);
+                BY_SIMPLE_NAME.put(kind.requestClass.getSimpleName(), kind);
+            }
+        }
+    }
+
+    private final Class<? extends Service.Request> requestClass;
+    private final boolean queryExecute;
+    private final Function<Service.Request, String> connectionIdExtractor;
+
+    <T extends Service.Request> RequestKind(Class<T> requestClass, boolean queryExecute, Function<T, String> connectionIdExtractor) {
+        this.requestClass = requestClass;
+        this.queryExecute = queryExecute;
+        // The cast is safe because a kind is only ever resolved from the exact request class it was declared with
+        @SuppressWarnings("unchecked")
+        Function<Service.Request, String> extractor = (Function<Service.Request, String>) connectionIdExtractor;
+        this.connectionIdExtractor = extractor;
+    }
+
+    /**
+     * @return true if the request executes a query and must be tagged with the {@code query-execute} request type header.
+     */
+    boolean isQueryExecute() {
+        return queryExecute;
+    }
+
+    /**
+     * @return true if the request carries a batch of parameter sets or statements, the only requests large enough to be worth compressing.
+     */
+    boolean isBatch() {
+        return this == PREPARE_AND_EXECUTE_BATCH || this == EXECUTE_BATCH;
+    }
+
+    /**
+     * @return true if the request looks up {@code DatabaseMetaData}, whose response only depends on the arguments of the request.
+     */
+    boolean isMetadata() {
+        switch (this) {
+        case CATALOGS:
+        case SCHEMAS:
+        case TABLES:
+        case TABLE_TYPES:
+        case TYPE_INFO:
+        case COLUMNS:
+        case DATABASE_PROPERTY:
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     * @return true if the server opens a statement for the metadata lookup and answers with its result set. The client has to close the
+     *         statement of every such response, including one that nobody reads.
+     */
+    boolean opensStatement() {
+        return isMetadata() && this != DATABASE_PROPERTY;
+    }
+
+    /**
+     * @return true if sending the request twice has the same effect as sending it once. Only metadata lookups qualify; anything that
+     *         executes a statement or changes connection or statement state does not. A fetch moves the cursor of its result set on the
+     *         server, so a second copy would read the same result set concurrently. Lookups that open a statement are only idempotent
+     *         once the statement of the second response is closed, see {@link #opensStatement()}.
+     */
+    boolean isIdempotent() {
+        return isMetadata();
+    }
+
+    /**
+     * Reads the connection id of a request of this kind through its typed accessor.
+     *
+     * @param request a request whose kind is this kind.
+     * @return the connection id, or null if the request carries none.
+     */
+    String connectionId(Service.Request request) {
+        return connectionIdExtractor.apply(request);
+    }
+
+    /**
+     * Resolves the kind of the given request by its exact class.
+     *
+     * @param request the parsed Avatica request, may be null.
+     * @return the matching kind, or {@link #UNKNOWN} for null or unrecognized request types.
+     */
+    static RequestKind of(Service.Request request) {
+        if (request == null) {
+            return UNKNOWN;
+        }
+        return BY_CLASS.getOrDefault(request.getClass(), UNKNOWN);
+    }
+
+    /**
+     * Resolves a kind from the simple name shared by the Avatica request class and its protobuf message, e.g. {@code FetchRequest}.
+     *
+     * @param simpleName the simple class or message name.
+     * @return the matching kind, or {@link #UNKNOWN} if there is none.
+     */
+    static RequestKind forSimpleName(String simpleName) {
+        return BY_SIMPLE_NAME.getOrDefault(simpleName, UNKNOWN);
+    }
+}
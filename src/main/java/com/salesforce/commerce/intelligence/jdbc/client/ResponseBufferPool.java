@@ -0,0 +1,162 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded, thread-safe pool of heap buffers used by {@link CIPAvaticaHttpClient} to read response bodies whose size is not known up front,
+ * i.e. chunked or content coded frames. Without it such a frame grows through a series of intermediate arrays while it is read.
+ * <p>
+ * Buffers come in power of two size classes from {@value #MIN_BUFFER_SIZE} bytes up to {@value #MAX_POOLED_BUFFER_SIZE} bytes, and each
+ * class retains at most {@code cip.response.buffers.perSize} buffers (default 4). Larger frames are read into unpooled buffers. A frame is
+ * read into a pooled buffer, copied out once at its exact size for Avatica, which keeps the returned array, and the buffer is released right
+ * away.
+ */
+public final class ResponseBufferPool {
+
+    static final int MIN_BUFFER_SIZE = 64 * 1024;
+    static final int MAX_POOLED_BUFFER_SIZE = 16 * 1024 * 1024;
+
+    private static final int BUFFERS_PER_SIZE = Integer.parseInt(System.getProperty("cip.response.buffers.perSize", "4"));
+
+    private static final ResponseBufferPool SHARED = new ResponseBufferPool(BUFFERS_PER_SIZE);
+
+    private final List<BlockingQueue<byte[]>> sizeClasses = new ArrayList<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ResponseBufferPool(int buffersPerSize) {
+        for (int size = MIN_BUFFER_SIZE; size <= MAX_POOLED_BUFFER_SIZE; size <<= 1) {
+            sizeClasses.add(new ArrayBlockingQueue<>(Math.max(1, buffersPerSize)));
+        }
+    }
+
+    /**
+     * @return the pool shared by all connections of this driver.
+     */
+    public static ResponseBufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Takes a buffer of at least the given size from the pool, or allocates one if the pool holds none.
+     *
+     * @param minSize the minimum buffer size in bytes.
+     * @return a buffer to hand back through {@link #release(byte[])} when done.
+     */
+    byte[] acquire(int minSize) {
+        int sizeClass = sizeClassOf(minSize);
+        if (sizeClass < 0) {
+            misses.increment();
+            return new byte[minSize];
+        }
+        byte[] buffer = sizeClasses.get(sizeClass).poll();
+        if (buffer != null) {
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        return new byte[MIN_BUFFER_SIZE << sizeClass];
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers that are not of a pooled size, or that do not fit in their full size class, are dropped.
+     */
+    void release(byte[] buffer) {
+        int sizeClass = sizeClassOf(buffer.length);
+        if (sizeClass >= 0 && buffer.length == MIN_BUFFER_SIZE << sizeClass) {
+            sizeClasses.get(sizeClass).offer(buffer);
+        }
+    }
+
+    /**
+     * Reads a stream to its end through pooled buffers.
+     *
+     * @param in the stream to read, not closed by this method.
+     * @param sizeHint the expected size in bytes, or a value {@code <= 0} if unknown.
+     * @return the bytes read, in an array of exactly their length.
+     * @throws IOException if reading fails.
+     */
+    byte[] readFully(InputStream in, long sizeHint) throws IOException {
+        byte[] buffer = acquire(sizeHint > 0 && sizeHint <= MAX_POOLED_BUFFER_SIZE ? (int) sizeHint : MIN_BUFFER_SIZE);
+        try {
+            int length = 0;
+            while (true) {
+                if (length == buffer.length) {
+                    // Check for the end of the stream before growing, so a frame that exactly fills the buffer is not copied again
+                    int next = in.read();
+                    if (next < 0) {
+                        break;
+                    }
+                    buffer = grow(buffer, length);
+                    buffer[length++] = (byte) next;
+                }
+                int read = in.read(buffer, length, buffer.length - length);
+                if (read < 0) {
+                    break;
+                }
+                length += read;
+            }
+            return Arrays.copyOf(buffer, length);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    private byte[] grow(byte[] buffer, int length) {
+        if (buffer.length > Integer.MAX_VALUE / 2 - 8) {
+            throw new OutOfMemoryError("Avatica response frame exceeds the maximum array size");
+        }
+        byte[] larger = acquire(buffer.length * 2);
+        System.arraycopy(buffer, 0, larger, 0, length);
+        release(buffer);
+        return larger;
+    }
+
+    private static int sizeClassOf(int size) {
+        if (size > MAX_POOLED_BUFFER_SIZE) {
+            return -1;
+        }
+        int sizeClass = 0;
+        while (MIN_BUFFER_SIZE << sizeClass < size) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * @return the number of buffer requests served from the pool.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of buffer requests that had to allocate a new buffer.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of buffers currently held by the pool.
+     */
+    public int getPooledBuffers() {
+        int pooled = 0;
+        for (BlockingQueue<byte[]> sizeClass : sizeClasses) {
+            pooled += sizeClass.size();
+        }
+        return pooled;
+    }
+
+    @Override
+    public String toString() {
+        return "ResponseBufferPool{hits=" + getHits() + ", misses=" + getMisses() + ", pooledBuffers=" + getPooledBuffers() + '}';
+    }
+}
@@ -0,0 +1,522 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.regex.Pattern;
+
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.apache.calcite.avatica.remote.TypedValue;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Client-side cache of query results. When enabled with the {@code resultCache} connection property, the rows of a query are kept for
+ * {@code resultCacheTtlMs} (default 30000) after it was executed, and the same query on any connection of the process with the same
+ * instance id and client id, the same parameter values and the same maximum row count is answered from them without a request to the
+ * server. Results of all frames of a query are collected while the application reads them, and served as one frame.
+ * <p>
+ * Only {@code SELECT}, {@code WITH} and {@code VALUES} statements are cached, and only if the application read their result up to the last
+ * frame. The cache of connections with the same {@code resultCacheMaxBytes} (default 64 MiB) is shared and drops the least recently used
+ * results beyond that size, a single result may take an eighth of it. Statements that change data or schema drop the cached results of
+ * their instance from the caches of all byte budgets, whatever client they were cached for. The hint {@code /*+ NO_RESULT_CACHE *}{@code /} in the SQL of a statement makes it bypass the cache.
+ */
+final class ResultCache {
+
+    static final String PROPERTY = "resultCache";
+    static final String TTL_PROPERTY = "resultCacheTtlMs";
+    static final String MAX_BYTES_PROPERTY = "resultCacheMaxBytes";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultCache.class);
+
+    private static final Pattern BYPASS_HINT = Pattern.compile("/\\*\\+\\s*NO_RESULT_CACHE\\s*\\*/", Pattern.CASE_INSENSITIVE);
+
+    // Statements whose result is cached, and statements after which the cached results of the instance may be stale
+    private static final List<String> QUERY_KEYWORDS = List.of("SELECT", "WITH", "VALUES");
+    private static final List<String> WRITE_KEYWORDS = List.of("INSERT", "UPDATE", "DELETE", "MERGE", "UPSERT", "TRUNCATE", "CREATE", "DROP",
+                    "ALTER", "REFRESH");
+
+    // Results being collected from the frames the application fetches, a collector is dropped after the statement's next request
+    private static final int MAX_COLLECTORS = 256;
+    private static final Map<StatementKey, Collector> COLLECTORS = new ConcurrentHashMap<>();
+
+    // Caches of all connections, one per byte budget
+    private static final Map<Long, Store> STORES = new ConcurrentHashMap<>();
+
+    private static final ProtobufTranslation TRANSLATION = new ProtobufTranslationImpl();
+
+    private final long ttlNanos;
+    private final Store store;
+
+    ResultCache(long ttlMs, Store store) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMs);
+        this.store = store;
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the result cache, or null if it is not enabled.
+     * @throws IllegalArgumentException if a setting is invalid.
+     */
+    static ResultCache fromProperties(Properties properties) {
+        String enabled = properties.getProperty(PROPERTY);
+        if (enabled == null || enabled.isEmpty() || enabled.equalsIgnoreCase("false")) {
+            return null;
+        }
+        if (!enabled.equalsIgnoreCase("true")) {
+            throw new IllegalArgumentException("Invalid value for resultCache property. Expected 'true' or 'false', but got: " + enabled);
+        }
+        long ttlMs;
+        long maxBytes;
+        try {
+            ttlMs = Long.parseLong(properties.getProperty(TTL_PROPERTY, "30000"));
+            maxBytes = Long.parseLong(properties.getProperty(MAX_BYTES_PROPERTY, String.valueOf(64L << 20)));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value for resultCacheTtlMs or resultCacheMaxBytes property: " + e.getMessage(), e);
+        }
+        if (ttlMs <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException(String.format(
+                            "Invalid result cache settings: resultCacheTtlMs=%d and resultCacheMaxBytes=%d must be positive", ttlMs, maxBytes));
+        }
+        return new ResultCache(ttlMs, STORES.computeIfAbsent(maxBytes, bytes -> new Store(bytes, System::nanoTime)));
+    }
+
+    /**
+     * @return the counters of the cache, shared by the connections that use it.
+     */
+    ResultCacheStats getStats() {
+        return store.stats;
+    }
+
+    /**
+     * @return true if a result of the connection is being collected, so that its fetches and statement requests are to be observed.
+     */
+    static boolean isCollecting(String connectionId) {
+        if (connectionId == null || COLLECTORS.isEmpty()) {
+            return false;
+        }
+        return COLLECTORS.keySet().stream().anyMatch(key -> key.getConnectionId().equals(connectionId));
+    }
+
+    /**
+     * Drops the results being collected for a connection that is being closed.
+     */
+    static void forgetConnection(String connectionId) {
+        if (connectionId != null) {
+            COLLECTORS.keySet().removeIf(key -> key.getConnectionId().equals(connectionId));
+        }
+    }
+
+    /**
+     * Answers an execute request from the cache. Requests that change data or schema drop the cached results of the instance.
+     *
+     * @param instanceId the instance the request is sent for, invalidation applies per instance.
+     * @param clientId the client the request is sent for, clients with different permissions may see different rows.
+     * @param request an execute, fetch or statement request.
+     * @return the serialized response, or null if the request is to be sent to the server.
+     */
+    byte[] lookup(String instanceId, String clientId, Service.Request request) {
+        StatementKey statement = statementOf(request);
+        if (statement != null && !(request instanceof Service.FetchRequest)) {
+            // The statement is executed again or closed, whatever was collected for it is incomplete
+            COLLECTORS.remove(statement);
+        }
+        String sql = sqlOf(request);
+        if (sql == null) {
+            return null;
+        }
+        String keyword = firstKeyword(sql);
+        if (WRITE_KEYWORDS.contains(keyword)) {
+            invalidate(instanceId);
+            return null;
+        }
+        if (!QUERY_KEYWORDS.contains(keyword)) {
+            return null;
+        }
+        if (BYPASS_HINT.matcher(sql).find()) {
+            store.stats.recordBypass();
+            return null;
+        }
+        Entry entry = store.get(keyOf(instanceId, clientId, request, sql));
+        if (entry == null) {
+            store.stats.recordMiss();
+            return null;
+        }
+        store.stats.recordHit();
+        LOG.debug("Answering statement {} from the result cache", statement);
+        try {
+            return TRANSLATION.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(new Service.ResultSetResponse(statement
+                            .getConnectionId(), statement.getStatementId(), entry.ownStatement, entry.signature, entry.frame, -1, null)),
+                            false, null));
+        } catch (IOException e) {
+            LOG.warn("Failed to serialize the cached result of statement {}, sending it to the server", statement, e);
+            return null;
+        }
+    }
+
+    /**
+     * Collects the result of a cacheable execute request from its response and the responses to the fetches of its statement.
+     *
+     * @param instanceId the instance the request was sent for.
+     * @param clientId the client the request was sent for.
+     * @param request the request passed to {@link #lookup(String, String, Service.Request)} before it was sent.
+     * @param response the serialized response of the server.
+     * @return the response.
+     */
+    byte[] record(String instanceId, String clientId, Service.Request request, byte[] response) {
+        try {
+            if (request instanceof Service.FetchRequest) {
+                Collector collector = COLLECTORS.get(statementOf(request));
+                if (collector != null) {
+                    collect(collector, (Service.FetchRequest) request, response);
+                }
+                return response;
+            }
+            String sql = sqlOf(request);
+            if (sql == null || !QUERY_KEYWORDS.contains(firstKeyword(sql)) || BYPASS_HINT.matcher(sql).find()) {
+                return response;
+            }
+            Service.Response parsed = TRANSLATION.parseResponse(response);
+            if (!(parsed instanceof Service.ExecuteResponse)) {
+                return response;
+            }
+            Service.ExecuteResponse execute = (Service.ExecuteResponse) parsed;
+            if (execute.missingStatement || execute.results == null || execute.results.size() != 1) {
+                return response;
+            }
+            Service.ResultSetResponse result = execute.results.get(0);
+            if (result.firstFrame == null || result.updateCount != -1) {
+                return response;
+            }
+            Collector collector = new Collector(keyOf(instanceId, clientId, request, sql), result, response.length);
+            if (result.firstFrame.done) {
+                store(collector);
+            } else if (collector.bytes <= store.maxEntryBytes) {
+                if (COLLECTORS.size() >= MAX_COLLECTORS) {
+                    COLLECTORS.clear();
+                }
+                COLLECTORS.put(statementOf(request), collector);
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Not caching the result of {}", request.getClass().getSimpleName(), e);
+        }
+        return response;
+    }
+
+    private void collect(Collector collector, Service.FetchRequest fetch, byte[] response) throws IOException {
+        StatementKey statement = statementOf(fetch);
+        Service.Response parsed = TRANSLATION.parseResponse(response);
+        if (!(parsed instanceof Service.FetchResponse) || fetch.offset != collector.rows.size()) {
+            COLLECTORS.remove(statement, collector);
+            return;
+        }
+        Service.FetchResponse frame = (Service.FetchResponse) parsed;
+        if (frame.missingStatement || frame.missingResults || frame.frame == null) {
+            COLLECTORS.remove(statement, collector);
+            return;
+        }
+        frame.frame.rows.forEach(collector.rows::add);
+        collector.bytes += response.length;
+        if (collector.bytes > store.maxEntryBytes) {
+            COLLECTORS.remove(statement, collector);
+        } else if (frame.frame.done) {
+            COLLECTORS.remove(statement, collector);
+            store(collector);
+        }
+    }
+
+    private void store(Collector collector) {
+        if (collector.bytes > store.maxEntryBytes) {
+            return;
+        }
+        Meta.Frame frame = Meta.Frame.create(0, true, collector.rows);
+        store.put(collector.key, new Entry(collector.ownStatement, collector.signature, frame, collector.bytes, ttlNanos));
+    }
+
+    /**
+     * Drops the cached results of the instance from this cache and the caches of the other byte budgets, a write through one client makes
+     * the results of all clients of the instance stale.
+     */
+    private void invalidate(String instanceId) {
+        store.invalidate(instanceId);
+        for (Store other : STORES.values()) {
+            if (other != store) {
+                other.invalidate(instanceId);
+            }
+        }
+    }
+
+    private static CacheKey keyOf(String instanceId, String clientId, Service.Request request, String sql) {
+        if (request instanceof Service.ExecuteRequest) {
+            Service.ExecuteRequest execute = (Service.ExecuteRequest) request;
+            return new CacheKey(instanceId, clientId, normalize(sql), execute.parameterValues, execute.maxRowCount);
+        }
+        Service.PrepareAndExecuteRequest execute = (Service.PrepareAndExecuteRequest) request;
+        return new CacheKey(instanceId, clientId, normalize(sql), null, execute.maxRowCount);
+    }
+
+    /**
+     * @return the SQL of an execute request, or null for other requests.
+     */
+    private static String sqlOf(Service.Request request) {
+        if (request instanceof Service.PrepareAndExecuteRequest) {
+            return ((Service.PrepareAndExecuteRequest) request).sql;
+        } else if (request instanceof Service.ExecuteRequest) {
+            Meta.StatementHandle handle = ((Service.ExecuteRequest) request).statementHandle;
+            return handle == null || handle.signature == null ? null : handle.signature.sql;
+        }
+        return null;
+    }
+
+    private static StatementKey statementOf(Service.Request request) {
+        if (request instanceof Service.PrepareAndExecuteRequest) {
+            Service.PrepareAndExecuteRequest execute = (Service.PrepareAndExecuteRequest) request;
+            return new StatementKey(execute.connectionId, execute.statementId);
+        } else if (request instanceof Service.ExecuteRequest) {
+            Meta.StatementHandle handle = ((Service.ExecuteRequest) request).statementHandle;
+            return handle == null ? null : new StatementKey(handle.connectionId, handle.id);
+        } else if (request instanceof Service.FetchRequest) {
+            Service.FetchRequest fetch = (Service.FetchRequest) request;
+            return new StatementKey(fetch.connectionId, fetch.statementId);
+        } else if (request instanceof Service.CloseStatementRequest) {
+            Service.CloseStatementRequest close = (Service.CloseStatementRequest) request;
+            return new StatementKey(close.connectionId, close.statementId);
+        } else if (request instanceof Service.SyncResultsRequest) {
+            Service.SyncResultsRequest sync = (Service.SyncResultsRequest) request;
+            return new StatementKey(sync.connectionId, sync.statementId);
+        }
+        return null;
+    }
+
+    /**
+     * @return the first keyword of the statement in upper case, after leading comments and parentheses.
+     */
+    static String firstKeyword(String sql) {
+        int i = 0;
+        int length = sql.length();
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c) || c == '(') {
+                i++;
+            } else if (sql.startsWith("--", i)) {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else if (sql.startsWith("/*", i)) {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else {
+                break;
+            }
+        }
+        int start = i;
+        while (i < length && Character.isLetter(sql.charAt(i))) {
+            i++;
+        }
+        return sql.substring(start, i).toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * Collapses whitespace outside of quoted literals and identifiers and drops trailing semicolons, so that queries that differ only in
+     * formatting share their cached result.
+     */
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean space = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                normalized.append(c);
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && normalized.length() > 0) {
+                    normalized.append(' ');
+                }
+                space = false;
+                if (c == '\'' || c == '"' || c == '`') {
+                    quote = c;
+                }
+                normalized.append(c);
+            }
+        }
+        int end = normalized.length();
+        while (end > 0 && quote == 0 && (normalized.charAt(end - 1) == ';' || normalized.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        normalized.setLength(end);
+        return normalized.toString();
+    }
+
+    /**
+     * The rows of a result read so far, while the application fetches its frames.
+     */
+    private static final class Collector {
+        private final CacheKey key;
+        private final boolean ownStatement;
+        private final Meta.Signature signature;
+        private final List<Object> rows = new ArrayList<>();
+        private long bytes;
+
+        Collector(CacheKey key, Service.ResultSetResponse result, long bytes) {
+            this.key = key;
+            this.ownStatement = result.ownStatement;
+            this.signature = result.signature;
+            this.bytes = bytes;
+            result.firstFrame.rows.forEach(rows::add);
+        }
+    }
+
+    /**
+     * Identity of a cached result, the instance and client keep apart the results of instances and of clients with different permissions.
+     */
+    static final class CacheKey {
+        private final String instanceId;
+        private final String clientId;
+        private final String sql;
+        private final List<TypedValue> parameters;
+        private final long maxRowCount;
+
+        CacheKey(String instanceId, String clientId, String sql, List<TypedValue> parameters, long maxRowCount) {
+            this.instanceId = instanceId;
+            this.clientId = clientId;
+            this.sql = sql;
+            this.parameters = parameters == null ? Collections.emptyList() : parameters;
+            this.maxRowCount = maxRowCount;
+        }
+
+        long size() {
+            // Characters of the SQL and a rough allowance for the parameters
+            return 2L * sql.length() + 64L * parameters.size();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey that = (CacheKey) o;
+            return maxRowCount == that.maxRowCount && Objects.equals(instanceId, that.instanceId) && Objects.equals(clientId, that.clientId)
+                            && sql.equals(that.sql) && parameters.equals(that.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(instanceId, clientId, sql, parameters, maxRowCount);
+        }
+    }
+
+    /**
+     * A cached result, with the size of the frames it was received in.
+     */
+    static final class Entry {
+        private final boolean ownStatement;
+        private final Meta.Signature signature;
+        private final Meta.Frame frame;
+        private final long bytes;
+        private final long ttlNanos;
+        // Set when the entry is stored
+        private long expiresAtNanos;
+
+        Entry(boolean ownStatement, Meta.Signature signature, Meta.Frame frame, long bytes, long ttlNanos) {
+            this.ownStatement = ownStatement;
+            this.signature = signature;
+            this.frame = frame;
+            this.bytes = bytes;
+            this.ttlNanos = ttlNanos;
+        }
+    }
+
+    /**
+     * Cached results in least recently used order, within a byte budget.
+     */
+    static final class Store {
+        private final long maxBytes;
+        private final long maxEntryBytes;
+        private final LongSupplier nanoTime;
+        private final ResultCacheStats stats = new ResultCacheStats(this);
+        // Guarded by this
+        private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Store(long maxBytes, LongSupplier nanoTime) {
+            this.maxBytes = maxBytes;
+            this.maxEntryBytes = Math.max(1, maxBytes / 8);
+            this.nanoTime = nanoTime;
+        }
+
+        synchronized Entry get(CacheKey key) {
+            Entry entry = entries.get(key);
+            if (entry != null && nanoTime.getAsLong() - entry.expiresAtNanos >= 0) {
+                remove(key, entry);
+                stats.recordExpiration();
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized void put(CacheKey key, Entry entry) {
+            entry.expiresAtNanos = nanoTime.getAsLong() + entry.ttlNanos;
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                bytes -= previous.bytes + key.size();
+            }
+            bytes += entry.bytes + key.size();
+            stats.recordStore();
+            Iterator<Map.Entry<CacheKey, Entry>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                Map.Entry<CacheKey, Entry> evicted = eldest.next();
+                eldest.remove();
+                bytes -= evicted.getValue().bytes + evicted.getKey().size();
+                stats.recordEviction();
+            }
+        }
+
+        synchronized void invalidate(String instanceId) {
+            boolean removed = false;
+            for (Iterator<Map.Entry<CacheKey, Entry>> it = entries.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<CacheKey, Entry> entry = it.next();
+                if (Objects.equals(entry.getKey().instanceId, instanceId)) {
+                    it.remove();
+                    bytes -= entry.getValue().bytes + entry.getKey().size();
+                    removed = true;
+                }
+            }
+            if (removed) {
+                stats.recordInvalidation();
+            }
+        }
+
+        private void remove(CacheKey key, Entry entry) {
+            entries.remove(key);
+            bytes -= entry.bytes + key.size();
+        }
+
+        synchronized int entries() {
+            return entries.size();
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+    }
+}
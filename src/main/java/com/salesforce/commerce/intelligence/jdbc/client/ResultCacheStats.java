@@ -0,0 +1,120 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of a client-side query result cache, shared by all connections that use the same cache, see the {@code resultCache} property.
+ */
+public final class ResultCacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+    private final ResultCache.Store store;
+
+    ResultCacheStats(ResultCache.Store store) {
+        this.store = store;
+    }
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordBypass() {
+        bypasses.increment();
+    }
+
+    void recordStore() {
+        stores.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    void recordExpiration() {
+        expirations.increment();
+    }
+
+    void recordInvalidation() {
+        invalidations.increment();
+    }
+
+    /**
+     * @return the number of queries answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of cacheable queries sent to the server because their result was not cached or had expired.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of queries sent to the server because of the {@code NO_RESULT_CACHE} hint.
+     */
+    public long getBypasses() {
+        return bypasses.sum();
+    }
+
+    /**
+     * @return the number of results added to the cache.
+     */
+    public long getStores() {
+        return stores.sum();
+    }
+
+    /**
+     * @return the number of results dropped to keep the cache within its byte budget.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return the number of results dropped because they were older than their time to live.
+     */
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    /**
+     * @return the number of times the results of an instance were dropped because a statement changed data or schema.
+     */
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    /**
+     * @return the number of results in the cache.
+     */
+    public int getEntries() {
+        return store.entries();
+    }
+
+    /**
+     * @return the estimated size of the results in the cache.
+     */
+    public long getBytes() {
+        return store.bytes();
+    }
+
+    @Override
+    public String toString() {
+        return "ResultCacheStats{hits=" + getHits() + ", misses=" + getMisses() + ", bypasses=" + getBypasses() + ", stores=" + getStores()
+                + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() + ", invalidations=" + getInvalidations()
+                + ", entries=" + getEntries() + ", bytes=" + getBytes() + '}';
+    }
+}
@@ -0,0 +1,103 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide token bucket that bounds retries to a fraction of the request traffic of all connections, so a server brownout cannot be
+ * amplified by the driver's own retries.
+ * <p>
+ * Every request deposits {@code cip.retry.budget.ratio} tokens (default 0.2) and every retry withdraws one. To let an otherwise idle client
+ * still retry, the bucket also refills at {@code cip.retry.budget.minRetriesPerSecond} tokens per second (default 10). The bucket never
+ * holds more than {@code cip.retry.budget.maxTokens} tokens (default 100), so a long quiet period cannot save up a burst of retries.
+ */
+public final class RetryBudget {
+
+    private static final RetryBudget SHARED = new RetryBudget(Double.parseDouble(System.getProperty("cip.retry.budget.ratio", "0.2")),
+            Double.parseDouble(System.getProperty("cip.retry.budget.minRetriesPerSecond", "10")), Double.parseDouble(System.getProperty(
+                    "cip.retry.budget.maxTokens", "100")), System.nanoTime());
+
+    // Tolerates the rounding of repeated fractional deposits, e.g. ten deposits of 0.1 must fund one retry
+    private static final double EPSILON = 1e-9;
+
+    private final double ratio;
+    private final double minRetriesPerSecond;
+    private final double maxTokens;
+
+    private double tokens;
+    private long lastRefillNanos;
+
+    private final LongAdder rejected = new LongAdder();
+
+    RetryBudget(double ratio, double minRetriesPerSecond, double maxTokens, long nowNanos) {
+        this.ratio = ratio;
+        this.minRetriesPerSecond = minRetriesPerSecond;
+        this.maxTokens = maxTokens;
+        this.tokens = Math.min(maxTokens, minRetriesPerSecond);
+        this.lastRefillNanos = nowNanos;
+    }
+
+    /**
+     * @return the budget shared by all connections of this driver.
+     */
+    public static RetryBudget shared() {
+        return SHARED;
+    }
+
+    /**
+     * Records a new request, i.e. the first attempt of a send.
+     */
+    void deposit() {
+        synchronized (this) {
+            tokens = Math.min(maxTokens, tokens + ratio);
+        }
+    }
+
+    /**
+     * Withdraws the token for one retry.
+     *
+     * @return true if the retry is within the budget, false if it must not be sent.
+     */
+    boolean tryWithdraw() {
+        return tryWithdraw(System.nanoTime());
+    }
+
+    boolean tryWithdraw(long nowNanos) {
+        synchronized (this) {
+            refill(nowNanos);
+            if (tokens >= 1 - EPSILON) {
+                tokens = Math.max(0, tokens - 1);
+                return true;
+            }
+        }
+        rejected.increment();
+        return false;
+    }
+
+    private void refill(long nowNanos) {
+        long elapsed = nowNanos - lastRefillNanos;
+        if (elapsed > 0) {
+            tokens = Math.min(maxTokens, tokens + elapsed * minRetriesPerSecond / 1_000_000_000d);
+            lastRefillNanos = nowNanos;
+        }
+    }
+
+    /**
+     * @return the number of retries the budget currently allows.
+     */
+    public synchronized double getAvailableTokens() {
+        refill(System.nanoTime());
+        return tokens;
+    }
+
+    /**
+     * @return the number of retries refused because the budget was exhausted.
+     */
+    public long getRejectedRetries() {
+        return rejected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryBudget{availableTokens=" + getAvailableTokens() + ", rejectedRetries=" + getRejectedRetries() + '}';
+    }
+}
@@ -0,0 +1,41 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Properties;
+
+/**
+ * Resolves the {@link RetryPolicy} of a connection from its properties.
+ */
+final class RetryPolicies {
+
+    static final String PROPERTY = "retryPolicy";
+
+    private RetryPolicies() {
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the policy named by the {@code retryPolicy} property, or an {@link ExponentialBackoffRetryPolicy} configured from the
+     * properties if it is not set.
+     * @throws IllegalArgumentException if the policy class cannot be instantiated or its settings are invalid.
+     */
+    static RetryPolicy fromProperties(Properties properties) {
+        String className = properties.getProperty(PROPERTY);
+        if (className == null || className.isEmpty()) {
+            return new ExponentialBackoffRetryPolicy(properties);
+        }
+        try {
+            Class<? extends RetryPolicy> policyClass = Class.forName(className.trim()).asSubclass(RetryPolicy.class);
+            try {
+                return policyClass.getConstructor(Properties.class).newInstance(properties);
+            } catch (NoSuchMethodException e) {
+                return policyClass.getConstructor().newInstance();
+            }
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("Failed to create retry policy " + className + ": " + e.getCause().getMessage(), e.getCause());
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("Invalid value for retryPolicy property. Expected a RetryPolicy class, but got: " + className,
+                    e);
+        }
+    }
+}
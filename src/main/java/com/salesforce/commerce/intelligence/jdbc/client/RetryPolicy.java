@@ -0,0 +1,25 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+/**
+ * Decides whether and when {@link CIPAvaticaHttpClient} retries a request that the Avatica server answered with HTTP 503, or that got no
+ * response at all. A custom policy is selected with the {@code retryPolicy} connection property, naming a class with either a public
+ * {@code (java.util.Properties)} constructor, which receives the connection properties, or a public no-arg constructor.
+ * <p>
+ * Retries allowed by the policy are additionally subject to the process-wide {@link RetryBudget}.
+ */
+public interface RetryPolicy {
+
+    /**
+     * @return the maximum number of attempts of one request, including the first one.
+     */
+    int getMaxAttempts();
+
+    /**
+     * Computes the delay before the next attempt.
+     *
+     * @param attempt the number of the attempt that just failed, starting at 1.
+     * @param retryAfterMillis the delay requested by the server through {@code Retry-After}, or -1 if it sent none.
+     * @return the delay in milliseconds, 0 to retry immediately.
+     */
+    long getDelayMillis(int attempt, long retryAfterMillis);
+}
@@ -0,0 +1,108 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Attempt counters of the requests sent by one {@link CIPAvaticaHttpClient}, i.e. by one JDBC connection.
+ */
+public final class RetryStats {
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder attempts = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder budgetRejected = new LongAdder();
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder tokenReplays = new LongAdder();
+
+    void recordRequest() {
+        requests.increment();
+    }
+
+    void recordAttempt() {
+        attempts.increment();
+    }
+
+    void recordExhausted() {
+        exhausted.increment();
+    }
+
+    void recordBudgetRejected() {
+        budgetRejected.increment();
+    }
+
+    void recordHedge() {
+        hedges.increment();
+    }
+
+    void recordHedgeWin() {
+        hedgeWins.increment();
+    }
+
+    void recordTokenReplay() {
+        tokenReplays.increment();
+    }
+
+    /**
+     * @return the number of requests sent, regardless of how many attempts each took.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * @return the number of HTTP exchanges started, first attempts, retries, hedged copies and token replays.
+     */
+    public long getAttempts() {
+        return attempts.sum();
+    }
+
+    /**
+     * @return the number of retries, i.e. attempts beyond the first of each request and of each hedged copy, not counting token replays.
+     */
+    public long getRetries() {
+        return Math.max(0, getAttempts() - getRequests() - getHedges() - getTokenReplays());
+    }
+
+    /**
+     * @return the number of requests that failed because the retry policy allowed no further attempt.
+     */
+    public long getExhausted() {
+        return exhausted.sum();
+    }
+
+    /**
+     * @return the number of requests that failed because the process-wide {@link RetryBudget} refused a retry.
+     */
+    public long getBudgetRejected() {
+        return budgetRejected.sum();
+    }
+
+    /**
+     * @return the number of hedged copies sent for idempotent requests that were slow to answer.
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return the number of hedged copies whose response arrived before the one of the original request.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return the number of requests sent again with a new OAuth token after the server rejected the previous one with HTTP 401.
+     */
+    public long getTokenReplays() {
+        return tokenReplays.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "RetryStats{requests=" + getRequests() + ", attempts=" + getAttempts() + ", exhausted=" + getExhausted()
+                + ", budgetRejected=" + getBudgetRejected() + ", hedges=" + getHedges() + ", hedgeWins=" + getHedgeWins()
+                + ", tokenReplays=" + getTokenReplays() + '}';
+    }
+}
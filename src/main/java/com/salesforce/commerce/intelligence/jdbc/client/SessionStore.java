@@ -0,0 +1,215 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+/**
+ * Session IDs of the open connections, keyed by connection ID. The session ID is sent as the {@code x-session-id} header so that the load
+ * balancer routes all requests of a connection to the same server.
+ * <p>
+ * Entries are removed when their connection is closed. Entries of connections that were abandoned without being closed are evicted once
+ * they have not been used for the idle TTL, and the least recently used entries are evicted when the store exceeds its maximum size. Both
+ * limits are process-wide system properties:
+ * <ul>
+ * <li>{@code cip.sessionStore.idleTtlMs} (default 3600000, one hour)</li>
+ * <li>{@code cip.sessionStore.maxSize} (default 10000)</li>
+ * </ul>
+ * Eviction runs on the thread that adds an entry, at most once per sweep interval unless the store is over its maximum size.
+ */
+public final class SessionStore {
+
+    private static final SessionStore SHARED = new SessionStore(Integer.getInteger("cip.sessionStore.maxSize", 10_000),
+                    Long.getLong("cip.sessionStore.idleTtlMs", TimeUnit.HOURS.toMillis(1)), System::nanoTime);
+
+    // Longest time between two sweeps for idle entries
+    private static final long MAX_SWEEP_INTERVAL_MS = 60_000;
+
+    private final ConcurrentHashMap<String, Entry> sessions = new ConcurrentHashMap<>();
+    private final int maxSize;
+    private final long idleTtlNanos;
+    private final long sweepIntervalNanos;
+    private final LongSupplier nanoClock;
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private volatile long lastSweepNanos;
+
+    private final LongAdder closedRemovals = new LongAdder();
+    private final LongAdder idleEvictions = new LongAdder();
+    private final LongAdder sizeEvictions = new LongAdder();
+
+    SessionStore(int maxSize, long idleTtlMs, LongSupplier nanoClock) {
+        this.maxSize = Math.max(1, maxSize);
+        this.idleTtlNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, idleTtlMs));
+        this.sweepIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, Math.min(idleTtlMs, MAX_SWEEP_INTERVAL_MS)));
+        this.nanoClock = nanoClock;
+        this.lastSweepNanos = nanoClock.getAsLong();
+    }
+
+    /**
+     * @return the store shared by all connections of the process.
+     */
+    public static SessionStore shared() {
+        return SHARED;
+    }
+
+    private static final class Entry {
+        private final String sessionId;
+        private volatile long lastAccessNanos;
+        private volatile long lastResponseNanos;
+
+        Entry(String sessionId, long lastAccessNanos) {
+            this.sessionId = sessionId;
+            this.lastAccessNanos = lastAccessNanos;
+            this.lastResponseNanos = lastAccessNanos;
+        }
+    }
+
+    /**
+     * @return the session ID of the connection, or null if it has none or it was evicted.
+     */
+    String get(String connectionId) {
+        if (connectionId == null) {
+            return null;
+        }
+        Entry entry = sessions.get(connectionId);
+        if (entry == null) {
+            return null;
+        }
+        long now = nanoClock.getAsLong();
+        if (now - entry.lastAccessNanos >= idleTtlNanos) {
+            if (sessions.remove(connectionId, entry)) {
+                idleEvictions.increment();
+            }
+            return null;
+        }
+        entry.lastAccessNanos = now;
+        return entry.sessionId;
+    }
+
+    /**
+     * Records a successful response to a request of the connection, which proves that its server-side connection is alive.
+     */
+    void recordResponse(String connectionId) {
+        Entry entry = connectionId != null ? sessions.get(connectionId) : null;
+        if (entry != null) {
+            entry.lastResponseNanos = nanoClock.getAsLong();
+        }
+    }
+
+    /**
+     * @return whether the connection got a successful response within the given time.
+     */
+    boolean respondedWithin(String connectionId, long millis) {
+        Entry entry = connectionId != null ? sessions.get(connectionId) : null;
+        return entry != null && nanoClock.getAsLong() - entry.lastResponseNanos < TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    /**
+     * Stores the session ID of a connection after a successful response, evicting idle and least recently used entries if needed.
+     */
+    void put(String connectionId, String sessionId) {
+        if (connectionId == null) {
+            return;
+        }
+        long now = nanoClock.getAsLong();
+        sessions.put(connectionId, new Entry(sessionId, now));
+        if (sessions.size() > maxSize || now - lastSweepNanos >= sweepIntervalNanos) {
+            evict(now);
+        }
+    }
+
+    /**
+     * Removes the session of a connection that was closed.
+     */
+    void remove(String connectionId) {
+        if (connectionId != null && sessions.remove(connectionId) != null) {
+            closedRemovals.increment();
+        }
+    }
+
+    /**
+     * Drops the idle entries and, if the store is still over its maximum size, the least recently used ones. Threads that find another
+     * thread evicting skip it.
+     */
+    private void evict(long now) {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            lastSweepNanos = now;
+            List<Map.Entry<String, Entry>> live = new ArrayList<>(sessions.size());
+            for (Map.Entry<String, Entry> session : sessions.entrySet()) {
+                if (now - session.getValue().lastAccessNanos >= idleTtlNanos) {
+                    if (sessions.remove(session.getKey(), session.getValue())) {
+                        idleEvictions.increment();
+                    }
+                } else {
+                    live.add(session);
+                }
+            }
+            int excess = sessions.size() - maxSize;
+            if (excess <= 0) {
+                return;
+            }
+            live.sort(Comparator.comparingLong(session -> session.getValue().lastAccessNanos));
+            for (int i = 0; i < live.size() && excess > 0; i++) {
+                if (sessions.remove(live.get(i).getKey(), live.get(i).getValue())) {
+                    sizeEvictions.increment();
+                    excess--;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Forgets all sessions and counters.
+     */
+    void clear() {
+        sessions.clear();
+        closedRemovals.reset();
+        idleEvictions.reset();
+        sizeEvictions.reset();
+    }
+
+    /**
+     * @return the number of sessions currently stored.
+     */
+    public int getSize() {
+        return sessions.size();
+    }
+
+    /**
+     * @return the number of sessions removed because their connection was closed.
+     */
+    public long getClosedRemovals() {
+        return closedRemovals.sum();
+    }
+
+    /**
+     * @return the number of sessions evicted because they were not used for the idle TTL.
+     */
+    public long getIdleEvictions() {
+        return idleEvictions.sum();
+    }
+
+    /**
+     * @return the number of least recently used sessions evicted because the store exceeded its maximum size.
+     */
+    public long getSizeEvictions() {
+        return sizeEvictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "SessionStore{size=" + getSize() + ", closedRemovals=" + getClosedRemovals() + ", idleEvictions=" + getIdleEvictions()
+                        + ", sizeEvictions=" + getSizeEvictions() + '}';
+    }
+}
@@ -0,0 +1,86 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.avatica.ConnectionConfig;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.config.TlsConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClientBuilder;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManager;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process-wide registry of started {@link CloseableHttpAsyncClient}s, one per Avatica endpoint, transport and timeout combination. All
+ * {@link CIPAvaticaHttpClient}s pointing at the same server share one client. With {@link HttpTransport#H2} the HTTP/2 streams from every
+ * JDBC connection are multiplexed over the same few sockets instead of each connection opening its own TCP and TLS session; with
+ * {@link HttpTransport#ASYNC} the connections share one non-blocking HTTP/1.1 pool.
+ */
+final class SharedAsyncClients {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SharedAsyncClients.class);
+
+    // Pools follow the same limits and system properties as the classic pool Avatica creates
+    static final int HTTP1_MAX_CONNECTIONS = Integer.parseInt(System.getProperty("avatica.pooled.connections.max", "100"));
+    private static final int HTTP1_MAX_CONNECTIONS_PER_ROUTE = Integer.parseInt(
+            System.getProperty("avatica.pooled.connections.per.route", "25"));
+
+    private static final ConcurrentHashMap<String, CloseableHttpAsyncClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private SharedAsyncClients() {
+    }
+
+    /**
+     * Returns the shared client for the endpoint, creating and starting it on first use.
+     *
+     * @param uri the Avatica server URI.
+     * @param config the Avatica connection config providing the connect and response timeouts.
+     * @param transport the non-blocking transport, {@link HttpTransport#H2} or {@link HttpTransport#ASYNC}.
+     * @param poolSettings the pool settings from the connection properties.
+     * @return a started async client.
+     */
+    static CloseableHttpAsyncClient get(URI uri, ConnectionConfig config, HttpTransport transport, PoolSettings poolSettings) {
+        String key = transport + "|" + uri.getScheme() + "://" + uri.getRawAuthority() + "|" + config.getHttpConnectionTimeout() + "|"
+                + config.getHttpResponseTimeout() + "|" + poolSettings.key();
+        return CLIENTS.computeIfAbsent(key, k -> create(config, transport, poolSettings));
+    }
+
+    private static CloseableHttpAsyncClient create(ConnectionConfig config, HttpTransport transport, PoolSettings poolSettings) {
+        boolean h2 = transport == HttpTransport.H2;
+        // Message multiplexing lets concurrent requests share a pooled connection once it has negotiated HTTP/2.
+        // The NEGOTIATE policy offers h2 and http/1.1 through ALPN, so servers without HTTP/2 keep working over HTTP/1.1.
+        // The per-route limit stays the HTTP/1.1 one: shared HTTP/2 connections rarely need more than one socket, but a fallback
+        // connection carries one request at a time, and a lower limit would make every connection of the process wait for a few
+        // long running queries.
+        PoolingAsyncClientConnectionManager connectionManager = PoolingAsyncClientConnectionManagerBuilder.create()
+                .useSystemProperties()
+                .setMessageMultiplexing(h2)
+                .setMaxConnPerRoute(poolSettings.maxPerRoute(HTTP1_MAX_CONNECTIONS_PER_ROUTE))
+                .setMaxConnTotal(poolSettings.maxTotal(HTTP1_MAX_CONNECTIONS))
+                .setDefaultTlsConfig(TlsConfig.custom()
+                        .setVersionPolicy(h2 ? HttpVersionPolicy.NEGOTIATE : HttpVersionPolicy.FORCE_HTTP_1)
+                        .build())
+                .setDefaultConnectionConfig(poolSettings.connectionConfig(config.getHttpConnectionTimeout()))
+                .build();
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setResponseTimeout(config.getHttpResponseTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+        HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig);
+        if (poolSettings.keepAliveStrategy() != null) {
+            builder.setKeepAliveStrategy(poolSettings.keepAliveStrategy());
+        }
+        CloseableHttpAsyncClient client = builder.build();
+        client.start();
+        LOG.debug("Started shared {} HTTP client", transport);
+        return client;
+    }
+}
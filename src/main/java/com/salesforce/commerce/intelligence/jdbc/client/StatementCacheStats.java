@@ -0,0 +1,51 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the prepared statement cache of a connection that enables it with the {@code preparedStatementCacheQueries} property.
+ */
+public final class StatementCacheStats {
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    void recordHit() {
+        hits.increment();
+    }
+
+    void recordMiss() {
+        misses.increment();
+    }
+
+    void recordEviction() {
+        evictions.increment();
+    }
+
+    /**
+     * @return the number of statements prepared with a statement kept from an earlier prepared statement instead of a request.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of statements prepared on the server.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of kept statements closed on the server to stay within the cache size.
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "StatementCacheStats{hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions() + '}';
+    }
+}
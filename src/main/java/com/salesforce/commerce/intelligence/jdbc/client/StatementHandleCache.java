@@ -0,0 +1,232 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Properties;
+
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of the server-side statements of the prepared statements of one connection. When enabled with the
+ * {@code preparedStatementCacheQueries} connection property, closing a prepared statement keeps its statement on the server, and
+ * preparing the same SQL with the same maximum row count again reuses it instead of sending a {@code PrepareRequest}. Up to that many
+ * closed statements are kept, the least recently closed ones beyond it are closed on the server. All of them end with the connection.
+ * <p>
+ * A statement is only reused once the prepared statement using it was closed, prepared statements open at the same time get statements
+ * of their own.
+ */
+final class StatementHandleCache {
+
+    static final String PROPERTY = "preparedStatementCacheQueries";
+
+    private static final Logger LOG = LoggerFactory.getLogger(StatementHandleCache.class);
+
+    private static final ProtobufTranslation TRANSLATION = new ProtobufTranslationImpl();
+
+    private final int maxIdle;
+    private final StatementCacheStats stats = new StatementCacheStats();
+    // Guarded by this. Statements of open prepared statements by id, and closed ones by id in the order they were closed and by SQL
+    private final Map<Integer, Handle> inUse = new HashMap<>();
+    private final LinkedHashMap<Integer, Handle> idle = new LinkedHashMap<>();
+    private final Map<PrepareKey, ArrayDeque<Handle>> idleByKey = new HashMap<>();
+
+    StatementHandleCache(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * @param properties the connection properties.
+     * @return the statement cache of a connection, or null if it is not enabled.
+     * @throws IllegalArgumentException if the setting is invalid.
+     */
+    static StatementHandleCache fromProperties(Properties properties) {
+        String value = properties.getProperty(PROPERTY);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        try {
+            int maxIdle = Integer.parseInt(value.trim());
+            if (maxIdle >= 0) {
+                return maxIdle == 0 ? null : new StatementHandleCache(maxIdle);
+            }
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new IllegalArgumentException(
+                "Invalid value for preparedStatementCacheQueries property. Expected a non-negative number of statements, but got: " + value);
+    }
+
+    /**
+     * @return the serialized response to the prepare request with a closed statement of the same SQL, or null if there is none.
+     */
+    synchronized byte[] take(Service.PrepareRequest prepare) {
+        ArrayDeque<Handle> handles = idleByKey.get(new PrepareKey(prepare));
+        if (handles == null) {
+            stats.recordMiss();
+            return null;
+        }
+        Handle handle = handles.pollLast();
+        if (handles.isEmpty()) {
+            idleByKey.remove(handle.key);
+        }
+        idle.remove(handle.statementId);
+        inUse.put(handle.statementId, handle);
+        stats.recordHit();
+        LOG.debug("Reusing statement {} of connection {}", handle.statementId, prepare.connectionId);
+        return handle.response;
+    }
+
+    /**
+     * Remembers the statement the server prepared, so that closing it keeps it for reuse.
+     *
+     * @return the response.
+     */
+    synchronized byte[] prepared(Service.PrepareRequest prepare, byte[] response) {
+        try {
+            Service.Response parsed = TRANSLATION.parseResponse(response);
+            if (parsed instanceof Service.PrepareResponse && ((Service.PrepareResponse) parsed).statement != null) {
+                int statementId = ((Service.PrepareResponse) parsed).statement.id;
+                inUse.put(statementId, new Handle(new PrepareKey(prepare), statementId, response));
+            }
+        } catch (IOException | RuntimeException e) {
+            LOG.debug("Not caching the statement prepared for {}", prepare.sql, e);
+        }
+        return response;
+    }
+
+    /**
+     * Keeps the statement of a closed prepared statement for reuse.
+     *
+     * @return the ids of the statements to close on the server to stay within the cache size, or null if the statement is not cached and
+     *         is to be closed on the server.
+     */
+    synchronized List<Integer> release(Service.CloseStatementRequest close) {
+        Handle handle = inUse.remove(close.statementId);
+        if (handle == null) {
+            return null;
+        }
+        idle.put(handle.statementId, handle);
+        idleByKey.computeIfAbsent(handle.key, key -> new ArrayDeque<>()).addLast(handle);
+        if (idle.size() <= maxIdle) {
+            return Collections.emptyList();
+        }
+        List<Integer> evicted = new ArrayList<>();
+        Iterator<Handle> eldest = idle.values().iterator();
+        while (idle.size() > maxIdle) {
+            Handle evict = eldest.next();
+            eldest.remove();
+            ArrayDeque<Handle> handles = idleByKey.get(evict.key);
+            handles.remove(evict);
+            if (handles.isEmpty()) {
+                idleByKey.remove(evict.key);
+            }
+            evicted.add(evict.statementId);
+            stats.recordEviction();
+        }
+        return evicted;
+    }
+
+    /**
+     * @return true if close requests are to be checked with {@link #release(Service.CloseStatementRequest)}.
+     */
+    synchronized boolean hasStatementsInUse() {
+        return !inUse.isEmpty();
+    }
+
+    /**
+     * Drops all statements of the connection being closed, the server closes them with it.
+     */
+    synchronized void clear() {
+        inUse.clear();
+        idle.clear();
+        idleByKey.clear();
+    }
+
+    /**
+     * @return the counters of the cache.
+     */
+    StatementCacheStats getStats() {
+        return stats;
+    }
+
+    /**
+     * @return the serialized response to a close request answered without closing the statement on the server.
+     */
+    static byte[] closeResponse() {
+        try {
+            return TRANSLATION.serializeResponse(new Service.CloseStatementResponse(null));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serialize a close statement response", e);
+        }
+    }
+
+    /**
+     * @return the serialized request that closes an evicted statement on the server.
+     */
+    static byte[] closeRequest(String connectionId, int statementId) {
+        try {
+            return TRANSLATION.serializeRequest(new Service.CloseStatementRequest(connectionId, statementId));
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to serialize a close statement request", e);
+        }
+    }
+
+    /**
+     * A statement prepared on the server, with the response that is answered again when it is reused.
+     */
+    private static final class Handle {
+        private final PrepareKey key;
+        private final int statementId;
+        private final byte[] response;
+
+        Handle(PrepareKey key, int statementId, byte[] response) {
+            this.key = key;
+            this.statementId = statementId;
+            this.response = response;
+        }
+    }
+
+    /**
+     * The arguments of a prepare request that a reused statement has to match.
+     */
+    private static final class PrepareKey {
+        private final String connectionId;
+        private final String sql;
+        private final long maxRowCount;
+
+        PrepareKey(Service.PrepareRequest prepare) {
+            this.connectionId = prepare.connectionId;
+            this.sql = prepare.sql;
+            this.maxRowCount = prepare.maxRowCount;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof PrepareKey)) {
+                return false;
+            }
+            PrepareKey that = (PrepareKey) o;
+            return maxRowCount == that.maxRowCount && Objects.equals(connectionId, that.connectionId) && Objects.equals(sql, that.sql);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(connectionId, sql, maxRowCount);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.Objects;
+
+/**
+ * Identifies a statement of a connection, Avatica numbers statements per connection.
+ */
+final class StatementKey {
+    private final String connectionId;
+    private final int statementId;
+
+    StatementKey(String connectionId, int statementId) {
+        this.connectionId = Objects.requireNonNull(connectionId);
+        this.statementId = statementId;
+    }
+
+    String getConnectionId() {
+        return connectionId;
+    }
+
+    int getStatementId() {
+        return statementId;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof StatementKey)) {
+            return false;
+        }
+        StatementKey other = (StatementKey) o;
+        return statementId == other.statementId && connectionId.equals(other.connectionId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(connectionId, statementId);
+    }
+
+    @Override
+    public String toString() {
+        return connectionId + "/" + statementId;
+    }
+}
@@ -0,0 +1,381 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.SQLException;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Account Manager tokens shared by all connections of the process. Connections with the same OAuth host, client ID and instance use the
+ * same token, so opening many connections does not request a token for each of them.
+ * <p>
+ * Tokens are renewed ahead of expiry by a background thread, so requests normally never wait for Account Manager. A request only waits
+ * if no token is left that stays valid for {@link #MIN_VALIDITY_MS}, e.g. for the first connection or after the background refresh
+ * failed for a long time. A request that finds the token within its refresh margin uses it and starts a background refresh. Tokens
+ * nobody asked for since their last renewal are no longer renewed.
+ * <p>
+ * A token is refreshed by a single caller: callers that find it missing while a refresh is in flight wait for the result of that
+ * refresh, including its failure, instead of sending their own request.
+ * <p>
+ * All connections of the process use the {@link #shared()} cache.
+ */
+final class TokenCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TokenCache.class);
+
+    // Minimum remaining lifetime of a token handed to a request without waiting for a new one
+    static final long MIN_VALIDITY_MS = 30_000;
+
+    // Delay before a failed background refresh is tried again
+    static final long BACKGROUND_RETRY_DELAY_MS = 10_000;
+
+    // Minimum time between two tokens of the same key discarded because the server rejected them
+    static final long MIN_INVALIDATION_INTERVAL_MS = 10_000;
+
+    private static final ScheduledExecutorService REFRESHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "cip-token-refresher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final TokenCache SHARED = new TokenCache(System::currentTimeMillis,
+                    (task, delayMs) -> REFRESHER.schedule(task, delayMs, TimeUnit.MILLISECONDS));
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final TokenRefreshStats stats = new TokenRefreshStats();
+    private final LongSupplier clock;
+    private final Scheduler scheduler;
+
+    /**
+     * @param clock the current time in milliseconds, the time tokens expire at is compared with.
+     * @param scheduler runs the background refreshes.
+     */
+    TokenCache(LongSupplier clock, Scheduler scheduler) {
+        this.clock = clock;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * @return the cache shared by all connections of the process.
+     */
+    static TokenCache shared() {
+        return SHARED;
+    }
+
+    /**
+     * Loads a new token from Account Manager.
+     */
+    @FunctionalInterface
+    interface TokenLoader {
+        Token load() throws SQLException;
+    }
+
+    /**
+     * Runs a background refresh after a delay, on a thread other than the caller's.
+     */
+    @FunctionalInterface
+    interface Scheduler {
+        Future<?> schedule(Runnable task, long delayMs);
+    }
+
+    /**
+     * An access token and the time it expires, never modified once created.
+     */
+    static final class Token {
+        private final String accessToken;
+        private final long expiryTimeMs;
+
+        Token(String accessToken, long expiryTimeMs) {
+            this.accessToken = accessToken;
+            this.expiryTimeMs = expiryTimeMs;
+        }
+
+        String getAccessToken() {
+            return accessToken;
+        }
+
+        long getExpiryTimeMs() {
+            return expiryTimeMs;
+        }
+
+        /**
+         * @return true if the token expires within the margin.
+         */
+        boolean expiresWithin(long marginMs) {
+            return expiresWithin(marginMs, System.currentTimeMillis());
+        }
+
+        /**
+         * @return true if the token expires within the margin of the given time.
+         */
+        boolean expiresWithin(long marginMs, long nowMs) {
+            return nowMs >= expiryTimeMs - marginMs;
+        }
+    }
+
+    private static final class Entry {
+        private volatile Token token;
+        // Loader and refresh margin of the last caller, used by the background refresh
+        private volatile TokenLoader loader;
+        private volatile long marginMs;
+        // Set by every caller, cleared by every scheduled refresh
+        private volatile boolean used;
+        private CompletableFuture<Token> refresh; // guarded by this
+        private Future<?> scheduled; // guarded by this
+        private long invalidatedAtMs; // guarded by this
+    }
+
+    /**
+     * Builds the cache key of a connection. The client secret is part of the key as a digest, so a connection with a wrong secret never
+     * gets the token obtained with the right one.
+     */
+    static String key(String oauthHost, String clientId, String clientSecret, String instanceId) {
+        return oauthHost + "|" + clientId + "|" + instanceId + "|" + digest(clientSecret);
+    }
+
+    private static String digest(String secret) {
+        if (secret == null) {
+            return "";
+        }
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(secret.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(hash);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the cached token of the key. A token within the margin is still returned while it stays valid for
+     * {@link #MIN_VALIDITY_MS}, and renewed in the background. Otherwise the caller waits for a new token.
+     *
+     * @param key the key built by {@link #key(String, String, String, String)}.
+     * @param marginMs the remaining lifetime below which the token is renewed.
+     * @param loader requests a new token, called by at most one thread per key at a time.
+     * @return the token.
+     * @throws SQLException if the refresh failed, for the refreshing thread and all threads waiting for it.
+     */
+    Token get(String key, long marginMs, TokenLoader loader) throws SQLException {
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        entry.loader = loader;
+        entry.marginMs = marginMs;
+        entry.used = true;
+        long minValidityMs = Math.min(MIN_VALIDITY_MS, marginMs);
+        long now = clock.getAsLong();
+        Token token = entry.token;
+        if (token != null && !token.expiresWithin(marginMs, now)) {
+            return token;
+        }
+        if (token != null && !token.expiresWithin(minValidityMs, now)) {
+            refreshInBackground(entry);
+            return token;
+        }
+
+        CompletableFuture<Token> refresh;
+        boolean refreshing = false;
+        synchronized (entry) {
+            token = entry.token;
+            if (token != null && !token.expiresWithin(minValidityMs, clock.getAsLong())) {
+                return token;
+            }
+            refresh = entry.refresh;
+            if (refresh == null) {
+                refresh = new CompletableFuture<>();
+                entry.refresh = refresh;
+                refreshing = true;
+            }
+        }
+        return refreshing ? refresh(entry, refresh, loader, false) : await(refresh);
+    }
+
+    /**
+     * Stores a token obtained ahead of its first use, e.g. prefetched for several instances, unless the cache holds one that lives longer.
+     * It is renewed in the background like any other token once connections use it.
+     *
+     * @param key the key built by {@link #key(String, String, String, String)}.
+     * @param marginMs the remaining lifetime below which the token is renewed.
+     * @param token the new token.
+     */
+    void put(String key, long marginMs, Token token) {
+        Entry entry = entries.computeIfAbsent(key, k -> new Entry());
+        synchronized (entry) {
+            Token current = entry.token;
+            if (current != null && current.getExpiryTimeMs() >= token.getExpiryTimeMs()) {
+                return;
+            }
+            entry.token = token;
+            entry.marginMs = marginMs;
+        }
+        scheduleRefresh(entry, token);
+    }
+
+    /**
+     * Discards a token the server rejected before its expiry, so the next {@link #get(String, long, TokenLoader)} waits for a new one.
+     * A token that was already replaced is left alone. Tokens of a key are discarded at most once per
+     * {@link #MIN_INVALIDATION_INTERVAL_MS}: if new tokens are rejected as well, asking Account Manager for yet another one on every
+     * request would not help.
+     *
+     * @param key the key built by {@link #key(String, String, String, String)}.
+     * @param rejected the token the server rejected.
+     * @return true if the next call returns a token other than the rejected one.
+     */
+    boolean invalidate(String key, Token rejected) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return true;
+        }
+        synchronized (entry) {
+            if (entry.token != rejected) {
+                return true;
+            }
+            long now = clock.getAsLong();
+            if (entry.invalidatedAtMs != 0 && now - entry.invalidatedAtMs < MIN_INVALIDATION_INTERVAL_MS) {
+                return false;
+            }
+            entry.invalidatedAtMs = now;
+            entry.token = null;
+            return true;
+        }
+    }
+
+    /**
+     * Starts a refresh on the refresher thread, unless one is already in flight.
+     */
+    private void refreshInBackground(Entry entry) {
+        TokenLoader loader = entry.loader;
+        if (loader == null) {
+            return;
+        }
+        CompletableFuture<Token> refresh = new CompletableFuture<>();
+        synchronized (entry) {
+            if (entry.refresh != null) {
+                return;
+            }
+            entry.refresh = refresh;
+        }
+        scheduler.schedule(() -> {
+            try {
+                refresh(entry, refresh, loader, true);
+            } catch (SQLException | RuntimeException e) {
+                LOG.warn("Background OAuth token refresh failed, retrying in {} ms: {}", BACKGROUND_RETRY_DELAY_MS, e.getMessage());
+                scheduleRetry(entry);
+            }
+        }, 0);
+    }
+
+    private Token refresh(Entry entry, CompletableFuture<Token> refresh, TokenLoader loader, boolean background)
+                    throws SQLException {
+        long start = System.nanoTime();
+        try {
+            Token token = loader.load();
+            stats.recordRefresh(background, System.nanoTime() - start);
+            entry.token = token;
+            refresh.complete(token);
+            scheduleRefresh(entry, token);
+            return token;
+        } catch (SQLException | RuntimeException e) {
+            stats.recordFailure();
+            refresh.completeExceptionally(e);
+            throw e;
+        } finally {
+            synchronized (entry) {
+                entry.refresh = null;
+            }
+        }
+    }
+
+    /**
+     * Schedules the renewal of a new token before it reaches the refresh margin, at the latest halfway through its lifetime.
+     */
+    private void scheduleRefresh(Entry entry, Token token) {
+        long lifetimeMs = token.getExpiryTimeMs() - clock.getAsLong();
+        schedule(entry, Math.max(lifetimeMs / 2, lifetimeMs - 2 * entry.marginMs));
+    }
+
+    /**
+     * Schedules another try of a failed background refresh, as long as the current token outlives it.
+     */
+    private void scheduleRetry(Entry entry) {
+        Token token = entry.token;
+        if (token != null && !token.expiresWithin(MIN_VALIDITY_MS + BACKGROUND_RETRY_DELAY_MS, clock.getAsLong())) {
+            schedule(entry, BACKGROUND_RETRY_DELAY_MS);
+        }
+    }
+
+    private void schedule(Entry entry, long delayMs) {
+        synchronized (entry) {
+            if (entry.scheduled != null) {
+                entry.scheduled.cancel(false);
+            }
+            entry.scheduled = scheduler.schedule(() -> renew(entry), Math.max(0, delayMs));
+        }
+    }
+
+    /**
+     * Renews the token of an entry in the background if a connection asked for it since the last renewal. Otherwise the entry is left
+     * to expire and releases its loader, a later caller refreshes it on demand.
+     */
+    private void renew(Entry entry) {
+        if (!entry.used || entry.loader == null) {
+            LOG.debug("OAuth token not used since its last renewal, no longer renewing it");
+            entry.loader = null;
+            return;
+        }
+        entry.used = false;
+        refreshInBackground(entry);
+    }
+
+    private static Token await(CompletableFuture<Token> refresh) throws SQLException {
+        try {
+            return refresh.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the OAuth token refresh", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLException) {
+                SQLException failure = (SQLException) cause;
+                throw new SQLException(failure.getMessage(), failure.getSQLState(), failure.getErrorCode(), failure);
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException("OAuth token refresh failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Forgets all tokens and stops renewing them, so the next request of every connection asks Account Manager for a new one.
+     */
+    void reset() {
+        for (Entry entry : entries.values()) {
+            synchronized (entry) {
+                if (entry.scheduled != null) {
+                    entry.scheduled.cancel(false);
+                }
+            }
+        }
+        entries.clear();
+        stats.reset();
+    }
+
+    /**
+     * @return the refresh counters of all tokens of the process.
+     */
+    TokenRefreshStats getStats() {
+        return stats;
+    }
+}
@@ -0,0 +1,81 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of the OAuth token refreshes of the process, shared by all connections like the tokens themselves.
+ */
+public final class TokenRefreshStats {
+
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder backgroundRefreshes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder refreshNanos = new LongAdder();
+    private final AtomicLong lastRefreshNanos = new AtomicLong();
+
+    void recordRefresh(boolean background, long durationNanos) {
+        refreshes.increment();
+        if (background) {
+            backgroundRefreshes.increment();
+        }
+        refreshNanos.add(durationNanos);
+        lastRefreshNanos.set(durationNanos);
+    }
+
+    void recordFailure() {
+        failures.increment();
+    }
+
+    void reset() {
+        refreshes.reset();
+        backgroundRefreshes.reset();
+        failures.reset();
+        refreshNanos.reset();
+        lastRefreshNanos.set(0);
+    }
+
+    /**
+     * @return the number of tokens obtained from Account Manager.
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return the number of tokens obtained ahead of expiry, without a request waiting for them.
+     */
+    public long getBackgroundRefreshes() {
+        return backgroundRefreshes.sum();
+    }
+
+    /**
+     * @return the number of failed token requests, in the background or on the request path.
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the average time a successful token request took.
+     */
+    public long getAverageRefreshMillis() {
+        long count = getRefreshes();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(refreshNanos.sum() / count);
+    }
+
+    /**
+     * @return the time the last successful token request took.
+     */
+    public long getLastRefreshMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastRefreshNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "TokenRefreshStats{refreshes=" + getRefreshes() + ", backgroundRefreshes=" + getBackgroundRefreshes() + ", failures="
+                + getFailures() + ", averageRefreshMillis=" + getAverageRefreshMillis() + ", lastRefreshMillis=" + getLastRefreshMillis()
+                + '}';
+    }
+}
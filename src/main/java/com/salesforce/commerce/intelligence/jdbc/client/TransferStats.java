@@ -0,0 +1,63 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Byte counters of the frames exchanged by one {@link CIPAvaticaHttpClient}, i.e. by one JDBC connection. Serialized sizes are the protobuf
+ * frames as produced and consumed by Avatica, wire sizes are the HTTP bodies after content coding. Every attempt of a retried request is
+ * counted.
+ * <p>
+ * Response wire sizes are only known when the driver negotiates the content coding itself (see the {@code compression} property); otherwise
+ * both response counters grow by the decoded size.
+ */
+public final class TransferStats {
+
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder requestWireBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder responseWireBytes = new LongAdder();
+
+    void recordRequest(long serialized, long wire) {
+        requestBytes.add(serialized);
+        requestWireBytes.add(wire);
+    }
+
+    void recordResponse(long wire, long serialized) {
+        responseWireBytes.add(wire);
+        responseBytes.add(serialized);
+    }
+
+    /**
+     * @return the serialized size of all request frames sent.
+     */
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    /**
+     * @return the size of all request bodies as sent on the wire.
+     */
+    public long getRequestWireBytes() {
+        return requestWireBytes.sum();
+    }
+
+    /**
+     * @return the serialized size of all response frames received.
+     */
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    /**
+     * @return the size of all successful response bodies as received on the wire.
+     */
+    public long getResponseWireBytes() {
+        return responseWireBytes.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "TransferStats{requestBytes=" + getRequestBytes() + ", requestWireBytes=" + getRequestWireBytes() + ", responseBytes="
+                + getResponseBytes() + ", responseWireBytes=" + getResponseWireBytes() + '}';
+    }
+}
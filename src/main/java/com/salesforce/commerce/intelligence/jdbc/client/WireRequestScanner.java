@@ -0,0 +1,155 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.Descriptors;
+import com.google.protobuf.WireFormat;
+import org.apache.calcite.avatica.proto.Common;
+import org.apache.calcite.avatica.proto.Requests;
+
+/**
+ * Reads the routing information of a serialized Avatica request directly from the protobuf wire format. Only the {@code WireMessage} name
+ * and the {@code connection_id} (or the {@code connection_id} nested in {@code statementHandle}) are decoded; every other field, including
+ * the parameter values of batch requests, is skipped without being materialized.
+ */
+final class WireRequestScanner {
+
+    private static final int WIRE_NAME_FIELD = Common.WireMessage.NAME_FIELD_NUMBER;
+    private static final int WIRE_WRAPPED_MESSAGE_FIELD = Common.WireMessage.WRAPPED_MESSAGE_FIELD_NUMBER;
+    private static final int HANDLE_CONNECTION_ID_FIELD = Common.StatementHandle.CONNECTION_ID_FIELD_NUMBER;
+
+    // Keyed by the fully qualified protobuf class name that ProtobufTranslationImpl writes into WireMessage.name
+    private static final Map<String, Target> TARGETS = new HashMap<>();
+
+    static {
+        for (Descriptors.Descriptor descriptor : Requests.getDescriptor().getMessageTypes()) {
+            RequestKind kind = RequestKind.forSimpleName(descriptor.getName());
+            if (kind == RequestKind.UNKNOWN) {
+                continue;
+            }
+            // Field numbers differ between request messages, so they are read from the descriptors instead of being hard-coded
+            Descriptors.FieldDescriptor connectionId = descriptor.findFieldByName("connection_id");
+            Descriptors.FieldDescriptor statementHandle = descriptor.findFieldByName("statementHandle");
+            TARGETS.put(Requests.class.getName() + "$" + descriptor.getName(),
+                    new Target(kind, connectionId == null ? -1 : connectionId.getNumber(),
+                            statementHandle == null ? -1 : statementHandle.getNumber()));
+        }
+    }
+
+    private WireRequestScanner() {
+    }
+
+    /**
+     * Scans a serialized request.
+     *
+     * @param request the serialized {@code WireMessage}.
+     * @return the request kind and connection id, or null if the payload is not a recognized request and has to be fully parsed.
+     */
+    static Result scan(byte[] request) {
+        try {
+            CodedInputStream in = CodedInputStream.newInstance(request);
+            String name = null;
+            int wrappedOffset = -1;
+            int wrappedLength = 0;
+            while (name == null || wrappedOffset < 0) {
+                int tag = in.readTag();
+                if (tag == 0) {
+                    break;
+                }
+                int field = WireFormat.getTagFieldNumber(tag);
+                if (field == WIRE_NAME_FIELD && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    name = in.readStringRequireUtf8();
+                } else if (field == WIRE_WRAPPED_MESSAGE_FIELD
+                        && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                    wrappedLength = in.readRawVarint32();
+                    wrappedOffset = in.getTotalBytesRead();
+                    in.skipRawBytes(wrappedLength);
+                } else if (!in.skipField(tag)) {
+                    break;
+                }
+            }
+
+            Target target = name == null ? null : TARGETS.get(name);
+            if (target == null) {
+                return null;
+            }
+            if (wrappedOffset < 0) {
+                // An empty wrapped message is valid, it just carries no connection id
+                return new Result(target.kind, null);
+            }
+            return new Result(target.kind, readConnectionId(CodedInputStream.newInstance(request, wrappedOffset, wrappedLength), target));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static String readConnectionId(CodedInputStream in, Target target) throws IOException {
+        while (true) {
+            int tag = in.readTag();
+            if (tag == 0) {
+                return null;
+            }
+            int field = WireFormat.getTagFieldNumber(tag);
+            boolean lengthDelimited = WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED;
+            if (field == target.connectionIdField && lengthDelimited) {
+                return in.readStringRequireUtf8();
+            } else if (field == target.statementHandleField && lengthDelimited) {
+                int limit = in.pushLimit(in.readRawVarint32());
+                String connectionId = readHandleConnectionId(in);
+                in.popLimit(limit);
+                return connectionId;
+            } else if (!in.skipField(tag)) {
+                return null;
+            }
+        }
+    }
+
+    private static String readHandleConnectionId(CodedInputStream in) throws IOException {
+        while (!in.isAtEnd()) {
+            int tag = in.readTag();
+            if (WireFormat.getTagFieldNumber(tag) == HANDLE_CONNECTION_ID_FIELD
+                    && WireFormat.getTagWireType(tag) == WireFormat.WIRETYPE_LENGTH_DELIMITED) {
+                return in.readStringRequireUtf8();
+            } else if (!in.skipField(tag)) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Routing information read from a serialized request.
+     */
+    static final class Result {
+        private final RequestKind kind;
+        private final String connectionId;
+
+        Result(RequestKind kind, String connectionId) {
+            this.kind = kind;
+            this.connectionId = connectionId;
+        }
+
+        RequestKind getKind() {
+            return kind;
+        }
+
+        String getConnectionId() {
+            return connectionId;
+        }
+    }
+
+    private static final class Target {
+        private final RequestKind kind;
+        private final int connectionIdField;
+        private final int statementHandleField;
+
+        Target(RequestKind kind, int connectionIdField, int statementHandleField) {
+            this.kind = kind;
+            this.connectionIdField = connectionIdField;
+            this.statementHandleField = statementHandleField;
+        }
+    }
+}
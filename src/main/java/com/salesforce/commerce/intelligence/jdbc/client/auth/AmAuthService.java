@@ -9,10 +9,15 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.sql.SQLException;
 import java.util.Base64;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 
-import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 /**
@@ -31,14 +36,19 @@ public class AmAuthService {
 
     private static final String PRD_AM_OAUTH_URL = PRD_AM_OAUTH_HOST + AM_CLIENT_INFO_BASEPATH;
 
+    // Shared by all connections, so token requests reuse its connections to Account Manager
+    private static final HttpClient SHARED_HTTP_CLIENT = HttpClient.newBuilder().connectTimeout(java.time.Duration.ofSeconds(30)).build();
+
+    private static final ObjectMapper SHARED_OBJECT_MAPPER = new ObjectMapper();
+
     private final HttpClient httpClient;
     private final ObjectMapper objectMapper;
 
     /**
-     * Constructs an AmAuthService instance and initializes the HTTP client with JSON parser.
+     * Constructs an AmAuthService instance using the HTTP client and JSON parser shared by all instances.
      */
     public AmAuthService() {
-        this(HttpClient.newBuilder().connectTimeout(java.time.Duration.ofSeconds(30)).build(), new ObjectMapper());
+        this(SHARED_HTTP_CLIENT, SHARED_OBJECT_MAPPER);
     }
 
     /**
@@ -61,6 +71,75 @@ public class AmAuthService {
      */
     public Map<String, String> getAMAccessToken( String amOAuthHost, String amClientId, String amClientSecret, String instanceId )
                     throws SQLException
+    {
+        HttpRequest request = buildTokenRequest( amOAuthHost, amClientId, amClientSecret, instanceId );
+
+        try
+        {
+            // Send POST request to the OAuth service
+            HttpResponse<String> response = httpClient.send( request, HttpResponse.BodyHandlers.ofString() );
+
+            return parseTokenResponse( response );
+        }
+        catch ( IOException e )
+        {
+            throw new SQLException( "Failed to retrieve OAuth token: " + e.getMessage(), e );
+        }
+        catch ( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            throw new SQLException( "OAuth token retrieval interrupted: " + e.getMessage(), e );
+        }
+    }
+
+    /**
+     * Retrieves an OAuth access token without blocking the calling thread.
+     *
+     * @return a future completed with the access_token and expires_in of the token, or exceptionally with the {@link SQLException}
+     *         {@link #getAMAccessToken(String, String, String, String)} would throw.
+     */
+    public CompletableFuture<Map<String, String>> getAMAccessTokenAsync( String amOAuthHost, String amClientId, String amClientSecret,
+                    String instanceId )
+    {
+        HttpRequest request = buildTokenRequest( amOAuthHost, amClientId, amClientSecret, instanceId );
+
+        return httpClient.sendAsync( request, HttpResponse.BodyHandlers.ofString() ).handle( ( response, error ) -> {
+            if ( error != null )
+            {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                throw new CompletionException( new SQLException( "Failed to retrieve OAuth token: " + cause.getMessage(), cause ) );
+            }
+            try
+            {
+                return parseTokenResponse( response );
+            }
+            catch ( SQLException e )
+            {
+                throw new CompletionException( e );
+            }
+        } );
+    }
+
+    /**
+     * Retrieves OAuth access tokens of one client for several instances concurrently, e.g. to obtain all tokens a job needs when it starts
+     * instead of one after the other on the first request to each instance.
+     *
+     * @param instanceIds the Salesforce Commerce API instance IDs, duplicates are requested once.
+     * @return the pending token of every instance, in the iteration order of the IDs. Each future fails on its own, see
+     *         {@link #getAMAccessTokenAsync(String, String, String, String)}.
+     */
+    public Map<String, CompletableFuture<Map<String, String>>> getAMAccessTokens( String amOAuthHost, String amClientId,
+                    String amClientSecret, Collection<String> instanceIds )
+    {
+        Map<String, CompletableFuture<Map<String, String>>> tokens = new LinkedHashMap<>();
+        for ( String instanceId : instanceIds )
+        {
+            tokens.computeIfAbsent( instanceId, id -> getAMAccessTokenAsync( amOAuthHost, amClientId, amClientSecret, id ) );
+        }
+        return tokens;
+    }
+
+    private HttpRequest buildTokenRequest( String amOAuthHost, String amClientId, String amClientSecret, String instanceId )
     {
         // Use the provided OAuth host or fallback to the default
         String tokenEndpoint = ( amOAuthHost != null && !amOAuthHost.isEmpty() ) ?
@@ -76,60 +155,72 @@ public class AmAuthService {
                         + "&scope=" + URLEncoder.encode( "SALESFORCE_COMMERCE_API:" + instanceId, StandardCharsets.UTF_8 );
 
         // Build HTTP request
-        HttpRequest request = HttpRequest.newBuilder()
+        return HttpRequest.newBuilder()
                         .uri( URI.create( tokenEndpoint ) )
                         .header( "Authorization", authHeader )
                         .header( "Content-Type", "application/x-www-form-urlencoded" )
                         .POST( HttpRequest.BodyPublishers.ofString( formData ) )
                         .build();
+    }
 
-        try
+    private Map<String, String> parseTokenResponse( HttpResponse<String> response ) throws SQLException
+    {
+        // Extract and return the access token from the response
+        if ( response.statusCode() >= 200 && response.statusCode() < 300 )
         {
-            // Send POST request to the OAuth service
-            HttpResponse<String> response = httpClient.send( request, HttpResponse.BodyHandlers.ofString() );
+            Map<String, String> tokenAndExpiresIn = readTokenFields( response.body() );
 
-            // Extract and return the access token from the response
-            if ( response.statusCode() >= 200 && response.statusCode() < 300 )
+            if ( tokenAndExpiresIn.get( "access_token" ) == null || tokenAndExpiresIn.get( "expires_in" ) == null )
             {
-                Map<String, String> responseBody = objectMapper.readValue( response.body(),
-                                new TypeReference<Map<String, String>>()
-                                {
-                                } );
-
-                String accessToken = responseBody.get( "access_token" );
-                String expiresIn = responseBody.get( "expires_in" );
-
-                if ( accessToken == null || expiresIn == null )
-                {
-                    throw new SQLException( "Invalid OAuth response: missing access_token or expires_in" );
-                }
-
-                Map<String, String> tokenAndExpiresIn = new HashMap<>();
-                tokenAndExpiresIn.put( "access_token", accessToken );
-                tokenAndExpiresIn.put( "expires_in", expiresIn );
-                return tokenAndExpiresIn;
+                throw new SQLException( "Invalid OAuth response: missing access_token or expires_in" );
             }
-            else if ( response.statusCode() == 401 )
-            {
-                throw new SQLException( "401 Unauthorized. Please verify your username and password." );
-            }
-            else if ( response.statusCode() == 400 )
+            return tokenAndExpiresIn;
+        }
+        else if ( response.statusCode() == 401 )
+        {
+            throw new SQLException( "401 Unauthorized. Please verify your username and password." );
+        }
+        else if ( response.statusCode() == 400 )
+        {
+            throw new SQLException( "400 Bad Request: " + response.body() );
+        }
+        else
+        {
+            throw new SQLException( "OAuth request failed with status " + response.statusCode() + ": " + response.body() );
+        }
+    }
+
+    /**
+     * Picks access_token and expires_in out of the token response with the streaming parser, skipping all other fields without building a
+     * tree or map of the whole response.
+     */
+    private Map<String, String> readTokenFields( String body ) throws SQLException
+    {
+        Map<String, String> tokenAndExpiresIn = new HashMap<>();
+        try ( JsonParser parser = objectMapper.getFactory().createParser( body ) )
+        {
+            if ( parser.nextToken() != JsonToken.START_OBJECT )
             {
-                throw new SQLException( "400 Bad Request: " + response.body() );
+                throw new SQLException( "Invalid OAuth response: expected a JSON object" );
             }
-            else
+            while ( parser.nextToken() == JsonToken.FIELD_NAME )
             {
-                throw new SQLException( "OAuth request failed with status " + response.statusCode() + ": " + response.body() );
+                String field = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ( ( "access_token".equals( field ) || "expires_in".equals( field ) ) && value.isScalarValue() )
+                {
+                    tokenAndExpiresIn.put( field, parser.getValueAsString() );
+                }
+                else
+                {
+                    parser.skipChildren();
+                }
             }
         }
         catch ( IOException e )
         {
             throw new SQLException( "Failed to retrieve OAuth token: " + e.getMessage(), e );
         }
-        catch ( InterruptedException e )
-        {
-            Thread.currentThread().interrupt();
-            throw new SQLException( "OAuth token retrieval interrupted: " + e.getMessage(), e );
-        }
+        return tokenAndExpiresIn;
     }
 }
@@ -0,0 +1,141 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.avatica.BuiltInConnectionProperty;
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.junit.Test;
+
+public class AdaptiveFetchSizeTest {
+
+    private static final String CONNECTION_ID = "connection";
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ProtobufTranslation translation = new ProtobufTranslationImpl();
+
+    private byte[] frame(int rows, int rowWidth, boolean done) throws IOException {
+        List<Object> values = new ArrayList<>();
+        char[] value = new char[rowWidth];
+        Arrays.fill(value, 'x');
+        for (int i = 0; i < rows; i++) {
+            values.add(new Object[] {new String(value)});
+        }
+        return translation.serializeResponse(new Service.FetchResponse(Meta.Frame.create(0, done, values), false, false, null));
+    }
+
+    @Test
+    public void testScanFrameCountsRowsAndReadsDone() throws IOException {
+        long frame = AdaptiveFetchSize.scanFrame(frame(42, 8, false));
+        assertEquals(42, frame >>> 1);
+        assertEquals(0, frame & 1);
+
+        frame = AdaptiveFetchSize.scanFrame(frame(3, 8, true));
+        assertEquals(3, frame >>> 1);
+        assertEquals(1, frame & 1);
+
+        assertEquals(-1, AdaptiveFetchSize.scanFrame(new byte[] { (byte) 0xff }));
+    }
+
+    @Test
+    public void testScanFirstFrameReadsTheFrameOfTheExecuteResponse() throws IOException {
+        List<Object> values = new ArrayList<>(Collections.nCopies(42, new Object[] {"value"}));
+        Service.ResultSetResponse result = new Service.ResultSetResponse(CONNECTION_ID, 1, false, null, Meta.Frame.create(0, false, values), -1,
+                null);
+        long frame = AdaptiveFetchSize.scanFirstFrame(execute(result));
+        assertEquals(42, frame >>> 1);
+        assertEquals(0, frame & 1);
+
+        // An update count has no frame to fetch after it, several results are not prefetched
+        Service.ResultSetResponse update = new Service.ResultSetResponse(CONNECTION_ID, 1, false, null, null, 5, null);
+        assertEquals(1, AdaptiveFetchSize.scanFirstFrame(execute(update)));
+        assertEquals(-1, AdaptiveFetchSize.scanFirstFrame(execute(result, result)));
+    }
+
+    private byte[] execute(Service.ResultSetResponse... results) throws IOException {
+        return translation.serializeResponse(new Service.ExecuteResponse(Arrays.asList(results), false, null));
+    }
+
+    @Test
+    public void testWideRowsGetSmallerFrames() throws IOException {
+        AdaptiveFetchSize fetchSize = new AdaptiveFetchSize(1000, 64 * 1024, 1000);
+        assertEquals(1000, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+
+        // Rows of 1 KiB of text and more on the wire, so fewer than 64 rows fill the target frame size
+        byte[] frame = frame(1000, 1024, false);
+        fetchSize.record(CONNECTION_ID, 1, 1000, frame, FAST);
+
+        assertEquals(64 * 1024 * 1000 / frame.length, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+        assertTrue(fetchSize.rowsFor(CONNECTION_ID, 1, 1000) < 64);
+        // Other statements are not affected
+        assertEquals(1000, fetchSize.rowsFor(CONNECTION_ID, 2, 1000));
+    }
+
+    @Test
+    public void testSlowFramesGetSmallerAndFastNarrowFramesGrowToTheServerMaximum() throws IOException {
+        AdaptiveFetchSize fetchSize = new AdaptiveFetchSize(1000, 4 << 20, 100);
+
+        fetchSize.record(CONNECTION_ID, 1, 1000, frame(1000, 8, false), TimeUnit.MILLISECONDS.toNanos(400));
+        assertEquals(250, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+
+        // Growth is limited per fetch, and capped by the server maximum
+        fetchSize.record(CONNECTION_ID, 1, 250, frame(250, 8, false), FAST);
+        int rows = fetchSize.rowsFor(CONNECTION_ID, 1, 1000);
+        assertTrue("rows = " + rows, rows > 250 && rows <= 500);
+        for (int i = 0; i < 5; i++) {
+            fetchSize.record(CONNECTION_ID, 1, 1000, frame(1000, 8, false), FAST);
+        }
+        assertEquals(AdaptiveFetchSize.SERVER_MAX_ROWS, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+    }
+
+    @Test
+    public void testExplicitFetchSizeIsKeptAndStateIsDropped() throws IOException {
+        AdaptiveFetchSize fetchSize = new AdaptiveFetchSize(1000, 64 * 1024, 1000);
+        fetchSize.record(CONNECTION_ID, 1, 1000, frame(1000, 1024, false), FAST);
+
+        // A statement with its own fetch size is not tuned
+        assertEquals(200, fetchSize.rowsFor(CONNECTION_ID, 1, 200));
+
+        // The last frame ends the statement
+        fetchSize.record(CONNECTION_ID, 1, 64, frame(10, 1024, true), FAST);
+        assertEquals(1000, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+
+        fetchSize.record(CONNECTION_ID, 1, 1000, frame(1000, 1024, false), FAST);
+        fetchSize.forgetStatement(CONNECTION_ID, 1);
+        assertEquals(1000, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+
+        fetchSize.record(CONNECTION_ID, 1, 1000, frame(1000, 1024, false), FAST);
+        fetchSize.forgetConnection(CONNECTION_ID);
+        assertEquals(1000, fetchSize.rowsFor(CONNECTION_ID, 1, 1000));
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(AdaptiveFetchSize.fromProperties(properties));
+
+        properties.put("adaptiveFetch", "true");
+        properties.put(BuiltInConnectionProperty.FETCH_SIZE.camelName(), "500");
+        AdaptiveFetchSize fetchSize = AdaptiveFetchSize.fromProperties(properties);
+        assertTrue(fetchSize.appliesTo(500));
+
+        properties.put("adaptiveFetchTargetMs", "0");
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveFetchSize.fromProperties(properties));
+
+        properties.put("adaptiveFetch", "yes");
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveFetchSize.fromProperties(properties));
+    }
+}
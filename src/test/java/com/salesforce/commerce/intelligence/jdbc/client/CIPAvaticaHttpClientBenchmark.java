@@ -0,0 +1,234 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import com.salesforce.commerce.intelligence.jdbc.client.auth.AmAuthService;
+import org.apache.calcite.avatica.ColumnMetaData;
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.apache.calcite.avatica.remote.TypedValue;
+import org.apache.hc.client5.http.classic.methods.HttpPost;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
+import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
+import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.mockito.Mockito;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH micro-benchmarks for the per-request work done by {@link CIPAvaticaHttpClient} before a request goes on the wire. These are not part
+ * of the surefire suite. Run them with the GC profiler to compare allocation rates ({@code gc.alloc.rate.norm}):
+ *
+ * <pre>
+ * mvn test-compile dependency:build-classpath -Dmdep.outputFile=target/cp.txt -Dmdep.includeScope=test
+ * java -cp target/test-classes:target/classes:$(cat target/cp.txt) \
+ *     com.salesforce.commerce.intelligence.jdbc.client.CIPAvaticaHttpClientBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CIPAvaticaHttpClientBenchmark {
+
+    private ProtobufTranslation translation;
+    private CIPAvaticaHttpClient client;
+    private byte[] fetchRequest;
+    private Service.Request fetch;
+    private byte[] batchRequest;
+    private byte[] resultFrame;
+    private ResponseBufferPool bufferPool;
+    private CIPAvaticaHttpClient cachingClient;
+    private byte[] executeRequest;
+    private byte[] prepareRequest;
+    private byte[] closeRequest;
+
+    @Setup
+    public void setUp() throws IOException {
+        Properties properties = new Properties();
+        properties.put("instanceId", "bench-instance");
+        properties.put("testMode", "true");
+        translation = new ProtobufTranslationImpl();
+        client = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(properties), new AmAuthService(),
+                        translation);
+        fetch = new Service.FetchRequest("bench-connection-id", 1, 1000, 1000);
+        fetchRequest = translation.serializeRequest(fetch);
+
+        List<List<TypedValue>> updates = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            updates.add(Arrays.asList(TypedValue.ofLocal(ColumnMetaData.Rep.INTEGER, i), TypedValue.ofLocal(ColumnMetaData.Rep.STRING, "row-" + i)));
+        }
+        batchRequest = translation.serializeRequest(new Service.ExecuteBatchRequest("bench-connection-id", 1, updates));
+
+        resultFrame = new byte[1024 * 1024];
+        new Random(42).nextBytes(resultFrame);
+        bufferPool = new ResponseBufferPool(4);
+
+        setUpCachingClient();
+    }
+
+    /**
+     * A client with the metadata, statement and result caches and the frame prefetch enabled, whose caches already hold the result of
+     * {@link #executeRequest} and the statement of {@link #prepareRequest}. Only these setup requests reach the mocked HTTP client.
+     */
+    private void setUpCachingClient() throws IOException {
+        Properties properties = new Properties();
+        properties.put("instanceId", "bench-caching-instance");
+        properties.put("testMode", "true");
+        properties.put("resultCache", "true");
+        properties.put("metadataCache", "true");
+        properties.put("preparedStatementCacheQueries", "8");
+        properties.put("prefetch", "true");
+        cachingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(properties),
+                        new AmAuthService(), translation);
+        cachingClient.client = Mockito.mock(CloseableHttpClient.class);
+
+        String connectionId = "bench-connection-id";
+        executeRequest = translation.serializeRequest(new Service.PrepareAndExecuteRequest(connectionId, 1, "SELECT site_id FROM sites", -1));
+        prepareRequest = translation.serializeRequest(new Service.PrepareRequest(connectionId, "SELECT name FROM sites WHERE id = ?", -1));
+        closeRequest = translation.serializeRequest(new Service.CloseStatementRequest(connectionId, 2));
+
+        respondWith(translation.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(new Service.ResultSetResponse(
+                        connectionId, 1, false, null, Meta.Frame.create(0, true, Collections.singletonList(new Object[] {"RefArch"})), -1,
+                        null)), false, null)));
+        cachingClient.send(executeRequest);
+        respondWith(translation.serializeResponse(new Service.PrepareResponse(new Meta.StatementHandle(connectionId, 2, null), null)));
+        cachingClient.send(prepareRequest);
+        cachingClient.send(closeRequest);
+    }
+
+    private void respondWith(byte[] body) throws IOException {
+        CloseableHttpResponse response = Mockito.mock(CloseableHttpResponse.class);
+        Mockito.when(response.getCode()).thenReturn(200);
+        Mockito.when(response.getEntity()).thenReturn(new ByteArrayEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+        Mockito.when(cachingClient.client.execute(Mockito.any(HttpPost.class), Mockito.any(HttpClientContext.class))).thenReturn(response);
+    }
+
+    /**
+     * The pre-envelope request path: the payload was parsed once to find the connection id and a second time to decide on the request type
+     * header.
+     */
+    @Benchmark
+    public void parseTwicePerSend(Blackhole blackhole) throws IOException {
+        Service.Request forConnectionId = translation.parseRequest(fetchRequest);
+        String connectionId = client.extractConnectionId(forConnectionId);
+        Service.Request forHeaders = translation.parseRequest(fetchRequest);
+        blackhole.consume(client.getHttpPost(new RequestEnvelope(fetchRequest, forHeaders, connectionId), null));
+    }
+
+    /**
+     * The envelope request path: the payload is parsed once and the result is shared by header computation and response handling.
+     */
+    @Benchmark
+    public void envelopePerSend(Blackhole blackhole) {
+        RequestEnvelope envelope = client.newEnvelope(fetchRequest);
+        blackhole.consume(client.getHttpPost(envelope, null));
+    }
+
+    /**
+     * The former connection id lookup: a reflective field lookup and accessibility override on every call.
+     */
+    @Benchmark
+    public Object connectionIdReflective() throws ReflectiveOperationException {
+        Field connectionIdField = fetch.getClass().getDeclaredField("connectionId");
+        connectionIdField.setAccessible(true);
+        return connectionIdField.get(fetch);
+    }
+
+    /**
+     * The connection id lookup through the typed accessor table in {@link RequestKind}.
+     */
+    @Benchmark
+    public String connectionIdExtractorTable() {
+        return client.extractConnectionId(fetch);
+    }
+
+    /**
+     * Full deserialization of a 1000-row batch request, as needed before the wire scanner existed.
+     */
+    @Benchmark
+    public Service.Request batchFullParse() throws IOException {
+        return translation.parseRequest(batchRequest);
+    }
+
+    /**
+     * Routing the same batch request through the wire scanner.
+     */
+    @Benchmark
+    public WireRequestScanner.Result batchWireScan() {
+        return WireRequestScanner.scan(batchRequest);
+    }
+
+    /**
+     * A repeated query answered by the result cache, after the metadata cache, the statement cache and the frame prefetch looked at it.
+     * All of them share the envelope of the send, so the request is scanned once and parsed once.
+     */
+    @Benchmark
+    public byte[] resultCacheHitThroughAllStages() {
+        return cachingClient.send(executeRequest);
+    }
+
+    /**
+     * A prepared statement reused from the statement cache and closed again without a request, through all stages of the send.
+     */
+    @Benchmark
+    public void statementCacheHitThroughAllStages(Blackhole blackhole) {
+        blackhole.consume(cachingClient.send(prepareRequest));
+        blackhole.consume(cachingClient.send(closeRequest));
+    }
+
+    /**
+     * Reading a 1 MiB response body of unknown length (chunked or decoded on the fly) the way {@code EntityUtils.toByteArray} does.
+     */
+    @Benchmark
+    public byte[] unknownLengthEntityUtils() throws IOException {
+        return EntityUtils.toByteArray(new InputStreamEntity(new ByteArrayInputStream(resultFrame), -1,
+                ContentType.APPLICATION_OCTET_STREAM));
+    }
+
+    /**
+     * Reading the same body through the {@link ResponseBufferPool}.
+     */
+    @Benchmark
+    public byte[] unknownLengthBufferPool() throws IOException {
+        return bufferPool.readFully(new ByteArrayInputStream(resultFrame), -1);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options options = new OptionsBuilder().include(CIPAvaticaHttpClientBenchmark.class.getSimpleName()).addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
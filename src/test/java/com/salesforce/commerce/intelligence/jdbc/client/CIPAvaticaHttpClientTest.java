@@ -1,5 +1,6 @@
 package com.salesforce.commerce.intelligence.jdbc.client;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -13,6 +14,7 @@ import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -24,11 +26,17 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.salesforce.commerce.intelligence.jdbc.client.auth.AmAuthService;
 import org.apache.calcite.avatica.ConnectionConfig;
 import org.apache.calcite.avatica.Meta;
 import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
 import org.apache.calcite.avatica.remote.Service;
 import org.apache.calcite.avatica.remote.TypedValue;
 import org.apache.hc.client5.http.classic.methods.HttpPost;
@@ -36,9 +44,14 @@ import org.apache.hc.client5.http.impl.classic.CloseableHttpClient;
 import org.apache.hc.client5.http.impl.classic.CloseableHttpResponse;
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManager;
 import org.apache.hc.client5.http.protocol.HttpClientContext;
+import org.apache.hc.core5.http.ClassicHttpResponse;
 import org.apache.hc.core5.http.ContentType;
 import org.apache.hc.core5.http.Header;
 import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.impl.bootstrap.HttpServer;
+import org.apache.hc.core5.http.impl.bootstrap.ServerBootstrap;
+import org.apache.hc.core5.io.CloseMode;
 import org.junit.Before;
 import org.junit.Test;
 import org.apache.hc.core5.http.NoHttpResponseException;
@@ -51,6 +64,7 @@ public class CIPAvaticaHttpClientTest {
     private AmAuthService mockAuthService;
 
     private ProtobufTranslation mockProtobufTranslation;
+    private Properties connectionProperties;
 
     private static final String ERROR_MESSAGE = "Unauthorized access";
 
@@ -71,6 +85,11 @@ public class CIPAvaticaHttpClientTest {
         throws Exception
     {
 
+        // Every test starts with closed circuit breakers, regardless of the failures simulated by earlier tests
+        CircuitBreaker.resetAll();
+        // and without the OAuth tokens cached by earlier tests
+        TokenCache.shared().reset();
+
         // Real connection manager for the HTTP client
         PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
 
@@ -86,9 +105,8 @@ public class CIPAvaticaHttpClientTest {
         properties.put( "password", "mock-password" );
         properties.put( "instanceId", "mock-instance" );
 
-        // Mock the connection properties being used by the CIPDriver class
-        CIPDriver.connectionProperties = new ThreadLocal<>();
-        CIPDriver.connectionProperties.set( properties );
+        // Connection properties of the clients created by the tests
+        connectionProperties = properties;
 
         // Mock the AmAuthService
         mockAuthService = mock( AmAuthService.class );
@@ -103,7 +121,7 @@ public class CIPAvaticaHttpClientTest {
         when( mockProtobufTranslation.parseRequest( any() ) ).thenReturn( realRequest );
 
         cipAvaticaHttpClient =
-            new CIPAvaticaHttpClient( new URL( "http://127.0.0.1" ), mockAuthService, mockProtobufTranslation );
+            new CIPAvaticaHttpClient( new URL( "http://127.0.0.1" ), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService, mockProtobufTranslation );
         cipAvaticaHttpClient.setHttpClientPool( connectionManager, config );
         // Mock the HTTP response behavior
         CloseableHttpResponse mockResponse = mock( CloseableHttpResponse.class );
@@ -167,7 +185,7 @@ public class CIPAvaticaHttpClientTest {
 
         // Override the behavior of getHttpPost to capture the HttpPost object
         doAnswer( invocation -> {
-            byte[] request = invocation.getArgument( 0 );
+            RequestEnvelope envelope = invocation.getArgument( 0 );
             String sessionId = invocation.getArgument( 1 );
 
             // Create a real HttpPost and verify its behavior
@@ -182,13 +200,13 @@ public class CIPAvaticaHttpClientTest {
                 authorizationHeader.getValue() );
 
             return post;
-        } ).when( spyClient ).getHttpPost( any( byte[].class ), anyString() );
+        } ).when( spyClient ).getHttpPost( any( RequestEnvelope.class ), anyString() );
 
         // Call send method
         spyClient.send( MOCK_REQUEST_PAYLOAD.getBytes() );
 
         // Verify the getHttpPost method was called with the correct arguments
-        verify( spyClient ).getHttpPost( any( byte[].class ), eq( MOCK_SESSION_ID ) );
+        verify( spyClient ).getHttpPost( any( RequestEnvelope.class ), eq( MOCK_SESSION_ID ) );
     }
 
     @Test
@@ -196,7 +214,7 @@ public class CIPAvaticaHttpClientTest {
         throws Exception
     {
         // Set token expiry time to be close to the current time, so it will trigger a refresh
-        cipAvaticaHttpClient.tokenExpiryTimeMs = System.currentTimeMillis() + 1 * 1000; // 1 second until expiry
+        cipAvaticaHttpClient.token = new TokenCache.Token( "mock-token", System.currentTimeMillis() + 1 * 1000 ); // 1 second until expiry
 
         // Prepare a mock token response from the authentication service
         Map<String, String> tokenResponse = new HashMap<>();
@@ -229,13 +247,13 @@ public class CIPAvaticaHttpClientTest {
                 authorizationHeader.getValue() );
 
             return post;
-        } ).when( spyClient ).getHttpPost( any( byte[].class ), anyString() );
+        } ).when( spyClient ).getHttpPost( any( RequestEnvelope.class ), anyString() );
 
         // Call send method
         spyClient.send( MOCK_REQUEST_PAYLOAD.getBytes() );
 
         // Verify the getHttpPost method was called with the correct arguments
-        verify( spyClient ).getHttpPost( any( byte[].class ), eq( MOCK_SESSION_ID ) );
+        verify( spyClient ).getHttpPost( any( RequestEnvelope.class ), eq( MOCK_SESSION_ID ) );
     }
 
     @Test
@@ -383,13 +401,13 @@ public class CIPAvaticaHttpClientTest {
     @Test
     public void testIsTokenExpiredOrMissing() throws Exception {
         // fudge factor for timing
-        cipAvaticaHttpClient.tokenExpiryTimeMs = System.currentTimeMillis() + TOKEN_EXPIRY_THRESHOLD_MS + 5000;
+        cipAvaticaHttpClient.token = new TokenCache.Token( "mock-token", System.currentTimeMillis() + TOKEN_EXPIRY_THRESHOLD_MS + 5000 );
         java.lang.reflect.Method m = cipAvaticaHttpClient.getClass().getDeclaredMethod("isTokenExpiredOrMissing");
         m.setAccessible(true);
         boolean result1 = (boolean) m.invoke(cipAvaticaHttpClient);
         assertFalse("Token should not be considered expired.", result1);
 
-        cipAvaticaHttpClient.tokenExpiryTimeMs = System.currentTimeMillis() + 1000;
+        cipAvaticaHttpClient.token = new TokenCache.Token( "mock-token", System.currentTimeMillis() + 1000 );
         boolean result2 = (boolean) m.invoke(cipAvaticaHttpClient);
         assertTrue("Token should be considered near expiry.", result2);
     }
@@ -403,10 +421,10 @@ public class CIPAvaticaHttpClientTest {
         properties.put("password", "mock-password");
         properties.put("instanceId", "mock-instance");
         properties.put("testMode", "true");
-        CIPDriver.connectionProperties.set(properties);
+        connectionProperties = properties;
 
         // Use real constructor to trigger testMode logic
-        CIPAvaticaHttpClient testModeClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), mockAuthService,
+        CIPAvaticaHttpClient testModeClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService,
                 mockProtobufTranslation);
         testModeClient.client = mock(CloseableHttpClient.class);
         CloseableHttpResponse mockResponse = mock(CloseableHttpResponse.class);
@@ -420,7 +438,7 @@ public class CIPAvaticaHttpClientTest {
         assertEquals(MOCK_RESPONSE_PAYLOAD, new String(response));
         // The static token should be set
         assertNotNull(testModeClient);
-        java.lang.reflect.Field tokenField = testModeClient.getClass().getDeclaredField("jwtToken");
+        java.lang.reflect.Field tokenField = testModeClient.getClass().getDeclaredField("token");
         tokenField.setAccessible(true);
         assertNotNull(tokenField.get(testModeClient));
         // The auth service should NOT be called in test mode
@@ -436,9 +454,9 @@ public class CIPAvaticaHttpClientTest {
         properties.put("password", "mock-password");
         properties.put("instanceId", "mock-instance");
         properties.put("testMode", "true");
-        CIPDriver.connectionProperties.set(properties);
+        connectionProperties = properties;
 
-        CIPAvaticaHttpClient testModeClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), mockAuthService,
+        CIPAvaticaHttpClient testModeClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService,
                 mockProtobufTranslation);
         // Should be false since static token is set
         java.lang.reflect.Method m = testModeClient.getClass().getDeclaredMethod("isTokenExpiredOrMissing");
@@ -446,7 +464,7 @@ public class CIPAvaticaHttpClientTest {
         boolean result = (boolean) m.invoke(testModeClient);
         assertFalse(result);
         // Now set token to null and check
-        java.lang.reflect.Field tokenField = testModeClient.getClass().getDeclaredField("jwtToken");
+        java.lang.reflect.Field tokenField = testModeClient.getClass().getDeclaredField("token");
         tokenField.setAccessible(true);
         tokenField.set(testModeClient, null);
         boolean result2 = (boolean) m.invoke(testModeClient);
@@ -512,11 +530,11 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleSuccessResponse", 
-                CloseableHttpResponse.class, Service.Request.class, String.class);
+                ClassicHttpResponse.class, RequestEnvelope.class);
         method.setAccessible(true);
 
         byte[] result = (byte[]) method.invoke(cipAvaticaHttpClient, mockResponse, 
-                new Service.OpenConnectionRequest("test-connection-id", null), "test-connection-id");
+                envelope(new Service.OpenConnectionRequest("test-connection-id", null)));
 
         assertNotNull(result);
         assertEquals("response", new String(result));
@@ -525,6 +543,25 @@ public class CIPAvaticaHttpClientTest {
         assertEquals("new-session-id", CIPAvaticaHttpClient.sessionStore.get("test-connection-id"));
     }
 
+    @Test
+    public void testHandleSuccessResponse_CloseConnectionRemovesSession() throws Exception {
+        CIPAvaticaHttpClient.sessionStore.put("closed-connection-id", MOCK_SESSION_ID);
+        long closedRemovals = CIPAvaticaHttpClient.sessionStore.getClosedRemovals();
+        CloseableHttpResponse mockResponse = mock(CloseableHttpResponse.class);
+        Header sessionHeader = mock(Header.class);
+        when(sessionHeader.getValue()).thenReturn(MOCK_SESSION_ID);
+        when(mockResponse.getHeader(HEADER_SESSION_ID)).thenReturn(sessionHeader);
+        when(mockResponse.getEntity()).thenReturn(new ByteArrayEntity("response".getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+
+        java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleSuccessResponse",
+                ClassicHttpResponse.class, RequestEnvelope.class);
+        method.setAccessible(true);
+        method.invoke(cipAvaticaHttpClient, mockResponse, envelope(new Service.CloseConnectionRequest("closed-connection-id")));
+
+        assertNull(CIPAvaticaHttpClient.sessionStore.get("closed-connection-id"));
+        assertEquals(closedRemovals + 1, CIPAvaticaHttpClient.sessionStore.getClosedRemovals());
+    }
+
     @Test
     public void testHandleSuccessResponse_WithoutSessionHeader_OpenConnectionRequest() throws Exception {
         // Mock token response
@@ -540,11 +577,11 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleSuccessResponse", 
-                CloseableHttpResponse.class, Service.Request.class, String.class);
+                ClassicHttpResponse.class, RequestEnvelope.class);
         method.setAccessible(true);
 
         byte[] result = (byte[]) method.invoke(cipAvaticaHttpClient, mockResponse, 
-                new Service.OpenConnectionRequest("test-connection-id", null), "test-connection-id");
+                envelope(new Service.OpenConnectionRequest("test-connection-id", null)));
 
         assertNotNull(result);
         assertEquals("response", new String(result));
@@ -565,7 +602,7 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleSuccessResponse", 
-                CloseableHttpResponse.class, Service.Request.class, String.class);
+                ClassicHttpResponse.class, RequestEnvelope.class);
         method.setAccessible(true);
 
         // Use a non-OpenConnectionRequest type
@@ -573,7 +610,7 @@ public class CIPAvaticaHttpClientTest {
                 new Meta.StatementHandle("test-connection-id", 1, null), 
                 Collections.emptyList(), 100);
 
-        byte[] result = (byte[]) method.invoke(cipAvaticaHttpClient, mockResponse, executeRequest, "test-connection-id");
+        byte[] result = (byte[]) method.invoke(cipAvaticaHttpClient, mockResponse, envelope(executeRequest));
 
         assertNotNull(result);
         assertEquals("response", new String(result));
@@ -587,7 +624,7 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleInternalServerError",
-                CloseableHttpResponse.class);
+                ClassicHttpResponse.class);
         method.setAccessible(true);
 
         try {
@@ -608,7 +645,7 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleInternalServerError",
-                CloseableHttpResponse.class);
+                ClassicHttpResponse.class);
         method.setAccessible(true);
 
         try {
@@ -630,7 +667,7 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleUnexpectedStatus",
-                CloseableHttpResponse.class, int.class);
+                ClassicHttpResponse.class, int.class);
         method.setAccessible(true);
 
         try {
@@ -652,7 +689,7 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleUnexpectedStatus",
-                CloseableHttpResponse.class, int.class);
+                ClassicHttpResponse.class, int.class);
         method.setAccessible(true);
 
         try {
@@ -679,12 +716,12 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleResponse", 
-                CloseableHttpResponse.class, Service.Request.class, String.class);
+                ClassicHttpResponse.class, RequestEnvelope.class);
         method.setAccessible(true);
 
         try {
             method.invoke(cipAvaticaHttpClient, mockResponse, 
-                    new Service.OpenConnectionRequest("test-connection-id", null), "test-connection-id");
+                    envelope(new Service.OpenConnectionRequest("test-connection-id", null)));
             fail("Expected SQLException to be thrown");
         } catch (Exception e) {
             assertTrue(e.getCause() instanceof SQLException);
@@ -705,11 +742,11 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleResponse", 
-                CloseableHttpResponse.class, Service.Request.class, String.class);
+                ClassicHttpResponse.class, RequestEnvelope.class);
         method.setAccessible(true);
 
         byte[] result = (byte[]) method.invoke(cipAvaticaHttpClient, mockResponse, 
-                new Service.OpenConnectionRequest("test-connection-id", null), "test-connection-id");
+                envelope(new Service.OpenConnectionRequest("test-connection-id", null)));
 
         assertEquals(0, result.length); // Should return empty array to signal retry
     }
@@ -730,12 +767,12 @@ public class CIPAvaticaHttpClientTest {
 
         // Use reflection to call the private method
         java.lang.reflect.Method method = cipAvaticaHttpClient.getClass().getDeclaredMethod("handleResponse", 
-                CloseableHttpResponse.class, Service.Request.class, String.class);
+                ClassicHttpResponse.class, RequestEnvelope.class);
         method.setAccessible(true);
 
         try {
             method.invoke(cipAvaticaHttpClient, mockResponse, 
-                    new Service.OpenConnectionRequest("test-connection-id", null), "test-connection-id");
+                    envelope(new Service.OpenConnectionRequest("test-connection-id", null)));
             fail("Expected RuntimeException to be thrown");
         } catch (Exception e) {
             assertTrue(e.getCause() instanceof RuntimeException);
@@ -817,7 +854,7 @@ public class CIPAvaticaHttpClientTest {
     @Test
     public void testRefreshJwtIfNeeded_TokenExpired() throws Exception {
         // Set token to be expired
-        cipAvaticaHttpClient.tokenExpiryTimeMs = System.currentTimeMillis() - 1000; // 1 second ago
+        cipAvaticaHttpClient.token = new TokenCache.Token( "mock-token", System.currentTimeMillis() - 1000 ); // 1 second ago
 
         // Mock token response with proper structure
         Map<String, String> tokenResponse = new HashMap<>();
@@ -838,4 +875,989 @@ public class CIPAvaticaHttpClientTest {
         // Verify auth service was called
         verify(mockAuthService).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
     }
+
+    @Test
+    public void testConnectionsWithTheSameClientShareOneToken() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "shared-token");
+        tokenResponse.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+
+        java.lang.reflect.Method refresh = CIPAvaticaHttpClient.class.getDeclaredMethod("refreshJwtIfNeeded");
+        refresh.setAccessible(true);
+        for (int i = 0; i < 5; i++) {
+            CIPAvaticaHttpClient connection = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService,
+                    mockProtobufTranslation);
+            refresh.invoke(connection);
+            assertEquals("shared-token", connection.token.getAccessToken());
+        }
+
+        verify(mockAuthService).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void testPrefetchTokensSeedsTheTokenCache() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "prefetched-token");
+        tokenResponse.put("expires_in", "3600");
+        Map<String, java.util.concurrent.CompletableFuture<Map<String, String>>> tokens = new HashMap<>();
+        tokens.put("mock-instance", java.util.concurrent.CompletableFuture.completedFuture(tokenResponse));
+        tokens.put("other-instance", java.util.concurrent.CompletableFuture.completedFuture(tokenResponse));
+        when(mockAuthService.getAMAccessTokens(anyString(), anyString(), anyString(), any())).thenReturn(tokens);
+
+        CIPAvaticaHttpClient.prefetchTokens(mockAuthService, connectionProperties,
+                java.util.Arrays.asList("mock-instance", "other-instance")).get(10, java.util.concurrent.TimeUnit.SECONDS);
+
+        java.lang.reflect.Method refresh = CIPAvaticaHttpClient.class.getDeclaredMethod("refreshJwtIfNeeded");
+        refresh.setAccessible(true);
+        refresh.invoke(cipAvaticaHttpClient);
+        assertEquals("prefetched-token", cipAvaticaHttpClient.token.getAccessToken());
+        verify(mockAuthService, org.mockito.Mockito.never()).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void testTokenCacheDirReusesTokenAcrossProcesses() throws Exception {
+        java.nio.file.Path directory = java.nio.file.Files.createTempDirectory("cip-tokens");
+        try {
+            Map<String, String> tokenResponse = new HashMap<>();
+            tokenResponse.put("access_token", "persisted-token");
+            tokenResponse.put("expires_in", "3600");
+            when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+            Properties properties = new Properties();
+            properties.putAll(connectionProperties);
+            properties.put("tokenCacheDir", directory.toString());
+            connectionProperties = properties;
+            java.lang.reflect.Method refresh = CIPAvaticaHttpClient.class.getDeclaredMethod("refreshJwtIfNeeded");
+            refresh.setAccessible(true);
+
+            refresh.invoke(new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService, mockProtobufTranslation));
+            // A new process starts without tokens in memory
+            TokenCache.shared().reset();
+            CIPAvaticaHttpClient nextProcess = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService,
+                    mockProtobufTranslation);
+            refresh.invoke(nextProcess);
+
+            assertEquals("persisted-token", nextProcess.token.getAccessToken());
+            verify(mockAuthService).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
+        } finally {
+            try (java.util.stream.Stream<java.nio.file.Path> files = java.nio.file.Files.walk(directory)) {
+                files.sorted(java.util.Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+    }
+
+    @Test
+    public void testSend_ParsesRequestOncePerSend() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "mock-token");
+        tokenResponse.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+
+        CloseableHttpResponse mock503Response = mock(CloseableHttpResponse.class);
+        when(mock503Response.getCode()).thenReturn(503);
+        CloseableHttpResponse mockSuccessResponse = mock(CloseableHttpResponse.class);
+        when(mockSuccessResponse.getCode()).thenReturn(200);
+        when(mockSuccessResponse.getEntity()).thenReturn(
+                new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        when(cipAvaticaHttpClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mock503Response)
+                .thenReturn(mockSuccessResponse);
+
+        cipAvaticaHttpClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+
+        // The request is parsed once even though the 503 caused a second attempt
+        verify(mockProtobufTranslation, times(1)).parseRequest(any());
+    }
+
+    @Test
+    public void testGetHttpPost_QueryExecuteHeader() {
+        Service.ExecuteRequest executeRequest = new Service.ExecuteRequest(new Meta.StatementHandle("test-connection-id", 1, null),
+                Collections.emptyList(), 100);
+
+        HttpPost executePost = cipAvaticaHttpClient.getHttpPost(envelope(executeRequest), null);
+        assertEquals("query-execute", executePost.getFirstHeader("x-Request-Type").getValue());
+        assertEquals("mock-instance", executePost.getFirstHeader("InstanceId").getValue());
+        assertNotNull(executePost.getFirstHeader("X-Client-Version"));
+
+        HttpPost fetchPost = cipAvaticaHttpClient.getHttpPost(envelope(new Service.FetchRequest("test-connection-id", 1, 0, 100)), null);
+        assertNull(fetchPost.getFirstHeader("x-Request-Type"));
+        assertNull(fetchPost.getFirstHeader(HEADER_SESSION_ID));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void testDeprecatedConstructor_ReadsTheConnectionPropertiesOfTheThread() throws Exception {
+        CIPDriver.connectionProperties.set(connectionProperties);
+        try {
+            CIPAvaticaHttpClient client = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), mockAuthService, new ProtobufTranslationImpl());
+
+            HttpPost post = client.getHttpPost(envelope(new Service.FetchRequest("test-connection-id", 1, 0, 100)), null);
+            assertEquals("mock-instance", post.getFirstHeader("InstanceId").getValue());
+        } finally {
+            CIPDriver.connectionProperties.remove();
+        }
+    }
+
+    @Test
+    public void testExtractConnectionId_AllRequestTypes() {
+        String id = "all-types-connection-id";
+        List<Service.Request> requests = java.util.Arrays.asList(new Service.CatalogsRequest(id),
+                new Service.SchemasRequest(id, null, null), new Service.TablesRequest(id, null, null, null, null),
+                new Service.TableTypesRequest(id), new Service.TypeInfoRequest(id), new Service.ColumnsRequest(id, null, null, null, null),
+                new Service.DatabasePropertyRequest(id), new Service.OpenConnectionRequest(id, null),
+                new Service.CloseConnectionRequest(id), new Service.ConnectionSyncRequest(id, null),
+                new Service.CreateStatementRequest(id), new Service.CloseStatementRequest(id, 1), new Service.PrepareRequest(id,
+                        "SELECT 1", 10), new Service.PrepareAndExecuteRequest(id, 1, "SELECT 1", 10), new Service.ExecuteRequest(
+                        new Meta.StatementHandle(id, 1, null), Collections.emptyList(), 10), new Service.PrepareAndExecuteBatchRequest(id,
+                        1, Collections.singletonList("SELECT 1")), new Service.ExecuteBatchRequest(id, 1, Collections.emptyList()),
+                new Service.FetchRequest(id, 1, 0, 10), new Service.SyncResultsRequest(id, 1, null, 0), new Service.CommitRequest(id),
+                new Service.RollbackRequest(id));
+
+        for (Service.Request request : requests) {
+            assertFalse(RequestKind.of(request) == RequestKind.UNKNOWN);
+            assertEquals(request.getClass().getSimpleName(), id, cipAvaticaHttpClient.extractConnectionId(request));
+        }
+        // Every known kind is covered by the list above
+        assertEquals(RequestKind.values().length - 1, requests.size());
+    }
+
+    @Test
+    public void testExtractConnectionId_ExecuteRequestWithoutStatementHandle() {
+        Service.ExecuteRequest request = new Service.ExecuteRequest(null, Collections.emptyList(), 10);
+        assertNull(cipAvaticaHttpClient.extractConnectionId(request));
+    }
+
+    @Test
+    public void testSend_ScannedRequestIsNotFullyParsed() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "mock-token");
+        tokenResponse.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+        CIPAvaticaHttpClient.sessionStore.put("scanned-connection-id", MOCK_SESSION_ID);
+
+        byte[] payload = new org.apache.calcite.avatica.remote.ProtobufTranslationImpl().serializeRequest(
+                new Service.FetchRequest("scanned-connection-id", 1, 0, 100));
+        CIPAvaticaHttpClient spyClient = spy(cipAvaticaHttpClient);
+
+        spyClient.send(payload);
+
+        verify(spyClient).getHttpPost(any(RequestEnvelope.class), eq(MOCK_SESSION_ID));
+        verify(mockProtobufTranslation, org.mockito.Mockito.never()).parseRequest(any());
+    }
+
+    @Test
+    public void testSend_H2TransportFallsBackToHttp1OnPlainHttp() throws Exception {
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            response.setCode(200);
+            response.setHeader(HEADER_SESSION_ID, "h2-session-id");
+            response.setEntity(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            CIPAvaticaHttpClient h2Client = newLocalClient(server, "h2");
+
+            assertNotNull(h2Client.asyncClient);
+            assertNull(h2Client.client);
+            byte[] response = h2Client.send(MOCK_REQUEST_PAYLOAD.getBytes());
+
+            assertEquals(MOCK_RESPONSE_PAYLOAD, new String(response));
+            assertEquals("h2-session-id", CIPAvaticaHttpClient.sessionStore.get(EXPECTED_CONNECTION_ID));
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSendAsync_AsyncTransportRetriesOn503() throws Exception {
+        java.util.concurrent.atomic.AtomicInteger calls = new java.util.concurrent.atomic.AtomicInteger();
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            if (calls.incrementAndGet() == 1) {
+                response.setCode(503);
+                return;
+            }
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            CIPAvaticaHttpClient asyncClient = newLocalClient(server, "async");
+
+            java.util.concurrent.CompletableFuture<byte[]> future = asyncClient.sendAsync(MOCK_REQUEST_PAYLOAD.getBytes());
+
+            assertEquals(MOCK_RESPONSE_PAYLOAD, new String(future.get(10, java.util.concurrent.TimeUnit.SECONDS)));
+            assertEquals(2, calls.get());
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_AsyncTransportPropagatesUnexpectedStatus() throws Exception {
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            response.setCode(404);
+            response.setEntity(new ByteArrayEntity("Not found".getBytes(), ContentType.TEXT_PLAIN));
+        }).create();
+        server.start();
+        try {
+            CIPAvaticaHttpClient asyncClient = newLocalClient(server, "async");
+
+            try {
+                asyncClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+                fail("Expected RuntimeException due to 404 response");
+            } catch (RuntimeException e) {
+                assertTrue(e.getMessage().contains("HTTP request failed with status code 404"));
+            }
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSendAsync_ClassicTransport() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "mock-token");
+        tokenResponse.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+
+        byte[] response = cipAvaticaHttpClient.sendAsync(MOCK_REQUEST_PAYLOAD.getBytes()).get(10, java.util.concurrent.TimeUnit.SECONDS);
+
+        assertEquals(MOCK_RESPONSE_PAYLOAD, new String(response));
+    }
+
+    @Test
+    public void testBlockingSendExecutor_QueuesSendsBeyondItsThreads() throws Exception {
+        ThreadPoolExecutor executor = CIPAvaticaHttpClient.newBlockingSendExecutor(2);
+        CountDownLatch started = new CountDownLatch(2);
+        CountDownLatch release = new CountDownLatch(1);
+        try {
+            for (int i = 0; i < 3; i++) {
+                executor.execute(() -> {
+                    started.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            }
+            assertTrue(started.await(5, TimeUnit.SECONDS));
+            // The third send waits for a thread instead of starting one
+            assertEquals(2, executor.getPoolSize());
+            assertEquals(1, executor.getQueue().size());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSend_GzipCompressionDecodesResponse() throws Exception {
+        byte[] payload = String.join(",", Collections.nCopies(1000, MOCK_RESPONSE_PAYLOAD)).getBytes();
+        byte[] gzipped = FrameCompression.GZIP.encode(payload);
+        List<String> acceptEncodings = new java.util.concurrent.CopyOnWriteArrayList<>();
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            acceptEncodings.add(request.getFirstHeader("Accept-Encoding").getValue());
+            response.setCode(200);
+            response.setHeader("Content-Encoding", "gzip");
+            response.setEntity(new ByteArrayEntity(gzipped, ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            for (String transport : new String[] { "http1", "async" }) {
+                Properties properties = new Properties();
+                properties.put("compression", "gzip");
+                CIPAvaticaHttpClient compressingClient = newLocalClient(server, transport, properties);
+
+                byte[] response = compressingClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+
+                assertTrue(java.util.Arrays.equals(payload, response));
+                assertEquals(payload.length, compressingClient.getTransferStats().getResponseBytes());
+                assertEquals(gzipped.length, compressingClient.getTransferStats().getResponseWireBytes());
+            }
+            assertEquals(Collections.nCopies(2, "gzip, deflate"), acceptEncodings);
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_CompressesBatchRequestsAboveThreshold() throws Exception {
+        List<List<TypedValue>> updates = new java.util.ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            updates.add(Collections.singletonList(TypedValue.ofLocal(org.apache.calcite.avatica.ColumnMetaData.Rep.STRING, "row-" + i)));
+        }
+        org.apache.calcite.avatica.remote.ProtobufTranslationImpl translation = new org.apache.calcite.avatica.remote.ProtobufTranslationImpl();
+        byte[] batch = translation.serializeRequest(new Service.ExecuteBatchRequest(EXPECTED_CONNECTION_ID, 1, updates));
+        byte[] fetch = translation.serializeRequest(new Service.FetchRequest(EXPECTED_CONNECTION_ID, 1, 0, 100));
+        List<byte[]> received = new java.util.concurrent.CopyOnWriteArrayList<>();
+        List<String> contentEncodings = new java.util.concurrent.CopyOnWriteArrayList<>();
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            Header contentEncoding = request.getFirstHeader("Content-Encoding");
+            contentEncodings.add(contentEncoding == null ? "identity" : contentEncoding.getValue());
+            try (java.io.InputStream in = FrameCompression.decoding(request.getEntity().getContent(),
+                    contentEncoding == null ? null : contentEncoding.getValue())) {
+                received.add(in.readAllBytes());
+            }
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("compression", "deflate");
+            properties.put("compressRequestsAbove", "256");
+            CIPAvaticaHttpClient compressingClient = newLocalClient(server, "http1", properties);
+
+            compressingClient.send(batch);
+            compressingClient.send(fetch);
+
+            assertEquals(java.util.Arrays.asList("deflate", "identity"), contentEncodings);
+            assertTrue(java.util.Arrays.equals(batch, received.get(0)));
+            assertTrue(java.util.Arrays.equals(fetch, received.get(1)));
+            TransferStats stats = compressingClient.getTransferStats();
+            assertEquals(batch.length + fetch.length, stats.getRequestBytes());
+            assertTrue(stats.getRequestWireBytes() < stats.getRequestBytes());
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_ChunkedResponseIsReadThroughBufferPool() throws Exception {
+        byte[] payload = String.join(",", Collections.nCopies(20000, MOCK_RESPONSE_PAYLOAD)).getBytes();
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            response.setCode(200);
+            // Unknown length, sent chunked
+            response.setEntity(new org.apache.hc.core5.http.io.entity.InputStreamEntity(new java.io.ByteArrayInputStream(payload), -1,
+                    ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            CIPAvaticaHttpClient classicClient = newLocalClient(server, "http1");
+            ResponseBufferPool pool = ResponseBufferPool.shared();
+            long requestsBefore = pool.getHits() + pool.getMisses();
+
+            byte[] response = classicClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+
+            assertTrue(java.util.Arrays.equals(payload, response));
+            assertTrue(pool.getHits() + pool.getMisses() > requestsBefore);
+            assertTrue(pool.getPooledBuffers() > 0);
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_StopsAfterMaxRetryAttempts() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "mock-instance");
+        properties.put("testMode", "true");
+        properties.put("maxRetryAttempts", "2");
+        properties.put("retryBaseDelayMs", "0");
+        properties.put("retryMaxDelayMs", "0");
+        connectionProperties = properties;
+        CIPAvaticaHttpClient retryingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService, mockProtobufTranslation);
+        retryingClient.client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse mock503Response = mock(CloseableHttpResponse.class);
+        when(mock503Response.getCode()).thenReturn(503);
+        when(retryingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mock503Response);
+
+        try {
+            retryingClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+            fail("Expected RuntimeException after the last attempt");
+        } catch (RuntimeException e) {
+            assertEquals("Max retry attempts reached for 503 responses.", e.getMessage());
+        }
+
+        verify(retryingClient.client, times(2)).execute(any(HttpPost.class), any(HttpClientContext.class));
+        assertEquals(1, retryingClient.getRetryStats().getRequests());
+        assertEquals(2, retryingClient.getRetryStats().getAttempts());
+        assertEquals(1, retryingClient.getRetryStats().getExhausted());
+    }
+
+    @Test
+    public void testSend_CustomRetryPolicyReceivesRetryAfter() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "mock-instance");
+        properties.put("testMode", "true");
+        properties.put("retryPolicy", RecordingRetryPolicy.class.getName());
+        connectionProperties = properties;
+        CIPAvaticaHttpClient retryingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService, mockProtobufTranslation);
+        retryingClient.client = mock(CloseableHttpClient.class);
+        CloseableHttpResponse mock503Response = mock(CloseableHttpResponse.class);
+        when(mock503Response.getCode()).thenReturn(503);
+        when(mock503Response.getFirstHeader("Retry-After")).thenReturn(new org.apache.hc.core5.http.message.BasicHeader("Retry-After", "2"));
+        CloseableHttpResponse mockSuccessResponse = mock(CloseableHttpResponse.class);
+        when(mockSuccessResponse.getCode()).thenReturn(200);
+        when(mockSuccessResponse.getEntity()).thenReturn(
+                new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        when(retryingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mock503Response)
+                .thenReturn(mockSuccessResponse);
+
+        assertEquals(MOCK_RESPONSE_PAYLOAD, new String(retryingClient.send(MOCK_REQUEST_PAYLOAD.getBytes())));
+
+        assertEquals(Collections.singletonList(2000L), RecordingRetryPolicy.retryAfters);
+        assertEquals(1, retryingClient.getRetryStats().getRetries());
+    }
+
+    @Test
+    public void testSend_ReplaysOnceWithNewTokenAfter401() throws Exception {
+        Map<String, String> firstToken = new HashMap<>();
+        firstToken.put("access_token", "revoked-token");
+        firstToken.put("expires_in", "3600");
+        Map<String, String> secondToken = new HashMap<>();
+        secondToken.put("access_token", "new-token");
+        secondToken.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(firstToken)
+                .thenReturn(secondToken);
+
+        CloseableHttpResponse unauthorizedResponse = mock(CloseableHttpResponse.class);
+        when(unauthorizedResponse.getCode()).thenReturn(401);
+        CloseableHttpResponse successResponse = mock(CloseableHttpResponse.class);
+        when(successResponse.getCode()).thenReturn(200);
+        when(successResponse.getEntity()).thenReturn(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        List<String> authorizations = new java.util.ArrayList<>();
+        when(cipAvaticaHttpClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenAnswer(invocation -> {
+            HttpPost post = invocation.getArgument(0);
+            authorizations.add(post.getFirstHeader("Authorization").getValue());
+            return authorizations.size() == 1 ? unauthorizedResponse : successResponse;
+        });
+
+        assertEquals(MOCK_RESPONSE_PAYLOAD, new String(cipAvaticaHttpClient.send(MOCK_REQUEST_PAYLOAD.getBytes())));
+
+        assertEquals(java.util.Arrays.asList("Bearer revoked-token", "Bearer new-token"), authorizations);
+        verify(mockAuthService, times(2)).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
+        assertEquals(1, cipAvaticaHttpClient.getRetryStats().getTokenReplays());
+        assertEquals(0, cipAvaticaHttpClient.getRetryStats().getRetries());
+    }
+
+    @Test
+    public void testSend_RepeatedUnauthorizedIsNotReplayedAgain() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "mock-token");
+        tokenResponse.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+        CloseableHttpResponse unauthorizedResponse = mock(CloseableHttpResponse.class);
+        when(unauthorizedResponse.getCode()).thenReturn(401);
+        when(unauthorizedResponse.getReasonPhrase()).thenReturn("Unauthorized");
+        when(cipAvaticaHttpClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(unauthorizedResponse);
+
+        try {
+            cipAvaticaHttpClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+            fail("Expected RuntimeException due to the 401 response");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("HTTP request failed with status code 401"));
+        }
+        // One replay with a renewed token, then the 401 is reported
+        verify(cipAvaticaHttpClient.client, times(2)).execute(any(HttpPost.class), any(HttpClientContext.class));
+        verify(mockAuthService, times(2)).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
+
+        // The renewed token was rejected as well, so the next request does not ask Account Manager for yet another one
+        try {
+            cipAvaticaHttpClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+            fail("Expected RuntimeException due to the 401 response");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("HTTP request failed with status code 401"));
+        }
+        verify(cipAvaticaHttpClient.client, times(3)).execute(any(HttpPost.class), any(HttpClientContext.class));
+        verify(mockAuthService, times(2)).getAMAccessToken(anyString(), anyString(), anyString(), anyString());
+    }
+
+    @Test
+    public void testSendAsync_AsyncTransportReplaysWithNewTokenAfter401() throws Exception {
+        Map<String, String> firstToken = new HashMap<>();
+        firstToken.put("access_token", "revoked-token");
+        firstToken.put("expires_in", "3600");
+        Map<String, String> secondToken = new HashMap<>();
+        secondToken.put("access_token", "new-token");
+        secondToken.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(firstToken)
+                .thenReturn(secondToken);
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            if ("Bearer revoked-token".equals(request.getFirstHeader("Authorization").getValue())) {
+                response.setCode(401);
+                return;
+            }
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            Properties credentials = new Properties();
+            credentials.put("amOauthHost", "mock-host");
+            credentials.put("user", "mock-user");
+            credentials.put("password", "mock-password");
+            credentials.put("testMode", "false");
+            CIPAvaticaHttpClient asyncClient = newLocalClient(server, "async", credentials);
+
+            java.util.concurrent.CompletableFuture<byte[]> future = asyncClient.sendAsync(MOCK_REQUEST_PAYLOAD.getBytes());
+
+            assertEquals(MOCK_RESPONSE_PAYLOAD, new String(future.get(10, java.util.concurrent.TimeUnit.SECONDS)));
+            assertEquals(1, asyncClient.getRetryStats().getTokenReplays());
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_FailsFastWhileCircuitBreakerIsOpen() throws Exception {
+        Map<String, String> tokenResponse = new HashMap<>();
+        tokenResponse.put("access_token", "mock-token");
+        tokenResponse.put("expires_in", "3600");
+        when(mockAuthService.getAMAccessToken(anyString(), anyString(), anyString(), anyString())).thenReturn(tokenResponse);
+        when(cipAvaticaHttpClient.client.execute(any(HttpPost.class), any(HttpClientContext.class)))
+                .thenThrow(new java.net.ConnectException("Connection refused"));
+
+        // Enough refused connections to reach the minimum number of calls of the window
+        for (int i = 0; i < 10; i++) {
+            try {
+                cipAvaticaHttpClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+                fail("Expected RuntimeException due to the refused connection");
+            } catch (RuntimeException e) {
+                assertTrue(e.getCause() instanceof java.net.ConnectException);
+            }
+        }
+        assertEquals(CircuitBreaker.State.OPEN, cipAvaticaHttpClient.getCircuitBreaker().getState());
+
+        try {
+            cipAvaticaHttpClient.send(MOCK_REQUEST_PAYLOAD.getBytes());
+            fail("Expected RuntimeException due to the open circuit breaker");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            assertEquals("08001", ((SQLException) e.getCause()).getSQLState());
+            assertTrue(e.getMessage().startsWith("The Avatica server at http://127.0.0.1 is unavailable"));
+        }
+        verify(cipAvaticaHttpClient.client, times(10)).execute(any(HttpPost.class), any(HttpClientContext.class));
+    }
+
+    @Test
+    public void testSend_HedgedMetadataLookupReturnsFirstResponse() throws Exception {
+        for (String transport : new String[] { "http1", "async" }) {
+            assertHedgeWins(transport);
+        }
+    }
+
+    private void assertHedgeWins(String transport) throws Exception {
+        byte[] tables = new ProtobufTranslationImpl().serializeRequest(
+                new Service.TablesRequest(EXPECTED_CONNECTION_ID, null, "public", "%", null));
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            if (calls.incrementAndGet() == 1) {
+                // The original request hits a slow server, which answers only once the hedge won
+                try {
+                    releaseFirst.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                response.setCode(200);
+                response.setEntity(new ByteArrayEntity("slow".getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+                return;
+            }
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity("fast".getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("hedging", "true");
+            // Long enough for the original request to reach the server first, even on a cold client
+            properties.put("hedgeDelayMs", "500");
+            CIPAvaticaHttpClient hedgingClient = newLocalClient(server, transport, properties);
+
+            byte[] response = hedgingClient.send(tables);
+
+            assertEquals("fast", new String(response));
+            assertEquals(1, hedgingClient.getRetryStats().getHedges());
+            assertEquals(1, hedgingClient.getRetryStats().getHedgeWins());
+        } finally {
+            releaseFirst.countDown();
+            server.close(CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_HedgedMetadataLookupClosesTheStatementOfTheLosingCopy() throws Exception {
+        for (String transport : new String[] { "http1", "async" }) {
+            assertLosingCopyIsClosed(transport);
+        }
+    }
+
+    private void assertLosingCopyIsClosed(String transport) throws Exception {
+        ProtobufTranslation translation = new ProtobufTranslationImpl();
+        doAnswer(invocation -> translation.parseResponse(invocation.getArgument(0))).when(mockProtobufTranslation).parseResponse(any());
+        doAnswer(invocation -> translation.serializeRequest(invocation.getArgument(0))).when(mockProtobufTranslation).serializeRequest(any());
+        byte[] tables = translation.serializeRequest(new Service.TablesRequest(EXPECTED_CONNECTION_ID, null, "public", "%", null));
+        AtomicInteger lookups = new AtomicInteger();
+        AtomicInteger closedStatement = new AtomicInteger();
+        CountDownLatch releaseFirst = new CountDownLatch(1);
+        CountDownLatch closed = new CountDownLatch(1);
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            Service.Request received = translation.parseRequest(EntityUtils.toByteArray(request.getEntity()));
+            byte[] body;
+            if (received instanceof Service.CloseStatementRequest) {
+                closedStatement.set(((Service.CloseStatementRequest) received).statementId);
+                body = translation.serializeResponse(new Service.CloseStatementResponse(null));
+                closed.countDown();
+            } else {
+                // Every copy of the lookup gets a statement of its own, the first one to arrive is answered after the other one won
+                int statementId = lookups.incrementAndGet();
+                if (statementId == 1) {
+                    try {
+                        releaseFirst.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                body = translation.serializeResponse(new Service.ResultSetResponse(EXPECTED_CONNECTION_ID, statementId, true, null,
+                        Meta.Frame.EMPTY, -1, null));
+            }
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity(body, ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("hedging", "true");
+            properties.put("hedgeDelayMs", "50");
+            CIPAvaticaHttpClient hedgingClient = newLocalClient(server, transport, properties);
+
+            Service.ResultSetResponse won = (Service.ResultSetResponse) translation.parseResponse(hedgingClient.send(tables));
+            assertEquals(2, won.statementId);
+            releaseFirst.countDown();
+
+            assertTrue(closed.await(5, TimeUnit.SECONDS));
+            assertEquals(1, closedStatement.get());
+            assertEquals(2, lookups.get());
+        } finally {
+            releaseFirst.countDown();
+            server.close(CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSend_ExecuteRequestsAreNeverHedged() throws Exception {
+        byte[] execute = new ProtobufTranslationImpl().serializeRequest(
+                new Service.ExecuteRequest(new Meta.StatementHandle(EXPECTED_CONNECTION_ID, 1, null), Collections.emptyList(), 100));
+        assertNeverHedged(execute, "http1");
+    }
+
+    @Test
+    public void testSend_FetchRequestsAreNeverHedged() throws Exception {
+        byte[] fetch = new ProtobufTranslationImpl().serializeRequest(new Service.FetchRequest(EXPECTED_CONNECTION_ID, 1, 0, 100));
+        for (String transport : new String[] { "http1", "async" }) {
+            assertNeverHedged(fetch, transport);
+        }
+    }
+
+    private void assertNeverHedged(byte[] payload, String transport) throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch secondCopy = new CountDownLatch(1);
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            // The first request stays open far beyond the hedging delay, or until a second copy arrives
+            if (calls.incrementAndGet() == 1) {
+                try {
+                    secondCopy.await(500, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else {
+                secondCopy.countDown();
+            }
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("hedging", "true");
+            properties.put("hedgeDelayMs", "10");
+            CIPAvaticaHttpClient hedgingClient = newLocalClient(server, transport, properties);
+
+            assertEquals(MOCK_RESPONSE_PAYLOAD, new String(hedgingClient.send(payload)));
+
+            assertEquals(1, calls.get());
+            assertEquals(0, hedgingClient.getRetryStats().getHedges());
+        } finally {
+            server.close(CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testSetHttpClientPool_AppliesPoolSettingsAndPrewarms() throws Exception {
+        java.util.concurrent.atomic.AtomicInteger requests = new java.util.concurrent.atomic.AtomicInteger();
+        HttpServer server = ServerBootstrap.bootstrap().setListenerPort(0).register("*", (request, response, context) -> {
+            requests.incrementAndGet();
+            response.setCode(200);
+            response.setEntity(new ByteArrayEntity(MOCK_RESPONSE_PAYLOAD.getBytes(), ContentType.APPLICATION_OCTET_STREAM));
+        }).create();
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("instanceId", "mock-instance");
+            properties.put("testMode", "true");
+            properties.put("poolMaxTotal", "40");
+            properties.put("poolMaxPerRoute", "8");
+            properties.put("connectionTtlMs", "60000");
+            properties.put("keepAliveMs", "30000");
+            properties.put("prewarmConnections", "3");
+            connectionProperties = properties;
+            ConnectionConfig config = mock(ConnectionConfig.class);
+            when(config.getHttpConnectionTimeout()).thenReturn(5000L);
+            when(config.getHttpResponseTimeout()).thenReturn(30000L);
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+
+            CIPAvaticaHttpClient prewarmedClient = new CIPAvaticaHttpClient(new URL("http://localhost:" + server.getLocalPort()), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService, mockProtobufTranslation);
+            prewarmedClient.setHttpClientPool(pool, config);
+
+            assertEquals(40, pool.getMaxTotal());
+            assertEquals(8, pool.getDefaultMaxPerRoute());
+            // Three idle, already connected sockets, without any request sent
+            assertEquals(3, pool.getTotalStats().getAvailable());
+            assertEquals(0, requests.get());
+
+            assertEquals(MOCK_RESPONSE_PAYLOAD, new String(prewarmedClient.send(MOCK_REQUEST_PAYLOAD.getBytes())));
+            // The request reused a pre-warmed connection
+            assertEquals(3, pool.getTotalStats().getAvailable());
+        } finally {
+            server.close(org.apache.hc.core5.io.CloseMode.IMMEDIATE);
+        }
+    }
+
+    @Test
+    public void testPoolSettings_InvalidValue() {
+        Properties properties = new Properties();
+        properties.put("poolMaxPerRoute", "0");
+        try {
+            PoolSettings.fromProperties(properties);
+            fail("Expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid value for poolMaxPerRoute property. Expected a number of at least 1, but got: 0", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRetryAfterMillis() {
+        org.apache.hc.core5.http.message.BasicHttpResponse response = new org.apache.hc.core5.http.message.BasicHttpResponse(503);
+        assertEquals(-1, CIPAvaticaHttpClient.retryAfterMillis(response));
+
+        response.setHeader("Retry-After", "3");
+        assertEquals(3000, CIPAvaticaHttpClient.retryAfterMillis(response));
+
+        response.setHeader("Retry-After", org.apache.hc.client5.http.utils.DateUtils.formatStandardDate(
+                java.time.Instant.now().plusSeconds(60)));
+        long delay = CIPAvaticaHttpClient.retryAfterMillis(response);
+        assertTrue("Unexpected delay " + delay, delay > 50_000 && delay <= 60_000);
+
+        response.setHeader("Retry-After", "soon");
+        assertEquals(-1, CIPAvaticaHttpClient.retryAfterMillis(response));
+    }
+
+    /**
+     * Retry policy loaded through the retryPolicy connection property, recording the Retry-After values it is given.
+     */
+    public static class RecordingRetryPolicy implements RetryPolicy {
+        static final List<Long> retryAfters = new java.util.concurrent.CopyOnWriteArrayList<>();
+
+        public RecordingRetryPolicy() {
+            retryAfters.clear();
+        }
+
+        @Override
+        public int getMaxAttempts() {
+            return 3;
+        }
+
+        @Override
+        public long getDelayMillis(int attempt, long retryAfterMillis) {
+            retryAfters.add(retryAfterMillis);
+            return 0;
+        }
+    }
+
+    @Test
+    public void testSend_ResultCacheAnswersRepeatedQueryWithoutRequest() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "mock-instance");
+        properties.put("testMode", "true");
+        properties.put("resultCache", "true");
+        properties.put("resultCacheMaxBytes", "12345");
+        ProtobufTranslation translation = new ProtobufTranslationImpl();
+        CIPAvaticaHttpClient cachingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(properties),
+                mockAuthService, translation);
+        cachingClient.client = mock(CloseableHttpClient.class);
+        byte[] executeResponse = translation.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(
+                new Service.ResultSetResponse(EXPECTED_CONNECTION_ID, 1, false, null,
+                        Meta.Frame.create(0, true, Collections.singletonList(new Object[] {"RefArch"})), -1, null)), false, null));
+        CloseableHttpResponse mockResponse = mock(CloseableHttpResponse.class);
+        when(mockResponse.getCode()).thenReturn(200);
+        when(mockResponse.getEntity()).thenReturn(new ByteArrayEntity(executeResponse, ContentType.APPLICATION_OCTET_STREAM));
+        when(cachingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mockResponse);
+
+        String sql = "SELECT site_id FROM ccdw_dim_site";
+        cachingClient.send(translation.serializeRequest(new Service.PrepareAndExecuteRequest(EXPECTED_CONNECTION_ID, 1, sql, -1)));
+        byte[] cached = cachingClient.send(translation.serializeRequest(new Service.PrepareAndExecuteRequest(EXPECTED_CONNECTION_ID, 2, sql, -1)));
+
+        Service.ResultSetResponse result = ((Service.ExecuteResponse) translation.parseResponse(cached)).results.get(0);
+        assertEquals(2, result.statementId);
+        verify(cachingClient.client, times(1)).execute(any(HttpPost.class), any(HttpClientContext.class));
+        assertEquals(1, cachingClient.getResultCacheStats().getHits());
+        assertNull(cipAvaticaHttpClient.getResultCacheStats());
+    }
+
+    @Test
+    public void testSend_MetadataCacheAnswersRepeatedLookupsWithoutRequest() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "metadata-instance");
+        properties.put("testMode", "true");
+        properties.put("metadataCache", "true");
+        ProtobufTranslation translation = new ProtobufTranslationImpl();
+        CIPAvaticaHttpClient cachingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(properties),
+                mockAuthService, translation);
+        cachingClient.client = mock(CloseableHttpClient.class);
+        byte[] tablesResponse = translation.serializeResponse(new Service.ResultSetResponse(EXPECTED_CONNECTION_ID, 1, true, null,
+                Meta.Frame.create(0, true, Collections.singletonList(new Object[] {"ccdw_dim_site"})), -1, null));
+        CloseableHttpResponse mockResponse = mock(CloseableHttpResponse.class);
+        when(mockResponse.getCode()).thenReturn(200);
+        when(mockResponse.getEntity()).thenReturn(new ByteArrayEntity(tablesResponse, ContentType.APPLICATION_OCTET_STREAM));
+        when(cachingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mockResponse);
+
+        byte[] tables = translation.serializeRequest(new Service.TablesRequest(EXPECTED_CONNECTION_ID, null, "public", "%", null));
+        cachingClient.send(tables);
+        Service.ResultSetResponse cached = (Service.ResultSetResponse) translation.parseResponse(cachingClient.send(tables));
+        // The statement of the cached result set is closed without a request
+        cachingClient.send(translation.serializeRequest(new Service.CloseStatementRequest(EXPECTED_CONNECTION_ID, cached.statementId)));
+
+        verify(cachingClient.client, times(1)).execute(any(HttpPost.class), any(HttpClientContext.class));
+        assertTrue(cached.statementId < 0);
+        CIPDriver.invalidateMetadataCache("metadata-instance");
+        cachingClient.send(tables);
+        verify(cachingClient.client, times(2)).execute(any(HttpPost.class), any(HttpClientContext.class));
+    }
+
+    @Test
+    public void testSend_StatementCacheReusesClosedPreparedStatement() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "mock-instance");
+        properties.put("testMode", "true");
+        properties.put("preparedStatementCacheQueries", "8");
+        ProtobufTranslation translation = new ProtobufTranslationImpl();
+        CIPAvaticaHttpClient cachingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(properties),
+                mockAuthService, translation);
+        cachingClient.client = mock(CloseableHttpClient.class);
+        byte[] prepareResponse = translation.serializeResponse(new Service.PrepareResponse(new Meta.StatementHandle(EXPECTED_CONNECTION_ID, 5,
+                null), null));
+        CloseableHttpResponse mockResponse = mock(CloseableHttpResponse.class);
+        when(mockResponse.getCode()).thenReturn(200);
+        when(mockResponse.getEntity()).thenReturn(new ByteArrayEntity(prepareResponse, ContentType.APPLICATION_OCTET_STREAM));
+        when(cachingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mockResponse);
+
+        byte[] prepare = translation.serializeRequest(new Service.PrepareRequest(EXPECTED_CONNECTION_ID, "SELECT * FROM sites WHERE id = ?", -1));
+        byte[] close = translation.serializeRequest(new Service.CloseStatementRequest(EXPECTED_CONNECTION_ID, 5));
+        cachingClient.send(prepare);
+        // The statement stays open on the server and is prepared again without a request
+        assertTrue(translation.parseResponse(cachingClient.send(close)) instanceof Service.CloseStatementResponse);
+        assertArrayEquals(prepareResponse, cachingClient.sendAsync(prepare).join());
+        cachingClient.send(close);
+
+        verify(cachingClient.client, times(1)).execute(any(HttpPost.class), any(HttpClientContext.class));
+        assertEquals(1, cachingClient.getStatementCacheStats().getHits());
+        assertEquals(1, cachingClient.getStatementCacheStats().getMisses());
+    }
+
+    @Test
+    public void testSend_ParsesTheRequestOnceThroughAllCachesAndThePrefetch() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "parse-once-instance");
+        properties.put("testMode", "true");
+        properties.put("resultCache", "true");
+        properties.put("metadataCache", "true");
+        properties.put("preparedStatementCacheQueries", "8");
+        properties.put("prefetch", "true");
+        ProtobufTranslation translation = spy(new ProtobufTranslationImpl());
+        CIPAvaticaHttpClient cachingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"), CIPConnectionConfig.fromProperties(properties),
+                mockAuthService, translation);
+        cachingClient.client = mock(CloseableHttpClient.class);
+        byte[] executeResponse = translation.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(
+                new Service.ResultSetResponse(EXPECTED_CONNECTION_ID, 1, false, null,
+                        Meta.Frame.create(0, true, Collections.singletonList(new Object[] {"RefArch"})), -1, null)), false, null));
+        CloseableHttpResponse mockResponse = mock(CloseableHttpResponse.class);
+        when(mockResponse.getCode()).thenReturn(200);
+        when(mockResponse.getEntity()).thenReturn(new ByteArrayEntity(executeResponse, ContentType.APPLICATION_OCTET_STREAM));
+        when(cachingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenReturn(mockResponse);
+
+        String sql = "SELECT site_id FROM ccdw_dim_site";
+        cachingClient.send(translation.serializeRequest(new Service.PrepareAndExecuteRequest(EXPECTED_CONNECTION_ID, 1, sql, -1)));
+        cachingClient.sendAsync(translation.serializeRequest(new Service.PrepareAndExecuteRequest(EXPECTED_CONNECTION_ID, 2, sql, -1))).join();
+
+        // The metadata cache, the statement cache, the result cache and the prefetch all read the one parsed request of each send
+        verify(translation, times(2)).parseRequest(any(byte[].class));
+        assertEquals(1, cachingClient.getResultCacheStats().getHits());
+    }
+
+    @Test
+    public void testSend_ExecuteResponseStartsThePrefetchOfTheSecondFrame() throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "prefetch-instance");
+        properties.put("testMode", "true");
+        properties.put("prefetch", "true");
+        ProtobufTranslation translation = new ProtobufTranslationImpl();
+        CIPAvaticaHttpClient prefetchingClient = new CIPAvaticaHttpClient(new URL("http://127.0.0.1"),
+                CIPConnectionConfig.fromProperties(properties), mockAuthService, translation);
+        prefetchingClient.client = mock(CloseableHttpClient.class);
+        List<Object> rows = Collections.nCopies(2, new Object[] {"RefArch"});
+        byte[] executeResponse = translation.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(
+                new Service.ResultSetResponse(EXPECTED_CONNECTION_ID, 1, false, null, Meta.Frame.create(0, false, rows), -1, null)), false,
+                null));
+        byte[] fetchResponse = translation.serializeResponse(new Service.FetchResponse(Meta.Frame.create(2, true, rows), false, false, null));
+        List<Service.FetchRequest> fetches = new CopyOnWriteArrayList<>();
+        CountDownLatch fetched = new CountDownLatch(1);
+        when(prefetchingClient.client.execute(any(HttpPost.class), any(HttpClientContext.class))).thenAnswer(invocation -> {
+            Service.Request request = translation.parseRequest(EntityUtils.toByteArray(invocation.getArgument(0, HttpPost.class).getEntity()));
+            CloseableHttpResponse response = mock(CloseableHttpResponse.class);
+            when(response.getCode()).thenReturn(200);
+            if (request instanceof Service.FetchRequest) {
+                fetches.add((Service.FetchRequest) request);
+                fetched.countDown();
+                when(response.getEntity()).thenReturn(new ByteArrayEntity(fetchResponse, ContentType.APPLICATION_OCTET_STREAM));
+            } else {
+                when(response.getEntity()).thenReturn(new ByteArrayEntity(executeResponse, ContentType.APPLICATION_OCTET_STREAM));
+            }
+            return response;
+        });
+
+        prefetchingClient.send(translation.serializeRequest(new Service.PrepareAndExecuteRequest(EXPECTED_CONNECTION_ID, 1, "SELECT 1", -1)));
+
+        // The second frame is requested before Avatica fetches it
+        assertTrue(fetched.await(5, TimeUnit.SECONDS));
+        assertEquals(2, fetches.get(0).offset);
+        byte[] second = prefetchingClient.send(translation.serializeRequest(new Service.FetchRequest(EXPECTED_CONNECTION_ID, 1, 2, 100)));
+        assertArrayEquals(fetchResponse, second);
+        assertEquals(1, fetches.size());
+    }
+
+    private CIPAvaticaHttpClient newLocalClient(HttpServer server, String transport) throws Exception {
+        return newLocalClient(server, transport, new Properties());
+    }
+
+    private CIPAvaticaHttpClient newLocalClient(HttpServer server, String transport, Properties extraProperties) throws Exception {
+        Properties properties = new Properties();
+        properties.put("instanceId", "mock-instance");
+        properties.put("testMode", "true");
+        properties.put("transport", transport);
+        properties.putAll(extraProperties);
+        connectionProperties = properties;
+
+        ConnectionConfig config = mock(ConnectionConfig.class);
+        when(config.getHttpConnectionTimeout()).thenReturn(5000L);
+        when(config.getHttpResponseTimeout()).thenReturn(30000L);
+
+        CIPAvaticaHttpClient localClient = new CIPAvaticaHttpClient(new URL("http://localhost:" + server.getLocalPort()), CIPConnectionConfig.fromProperties(connectionProperties), mockAuthService,
+                mockProtobufTranslation);
+        localClient.setHttpClientPool(new PoolingHttpClientConnectionManager(), config);
+        return localClient;
+    }
+
+    private RequestEnvelope envelope(Service.Request request) {
+        return new RequestEnvelope(MOCK_REQUEST_PAYLOAD.getBytes(), request, cipAvaticaHttpClient.extractConnectionId(request));
+    }
 }
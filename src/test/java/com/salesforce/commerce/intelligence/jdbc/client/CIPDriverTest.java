@@ -3,18 +3,34 @@ package com.salesforce.commerce.intelligence.jdbc.client;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import java.lang.reflect.Field;
+import java.net.URL;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.calcite.avatica.BuiltInConnectionProperty;
+import org.apache.calcite.avatica.ConnectionConfigImpl;
+import org.apache.calcite.avatica.remote.AvaticaHttpClient;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.MockedStatic;
 import org.mockito.Mockito;
 
 /**
@@ -160,4 +176,165 @@ public class CIPDriverTest {
 
         assertEquals("Invalid value for ssl property. Expected 'true' or 'false', but got: invalid", thrown.getMessage());
     }
+
+    @Test
+    public void testConnect_withInvalidTransportProperty() throws SQLException {
+        properties.setProperty("transport", "h3");
+
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        when(spyDriver.doConnect(Mockito.anyString(), Mockito.any(Properties.class))).thenReturn(mockConnection);
+
+        SQLException thrown = assertThrows(SQLException.class, () -> {
+            spyDriver.connect(url, properties);
+        });
+
+        assertEquals("Invalid value for transport property. Expected 'http1', 'h2' or 'async', but got: h3", thrown.getMessage());
+    }
+
+    @Test
+    public void testConnect_withH2TransportProperty() throws SQLException {
+        properties.setProperty("transport", "H2");
+
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        when(spyDriver.doConnect(Mockito.anyString(), Mockito.any(Properties.class))).thenReturn(mockConnection);
+
+        assertNotNull(spyDriver.connect(url, properties));
+    }
+
+    @Test
+    public void testConnect_withInvalidCompressionProperty() throws SQLException {
+        properties.setProperty("compression", "zstd");
+
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        when(spyDriver.doConnect(Mockito.anyString(), Mockito.any(Properties.class))).thenReturn(mockConnection);
+
+        SQLException thrown = assertThrows(SQLException.class, () -> {
+            spyDriver.connect(url, properties);
+        });
+
+        assertEquals("Invalid value for compression property. Expected 'none', 'gzip' or 'deflate', but got: zstd", thrown.getMessage());
+    }
+
+    @Test
+    public void testConnectAsync_connectsOnAnotherThreadWithTheFactory() throws Exception {
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        Thread caller = Thread.currentThread();
+        AtomicReference<Thread> connectThread = new AtomicReference<>();
+        AtomicReference<Properties> connectProperties = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            connectThread.set(Thread.currentThread());
+            connectProperties.set(invocation.getArgument(1));
+            return mockConnection;
+        }).when(spyDriver).doConnect(Mockito.anyString(), Mockito.any(Properties.class));
+
+        assertEquals(mockConnection, spyDriver.connectAsync(url, properties).get(5, TimeUnit.SECONDS));
+
+        assertNotSame(caller, connectThread.get());
+        assertEquals(CIPHttpClientFactory.class.getName(), connectProperties.get().getProperty(BuiltInConnectionProperty.HTTP_CLIENT_FACTORY.camelName()));
+        assertEquals("mydatabase", connectProperties.get().getProperty("instanceId"));
+        // The caller's properties are copied, not modified
+        assertNull(properties.getProperty("instanceId"));
+    }
+
+    @Test
+    public void testConnectAsync_completesExceptionallyWithTheSQLException() {
+        properties.setProperty("transport", "h3");
+
+        CompletableFuture<Connection> future = spyDriver.connectAsync("jdbc:salesforcecc://localhost:5432/mydatabase", properties);
+
+        ExecutionException thrown = assertThrows(ExecutionException.class, () -> future.get(5, TimeUnit.SECONDS));
+        assertTrue(thrown.getCause() instanceof SQLException);
+    }
+
+    @Test
+    public void testConnectAsync_queuesConnectsBeyondTheThreadsOfTheExecutor() throws Exception {
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        ThreadPoolExecutor executor = CIPDriver.newConnectExecutor(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Mockito.doAnswer(invocation -> {
+            release.await();
+            return mockConnection;
+        }).when(spyDriver).doConnect(Mockito.anyString(), Mockito.any(Properties.class));
+        try {
+            CompletableFuture<Connection> first = spyDriver.connectAsync(url, properties, executor);
+            CompletableFuture<Connection> second = spyDriver.connectAsync(url, properties, executor);
+
+            // The second connect waits for the thread of the first one instead of starting a thread of its own
+            assertEquals(1, executor.getPoolSize());
+            assertEquals(1, executor.getQueue().size());
+            release.countDown();
+            assertEquals(mockConnection, first.get(5, TimeUnit.SECONDS));
+            assertEquals(mockConnection, second.get(5, TimeUnit.SECONDS));
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testHttpClientFactory_readsThePropertiesOfTheConnection() {
+        Properties info = new Properties();
+        info.setProperty("instanceId", "abcd_prd");
+
+        assertSame(info, CIPHttpClientFactory.propertiesOf(new ConnectionConfigImpl(info)));
+        assertEquals("abcd_prd", CIPConnectionConfig.fromProperties(info).getInstanceId());
+    }
+
+    @Test
+    public void testHttpClientFactory_avaticaKeepsThePropertiesField() throws Exception {
+        // The factory reads the properties of the connection from this field, an Avatica upgrade that renames it breaks every connect
+        Field field = ConnectionConfigImpl.class.getDeclaredField(CIPHttpClientFactory.PROPERTIES_FIELD_NAME);
+        assertEquals("ConnectionConfigImpl." + CIPHttpClientFactory.PROPERTIES_FIELD_NAME + " changed its type", Properties.class,
+                field.getType());
+    }
+
+    @Test
+    public void testConnect_buildsTheConnectionConfigOnce() throws Exception {
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        AtomicReference<AvaticaHttpClient> client = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            Properties info = invocation.getArgument(1);
+            client.set(new CIPHttpClientFactory().getClient(new URL("http://localhost:5432"), new ConnectionConfigImpl(info), null));
+            return mockConnection;
+        }).when(spyDriver).doConnect(Mockito.anyString(), Mockito.any(Properties.class));
+
+        try (MockedStatic<CIPConnectionConfig> config = Mockito.mockStatic(CIPConnectionConfig.class, Mockito.CALLS_REAL_METHODS)) {
+            spyDriver.connect(url, properties);
+            config.verify(() -> CIPConnectionConfig.fromProperties(Mockito.any(Properties.class)), Mockito.times(1));
+        }
+
+        assertTrue(client.get() instanceof CIPAvaticaHttpClient);
+        assertEquals(0, CIPHttpClientFactory.pendingConfigs());
+        assertNull(properties.getProperty(CIPHttpClientFactory.CONFIG_KEY_PROPERTY));
+    }
+
+    @Test
+    public void testConnect_dropsTheConnectionConfigOfAFailedConnect() throws SQLException {
+        when(spyDriver.doConnect(Mockito.anyString(), Mockito.any(Properties.class))).thenThrow(new SQLException("refused"));
+
+        assertThrows(SQLException.class, () -> spyDriver.connect("jdbc:salesforcecc://localhost:5432/mydatabase", properties));
+
+        assertEquals(0, CIPHttpClientFactory.pendingConfigs());
+    }
+
+    @Test
+    public void testConnect_keepsAnExplicitFetchSize() throws SQLException {
+        String url = "jdbc:salesforcecc://localhost:5432/mydatabase";
+        AtomicReference<Properties> connectProperties = new AtomicReference<>();
+        Mockito.doAnswer(invocation -> {
+            connectProperties.set(invocation.getArgument(1));
+            return mockConnection;
+        }).when(spyDriver).doConnect(Mockito.anyString(), Mockito.any(Properties.class));
+
+        spyDriver.connect(url, properties);
+        assertEquals("1000", connectProperties.get().getProperty(BuiltInConnectionProperty.FETCH_SIZE.camelName()));
+
+        Properties explicit = new Properties();
+        explicit.putAll(properties);
+        explicit.setProperty(BuiltInConnectionProperty.FETCH_SIZE.camelName(), "250");
+        explicit.setProperty("adaptiveFetch", "true");
+        spyDriver.connect(url, explicit);
+        assertEquals("250", connectProperties.get().getProperty(BuiltInConnectionProperty.FETCH_SIZE.camelName()));
+        assertEquals("false", connectProperties.get().getProperty("adaptiveFetch"));
+    }
 }
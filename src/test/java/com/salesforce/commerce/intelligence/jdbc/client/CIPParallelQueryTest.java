@@ -0,0 +1,237 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLSyntaxErrorException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.junit.Test;
+
+public class CIPParallelQueryTest {
+
+    private static final String SQL = "SELECT order_no FROM orders";
+
+    private final List<String> executed = new CopyOnWriteArrayList<>();
+    // Failures to throw for the partition queries containing the key, one per execution
+    private final Map<String, List<SQLException>> failures = new ConcurrentHashMap<>();
+    // Failures to throw when closing the result sets of the partition queries containing the key, one per execution
+    private final Map<String, List<SQLException>> closeFailures = new ConcurrentHashMap<>();
+
+    /**
+     * A data source whose partition queries of a range predicate return the row numbers of the range, up to 1000.
+     */
+    private DataSource dataSource() throws SQLException {
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenAnswer(invocation -> connection());
+        return dataSource;
+    }
+
+    private Connection connection() throws SQLException {
+        Connection connection = mock(Connection.class);
+        Statement statement = mock(Statement.class);
+        when(connection.createStatement()).thenReturn(statement);
+        when(statement.executeQuery(anyString())).thenAnswer(invocation -> {
+            String query = invocation.getArgument(0);
+            executed.add(query);
+            for (Map.Entry<String, List<SQLException>> failure : failures.entrySet()) {
+                if (query.contains(failure.getKey()) && !failure.getValue().isEmpty()) {
+                    throw failure.getValue().remove(0);
+                }
+            }
+            ResultSet resultSet = resultSet(rangeOf(query));
+            for (Map.Entry<String, List<SQLException>> failure : closeFailures.entrySet()) {
+                if (query.contains(failure.getKey()) && !failure.getValue().isEmpty()) {
+                    doThrow(failure.getValue().remove(0)).when(resultSet).close();
+                }
+            }
+            return resultSet;
+        });
+        return connection;
+    }
+
+    private static long[] rangeOf(String query) {
+        long start = 0;
+        long end = 1000;
+        String predicate = query.substring(query.indexOf("WHERE ") + 6);
+        for (String condition : predicate.split(" AND | OR ")) {
+            String[] parts = condition.trim().split(" ");
+            if (parts[1].equals(">=")) {
+                start = Long.parseLong(parts[2]);
+            } else if (parts[1].equals("<")) {
+                end = Long.parseLong(parts[2]);
+            }
+        }
+        return new long[] {start, end};
+    }
+
+    private static ResultSet resultSet(long[] range) throws SQLException {
+        ResultSet resultSet = mock(ResultSet.class);
+        ResultSetMetaData metaData = mock(ResultSetMetaData.class);
+        when(resultSet.getMetaData()).thenReturn(metaData);
+        when(metaData.getColumnCount()).thenReturn(1);
+        when(metaData.getColumnLabel(anyInt())).thenReturn("ORDER_NO");
+        AtomicInteger row = new AtomicInteger(-1);
+        when(resultSet.next()).thenAnswer(invocation -> range[0] + row.incrementAndGet() < range[1]);
+        when(resultSet.getObject(1)).thenAnswer(invocation -> range[0] + row.get());
+        return resultSet;
+    }
+
+    private static List<Long> read(CIPParallelQuery.Rows rows) throws SQLException {
+        List<Long> values = new ArrayList<>();
+        while (rows.next()) {
+            values.add((Long) rows.getObject(1));
+        }
+        return values;
+    }
+
+    @Test
+    public void testRangePartitionsCoverEveryRowOnce() {
+        CIPParallelQuery query = new CIPParallelQuery(mock(DataSource.class), SQL).partitionByRange("order_no", 0, 1000, 3);
+
+        assertEquals(Arrays.asList("SELECT * FROM (" + SQL + ") cip_partition WHERE order_no < 333 OR order_no IS NULL",
+                        "SELECT * FROM (" + SQL + ") cip_partition WHERE order_no >= 333 AND order_no < 666",
+                        "SELECT * FROM (" + SQL + ") cip_partition WHERE order_no >= 666"), query.partitionQueries());
+
+        // Ordered range partitions are sorted by their column, and never more partitions than values
+        query.setOrdered(true).partitionByRange("order_no", 0, 2, 8);
+        assertEquals(2, query.partitionQueries().size());
+        assertTrue(query.partitionQueries().get(0).endsWith(" ORDER BY order_no"));
+
+        assertThrows(IllegalArgumentException.class, () -> query.partitionByRange("order_no", 10, 10, 2));
+    }
+
+    @Test
+    public void testUnorderedRowsOfAllPartitionsAreMerged() throws SQLException {
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 7).setParallelism(3);
+
+        try (CIPParallelQuery.Rows rows = query.execute()) {
+            List<Long> values = read(rows);
+            assertEquals(Arrays.asList("ORDER_NO"), rows.getColumnLabels());
+            values.sort(null);
+            assertEquals(1000, values.size());
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals(i, values.get(i).longValue());
+            }
+        }
+        assertEquals(7, executed.size());
+    }
+
+    @Test
+    public void testOrderedRowsComeInPartitionOrder() throws SQLException {
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 5).setParallelism(5)
+                        .setOrdered(true);
+
+        try (CIPParallelQuery.Rows rows = query.execute()) {
+            long expected = 0;
+            int partition = 0;
+            while (rows.next()) {
+                assertEquals(expected++, rows.getObject(1));
+                assertTrue(rows.getPartition() >= partition);
+                partition = rows.getPartition();
+            }
+            assertEquals(1000, expected);
+            assertEquals(4, partition);
+        }
+    }
+
+    @Test
+    public void testFailedPartitionIsRetried() throws SQLException {
+        failures.put("order_no >= 500", new ArrayList<>(Arrays.asList(new SQLTransientConnectionException("Connection reset"))));
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 2);
+
+        try (CIPParallelQuery.Rows rows = query.execute()) {
+            assertEquals(1000, read(rows).size());
+            assertEquals(1, rows.getRetries());
+        }
+        assertEquals(3, executed.size());
+    }
+
+    @Test
+    public void testFailureAfterTheLastBatchIsNotRetried() throws SQLException {
+        // The partition has fewer rows than a batch, all of them are published before closing the result set fails
+        closeFailures.put("order_no >= 800", new ArrayList<>(Arrays.asList(new SQLTransientConnectionException("Connection reset"))));
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 5).setOrdered(true);
+
+        CIPParallelQuery.Rows rows = query.execute();
+        List<Long> values = new ArrayList<>();
+        SQLException e = assertThrows(SQLException.class, () -> {
+            while (rows.next()) {
+                values.add((Long) rows.getObject(1));
+            }
+        });
+        assertEquals("Connection reset", e.getCause().getMessage());
+        assertEquals(1000, values.size());
+        assertEquals(999, values.get(999).longValue());
+        assertEquals(0, rows.getRetries());
+        assertEquals(5, executed.size());
+    }
+
+    @Test
+    public void testPartitionFailureReachesTheReader() throws SQLException {
+        failures.put("order_no >= 500", new ArrayList<>(Arrays.asList(new SQLSyntaxErrorException("Unknown column", "42000"))));
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 2).setOrdered(true);
+
+        CIPParallelQuery.Rows rows = query.execute();
+        SQLException e = assertThrows(SQLException.class, () -> read(rows));
+        assertEquals("42000", e.getSQLState());
+        assertEquals(0, rows.getRetries());
+        // The failure closed the rows
+        assertThrows(SQLException.class, rows::next);
+    }
+
+    @Test(timeout = 10000)
+    public void testColumnsOfAQueryWhoseEveryPartitionFailedReportTheFailure() throws SQLException {
+        List<SQLException> errors = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            errors.add(new SQLSyntaxErrorException("Unknown column", "42000"));
+        }
+        failures.put("order_no", errors);
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 4);
+
+        CIPParallelQuery.Rows rows = query.execute();
+        // No partition returned a result set, waiting for its columns would never end
+        SQLException e = assertThrows(SQLException.class, rows::getColumnLabels);
+        assertEquals("42000", e.getSQLState());
+        assertEquals(4, executed.size());
+    }
+
+    @Test
+    public void testClosedRowsStopThePartitions() throws SQLException {
+        CIPParallelQuery query = new CIPParallelQuery(dataSource(), SQL).partitionByRange("order_no", 0, 1000, 10).setParallelism(1)
+                        .setOrdered(true);
+
+        CIPParallelQuery.Rows rows = query.execute();
+        assertTrue(rows.next());
+        rows.close();
+        assertThrows(SQLException.class, rows::next);
+    }
+
+    @Test
+    public void testUnpartitionedQueryIsRejected() {
+        assertThrows(SQLException.class, () -> new CIPParallelQuery(mock(DataSource.class), SQL).execute());
+        assertTrue(CIPParallelQuery.isRetryable(new SQLException("Connection refused", "08001")));
+        assertFalse(CIPParallelQuery.isRetryable(new SQLException("Syntax error", "42000")));
+    }
+}
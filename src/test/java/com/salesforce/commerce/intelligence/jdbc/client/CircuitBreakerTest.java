@@ -0,0 +1,142 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class CircuitBreakerTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(5);
+
+    private final AtomicLong clock = new AtomicLong();
+    private CircuitBreaker breaker;
+
+    @Before
+    public void setUp() {
+        // Window of 10 calls, opens at 50% failures or 80% slow calls, 1 s open, 2 probes
+        CircuitBreaker.Settings settings = new CircuitBreaker.Settings(true, 10, 4, 50, 80, 1000, 1000, 2);
+        breaker = new CircuitBreaker("http://avatica", settings, clock::get);
+    }
+
+    @Test
+    public void testOpensOnFailureRate() {
+        call(false, FAST);
+        call(false, FAST);
+        call(true, FAST);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        call(true, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+        assertEquals(1, breaker.getRejectedCalls());
+        assertEquals(1000, breaker.getRemainingOpenMillis());
+    }
+
+    @Test
+    public void testOpensOnSlowCallRate() {
+        for (int i = 0; i < 4; i++) {
+            call(false, SLOW);
+        }
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testCallsRecordedWithoutDurationAreNeverSlow() {
+        for (int i = 0; i < 10; i++) {
+            assertTrue(breaker.tryAcquirePermission());
+            breaker.onResult(false);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void testOldCallsLeaveTheSlidingWindow() {
+        for (int i = 0; i < 10; i++) {
+            call(false, FAST);
+        }
+        for (int i = 0; i < 4; i++) {
+            call(true, FAST);
+        }
+        // 4 of the last 10 calls failed
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // 5 of the last 10, although only a third of all calls failed
+        call(true, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void testHalfOpenProbesCloseTheBreaker() {
+        openBreaker();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        assertTrue(breaker.tryAcquirePermission());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+        // Only two probes are let through
+        assertFalse(breaker.tryAcquirePermission());
+
+        breaker.onResult(false, FAST);
+        breaker.onResult(false, FAST);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void testFailedProbeReopensTheBreaker() {
+        openBreaker();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+
+        call(true, FAST);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void testIgnoredProbeReleasesItsPermission() {
+        openBreaker();
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertTrue(breaker.tryAcquirePermission());
+        assertTrue(breaker.tryAcquirePermission());
+
+        breaker.onIgnored();
+
+        assertTrue(breaker.tryAcquirePermission());
+    }
+
+    @Test
+    public void testDisabledBreakerNeverOpens() {
+        breaker = new CircuitBreaker("http://avatica", new CircuitBreaker.Settings(false, 10, 1, 50, 80, 1000, 1000, 2), clock::get);
+
+        for (int i = 0; i < 10; i++) {
+            call(true, SLOW);
+        }
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    private void openBreaker() {
+        for (int i = 0; i < 4; i++) {
+            call(true, FAST);
+        }
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    private void call(boolean failed, long duration) {
+        assertTrue(breaker.tryAcquirePermission());
+        breaker.onResult(failed, duration);
+    }
+}
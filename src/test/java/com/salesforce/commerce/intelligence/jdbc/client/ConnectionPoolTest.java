@@ -0,0 +1,271 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.calcite.avatica.AvaticaConnection;
+import org.apache.calcite.avatica.AvaticaStatement;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConnectionPoolTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final List<Connection> opened = new CopyOnWriteArrayList<>();
+    private final SessionStore sessions = new SessionStore(100, TimeUnit.HOURS.toMillis(1), nanos::get);
+    private CIPDataSource settings;
+
+    @Before
+    public void setUp() {
+        settings = new CIPDataSource();
+        settings.setMaxPoolSize(2);
+        settings.setMaxLifetimeMs(TimeUnit.MINUTES.toMillis(30));
+        settings.setIdleTimeoutMs(TimeUnit.MINUTES.toMillis(5));
+        settings.setValidationIntervalMs(TimeUnit.SECONDS.toMillis(30));
+        settings.setConnectionTimeoutMs(50);
+    }
+
+    private ConnectionPool newPool() {
+        return new ConnectionPool(settings, this::openConnection, sessions, nanos::get);
+    }
+
+    private Connection openConnection() throws SQLException {
+        AvaticaConnection connection = mock(AvaticaConnection.class);
+        try {
+            Field id = AvaticaConnection.class.getField("id");
+            id.setAccessible(true);
+            id.set(connection, "connection-" + opened.size());
+        } catch (ReflectiveOperationException e) {
+            throw new AssertionError(e);
+        }
+        AvaticaStatement statement = mock(AvaticaStatement.class);
+        when(connection.createStatement()).thenReturn(statement);
+        opened.add(connection);
+        return connection;
+    }
+
+    private void advanceMillis(long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testReturnedConnectionIsReused() throws Exception {
+        ConnectionPool pool = newPool();
+
+        pool.borrow().close();
+        pool.borrow().close();
+
+        assertEquals(1, opened.size());
+        assertEquals(1, pool.getStats().getIdleConnections());
+        assertEquals(2, pool.getStats().getBorrows());
+        verify(opened.get(0), never()).close();
+    }
+
+    @Test
+    public void testRecentResponseSkipsValidation() throws Exception {
+        ConnectionPool pool = newPool();
+        pool.borrow().close();
+        sessions.put("connection-0", "session");
+
+        advanceMillis(TimeUnit.MINUTES.toMillis(2));
+        sessions.recordResponse("connection-0");
+        advanceMillis(1_000);
+        pool.borrow().close();
+
+        verify(opened.get(0), never()).createStatement();
+        assertEquals(1, pool.getStats().getSkippedValidations());
+        assertEquals(0, pool.getStats().getValidations());
+    }
+
+    @Test
+    public void testStaleConnectionIsValidated() throws Exception {
+        ConnectionPool pool = newPool();
+        pool.borrow().close();
+
+        advanceMillis(TimeUnit.MINUTES.toMillis(1));
+        pool.borrow().close();
+
+        verify(opened.get(0).createStatement()).execute(ConnectionPool.VALIDATION_QUERY);
+        assertEquals(1, pool.getStats().getValidations());
+        assertEquals(1, opened.size());
+    }
+
+    @Test
+    public void testConnectionFailingValidationIsReplaced() throws Exception {
+        ConnectionPool pool = newPool();
+        pool.borrow().close();
+        when(opened.get(0).createStatement().execute(ConnectionPool.VALIDATION_QUERY)).thenThrow(new SQLException("gone", "08S01"));
+
+        advanceMillis(TimeUnit.MINUTES.toMillis(1));
+        pool.borrow().close();
+
+        assertEquals(2, opened.size());
+        verify(opened.get(0)).close();
+        assertEquals(1, pool.getStats().getFailedValidations());
+        assertEquals(1, pool.getStats().getIdleConnections());
+    }
+
+    @Test
+    public void testConnectionIsRetiredAfterMaxLifetime() throws Exception {
+        ConnectionPool pool = newPool();
+        pool.borrow().close();
+
+        advanceMillis(TimeUnit.MINUTES.toMillis(30));
+        pool.borrow().close();
+
+        assertEquals(2, opened.size());
+        verify(opened.get(0)).close();
+    }
+
+    @Test
+    public void testFullPoolTimesOut() throws Exception {
+        ConnectionPool pool = newPool();
+        Connection first = pool.borrow();
+        pool.borrow();
+
+        assertThrows(SQLTransientConnectionException.class, pool::borrow);
+        assertEquals(1, pool.getStats().getTimeouts());
+
+        first.close();
+        pool.borrow();
+        assertEquals(2, opened.size());
+    }
+
+    @Test
+    public void testStandbyConnectionsAreOpenedAndReplacedWhenIdle() throws Exception {
+        settings.setMinIdle(1);
+        ConnectionPool pool = newPool();
+
+        pool.maintain();
+        assertEquals(1, opened.size());
+        assertEquals(1, pool.getStats().getIdleConnections());
+
+        advanceMillis(TimeUnit.MINUTES.toMillis(5));
+        pool.maintain();
+
+        verify(opened.get(0)).close();
+        assertEquals(2, opened.size());
+        assertEquals(1, pool.getStats().getIdleConnections());
+    }
+
+    @Test
+    public void testMissingStandbyConnectionsAreOpenedTogetherWithoutWaiting() throws Exception {
+        settings.setMinIdle(2);
+        List<CompletableFuture<Connection>> pending = new CopyOnWriteArrayList<>();
+        ConnectionPool pool = new ConnectionPool(settings, new ConnectionPool.ConnectionFactory() {
+            @Override
+            public Connection connect() throws SQLException {
+                return openConnection();
+            }
+
+            @Override
+            public CompletableFuture<Connection> connectAsync() {
+                CompletableFuture<Connection> future = new CompletableFuture<>();
+                pending.add(future);
+                return future;
+            }
+        }, sessions, nanos::get);
+
+        // The maintenance task returns while the connects are in progress, and does not open more of them on its next run
+        pool.maintain();
+        assertEquals(2, pending.size());
+        assertEquals(2, pool.getStats().getActiveConnections());
+        pool.maintain();
+        assertEquals(2, pending.size());
+
+        pending.get(0).complete(openConnection());
+        pending.get(1).completeExceptionally(new SQLException("refused", "08001"));
+        assertEquals(1, pool.getStats().getIdleConnections());
+        assertEquals(0, pool.getStats().getActiveConnections());
+
+        // The failed connect is tried again on the next run
+        pool.maintain();
+        assertEquals(3, pending.size());
+    }
+
+    @Test
+    public void testChangedOrBrokenConnectionsAreNotReused() throws Exception {
+        ConnectionPool pool = newPool();
+        Connection connection = pool.borrow();
+        connection.setAutoCommit(false);
+        connection.close();
+
+        connection = pool.borrow();
+        when(opened.get(1).getMetaData()).thenThrow(new SQLException("gone", "08S01"));
+        Connection broken = connection;
+        assertThrows(SQLException.class, broken::getMetaData);
+        connection.close();
+
+        pool.borrow().close();
+        assertEquals(3, opened.size());
+        verify(opened.get(0)).close();
+        verify(opened.get(1)).close();
+    }
+
+    @Test
+    public void testClosingReturnsOnceAndClosesStatements() throws Exception {
+        ConnectionPool pool = newPool();
+        Connection connection = pool.borrow();
+        Statement statement = connection.createStatement();
+
+        connection.close();
+        connection.close();
+
+        assertTrue(connection.isClosed());
+        verify(statement, times(1)).close();
+        assertThrows(SQLException.class, connection::createStatement);
+        assertEquals(1, pool.getStats().getIdleConnections());
+        assertEquals(0, pool.getStats().getActiveConnections());
+    }
+
+    @Test
+    public void testClosedPoolClosesIdleAndReturnedConnections() throws Exception {
+        ConnectionPool pool = newPool();
+        Connection borrowed = pool.borrow();
+        pool.borrow().close();
+
+        pool.close();
+        borrowed.close();
+
+        assertNotSame(opened.get(0), opened.get(1));
+        verify(opened.get(0)).close();
+        verify(opened.get(1)).close();
+        assertThrows(SQLException.class, pool::borrow);
+    }
+
+    @Test
+    public void testDataSourceSettings() throws Exception {
+        CIPDataSource dataSource = new CIPDataSource();
+        assertThrows(IllegalArgumentException.class, () -> dataSource.setMaxPoolSize(0));
+        assertThrows(SQLException.class, dataSource::getConnection);
+        assertThrows(SQLException.class, () -> dataSource.getConnection("user", "password"));
+
+        dataSource.setUrl("jdbc:salesforcecc://localhost:9787/instance");
+        dataSource.setMinIdle(2);
+        dataSource.setMaxIdle(1);
+        assertThrows(SQLException.class, dataSource::getConnection);
+
+        dataSource.close();
+        assertThrows(IllegalStateException.class, () -> dataSource.setProperties(new Properties()));
+    }
+}
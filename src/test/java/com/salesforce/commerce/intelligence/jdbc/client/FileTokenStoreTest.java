@@ -0,0 +1,126 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assume.assumeTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class FileTokenStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String KEY = TokenCache.key("host", "client", "secret", "instance");
+
+    @Test
+    public void testTokenSurvivesANewStoreInstance() throws Exception {
+        Path directory = folder.getRoot().toPath().resolve("tokens");
+        new FileTokenStore(directory).write(KEY, new TokenCache.Token("access-token", 1234567890L));
+
+        TokenCache.Token token = new FileTokenStore(directory).read(KEY);
+
+        assertNotNull(token);
+        assertEquals("access-token", token.getAccessToken());
+        assertEquals(1234567890L, token.getExpiryTimeMs());
+        assertNull(new FileTokenStore(directory).read(TokenCache.key("host", "client", "secret", "other")));
+    }
+
+    @Test
+    public void testFilesAreEncryptedAndDoNotRevealTheKey() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        new FileTokenStore(directory).write(KEY, new TokenCache.Token("access-token", 1234567890L));
+
+        List<Path> files;
+        try (Stream<Path> list = Files.list(directory)) {
+            files = list.filter(file -> !file.getFileName().toString().equals(FileTokenStore.KEY_FILE)).collect(Collectors.toList());
+        }
+        assertEquals(1, files.size());
+        String name = files.get(0).getFileName().toString();
+        assertFalse(name.contains("client") || name.contains("instance"));
+        String content = new String(Files.readAllBytes(files.get(0)), StandardCharsets.ISO_8859_1);
+        assertFalse(content.contains("access-token"));
+    }
+
+    @Test
+    public void testTamperedOrForeignFilesAreIgnored() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        FileTokenStore store = new FileTokenStore(directory);
+        store.write(KEY, new TokenCache.Token("access-token", 1234567890L));
+        Path tokenFile;
+        try (Stream<Path> list = Files.list(directory)) {
+            tokenFile = list.filter(file -> file.toString().endsWith(".token")).findFirst().get();
+        }
+
+        byte[] content = Files.readAllBytes(tokenFile);
+        content[content.length - 1] ^= 1;
+        Files.write(tokenFile, content);
+        assertNull(store.read(KEY));
+
+        // A token encrypted with the key of another directory cannot be decrypted either
+        store.write(KEY, new TokenCache.Token("access-token", 1234567890L));
+        Files.write(directory.resolve(FileTokenStore.KEY_FILE), new byte[32]);
+        assertNull(store.read(KEY));
+    }
+
+    @Test
+    public void testDeleteRemovesTheToken() {
+        FileTokenStore store = new FileTokenStore(folder.getRoot().toPath());
+        store.write(KEY, new TokenCache.Token("access-token", 1234567890L));
+
+        store.delete(KEY);
+
+        assertNull(store.read(KEY));
+    }
+
+    @Test
+    public void testFilesAreOnlyAccessibleByTheOwner() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path directory = folder.getRoot().toPath().resolve("tokens");
+        new FileTokenStore(directory).write(KEY, new TokenCache.Token("access-token", 1234567890L));
+
+        assertEquals("rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(directory)));
+        try (Stream<Path> list = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) list::iterator) {
+                assertEquals(file.toString(), "rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+            }
+        }
+    }
+
+    @Test
+    public void testDirectoryAccessibleByOtherUsersIsNotUsed() throws Exception {
+        assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        Path directory = folder.getRoot().toPath().resolve("tokens");
+        FileTokenStore store = new FileTokenStore(directory);
+        store.write(KEY, new TokenCache.Token("access-token", 1234567890L));
+
+        Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwxr-x---"));
+        assertNull(store.read(KEY));
+        store.write(KEY, new TokenCache.Token("other-token", 1234567890L));
+
+        Files.setPosixFilePermissions(directory, PosixFilePermissions.fromString("rwx------"));
+        assertEquals("access-token", store.read(KEY).getAccessToken());
+    }
+
+    @Test
+    public void testStoreIsOptIn() {
+        assertNull(FileTokenStore.fromProperties(new Properties()));
+        Properties properties = new Properties();
+        properties.put(FileTokenStore.PROPERTY, folder.getRoot().getPath());
+        assertNotNull(FileTokenStore.fromProperties(properties));
+    }
+}
@@ -0,0 +1,198 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.junit.Test;
+
+public class FramePrefetcherTest {
+
+    private static final int ROWS = 100;
+
+    private final ProtobufTranslation translation = new ProtobufTranslationImpl();
+    // Connection ids are unique per test, the result sets of all connections share one registry
+    private final String connectionId = UUID.randomUUID().toString();
+    private final List<Service.FetchRequest> sent = new ArrayList<>();
+    private final List<CompletableFuture<byte[]>> responses = new ArrayList<>();
+    // Counted down when a thread waits for the response of a fetch
+    private final CountDownLatch joined = new CountDownLatch(1);
+
+    private CompletableFuture<byte[]> send(Service.FetchRequest fetch) {
+        CompletableFuture<byte[]> response = new CompletableFuture<>() {
+            @Override
+            public byte[] join() {
+                joined.countDown();
+                return super.join();
+            }
+        };
+        sent.add(fetch);
+        responses.add(response);
+        return response;
+    }
+
+    private byte[] frame(long offset, int rows, boolean done) throws IOException {
+        List<Object> values = new ArrayList<>(Collections.nCopies(rows, new Object[] {"value"}));
+        return translation.serializeResponse(new Service.FetchResponse(Meta.Frame.create(offset, done, values), false, false, null));
+    }
+
+    private CompletableFuture<byte[]> fetch(FramePrefetcher prefetcher, long offset) {
+        return prefetcher.fetch(new Service.FetchRequest(connectionId, 1, offset, ROWS), this::send);
+    }
+
+    @Test
+    public void testNextFrameIsFetchedWhileTheCurrentOneIsProcessed() throws Exception {
+        FramePrefetcher prefetcher = new FramePrefetcher(2, 1 << 20);
+
+        CompletableFuture<byte[]> first = fetch(prefetcher, 0);
+        assertEquals(1, sent.size());
+        byte[] firstFrame = frame(0, ROWS, false);
+        responses.get(0).complete(firstFrame);
+        assertArrayEquals(firstFrame, first.get());
+
+        // One frame in flight at a time, up to the depth of two frames ahead
+        assertEquals(2, sent.size());
+        assertEquals(ROWS, sent.get(1).offset);
+        responses.get(1).complete(frame(ROWS, ROWS, false));
+        assertEquals(3, sent.size());
+        assertEquals(2 * ROWS, sent.get(2).offset);
+        responses.get(2).complete(frame(2 * ROWS, ROWS, false));
+        assertEquals(3, sent.size());
+
+        // Served from the prefetched frames, taking one lets the next one be fetched
+        assertTrue(fetch(prefetcher, ROWS).isDone());
+        assertEquals(4, sent.size());
+        assertEquals(3 * ROWS, sent.get(3).offset);
+
+        // The last frame ends the prefetch
+        responses.get(3).complete(frame(3 * ROWS, 10, true));
+        assertTrue(fetch(prefetcher, 2 * ROWS).isDone());
+        assertTrue(fetch(prefetcher, 3 * ROWS).isDone());
+        assertEquals(4, sent.size());
+        assertFalse(FramePrefetcher.isActive(connectionId));
+    }
+
+    private byte[] executeResponse(int rows, boolean done) throws IOException {
+        List<Object> values = new ArrayList<>(Collections.nCopies(rows, new Object[] {"value"}));
+        Service.ResultSetResponse result = new Service.ResultSetResponse(connectionId, 1, false, null, Meta.Frame.create(0, done, values), -1,
+                null);
+        return translation.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(result), false, null));
+    }
+
+    @Test
+    public void testFirstFrameOfTheExecuteResponseStartsThePrefetch() throws Exception {
+        FramePrefetcher prefetcher = new FramePrefetcher(1, 1 << 20);
+
+        prefetcher.executed(new StatementKey(connectionId, 1), executeResponse(ROWS, false), this::send);
+        // The second frame is requested before Avatica fetches it, with the size of the first one
+        assertEquals(1, sent.size());
+        assertEquals(ROWS, sent.get(0).offset);
+        assertEquals(ROWS, sent.get(0).fetchMaxRowCount);
+
+        CompletableFuture<byte[]> second = fetch(prefetcher, ROWS);
+        assertEquals(1, sent.size());
+        byte[] secondFrame = frame(ROWS, 10, true);
+        responses.get(0).complete(secondFrame);
+        assertArrayEquals(secondFrame, second.get());
+        assertFalse(FramePrefetcher.isActive(connectionId));
+    }
+
+    @Test
+    public void testCompleteExecuteResponseStartsNoPrefetch() throws Exception {
+        FramePrefetcher prefetcher = new FramePrefetcher(1, 1 << 20);
+
+        prefetcher.executed(new StatementKey(connectionId, 1), executeResponse(10, true), this::send);
+
+        assertTrue(sent.isEmpty());
+        assertFalse(FramePrefetcher.isActive(connectionId));
+    }
+
+    @Test
+    public void testMemoryCapLimitsTheWaitingFrames() throws Exception {
+        byte[] frame = frame(0, ROWS, false);
+        FramePrefetcher prefetcher = new FramePrefetcher(4, frame.length);
+
+        fetch(prefetcher, 0);
+        responses.get(0).complete(frame);
+        responses.get(1).complete(frame(ROWS, ROWS, false));
+
+        // The waiting frame fills the cap
+        assertEquals(2, sent.size());
+        fetch(prefetcher, ROWS);
+        assertEquals(3, sent.size());
+    }
+
+    @Test
+    public void testClosedResultSetStopsThePrefetch() throws Exception {
+        FramePrefetcher prefetcher = new FramePrefetcher(1, 1 << 20);
+        fetch(prefetcher, 0);
+        responses.get(0).complete(frame(0, ROWS, false));
+
+        FramePrefetcher.cancel(connectionId, 1);
+        responses.get(1).complete(frame(ROWS, ROWS, false));
+        assertEquals(2, sent.size());
+        assertFalse(FramePrefetcher.isActive(connectionId));
+
+        // A new result set of the statement starts from scratch
+        CompletableFuture<byte[]> next = fetch(prefetcher, 0);
+        assertEquals(3, sent.size());
+        assertFalse(next.isDone());
+    }
+
+    @Test
+    public void testDiscardWaitsForTheFetchInFlight() throws Exception {
+        FramePrefetcher prefetcher = new FramePrefetcher(1, 1 << 20);
+        fetch(prefetcher, 0);
+        responses.get(0).complete(frame(0, ROWS, false));
+
+        CompletableFuture<Void> discarded = CompletableFuture.runAsync(() -> prefetcher.discard(new StatementKey(connectionId, 1)));
+        assertTrue(joined.await(5, TimeUnit.SECONDS));
+        assertFalse(discarded.isDone());
+
+        responses.get(1).complete(frame(ROWS, ROWS, false));
+        discarded.get(5, TimeUnit.SECONDS);
+        assertEquals(2, sent.size());
+        assertFalse(FramePrefetcher.isActive(connectionId));
+    }
+
+    @Test
+    public void testFailedFetchReachesTheApplication() throws Exception {
+        FramePrefetcher prefetcher = new FramePrefetcher(1, 1 << 20);
+        fetch(prefetcher, 0);
+        responses.get(0).complete(frame(0, ROWS, false));
+        responses.get(1).completeExceptionally(new RuntimeException("Server unavailable"));
+
+        CompletableFuture<byte[]> failed = fetch(prefetcher, ROWS);
+        assertThrows(Exception.class, failed::get);
+        assertEquals(2, sent.size());
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(FramePrefetcher.fromProperties(properties));
+
+        properties.put("prefetch", "true");
+        assertTrue(FramePrefetcher.fromProperties(properties) != null);
+
+        properties.put("prefetchDepth", "0");
+        assertThrows(IllegalArgumentException.class, () -> FramePrefetcher.fromProperties(properties));
+    }
+}
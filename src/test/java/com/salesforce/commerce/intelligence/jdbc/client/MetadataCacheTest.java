@@ -0,0 +1,163 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.junit.Test;
+
+public class MetadataCacheTest {
+
+    private static final String INSTANCE = "bjnl_prd";
+    private static final String CLIENT = "client";
+
+    private final ProtobufTranslation translation = new ProtobufTranslationImpl();
+    private final AtomicLong nanos = new AtomicLong();
+    private final MetadataCache.Store store = new MetadataCache.Store(nanos::get);
+    private final MetadataCache cache = new MetadataCache(1000, store);
+    // Connection ids are unique per test, the statements answered from the cache of all connections share one registry
+    private final String connectionId = UUID.randomUUID().toString();
+    private final List<CompletableFuture<byte[]>> loads = new ArrayList<>();
+
+    private CompletableFuture<byte[]> load() {
+        CompletableFuture<byte[]> load = new CompletableFuture<>();
+        loads.add(load);
+        return load;
+    }
+
+    private Service.TablesRequest tables(String connection, String schemaPattern) {
+        return new Service.TablesRequest(connection, null, schemaPattern, "%", null);
+    }
+
+    private byte[] tablesResponse(String connection, boolean done) throws IOException {
+        List<Object> rows = Collections.singletonList(new Object[] {"ccdw_dim_site"});
+        return translation.serializeResponse(new Service.ResultSetResponse(connection, 3, true, null, Meta.Frame.create(0, done, rows), -1,
+                        null));
+    }
+
+    private Service.ResultSetResponse parse(byte[] response) throws IOException {
+        return (Service.ResultSetResponse) translation.parseResponse(response);
+    }
+
+    @Test
+    public void testCachedResultSetGetsAStatementClosedLocally() throws Exception {
+        byte[] loaded = tablesResponse(connectionId, true);
+        CompletableFuture<byte[]> first = cache.get(INSTANCE, CLIENT, tables(connectionId, "public"), this::load);
+        loads.get(0).complete(loaded);
+        assertArrayEquals(loaded, first.get());
+
+        Service.ResultSetResponse answer = parse(cache.get(INSTANCE, CLIENT, tables(connectionId, "public"), this::load).get());
+        assertEquals(1, loads.size());
+        assertEquals(connectionId, answer.connectionId);
+        assertTrue(answer.statementId < 0);
+        assertTrue(answer.firstFrame.done);
+        assertTrue(MetadataCache.hasLocalStatements(connectionId));
+
+        // Other arguments or clients are loaded
+        cache.get(INSTANCE, CLIENT, tables(connectionId, "other"), this::load);
+        cache.get(INSTANCE, "other-client", tables(connectionId, "public"), this::load);
+        assertEquals(3, loads.size());
+
+        assertNull(MetadataCache.closeLocalStatement(new Service.CloseStatementRequest(connectionId, 3)));
+        assertNotNull(MetadataCache.closeLocalStatement(new Service.CloseStatementRequest(connectionId, answer.statementId)));
+        assertFalse(MetadataCache.hasLocalStatements(connectionId));
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(3, cache.getStats().getLoads());
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneLoad() throws Exception {
+        CompletableFuture<byte[]> first = cache.get(INSTANCE, CLIENT, tables(connectionId, "public"), this::load);
+        CompletableFuture<byte[]> second = cache.get(INSTANCE, CLIENT, tables("other", "public"), this::load);
+        assertEquals(1, loads.size());
+        assertFalse(second.isDone());
+
+        loads.get(0).complete(tablesResponse(connectionId, true));
+        assertEquals(3, parse(first.get()).statementId);
+        assertEquals("other", parse(second.get(5, TimeUnit.SECONDS)).connectionId);
+        assertEquals(1, cache.getStats().getCoalesced());
+        MetadataCache.forgetConnection("other");
+    }
+
+    @Test
+    public void testFailedOrIncompleteLoadIsNotShared() throws Exception {
+        CompletableFuture<byte[]> first = cache.get(INSTANCE, CLIENT, tables(connectionId, "public"), this::load);
+        CompletableFuture<byte[]> second = cache.get(INSTANCE, CLIENT, tables(connectionId, "public"), this::load);
+        loads.get(0).completeExceptionally(new RuntimeException("Server unavailable"));
+        assertTrue(first.isCompletedExceptionally());
+
+        // The waiting lookup sends its own request
+        assertEquals(2, loads.size());
+        loads.get(1).complete(tablesResponse(connectionId, false));
+        assertNotNull(second.get());
+
+        // A result set of several frames is not cached
+        cache.get(INSTANCE, CLIENT, tables(connectionId, "public"), this::load);
+        assertEquals(3, loads.size());
+    }
+
+    @Test
+    public void testInvalidationAndExpiry() throws Exception {
+        Service.DatabasePropertyRequest properties = new Service.DatabasePropertyRequest(connectionId);
+        byte[] propertyResponse = translation.serializeResponse(new Service.DatabasePropertyResponse(Map.of(
+                        Meta.DatabaseProperty.GET_DRIVER_NAME, "cip"), null));
+        cache.get(INSTANCE, CLIENT, properties, this::load);
+        loads.get(0).complete(propertyResponse);
+        assertArrayEquals(propertyResponse, cache.get(INSTANCE, CLIENT, properties, this::load).get());
+
+        cache.observeStatement(INSTANCE, "SELECT 1");
+        assertEquals(1, loads.size());
+        cache.observeStatement(INSTANCE, "/* migration */ CREATE TABLE t (id INT)");
+        cache.get(INSTANCE, CLIENT, properties, this::load);
+        assertEquals(2, loads.size());
+
+        // A load that started before an invalidation is not cached
+        store.invalidate(null);
+        loads.get(1).complete(propertyResponse);
+        cache.get(INSTANCE, CLIENT, properties, this::load);
+        assertEquals(3, loads.size());
+
+        loads.get(2).complete(propertyResponse);
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        cache.get(INSTANCE, CLIENT, properties, this::load);
+        assertEquals(4, loads.size());
+        assertEquals(2, cache.getStats().getInvalidations());
+    }
+
+    @Test
+    public void testOnlyMetadataRequestsAreCached() {
+        assertNull(cache.get(INSTANCE, CLIENT, new Service.FetchRequest(connectionId, 1, 0, 100), this::load));
+        assertEquals(0, loads.size());
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(MetadataCache.fromProperties(properties));
+
+        properties.put("metadataCache", "true");
+        assertNotNull(MetadataCache.fromProperties(properties));
+
+        properties.put("metadataCacheTtlMs", "-1");
+        assertThrows(IllegalArgumentException.class, () -> MetadataCache.fromProperties(properties));
+    }
+}
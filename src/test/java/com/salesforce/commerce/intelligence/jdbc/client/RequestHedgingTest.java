@@ -0,0 +1,65 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RequestHedgingTest {
+
+    @Test
+    public void testOnlyIdempotentKindsAreHedged() {
+        RequestHedging hedging = new RequestHedging(95, 100);
+
+        assertTrue(hedging.appliesTo(RequestKind.TABLES));
+        assertTrue(hedging.appliesTo(RequestKind.COLUMNS));
+        assertTrue(hedging.appliesTo(RequestKind.SCHEMAS));
+        assertFalse(hedging.appliesTo(RequestKind.FETCH));
+        assertFalse(hedging.appliesTo(RequestKind.EXECUTE));
+        assertFalse(hedging.appliesTo(RequestKind.PREPARE_AND_EXECUTE));
+        assertFalse(hedging.appliesTo(RequestKind.EXECUTE_BATCH));
+        assertFalse(hedging.appliesTo(RequestKind.CLOSE_STATEMENT));
+        assertFalse(hedging.appliesTo(RequestKind.UNKNOWN));
+    }
+
+    @Test
+    public void testDelayFollowsThePercentileOfRecentLatencies() {
+        RequestHedging hedging = new RequestHedging(90, 100);
+
+        // The minimum delay is used until enough latencies have been seen
+        for (int i = 1; i < RequestHedging.MIN_SAMPLES; i++) {
+            hedging.record(RequestKind.TABLES, TimeUnit.SECONDS.toNanos(i));
+        }
+        assertEquals(100, hedging.delayMillis(RequestKind.TABLES));
+
+        hedging.record(RequestKind.TABLES, TimeUnit.SECONDS.toNanos(20));
+        // 1 s to 20 s, the 90th percentile is the 18th value
+        assertEquals(18_000, hedging.delayMillis(RequestKind.TABLES));
+        // Other kinds keep their own history
+        assertEquals(100, hedging.delayMillis(RequestKind.COLUMNS));
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(RequestHedging.fromProperties(properties));
+
+        properties.put("hedging", "true");
+        properties.put("hedgeDelayMs", "250");
+        assertEquals(250, RequestHedging.fromProperties(properties).delayMillis(RequestKind.COLUMNS));
+
+        properties.put("hedgePercentile", "100");
+        try {
+            RequestHedging.fromProperties(properties);
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().startsWith("Invalid hedging settings"));
+            return;
+        }
+        throw new AssertionError("Expected IllegalArgumentException");
+    }
+}
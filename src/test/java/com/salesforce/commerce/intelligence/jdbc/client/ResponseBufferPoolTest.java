@@ -0,0 +1,82 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ResponseBufferPoolTest {
+
+    @Test
+    public void testReadFully_UnknownLengthGrowsThroughSizeClasses() throws IOException {
+        ResponseBufferPool pool = new ResponseBufferPool(2);
+        byte[] frame = randomBytes(3 * ResponseBufferPool.MIN_BUFFER_SIZE + 17);
+
+        byte[] read = pool.readFully(new ByteArrayInputStream(frame), -1);
+
+        assertArrayEquals(frame, read);
+        // 64 KiB, 128 KiB and 256 KiB buffers were allocated and all of them went back to the pool
+        assertEquals(0, pool.getHits());
+        assertEquals(3, pool.getMisses());
+        assertEquals(3, pool.getPooledBuffers());
+
+        assertArrayEquals(frame, pool.readFully(new ByteArrayInputStream(frame), -1));
+        assertEquals(3, pool.getHits());
+        assertEquals(3, pool.getMisses());
+    }
+
+    @Test
+    public void testReadFully_SizeHintAvoidsGrowing() throws IOException {
+        ResponseBufferPool pool = new ResponseBufferPool(2);
+        byte[] frame = randomBytes(2 * ResponseBufferPool.MIN_BUFFER_SIZE);
+
+        assertArrayEquals(frame, pool.readFully(new ByteArrayInputStream(frame), frame.length));
+
+        assertEquals(1, pool.getMisses());
+        assertEquals(1, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void testReadFully_EmptyStream() throws IOException {
+        ResponseBufferPool pool = new ResponseBufferPool(2);
+
+        assertEquals(0, pool.readFully(new ByteArrayInputStream(new byte[0]), -1).length);
+        assertEquals(1, pool.getPooledBuffers());
+    }
+
+    @Test
+    public void testAcquireAndRelease_PoolIsBounded() {
+        ResponseBufferPool pool = new ResponseBufferPool(1);
+        byte[] first = pool.acquire(ResponseBufferPool.MIN_BUFFER_SIZE);
+        byte[] second = pool.acquire(ResponseBufferPool.MIN_BUFFER_SIZE);
+
+        pool.release(first);
+        pool.release(second);
+        pool.release(new byte[100]); // not a pooled size
+
+        assertEquals(1, pool.getPooledBuffers());
+        assertSame(first, pool.acquire(1));
+    }
+
+    @Test
+    public void testAcquire_OversizedBuffersAreNotPooled() {
+        ResponseBufferPool pool = new ResponseBufferPool(1);
+
+        byte[] buffer = pool.acquire(ResponseBufferPool.MAX_POOLED_BUFFER_SIZE + 1);
+        pool.release(buffer);
+
+        assertEquals(ResponseBufferPool.MAX_POOLED_BUFFER_SIZE + 1, buffer.length);
+        assertEquals(0, pool.getPooledBuffers());
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(42).nextBytes(bytes);
+        return bytes;
+    }
+}
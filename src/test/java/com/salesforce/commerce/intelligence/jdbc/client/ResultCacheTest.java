@@ -0,0 +1,199 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.junit.Test;
+
+public class ResultCacheTest {
+
+    private static final String INSTANCE_ID = "instance";
+    private static final String CLIENT_ID = "client";
+    private static final String SQL = "SELECT name FROM sites";
+
+    private final ProtobufTranslation translation = new ProtobufTranslationImpl();
+    private final AtomicLong nanos = new AtomicLong();
+    private final ResultCache.Store store = new ResultCache.Store(1 << 20, nanos::get);
+    private final ResultCache cache = new ResultCache(1000, store);
+    // Connection ids are unique per test, the results being collected of all connections share one registry
+    private final String connectionId = UUID.randomUUID().toString();
+
+    private static List<Object> rows(int from, int to) {
+        List<Object> rows = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            rows.add(new Object[] {"site-" + i});
+        }
+        return rows;
+    }
+
+    private byte[] executeResponse(String connection, int statement, List<Object> rows, boolean done) throws IOException {
+        return translation.serializeResponse(new Service.ExecuteResponse(Collections.singletonList(new Service.ResultSetResponse(connection,
+                        statement, false, null, Meta.Frame.create(0, done, rows), -1, null)), false, null));
+    }
+
+    private byte[] fetchResponse(long offset, List<Object> rows, boolean done) throws IOException {
+        return translation.serializeResponse(new Service.FetchResponse(Meta.Frame.create(offset, done, rows), false, false, null));
+    }
+
+    private Service.ResultSetResponse parse(byte[] response) throws IOException {
+        Service.ExecuteResponse execute = (Service.ExecuteResponse) translation.parseResponse(response);
+        return execute.results.get(0);
+    }
+
+    private static int size(Meta.Frame frame) {
+        int rows = 0;
+        for (Object ignored : frame.rows) {
+            rows++;
+        }
+        return rows;
+    }
+
+    @Test
+    public void testRepeatedQueryIsAnsweredForTheNewStatement() throws IOException {
+        Service.PrepareAndExecuteRequest first = new Service.PrepareAndExecuteRequest(connectionId, 1, SQL, -1);
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, first));
+        cache.record(INSTANCE_ID, CLIENT_ID, first, executeResponse(connectionId, 1, rows(0, 3), true));
+
+        // Formatting differences do not matter, the response belongs to the statement of the request
+        Service.PrepareAndExecuteRequest second = new Service.PrepareAndExecuteRequest("other", 7, "  SELECT name\n FROM sites ;", -1);
+        byte[] cached = cache.lookup(INSTANCE_ID, CLIENT_ID, second);
+        assertNotNull(cached);
+        Service.ResultSetResponse result = parse(cached);
+        assertEquals("other", result.connectionId);
+        assertEquals(7, result.statementId);
+        assertTrue(result.firstFrame.done);
+        assertEquals(3, size(result.firstFrame));
+
+        // Other scopes, row limits and the bypass hint do not use the result
+        assertNull(cache.lookup("other", CLIENT_ID, second));
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, new Service.PrepareAndExecuteRequest("other", 7, SQL, 10)));
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, new Service.PrepareAndExecuteRequest("other", 7, "SELECT /*+ NO_RESULT_CACHE */ name FROM sites", -1)));
+
+        ResultCacheStats stats = cache.getStats();
+        assertEquals(1, stats.getHits());
+        assertEquals(3, stats.getMisses());
+        assertEquals(1, stats.getBypasses());
+        assertEquals(1, stats.getEntries());
+    }
+
+    @Test
+    public void testResultOfSeveralFramesIsCollectedWhileTheApplicationFetches() throws IOException {
+        Service.PrepareAndExecuteRequest execute = new Service.PrepareAndExecuteRequest(connectionId, 1, SQL, -1);
+        cache.lookup(INSTANCE_ID, CLIENT_ID, execute);
+        cache.record(INSTANCE_ID, CLIENT_ID, execute, executeResponse(connectionId, 1, rows(0, 100), false));
+        assertTrue(ResultCache.isCollecting(connectionId));
+
+        Service.FetchRequest fetch = new Service.FetchRequest(connectionId, 1, 100, 100);
+        cache.record(INSTANCE_ID, CLIENT_ID, fetch, fetchResponse(100, rows(100, 200), false));
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, new Service.PrepareAndExecuteRequest(connectionId, 2, SQL, -1)));
+        fetch = new Service.FetchRequest(connectionId, 1, 200, 100);
+        cache.record(INSTANCE_ID, CLIENT_ID, fetch, fetchResponse(200, rows(200, 250), true));
+
+        Service.ResultSetResponse result = parse(cache.lookup(INSTANCE_ID, CLIENT_ID, new Service.PrepareAndExecuteRequest(connectionId, 2, SQL, -1)));
+        assertEquals(250, size(result.firstFrame));
+        assertTrue(result.firstFrame.done);
+    }
+
+    @Test
+    public void testResultNotReadToTheEndIsNotCached() throws IOException {
+        Service.PrepareAndExecuteRequest execute = new Service.PrepareAndExecuteRequest(connectionId, 1, SQL, -1);
+        cache.record(INSTANCE_ID, CLIENT_ID, execute, executeResponse(connectionId, 1, rows(0, 100), false));
+
+        // Closing the statement ends the collection
+        cache.lookup(INSTANCE_ID, CLIENT_ID, new Service.CloseStatementRequest(connectionId, 1));
+        cache.record(INSTANCE_ID, CLIENT_ID, new Service.FetchRequest(connectionId, 1, 100, 100), fetchResponse(100, rows(100, 110), true));
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, execute));
+        assertEquals(0, cache.getStats().getStores());
+    }
+
+    @Test
+    public void testWritesInvalidateTheInstanceForAllClients() throws IOException {
+        Service.PrepareAndExecuteRequest execute = new Service.PrepareAndExecuteRequest(connectionId, 1, SQL, -1);
+        cache.record(INSTANCE_ID, CLIENT_ID, execute, executeResponse(connectionId, 1, rows(0, 3), true));
+        cache.record(INSTANCE_ID, "other-client", execute, executeResponse(connectionId, 1, rows(0, 3), true));
+        cache.record("other", CLIENT_ID, execute, executeResponse(connectionId, 1, rows(0, 3), true));
+
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, new Service.PrepareAndExecuteRequest(connectionId, 2, "-- nightly\nDELETE FROM sites", -1)));
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, execute));
+        assertNull(cache.lookup(INSTANCE_ID, "other-client", execute));
+        assertNotNull(cache.lookup("other", CLIENT_ID, execute));
+        assertEquals(1, cache.getStats().getInvalidations());
+    }
+
+    @Test
+    public void testWritesInvalidateTheInstanceInTheCachesOfAllSizes() throws IOException {
+        // Instance ids and byte budgets of their own, the caches of a byte budget are shared by all tests
+        String instanceId = UUID.randomUUID().toString();
+        Properties properties = new Properties();
+        properties.put("resultCache", "true");
+        properties.put("resultCacheMaxBytes", String.valueOf((1 << 20) + 1));
+        ResultCache writerCache = ResultCache.fromProperties(properties);
+        properties.put("resultCacheMaxBytes", String.valueOf((1 << 20) + 2));
+        ResultCache readerCache = ResultCache.fromProperties(properties);
+        Service.PrepareAndExecuteRequest execute = new Service.PrepareAndExecuteRequest(connectionId, 1, SQL, -1);
+        readerCache.record(instanceId, "reader", execute, executeResponse(connectionId, 1, rows(0, 3), true));
+        readerCache.record("other", "reader", execute, executeResponse(connectionId, 1, rows(0, 3), true));
+
+        assertNull(writerCache.lookup(instanceId, "writer", new Service.PrepareAndExecuteRequest(connectionId, 2, "UPDATE sites SET name = 'x'",
+                        -1)));
+        assertNull(readerCache.lookup(instanceId, "reader", execute));
+        assertNotNull(readerCache.lookup("other", "reader", execute));
+    }
+
+    @Test
+    public void testResultsExpireAndLeastRecentlyUsedAreEvicted() throws IOException {
+        Service.PrepareAndExecuteRequest execute = new Service.PrepareAndExecuteRequest(connectionId, 1, SQL, -1);
+        cache.record(INSTANCE_ID, CLIENT_ID, execute, executeResponse(connectionId, 1, rows(0, 3), true));
+        nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        assertNull(cache.lookup(INSTANCE_ID, CLIENT_ID, execute));
+        assertEquals(1, cache.getStats().getExpirations());
+
+        ResultCache.Store small = new ResultCache.Store(4096, nanos::get);
+        ResultCache smallCache = new ResultCache(60_000, small);
+        for (int i = 0; i < 20; i++) {
+            Service.PrepareAndExecuteRequest query = new Service.PrepareAndExecuteRequest(connectionId, i, SQL + " WHERE id = " + i, -1);
+            smallCache.record(INSTANCE_ID, CLIENT_ID, query, executeResponse(connectionId, i, rows(0, 10), true));
+            // The first query stays in use
+            assertNotNull(smallCache.lookup(INSTANCE_ID, CLIENT_ID, new Service.PrepareAndExecuteRequest(connectionId, i, SQL + " WHERE id = 0", -1)));
+        }
+        assertTrue(small.bytes() <= 4096);
+        assertTrue(smallCache.getStats().getEvictions() > 0);
+    }
+
+    @Test
+    public void testNormalizeAndFirstKeyword() {
+        assertEquals("SELECT 'a  b' FROM t", ResultCache.normalize(" SELECT\t'a  b'\n  FROM t;"));
+        assertEquals("WITH", ResultCache.firstKeyword("/* report */ (with x as (select 1) select * from x)"));
+        assertEquals("INSERT", ResultCache.firstKeyword("-- load\ninsert into t values (1)"));
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(ResultCache.fromProperties(properties));
+
+        properties.put("resultCache", "true");
+        ResultCache first = ResultCache.fromProperties(properties);
+        // Connections with the same byte budget share the cache
+        assertTrue(first.getStats() == ResultCache.fromProperties(properties).getStats());
+
+        properties.put("resultCacheTtlMs", "0");
+        assertThrows(IllegalArgumentException.class, () -> ResultCache.fromProperties(properties));
+    }
+}
@@ -0,0 +1,77 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+public class RetryBudgetTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void testRetriesAreBoundedByTheDepositRatio() {
+        // No time based refill, so only deposits fund retries
+        RetryBudget budget = new RetryBudget(0.1, 0, 100, 0);
+
+        for (int i = 0; i < 100; i++) {
+            budget.deposit();
+        }
+        int retries = 0;
+        while (budget.tryWithdraw(0)) {
+            retries++;
+        }
+
+        assertEquals(10, retries);
+        assertEquals(1, budget.getRejectedRetries());
+    }
+
+    @Test
+    public void testBudgetRefillsOverTimeUpToItsCapacity() {
+        RetryBudget budget = new RetryBudget(0.2, 2, 5, 0);
+
+        assertTrue(budget.tryWithdraw(0));
+        assertTrue(budget.tryWithdraw(0));
+        assertFalse(budget.tryWithdraw(0));
+
+        // A long quiet period only refills up to the capacity
+        for (int i = 0; i < 5; i++) {
+            assertTrue(budget.tryWithdraw(60 * SECOND));
+        }
+        assertFalse(budget.tryWithdraw(60 * SECOND));
+        assertTrue(budget.tryWithdraw(60 * SECOND + SECOND / 2));
+    }
+
+    @Test
+    public void testExponentialBackoffWithFullJitter() {
+        ExponentialBackoffRetryPolicy policy = new ExponentialBackoffRetryPolicy(5, 100, 1000);
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(policy.getDelayMillis(1, -1) <= 100);
+            assertTrue(policy.getDelayMillis(3, -1) <= 400);
+            assertTrue(policy.getDelayMillis(40, -1) <= 1000);
+        }
+        // Retry-After takes precedence, capped at the maximum delay
+        assertEquals(500, policy.getDelayMillis(1, 500));
+        assertEquals(1000, policy.getDelayMillis(1, 60_000));
+    }
+
+    @Test
+    public void testRetryPolicyFromProperties() {
+        Properties properties = new Properties();
+        properties.put("maxRetryAttempts", "7");
+        assertEquals(7, RetryPolicies.fromProperties(properties).getMaxAttempts());
+
+        properties.put("retryPolicy", "java.lang.String");
+        try {
+            RetryPolicies.fromProperties(properties);
+        } catch (IllegalArgumentException e) {
+            assertEquals("Invalid value for retryPolicy property. Expected a RetryPolicy class, but got: java.lang.String", e.getMessage());
+            return;
+        }
+        throw new AssertionError("Expected IllegalArgumentException");
+    }
+}
@@ -0,0 +1,81 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+public class SessionStoreTest {
+
+    private final AtomicLong nanos = new AtomicLong();
+
+    private void advanceMillis(long millis) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    public void testRemoveOnClose() {
+        SessionStore store = new SessionStore(10, 60_000, nanos::get);
+        store.put("connection", "session");
+        assertEquals("session", store.get("connection"));
+
+        store.remove("connection");
+        store.remove("connection");
+
+        assertNull(store.get("connection"));
+        assertEquals(0, store.getSize());
+        assertEquals(1, store.getClosedRemovals());
+    }
+
+    @Test
+    public void testIdleEntriesExpireOnRead() {
+        SessionStore store = new SessionStore(10, 60_000, nanos::get);
+        store.put("connection", "session");
+
+        advanceMillis(59_000);
+        assertEquals("session", store.get("connection"));
+        // Reading the entry keeps it alive
+        advanceMillis(59_000);
+        assertEquals("session", store.get("connection"));
+        advanceMillis(60_000);
+
+        assertNull(store.get("connection"));
+        assertEquals(0, store.getSize());
+        assertEquals(1, store.getIdleEvictions());
+    }
+
+    @Test
+    public void testIdleEntriesAreSweptOnWrite() {
+        SessionStore store = new SessionStore(10, 60_000, nanos::get);
+        store.put("abandoned-1", "session");
+        store.put("abandoned-2", "session");
+
+        advanceMillis(60_000);
+        store.put("connection", "session");
+
+        assertEquals(1, store.getSize());
+        assertEquals(2, store.getIdleEvictions());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEntriesAreEvictedAboveMaxSize() {
+        SessionStore store = new SessionStore(2, 60_000, nanos::get);
+        store.put("connection-1", "session-1");
+        advanceMillis(1);
+        store.put("connection-2", "session-2");
+        advanceMillis(1);
+        store.get("connection-1");
+        advanceMillis(1);
+
+        store.put("connection-3", "session-3");
+
+        assertEquals(2, store.getSize());
+        assertEquals(1, store.getSizeEvictions());
+        assertEquals("session-1", store.get("connection-1"));
+        assertNull(store.get("connection-2"));
+        assertEquals("session-3", store.get("connection-3"));
+    }
+}
@@ -0,0 +1,120 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.junit.Test;
+
+public class StatementHandleCacheTest {
+
+    private static final String CONNECTION = "connection";
+    private static final String SQL = "SELECT name FROM sites WHERE id = ?";
+
+    private final ProtobufTranslation translation = new ProtobufTranslationImpl();
+    private final StatementHandleCache cache = new StatementHandleCache(2);
+
+    private byte[] prepareResponse(int statementId) throws IOException {
+        return translation.serializeResponse(new Service.PrepareResponse(new Meta.StatementHandle(CONNECTION, statementId, null), null));
+    }
+
+    private static Service.PrepareRequest prepare(String sql) {
+        return new Service.PrepareRequest(CONNECTION, sql, -1);
+    }
+
+    private static Service.CloseStatementRequest close(int statementId) {
+        return new Service.CloseStatementRequest(CONNECTION, statementId);
+    }
+
+    /**
+     * Prepares the SQL with a cached statement if there is one, or with the given statement of the server.
+     */
+    private byte[] prepare(String sql, int serverStatementId) throws IOException {
+        byte[] reused = cache.take(prepare(sql));
+        return reused != null ? reused : cache.prepared(prepare(sql), prepareResponse(serverStatementId));
+    }
+
+    @Test
+    public void testClosedStatementIsReusedForTheSameSql() throws IOException {
+        byte[] first = prepare(SQL, 1);
+        assertTrue(cache.hasStatementsInUse());
+        assertEquals(Collections.emptyList(), cache.release(close(1)));
+        assertFalse(cache.hasStatementsInUse());
+
+        assertArrayEquals(first, cache.take(prepare(SQL)));
+        // Other SQL and row limits are prepared on the server
+        assertNull(cache.take(prepare("SELECT 1")));
+        assertNull(cache.take(new Service.PrepareRequest(CONNECTION, SQL, 10)));
+
+        assertEquals(1, cache.getStats().getHits());
+        assertEquals(3, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void testStatementsOpenAtTheSameTimeAreNotShared() throws IOException {
+        prepare(SQL, 1);
+        // The first statement is still in use
+        assertNull(cache.take(prepare(SQL)));
+        cache.prepared(prepare(SQL), prepareResponse(2));
+
+        cache.release(close(1));
+        cache.release(close(2));
+        assertNotNull(cache.take(prepare(SQL)));
+        assertNotNull(cache.take(prepare(SQL)));
+        assertNull(cache.take(prepare(SQL)));
+    }
+
+    @Test
+    public void testLeastRecentlyClosedStatementsAreEvicted() throws IOException {
+        for (int i = 1; i <= 3; i++) {
+            prepare(SQL + " OR id = " + i, i);
+        }
+        cache.release(close(2));
+        cache.release(close(1));
+        assertEquals(Collections.singletonList(2), cache.release(close(3)));
+        assertEquals(1, cache.getStats().getEvictions());
+
+        assertNull(cache.take(prepare(SQL + " OR id = 2")));
+        assertNotNull(cache.take(prepare(SQL + " OR id = 1")));
+    }
+
+    @Test
+    public void testUnknownStatementsAreClosedOnTheServer() throws IOException {
+        assertNull(cache.release(close(7)));
+
+        prepare(SQL, 1);
+        cache.clear();
+        assertNull(cache.release(close(1)));
+
+        // A response that is not a prepared statement is not cached
+        cache.prepared(prepare(SQL), translation.serializeResponse(new Service.CloseStatementResponse(null)));
+        assertFalse(cache.hasStatementsInUse());
+    }
+
+    @Test
+    public void testFromProperties() {
+        Properties properties = new Properties();
+        assertNull(StatementHandleCache.fromProperties(properties));
+
+        properties.put("preparedStatementCacheQueries", "0");
+        assertNull(StatementHandleCache.fromProperties(properties));
+
+        properties.put("preparedStatementCacheQueries", "256");
+        assertNotNull(StatementHandleCache.fromProperties(properties));
+
+        properties.put("preparedStatementCacheQueries", "-1");
+        assertThrows(IllegalArgumentException.class, () -> StatementHandleCache.fromProperties(properties));
+    }
+}
@@ -0,0 +1,225 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TokenCacheTest {
+
+    private static final long HOUR = 3_600_000L;
+
+    private ManualScheduler scheduler;
+    private TokenCache cache;
+
+    @Before
+    public void setUp() {
+        scheduler = new ManualScheduler();
+        cache = new TokenCache(scheduler::now, scheduler);
+    }
+
+    @Test
+    public void testConcurrentCallersShareOneRefresh() throws Exception {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch loading = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        TokenCache.TokenLoader loader = () -> {
+            loads.incrementAndGet();
+            loading.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new TokenCache.Token("token", scheduler.now() + HOUR);
+        };
+
+        int callers = 16;
+        ExecutorService executor = Executors.newFixedThreadPool(callers);
+        try {
+            List<Future<TokenCache.Token>> results = new ArrayList<>();
+            for (int i = 0; i < callers; i++) {
+                results.add(executor.submit(() -> cache.get(key, 0, loader)));
+            }
+            assertTrue(loading.await(10, TimeUnit.SECONDS));
+            // Give the other callers time to reach the in-flight refresh before it completes
+            Thread.sleep(100);
+            release.countDown();
+
+            TokenCache.Token first = results.get(0).get(10, TimeUnit.SECONDS);
+            for (Future<TokenCache.Token> result : results) {
+                assertSame(first, result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, loads.get());
+    }
+
+    @Test
+    public void testCallerWaitsOnlyIfNoValidTokenIsLeft() throws Exception {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        AtomicInteger loads = new AtomicInteger();
+        TokenCache.TokenLoader loader = () -> new TokenCache.Token("token-" + loads.incrementAndGet(), scheduler.now() + 10_000);
+
+        assertEquals("token-1", cache.get(key, 0, loader).getAccessToken());
+        assertEquals("token-1", cache.get(key, 5_000, loader).getAccessToken());
+        // The cached token lives for another 10 seconds only, less than the minimum validity of a token handed out
+        assertEquals("token-2", cache.get(key, 120_000, loader).getAccessToken());
+        assertEquals(2, loads.get());
+        assertEquals(0, cache.getStats().getBackgroundRefreshes());
+    }
+
+    @Test
+    public void testTokenWithinTheMarginIsRenewedInTheBackground() throws Exception {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        AtomicInteger loads = new AtomicInteger();
+        TokenCache.TokenLoader loader = () -> new TokenCache.Token("token-" + loads.incrementAndGet(), scheduler.now() + HOUR);
+
+        assertEquals("token-1", cache.get(key, 0, loader).getAccessToken());
+        // Within the margin but still valid: the caller gets the current token without waiting
+        assertEquals("token-1", cache.get(key, 2 * HOUR, loader).getAccessToken());
+        assertEquals(1, loads.get());
+
+        scheduler.advance(0);
+        assertEquals(2, loads.get());
+        assertEquals("token-2", cache.get(key, 0, loader).getAccessToken());
+        assertEquals(1, cache.getStats().getBackgroundRefreshes());
+    }
+
+    @Test
+    public void testTokenIsRenewedAheadOfExpiryWhileItIsUsed() throws Exception {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        AtomicInteger loads = new AtomicInteger();
+        TokenCache.TokenLoader loader = () -> new TokenCache.Token("token-" + loads.incrementAndGet(), scheduler.now() + 400);
+
+        cache.get(key, 50, loader);
+        // Renewed twice the margin ahead of its expiry without anyone asking
+        scheduler.advance(299);
+        assertEquals(1, loads.get());
+        scheduler.advance(1);
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getStats().getBackgroundRefreshes());
+
+        // Nobody used the renewed token, so it is not renewed again
+        scheduler.advance(HOUR);
+        assertEquals(2, loads.get());
+        assertEquals(2, cache.getStats().getRefreshes());
+        assertEquals(0, scheduler.pending());
+    }
+
+    @Test
+    public void testFailedBackgroundRefreshIsCountedAndKeepsTheToken() throws Exception {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        cache.get(key, 0, () -> new TokenCache.Token("token", scheduler.now() + HOUR));
+
+        TokenCache.Token token = cache.get(key, 2 * HOUR, () -> {
+            throw new SQLException("Account Manager unavailable");
+        });
+        assertEquals("token", token.getAccessToken());
+
+        scheduler.advance(0);
+        assertEquals(1, cache.getStats().getFailures());
+        assertEquals("token", cache.get(key, 0, () -> {
+            throw new AssertionError("The valid token must be reused");
+        }).getAccessToken());
+    }
+
+    @Test
+    public void testFailedRefreshIsNotCached() throws Exception {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        try {
+            cache.get(key, 0, () -> {
+                throw new SQLException("401 Unauthorized");
+            });
+            fail("Expected the refresh failure");
+        } catch (SQLException e) {
+            assertEquals("401 Unauthorized", e.getMessage());
+        }
+
+        TokenCache.Token token = cache.get(key, 0, () -> new TokenCache.Token("token", scheduler.now() + HOUR));
+        assertEquals("token", token.getAccessToken());
+    }
+
+    @Test
+    public void testKeysSeparateInstancesAndSecrets() {
+        String key = TokenCache.key("host", "client", "secret", "instance");
+        assertEquals(key, TokenCache.key("host", "client", "secret", "instance"));
+        assertNotEquals(key, TokenCache.key("host", "client", "secret", "other"));
+        assertNotEquals(key, TokenCache.key("other", "client", "secret", "instance"));
+        assertNotEquals(key, TokenCache.key("host", "client", "wrong", "instance"));
+        assertTrue("The secret must not be part of the key in clear text", !key.contains("secret"));
+    }
+
+    /**
+     * Clock and scheduler of the cache under test, the scheduled refreshes run on the test thread when the clock is advanced past them.
+     */
+    private static final class ManualScheduler implements TokenCache.Scheduler {
+        private final List<Task> tasks = new ArrayList<>();
+        private volatile long nowMs = 1_000_000L;
+
+        long now() {
+            return nowMs;
+        }
+
+        @Override
+        public synchronized Future<?> schedule(Runnable task, long delayMs) {
+            Task scheduled = new Task(task, nowMs + delayMs);
+            tasks.add(scheduled);
+            return scheduled.future;
+        }
+
+        /**
+         * Moves the clock forward, running the tasks that are due on the way in the order they are due.
+         */
+        synchronized void advance(long millis) {
+            long untilMs = nowMs + millis;
+            while (true) {
+                tasks.removeIf(task -> task.future.isCancelled());
+                Task next = tasks.stream().filter(task -> task.dueMs <= untilMs).min(Comparator.comparingLong(task -> task.dueMs))
+                                .orElse(null);
+                if (next == null) {
+                    break;
+                }
+                tasks.remove(next);
+                nowMs = Math.max(nowMs, next.dueMs);
+                next.runnable.run();
+                next.future.complete(null);
+            }
+            nowMs = untilMs;
+        }
+
+        synchronized int pending() {
+            tasks.removeIf(task -> task.future.isCancelled());
+            return tasks.size();
+        }
+    }
+
+    private static final class Task {
+        private final Runnable runnable;
+        private final long dueMs;
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Task(Runnable runnable, long dueMs) {
+            this.runnable = runnable;
+            this.dueMs = dueMs;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.salesforce.commerce.intelligence.jdbc.client;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.calcite.avatica.Meta;
+import org.apache.calcite.avatica.remote.ProtobufTranslation;
+import org.apache.calcite.avatica.remote.ProtobufTranslationImpl;
+import org.apache.calcite.avatica.remote.Service;
+import org.apache.calcite.avatica.remote.TypedValue;
+import org.junit.Test;
+
+public class WireRequestScannerTest {
+
+    private static final String CONNECTION_ID = "scan-connection-id";
+
+    private final ProtobufTranslation translation = new ProtobufTranslationImpl();
+
+    @Test
+    public void testScan_AllRequestTypes() throws IOException {
+        List<Service.Request> requests = Arrays.asList(
+                new Service.CatalogsRequest(CONNECTION_ID),
+                new Service.SchemasRequest(CONNECTION_ID, "catalog", "schema%"),
+                new Service.TablesRequest(CONNECTION_ID, "catalog", "schema%", "table%", Collections.singletonList("TABLE")),
+                new Service.TableTypesRequest(CONNECTION_ID),
+                new Service.TypeInfoRequest(CONNECTION_ID),
+                new Service.ColumnsRequest(CONNECTION_ID, "catalog", "schema%", "table%", "column%"),
+                new Service.DatabasePropertyRequest(CONNECTION_ID),
+                new Service.OpenConnectionRequest(CONNECTION_ID, null),
+                new Service.CloseConnectionRequest(CONNECTION_ID),
+                new Service.CreateStatementRequest(CONNECTION_ID),
+                new Service.CloseStatementRequest(CONNECTION_ID, 7),
+                new Service.PrepareRequest(CONNECTION_ID, "SELECT 1", 10),
+                new Service.PrepareAndExecuteRequest(CONNECTION_ID, 7, "SELECT 1", 10),
+                new Service.ExecuteRequest(new Meta.StatementHandle(CONNECTION_ID, 7, null), Collections.singletonList(TypedValue.ofLocal(
+                        org.apache.calcite.avatica.ColumnMetaData.Rep.STRING, "value")), 10), new Service.PrepareAndExecuteBatchRequest(
+                        CONNECTION_ID, 7, Collections.singletonList("SELECT 1")), new Service.FetchRequest(CONNECTION_ID, 7, 1000, 1000),
+                new Service.CommitRequest(CONNECTION_ID), new Service.RollbackRequest(CONNECTION_ID));
+
+        for (Service.Request request : requests) {
+            WireRequestScanner.Result result = WireRequestScanner.scan(translation.serializeRequest(request));
+            assertNotNull(request.getClass().getSimpleName(), result);
+            assertEquals(RequestKind.of(request), result.getKind());
+            assertEquals(request.getClass().getSimpleName(), CONNECTION_ID, result.getConnectionId());
+        }
+    }
+
+    @Test
+    public void testScan_LargeExecuteBatchRequest() throws IOException {
+        List<List<TypedValue>> updates = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            updates.add(Arrays.asList(TypedValue.ofLocal(org.apache.calcite.avatica.ColumnMetaData.Rep.INTEGER, i),
+                    TypedValue.ofLocal(org.apache.calcite.avatica.ColumnMetaData.Rep.STRING, "row-" + i)));
+        }
+        byte[] payload = translation.serializeRequest(new Service.ExecuteBatchRequest(CONNECTION_ID, 3, updates));
+
+        WireRequestScanner.Result result = WireRequestScanner.scan(payload);
+
+        assertNotNull(result);
+        assertEquals(RequestKind.EXECUTE_BATCH, result.getKind());
+        assertEquals(CONNECTION_ID, result.getConnectionId());
+    }
+
+    @Test
+    public void testScan_RequestWithoutConnectionId() throws IOException {
+        WireRequestScanner.Result result = WireRequestScanner.scan(translation.serializeRequest(new Service.CatalogsRequest()));
+
+        assertNotNull(result);
+        assertEquals(RequestKind.CATALOGS, result.getKind());
+        assertNull(result.getConnectionId());
+    }
+
+    @Test
+    public void testScan_UnrecognizedPayload() {
+        assertNull(WireRequestScanner.scan("request-payload".getBytes()));
+        assertNull(WireRequestScanner.scan(new byte[] { (byte) 0xFF, (byte) 0xFF }));
+    }
+
+    @Test
+    public void testRequestEnvelope_ParsesLazily() throws IOException {
+        byte[] payload = translation.serializeRequest(new Service.FetchRequest(CONNECTION_ID, 7, 1000, 500));
+        WireRequestScanner.Result result = WireRequestScanner.scan(payload);
+
+        RequestEnvelope envelope = new RequestEnvelope(payload, result.getKind(), result.getConnectionId(), translation);
+
+        Service.FetchRequest request = (Service.FetchRequest) envelope.getRequest();
+        assertEquals(CONNECTION_ID, request.connectionId);
+        assertEquals(500, request.fetchMaxRowCount);
+    }
+}
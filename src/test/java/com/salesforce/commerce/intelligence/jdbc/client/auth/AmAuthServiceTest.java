@@ -13,7 +13,12 @@ import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -185,4 +190,80 @@ public class AmAuthServiceTest {
             assertTrue("Should mention missing fields", e.getMessage().contains("missing access_token or expires_in"));
         }
     }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetAMAccessToken_SkipsUnknownFields() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        HttpResponse<String> mockResponse = mock(HttpResponse.class);
+
+        when(mockResponse.statusCode()).thenReturn(200);
+        when(mockResponse.body()).thenReturn(
+                "{\"scope\":[\"SALESFORCE_COMMERCE_API:instance\"],\"claims\":{\"access_token\":\"nested\"},"
+                        + "\"access_token\":\"test-token\",\"token_type\":\"Bearer\",\"expires_in\":1799}");
+        when(mockHttpClient.send(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(mockResponse);
+
+        AmAuthService mockAuthService = new AmAuthService(mockHttpClient, new ObjectMapper());
+        Map<String, String> token = mockAuthService.getAMAccessToken("https://test.example.com", "clientId", "secret", "instance");
+
+        assertEquals("test-token", token.get("access_token"));
+        assertEquals("1799", token.get("expires_in"));
+        assertEquals(2, token.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetAMAccessTokens_RequestsAllInstancesConcurrently() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        List<CompletableFuture<HttpResponse<String>>> pending = new ArrayList<>();
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenAnswer(invocation -> {
+            CompletableFuture<HttpResponse<String>> response = new CompletableFuture<>();
+            pending.add(response);
+            return response;
+        });
+
+        AmAuthService mockAuthService = new AmAuthService(mockHttpClient, new ObjectMapper());
+        Map<String, CompletableFuture<Map<String, String>>> tokens = mockAuthService.getAMAccessTokens("https://test.example.com",
+                "clientId", "secret", Arrays.asList("instance_a", "instance_b", "instance_a", "instance_c"));
+
+        // All requests are in flight before any response arrived, and duplicates are requested once
+        assertEquals(Arrays.asList("instance_a", "instance_b", "instance_c"), new ArrayList<>(tokens.keySet()));
+        assertEquals(3, pending.size());
+
+        for (int i = 0; i < pending.size(); i++) {
+            HttpResponse<String> response = mock(HttpResponse.class);
+            when(response.statusCode()).thenReturn(i == 1 ? 401 : 200);
+            when(response.body()).thenReturn("{\"access_token\":\"token-" + i + "\",\"expires_in\":\"3600\"}");
+            pending.get(i).complete(response);
+        }
+
+        assertEquals("token-0", tokens.get("instance_a").get().get("access_token"));
+        assertEquals("token-2", tokens.get("instance_c").get().get("access_token"));
+        try {
+            tokens.get("instance_b").get();
+            fail("Expected the 401 of instance_b");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            assertTrue(e.getCause().getMessage().contains("401"));
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGetAMAccessTokenAsync_ConnectionFailure() throws Exception {
+        HttpClient mockHttpClient = mock(HttpClient.class);
+        when(mockHttpClient.sendAsync(any(HttpRequest.class), any(HttpResponse.BodyHandler.class))).thenReturn(
+                CompletableFuture.failedFuture(new IOException("Connection refused")));
+
+        AmAuthService mockAuthService = new AmAuthService(mockHttpClient, new ObjectMapper());
+
+        try {
+            mockAuthService.getAMAccessTokenAsync("https://test.example.com", "clientId", "secret", "instance").get();
+            fail("Expected the connection failure");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SQLException);
+            assertTrue(e.getCause().getMessage().contains("Failed to retrieve OAuth token"));
+            assertTrue(e.getCause().getCause() instanceof IOException);
+        }
+    }
 }